@@ -0,0 +1,23 @@
+package com.tom_e_white.squark;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.serializers.JavaSerializer;
+import htsjdk.variant.variantcontext.VariantContext;
+import org.apache.spark.serializer.KryoRegistrator;
+
+/**
+ * Registers serializers for htsjdk classes that Kryo cannot serialize field by field. Set {@code
+ * spark.kryo.registrator} to this class when using Spark's {@code KryoSerializer}.
+ *
+ * <p>Variants are serialized using Java serialization, since Kryo cannot recreate their
+ * unmodifiable collections or their lazily-decoded genotypes. htsjdk decodes any undecoded
+ * genotypes when a variant is serialized, and does not serialize the codec used to decode them, so
+ * variants read with {@link HtsjdkVariantsRddStorage.GenotypeDecoding#LAZY} can be shuffled,
+ * cached, or collected.
+ */
+public class HtsjdkKryoRegistrator implements KryoRegistrator {
+  @Override
+  public void registerClasses(Kryo kryo) {
+    kryo.addDefaultSerializer(VariantContext.class, JavaSerializer.class);
+  }
+}
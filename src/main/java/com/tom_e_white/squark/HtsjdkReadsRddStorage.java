@@ -1,12 +1,16 @@
 package com.tom_e_white.squark;
 
+import com.tom_e_white.squark.impl.file.DirectoryListing;
 import com.tom_e_white.squark.impl.file.FileSystemWrapper;
 import com.tom_e_white.squark.impl.file.HadoopFileSystemWrapper;
+import com.tom_e_white.squark.impl.file.MetadataCache;
 import com.tom_e_white.squark.impl.file.NioFileSystemWrapper;
+import com.tom_e_white.squark.impl.file.ReadAhead;
 import com.tom_e_white.squark.impl.formats.bam.BamSink;
 import com.tom_e_white.squark.impl.formats.bam.BamSource;
 import com.tom_e_white.squark.impl.formats.cram.CramSink;
 import com.tom_e_white.squark.impl.formats.cram.CramSource;
+import com.tom_e_white.squark.impl.formats.cram.CramWriteParameters;
 import com.tom_e_white.squark.impl.formats.sam.AbstractSamSink;
 import com.tom_e_white.squark.impl.formats.sam.AbstractSamSource;
 import com.tom_e_white.squark.impl.formats.sam.AnySamSinkMultiple;
@@ -16,8 +20,11 @@ import com.tom_e_white.squark.impl.formats.sam.SamSource;
 import htsjdk.samtools.SAMFileHeader;
 import htsjdk.samtools.SAMRecord;
 import htsjdk.samtools.ValidationStringency;
+import htsjdk.samtools.cram.build.CramEncodingStrategy;
 import htsjdk.samtools.util.Locatable;
 import java.io.IOException;
+import java.util.Set;
+import org.apache.hadoop.conf.Configuration;
 import org.apache.spark.api.java.JavaRDD;
 import org.apache.spark.api.java.JavaSparkContext;
 
@@ -45,11 +52,112 @@ public class HtsjdkReadsRddStorage {
     MULTIPLE
   }
 
+  /** An option for configuring whether to write an index alongside a {@link HtsjdkReadsRdd}. */
+  public enum IndexWriteOption implements WriteOption {
+    /** Don't write an index. */
+    NONE,
+    /**
+     * Write a CSI index (.bam.csi) alongside the file. Only supported for writing a single BAM file
+     * whose header has a coordinate sort order. Unlike BAI indexes, CSI indexes support references
+     * longer than 2^29 bases.
+     */
+    CSI
+  }
+
+  /**
+   * An option for configuring the size of the containers in a CRAM file. Small containers make
+   * interval reads and splits finer-grained, while large containers compress better. The default is
+   * 10,000 records per slice and one slice per container.
+   */
+  public static class CramContainerSizeWriteOption implements WriteOption {
+    private final int recordsPerSlice;
+    private final int slicesPerContainer;
+
+    /**
+     * @param recordsPerSlice the maximum number of records in each slice
+     * @param slicesPerContainer the maximum number of slices in each container
+     */
+    public CramContainerSizeWriteOption(int recordsPerSlice, int slicesPerContainer) {
+      if (recordsPerSlice <= 0) {
+        throw new IllegalArgumentException(
+            "Records per slice must be positive: " + recordsPerSlice);
+      }
+      if (slicesPerContainer <= 0) {
+        throw new IllegalArgumentException(
+            "Slices per container must be positive: " + slicesPerContainer);
+      }
+      this.recordsPerSlice = recordsPerSlice;
+      this.slicesPerContainer = slicesPerContainer;
+    }
+
+    public int getRecordsPerSlice() {
+      return recordsPerSlice;
+    }
+
+    public int getSlicesPerContainer() {
+      return slicesPerContainer;
+    }
+  }
+
+  /** An option for configuring how the blocks in a CRAM file are compressed. */
+  public enum CramEncodingWriteOption implements WriteOption {
+    /** Use the htsjdk default codecs. */
+    DEFAULT,
+    /** Use faster codecs (order-0 rANS) at the expense of size, e.g. for quality scores. */
+    FAST,
+    /** Use codecs that give smaller files (LZMA rather than gzip) at the expense of speed. */
+    SMALL
+  }
+
+  /**
+   * An option for configuring the number of threads used to encode CRAM containers in each write
+   * task. Records are batched into containers on the task thread, and the containers are encoded
+   * and compressed on a pool of this many threads, then written in order. The default is one
+   * thread, which encodes on the task thread. More threads are useful when there are fewer
+   * concurrent tasks than cores.
+   */
+  public static class CramEncodingThreadsWriteOption implements WriteOption {
+    private final int threads;
+
+    /** @param threads the number of threads to encode CRAM containers with in each task */
+    public CramEncodingThreadsWriteOption(int threads) {
+      if (threads <= 0) {
+        throw new IllegalArgumentException("Threads must be positive: " + threads);
+      }
+      this.threads = threads;
+    }
+
+    public int getThreads() {
+      return threads;
+    }
+  }
+
+  /**
+   * An optional field of a read, which may be left out when reading to avoid the cost of decoding
+   * it. Core fields (flags, reference, position, mapping quality, CIGAR, mate information, and read
+   * group) are always read.
+   */
+  public enum ReadField {
+    /** The read name. */
+    NAME,
+    /** The read bases. */
+    BASES,
+    /** The base quality scores. */
+    QUALITIES,
+    /** The optional tags (other than the read group). */
+    TAGS
+  }
+
   private JavaSparkContext sparkContext;
   private int splitSize;
   private ValidationStringency validationStringency = ValidationStringency.DEFAULT_STRINGENCY;
   private boolean useNio;
   private String referenceSourcePath;
+  private Set<ReadField> readFields;
+  private int readAheadMinSize;
+  private int readAheadMaxSize;
+  private final DirectoryListing.Cache directoryListingCache = new DirectoryListing.Cache();
+  private final MetadataCache metadataCache = new MetadataCache();
 
   /**
    * Create a {@link HtsjdkReadsRddStorage} from a Spark context object.
@@ -101,6 +209,61 @@ public class HtsjdkReadsRddStorage {
     return this;
   }
 
+  /**
+   * Set the optional fields to read. Fields that are left out are not decoded from CRAM files, and
+   * are returned as missing values ("*" for names, bases, and quality scores; no tags). If bases
+   * are left out then no reference is needed to read CRAM, which allows reads to be read from CRAM
+   * files without a reference, with all fields apart from bases populated. For other formats all
+   * fields are read.
+   *
+   * @param readFields the optional fields to read, or null to read all fields (the default)
+   * @return the current {@link HtsjdkReadsRddStorage}
+   */
+  public HtsjdkReadsRddStorage projection(Set<ReadField> readFields) {
+    this.readFields = readFields;
+    return this;
+  }
+
+  /**
+   * Set the sizes of the read-ahead buffers that files are read through. The read-ahead grows
+   * towards the maximum while a file is read sequentially, and shrinks towards the minimum when it
+   * is accessed randomly (as when finding record boundaries at the start of each split), so small
+   * values reduce the number of bytes fetched from object stores for random access, and large
+   * values reduce the number of requests for sequential access. The defaults are 4 KiB and 4 MiB.
+   * With the Hadoop filesystem, files are fetched in whole positional-read blocks, so a minimum
+   * smaller than the block size doesn't reduce the bytes fetched (see {@link
+   * HadoopFileSystemWrapper#POSITIONAL_READ_BLOCK_SIZE_KEY}).
+   *
+   * @param minSize the minimum read-ahead size in bytes
+   * @param maxSize the maximum read-ahead size in bytes
+   * @return the current {@link HtsjdkReadsRddStorage}
+   */
+  public HtsjdkReadsRddStorage readAhead(int minSize, int maxSize) {
+    if (minSize <= 0 || maxSize < minSize) {
+      throw new IllegalArgumentException(
+          "Invalid read-ahead sizes, minimum " + minSize + ", maximum " + maxSize);
+    }
+    this.readAheadMinSize = minSize;
+    this.readAheadMaxSize = maxSize;
+    return this;
+  }
+
+  /**
+   * Remove any cached directory listing, headers, and split plans for the given file or directory,
+   * so that they are read again the next time it is read. Headers and split plans are not used for
+   * files that have changed length or modification time, but directory listings are, so this is
+   * needed if files may have been added to or removed from a directory by another process. Paths
+   * written by this object are invalidated automatically.
+   *
+   * @param path the file or directory
+   * @return the current {@link HtsjdkReadsRddStorage}
+   */
+  public HtsjdkReadsRddStorage invalidate(String path) {
+    directoryListingCache.invalidate(path);
+    metadataCache.invalidate(path);
+    return this;
+  }
+
   /**
    * Read reads from the given path. The input files may be in any format (BAM/CRAM/SAM).
    *
@@ -130,10 +293,15 @@ public class HtsjdkReadsRddStorage {
     FileSystemWrapper fileSystemWrapper =
         useNio ? new NioFileSystemWrapper() : new HadoopFileSystemWrapper();
 
+    // settings for this read go in a copy of the configuration, so other reads don't see them
+    Configuration conf = new Configuration(sparkContext.hadoopConfiguration());
+    if (readAheadMaxSize > 0) {
+      ReadAhead.setSizes(conf, readAheadMinSize, readAheadMaxSize);
+    }
+
     String firstSamPath;
-    if (fileSystemWrapper.isDirectory(sparkContext.hadoopConfiguration(), path)) {
-      firstSamPath =
-          fileSystemWrapper.firstFileInDirectory(sparkContext.hadoopConfiguration(), path);
+    if (fileSystemWrapper.isDirectory(conf, path)) {
+      firstSamPath = directoryListingCache.get(fileSystemWrapper, conf, path).getFirstFile();
     } else {
       firstSamPath = path;
     }
@@ -149,7 +317,7 @@ public class HtsjdkReadsRddStorage {
         abstractSamSource = new BamSource(useNio);
         break;
       case CRAM:
-        abstractSamSource = new CramSource();
+        abstractSamSource = new CramSource(readFields);
         break;
       case SAM:
         abstractSamSource = new SamSource();
@@ -157,13 +325,15 @@ public class HtsjdkReadsRddStorage {
       default:
         throw new IllegalArgumentException("File does not end in BAM, CRAM, or SAM extension.");
     }
+    abstractSamSource.setDirectoryListingCache(directoryListingCache);
+    abstractSamSource.setMetadataCache(metadataCache);
 
     SAMFileHeader header =
-        abstractSamSource.getFileHeader(
-            sparkContext, path, validationStringency, referenceSourcePath);
+        abstractSamSource.getFileHeader(conf, path, validationStringency, referenceSourcePath);
     JavaRDD<SAMRecord> reads =
         abstractSamSource.getReads(
             sparkContext,
+            conf,
             path,
             splitSize,
             traversalParameters,
@@ -174,27 +344,47 @@ public class HtsjdkReadsRddStorage {
 
   /**
    * Write reads to a file or files specified by the given path. Write options may be specified to
-   * control the format to write in (BAM/CRAM/SAM, if not clear from the path extension), and the
-   * number of files to write (single vs. multiple).
+   * control the format to write in (BAM/CRAM/SAM, if not clear from the path extension), the number
+   * of files to write (single vs. multiple), and whether to write an index.
    *
    * @param htsjdkReadsRdd a {@link HtsjdkReadsRdd} containing the header and the reads
    * @param path the file or directory to write to
    * @param writeOptions options to control aspects of how to write the reads (e.g. {@link
-   *     FormatWriteOption} and {@link FileCardinalityWriteOption}
+   *     FormatWriteOption}, {@link FileCardinalityWriteOption}, and {@link IndexWriteOption}, and
+   *     for CRAM {@link CramContainerSizeWriteOption}, {@link CramEncodingWriteOption}, and {@link
+   *     CramEncodingThreadsWriteOption})
    * @throws IOException if an IO error occurs while writing
    */
   public void write(HtsjdkReadsRdd htsjdkReadsRdd, String path, WriteOption... writeOptions)
       throws IOException {
     FormatWriteOption formatWriteOption = null;
     FileCardinalityWriteOption fileCardinalityWriteOption = null;
+    CramContainerSizeWriteOption cramContainerSizeWriteOption =
+        new CramContainerSizeWriteOption(
+            CramWriteParameters.DEFAULT.getRecordsPerSlice(),
+            CramWriteParameters.DEFAULT.getSlicesPerContainer());
+    CramEncodingWriteOption cramEncodingWriteOption = CramEncodingWriteOption.DEFAULT;
+    CramEncodingThreadsWriteOption cramEncodingThreadsWriteOption =
+        new CramEncodingThreadsWriteOption(CramWriteParameters.DEFAULT.getEncodingThreads());
+    IndexWriteOption indexWriteOption = IndexWriteOption.NONE;
     for (WriteOption writeOption : writeOptions) {
       if (writeOption instanceof FormatWriteOption) {
         formatWriteOption = (FormatWriteOption) writeOption;
       } else if (writeOption instanceof FileCardinalityWriteOption) {
         fileCardinalityWriteOption = (FileCardinalityWriteOption) writeOption;
+      } else if (writeOption instanceof CramContainerSizeWriteOption) {
+        cramContainerSizeWriteOption = (CramContainerSizeWriteOption) writeOption;
+      } else if (writeOption instanceof CramEncodingWriteOption) {
+        cramEncodingWriteOption = (CramEncodingWriteOption) writeOption;
+      } else if (writeOption instanceof CramEncodingThreadsWriteOption) {
+        cramEncodingThreadsWriteOption = (CramEncodingThreadsWriteOption) writeOption;
+      } else if (writeOption instanceof IndexWriteOption) {
+        indexWriteOption = (IndexWriteOption) writeOption;
       }
     }
 
+    invalidate(path);
+
     if (formatWriteOption == null) {
       formatWriteOption = inferFormatFromPath(path);
     }
@@ -208,7 +398,24 @@ public class HtsjdkReadsRddStorage {
       fileCardinalityWriteOption = inferCardinalityFromPath(path);
     }
 
-    getSink(formatWriteOption, fileCardinalityWriteOption)
+    if (indexWriteOption == IndexWriteOption.CSI
+        && (formatWriteOption != FormatWriteOption.BAM
+            || fileCardinalityWriteOption != FileCardinalityWriteOption.SINGLE)) {
+      throw new IllegalArgumentException(
+          "CSI indexes can only be written for a single BAM file, not "
+              + formatWriteOption
+              + " "
+              + fileCardinalityWriteOption);
+    }
+
+    CramWriteParameters cramWriteParameters =
+        new CramWriteParameters(
+            cramContainerSizeWriteOption.getRecordsPerSlice(),
+            cramContainerSizeWriteOption.getSlicesPerContainer(),
+            CramEncodingStrategy.valueOf(cramEncodingWriteOption.name()),
+            cramEncodingThreadsWriteOption.getThreads());
+
+    getSink(formatWriteOption, fileCardinalityWriteOption, cramWriteParameters, indexWriteOption)
         .save(
             sparkContext,
             htsjdkReadsRdd.getHeader(),
@@ -230,21 +437,25 @@ public class HtsjdkReadsRddStorage {
   }
 
   private AbstractSamSink getSink(
-      FormatWriteOption formatWriteOption, FileCardinalityWriteOption fileCardinalityWriteOption) {
+      FormatWriteOption formatWriteOption,
+      FileCardinalityWriteOption fileCardinalityWriteOption,
+      CramWriteParameters cramWriteParameters,
+      IndexWriteOption indexWriteOption) {
     switch (fileCardinalityWriteOption) {
       case SINGLE:
         switch (formatWriteOption) {
           case BAM:
-            return new BamSink();
+            return new BamSink(indexWriteOption == IndexWriteOption.CSI);
           case CRAM:
-            return new CramSink();
+            return new CramSink(cramWriteParameters);
           case SAM:
             return new SamSink();
           default:
             throw new IllegalArgumentException("Unrecognized format: " + formatWriteOption);
         }
       case MULTIPLE:
-        return new AnySamSinkMultiple(SamFormat.fromFormatWriteOption(formatWriteOption));
+        return new AnySamSinkMultiple(
+            SamFormat.fromFormatWriteOption(formatWriteOption), cramWriteParameters);
       default:
         throw new IllegalArgumentException(
             "Unrecognized cardinality: " + fileCardinalityWriteOption);
@@ -1,6 +1,11 @@
 package com.tom_e_white.squark;
 
+import com.tom_e_white.squark.impl.file.FileSystemWrapper;
+import com.tom_e_white.squark.impl.file.HadoopFileSystemWrapper;
+import com.tom_e_white.squark.impl.file.MetadataCache;
 import com.tom_e_white.squark.impl.formats.vcf.AbstractVcfSink;
+import com.tom_e_white.squark.impl.formats.vcf.BcfSink;
+import com.tom_e_white.squark.impl.formats.vcf.BcfSource;
 import com.tom_e_white.squark.impl.formats.vcf.VcfFormat;
 import com.tom_e_white.squark.impl.formats.vcf.VcfSink;
 import com.tom_e_white.squark.impl.formats.vcf.VcfSinkMultiple;
@@ -10,6 +15,7 @@ import htsjdk.variant.variantcontext.VariantContext;
 import htsjdk.variant.vcf.VCFHeader;
 import java.io.IOException;
 import java.util.List;
+import java.util.Set;
 import org.apache.spark.api.java.JavaRDD;
 import org.apache.spark.api.java.JavaSparkContext;
 
@@ -26,7 +32,9 @@ public class HtsjdkVariantsRddStorage {
     /** block compressed VCF format (.vcf.bgz) */
     VCF_BGZ,
     /** block compressed VCF format (.vcf.gz) */
-    VCF_GZ;
+    VCF_GZ,
+    /** block compressed BCF format (.bcf) */
+    BCF;
   }
 
   /** An option for configuring the number of files to write a {@link HtsjdkVariantsRdd} as. */
@@ -37,8 +45,46 @@ public class HtsjdkVariantsRddStorage {
     MULTIPLE
   }
 
+  /** An option for configuring whether to write an index alongside a {@link HtsjdkVariantsRdd}. */
+  public enum IndexWriteOption implements WriteOption {
+    /** Don't write an index. */
+    NONE,
+    /**
+     * Write a CSI index (.csi) alongside the file. Only supported for writing a single BCF or
+     * BGZF-compressed VCF file, whose variants are sorted by coordinate (the write fails if they
+     * are not). Unlike tabix indexes, CSI indexes support contigs longer than 2^29 bases.
+     */
+    CSI
+  }
+
+  /** How the genotype columns (FORMAT and the per-sample columns) are decoded when reading. */
+  public enum GenotypeDecoding {
+    /**
+     * Use htsjdk's VCF codec, which defers decoding genotypes until they are accessed, but only if
+     * the samples in the header are in sorted order; otherwise genotypes are decoded as each
+     * variant is read.
+     */
+    DEFAULT,
+    /**
+     * Keep the genotype columns as an undecoded string attached to each variant, and decode them on
+     * first access, regardless of sample order. This is useful for wide cohort VCFs when most
+     * variants are filtered out before their genotypes are looked at. Any undecoded genotypes are
+     * decoded when a variant is serialized (e.g. in a shuffle, cache, or collect); when using Kryo,
+     * register {@link HtsjdkKryoRegistrator} so that variants are serialized this way.
+     */
+    LAZY,
+    /**
+     * Skip the genotype columns entirely, returning variants with no genotypes, and a header with
+     * no samples.
+     */
+    SITES_ONLY
+  }
+
   private JavaSparkContext sparkContext;
   private int splitSize;
+  private GenotypeDecoding genotypeDecoding = GenotypeDecoding.DEFAULT;
+  private Set<String> samples;
+  private final MetadataCache metadataCache = new MetadataCache();
 
   /**
    * Create a {@link HtsjdkVariantsRddStorage} from a Spark context object.
@@ -64,7 +110,46 @@ public class HtsjdkVariantsRddStorage {
   }
 
   /**
-   * Read variants from the given path. The input files must be VCF format, optionally compressed.
+   * @param genotypeDecoding how genotypes are decoded when reading
+   * @return the current {@link HtsjdkVariantsRddStorage}
+   */
+  public HtsjdkVariantsRddStorage genotypeDecoding(GenotypeDecoding genotypeDecoding) {
+    this.genotypeDecoding = genotypeDecoding;
+    return this;
+  }
+
+  /**
+   * Set the samples to read genotypes for. The genotype columns for other samples are skipped
+   * without being decoded, and the header returned only has the given samples (in file order). Note
+   * that, unlike {@link VariantContext#subContextFromSamples}, the alleles and INFO fields of each
+   * variant are not recalculated for the subset of samples. For BCF, the genotypes are decoded in
+   * full and then subset.
+   *
+   * @param samples the samples to read, or null to read all samples (the default)
+   * @return the current {@link HtsjdkVariantsRddStorage}
+   */
+  public HtsjdkVariantsRddStorage samples(Set<String> samples) {
+    this.samples = samples;
+    return this;
+  }
+
+  /**
+   * Remove any cached headers and indexes for the given file or directory, so that they are read
+   * again the next time it is read. They are not used for files that have changed length or
+   * modification time, so this is only needed to free memory, or if a file may have changed without
+   * either changing. Paths written by this object are invalidated automatically.
+   *
+   * @param path the file or directory
+   * @return the current {@link HtsjdkVariantsRddStorage}
+   */
+  public HtsjdkVariantsRddStorage invalidate(String path) {
+    metadataCache.invalidate(path);
+    return this;
+  }
+
+  /**
+   * Read variants from the given path. The input files must be VCF format, optionally compressed,
+   * or BGZF-compressed BCF format.
    *
    * @param path the file or directory to read from
    * @return a {@link HtsjdkVariantsRdd} that allows access to the variants
@@ -76,7 +161,7 @@ public class HtsjdkVariantsRddStorage {
 
   /**
    * Read variants from the given path, using the given intervals to filter the variants. The input
-   * files must be VCF format, optionally compressed.
+   * files must be VCF format, optionally compressed, or BGZF-compressed BCF format.
    *
    * @param path the file or directory to read from
    * @param intervals intervals to filter variants by
@@ -86,17 +171,34 @@ public class HtsjdkVariantsRddStorage {
    */
   public <T extends Locatable> HtsjdkVariantsRdd read(String path, List<T> intervals)
       throws IOException {
-    VcfSource vcfSource = new VcfSource();
-    VCFHeader header = vcfSource.getFileHeader(sparkContext, path);
-    JavaRDD<VariantContext> variants =
-        vcfSource.getVariants(sparkContext, path, splitSize, intervals);
+    FileSystemWrapper fileSystemWrapper = new HadoopFileSystemWrapper();
+    String firstPath;
+    if (fileSystemWrapper.isDirectory(sparkContext.hadoopConfiguration(), path)) {
+      firstPath = fileSystemWrapper.firstFileInDirectory(sparkContext.hadoopConfiguration(), path);
+    } else {
+      firstPath = path;
+    }
+
+    VCFHeader header;
+    JavaRDD<VariantContext> variants;
+    if (BcfSource.isBcf(firstPath)) {
+      BcfSource bcfSource = new BcfSource(genotypeDecoding, samples);
+      bcfSource.setMetadataCache(metadataCache);
+      header = bcfSource.getHeader(sparkContext, path);
+      variants = bcfSource.getVariants(sparkContext, path, splitSize, intervals);
+    } else {
+      VcfSource vcfSource = new VcfSource(genotypeDecoding, samples);
+      vcfSource.setMetadataCache(metadataCache);
+      header = vcfSource.getHeader(sparkContext, path);
+      variants = vcfSource.getVariants(sparkContext, path, splitSize, intervals);
+    }
     return new HtsjdkVariantsRdd(header, variants);
   }
 
   /**
    * Write variants to a file or files specified by the given path. Write options may be specified
    * to control the format and compression options to use (if not clear from the path extension),
-   * and the number of files to write (single vs. multiple).
+   * the number of files to write (single vs. multiple), and whether to write an index.
    *
    * @param htsjdkVariantsRdd a {@link HtsjdkVariantsRdd} containing the header and the variants
    * @param path the file or directory to write to
@@ -108,28 +210,43 @@ public class HtsjdkVariantsRddStorage {
       throws IOException {
     FormatWriteOption formatWriteOption = null;
     FileCardinalityWriteOption fileCardinalityWriteOption = null;
+    IndexWriteOption indexWriteOption = IndexWriteOption.NONE;
     for (WriteOption writeOption : writeOptions) {
       if (writeOption instanceof FormatWriteOption) {
         formatWriteOption = (FormatWriteOption) writeOption;
       } else if (writeOption instanceof FileCardinalityWriteOption) {
         fileCardinalityWriteOption = (FileCardinalityWriteOption) writeOption;
+      } else if (writeOption instanceof IndexWriteOption) {
+        indexWriteOption = (IndexWriteOption) writeOption;
       }
     }
 
+    invalidate(path);
+
     if (formatWriteOption == null) {
       formatWriteOption = inferFormatFromPath(path);
     }
 
     if (formatWriteOption == null) {
       throw new IllegalArgumentException(
-          "Path does not end in VCF extension, and format not specified.");
+          "Path does not end in VCF or BCF extension, and format not specified.");
     }
 
     if (fileCardinalityWriteOption == null) {
       fileCardinalityWriteOption = inferCardinalityFromPath(path);
     }
 
-    getSink(formatWriteOption, fileCardinalityWriteOption)
+    if (indexWriteOption == IndexWriteOption.CSI
+        && (formatWriteOption == FormatWriteOption.VCF
+            || fileCardinalityWriteOption != FileCardinalityWriteOption.SINGLE)) {
+      throw new IllegalArgumentException(
+          "CSI indexes can only be written for a single BCF or compressed VCF file, not "
+              + formatWriteOption
+              + " "
+              + fileCardinalityWriteOption);
+    }
+
+    getSink(formatWriteOption, fileCardinalityWriteOption, indexWriteOption)
         .save(sparkContext, htsjdkVariantsRdd.getHeader(), htsjdkVariantsRdd.getVariants(), path);
   }
 
@@ -146,10 +263,15 @@ public class HtsjdkVariantsRddStorage {
   }
 
   private AbstractVcfSink getSink(
-      FormatWriteOption formatWriteOption, FileCardinalityWriteOption fileCardinalityWriteOption) {
+      FormatWriteOption formatWriteOption,
+      FileCardinalityWriteOption fileCardinalityWriteOption,
+      IndexWriteOption indexWriteOption) {
     switch (fileCardinalityWriteOption) {
       case SINGLE:
-        return new VcfSink();
+        if (formatWriteOption == FormatWriteOption.BCF) {
+          return new BcfSink(indexWriteOption == IndexWriteOption.CSI);
+        }
+        return new VcfSink(indexWriteOption == IndexWriteOption.CSI);
       case MULTIPLE:
         return new VcfSinkMultiple(VcfFormat.fromFormatWriteOption(formatWriteOption));
       default:
@@ -0,0 +1,293 @@
+package com.tom_e_white.squark.impl.file;
+
+import htsjdk.samtools.seekablestream.SeekableStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.concurrent.Callable;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.spark.SparkEnv;
+import org.apache.spark.util.Utils;
+
+/**
+ * A {@link FileSystemWrapper} that caches the blocks of the files it reads on local disk, so that a
+ * file that is read more than once by the same executor (such as by an iterative job, or by many
+ * interval queries, which read the same index and header each time) is only fetched from the
+ * filesystem once. Blocks are keyed by the file's path, length, and modification time, so a file
+ * that changes is fetched again. The cache is shared by all tasks in the executor, and the least
+ * recently used blocks are evicted when it grows beyond its maximum size.
+ *
+ * <p>Caching is only used if it is enabled in the configuration, and never for local files. All
+ * other operations go straight to the wrapped filesystem.
+ */
+public class CachingFileSystemWrapper implements FileSystemWrapper {
+
+  /** Whether files are cached on local disk (disabled by default). */
+  public static final String ENABLED_KEY = "squark.cache.local.enabled";
+
+  /**
+   * The directory for the cache. Executors should not share a directory, since each keeps track of
+   * the size of its own cache, so by default each executor uses its own directory under Spark's
+   * local directories.
+   */
+  public static final String DIR_KEY = "squark.cache.local.dir";
+
+  /**
+   * The maximum size of the cache in bytes, which is set by the first task in the executor to use
+   * the cache directory.
+   */
+  public static final String MAX_SIZE_KEY = "squark.cache.local.max-size";
+
+  public static final String BLOCK_SIZE_KEY = "squark.cache.local.block-size";
+
+  public static final long DEFAULT_MAX_SIZE = 10L * 1024 * 1024 * 1024;
+  public static final int DEFAULT_BLOCK_SIZE = 1024 * 1024;
+
+  private final FileSystemWrapper fileSystemWrapper;
+
+  public CachingFileSystemWrapper(FileSystemWrapper fileSystemWrapper) {
+    this.fileSystemWrapper = fileSystemWrapper;
+  }
+
+  @Override
+  public SeekableStream open(Configuration conf, String path) throws IOException {
+    if (conf == null
+        || !conf.getBoolean(ENABLED_KEY, false)
+        || fileSystemWrapper.isLocal(conf, path)) {
+      return fileSystemWrapper.open(conf, path);
+    }
+    String dir = conf.get(DIR_KEY);
+    LocalBlockCache cache =
+        LocalBlockCache.get(
+            dir == null ? getDefaultDir() : dir, conf.getLong(MAX_SIZE_KEY, DEFAULT_MAX_SIZE));
+    return new CachingSeekableStream(
+        fileSystemWrapper.getFileCacheKey(conf, path),
+        () -> fileSystemWrapper.open(conf, path),
+        cache,
+        conf.getInt(BLOCK_SIZE_KEY, DEFAULT_BLOCK_SIZE));
+  }
+
+  /**
+   * @return a directory for this executor under Spark's local directories, or in the temporary
+   *     directory if there is no Spark environment
+   */
+  private static String getDefaultDir() {
+    SparkEnv sparkEnv = SparkEnv.get();
+    if (sparkEnv == null) {
+      return new File(System.getProperty("java.io.tmpdir"), "squark-cache").getPath();
+    }
+    return new File(Utils.getLocalDir(sparkEnv.conf()), "squark-cache-" + sparkEnv.executorId())
+        .getPath();
+  }
+
+  @Override
+  public OutputStream create(Configuration conf, String path) throws IOException {
+    return fileSystemWrapper.create(conf, path);
+  }
+
+  @Override
+  public boolean delete(Configuration conf, String path) throws IOException {
+    return fileSystemWrapper.delete(conf, path);
+  }
+
+  @Override
+  public boolean exists(Configuration conf, String path) throws IOException {
+    return fileSystemWrapper.exists(conf, path);
+  }
+
+  @Override
+  public long getFileLength(Configuration conf, String path) throws IOException {
+    return fileSystemWrapper.getFileLength(conf, path);
+  }
+
+  @Override
+  public long getModificationTime(Configuration conf, String path) throws IOException {
+    return fileSystemWrapper.getModificationTime(conf, path);
+  }
+
+  @Override
+  public boolean isDirectory(Configuration conf, String path) throws IOException {
+    return fileSystemWrapper.isDirectory(conf, path);
+  }
+
+  @Override
+  public boolean isLocal(Configuration conf, String path) throws IOException {
+    return fileSystemWrapper.isLocal(conf, path);
+  }
+
+  @Override
+  public FileCacheKey getFileCacheKey(Configuration conf, String path) throws IOException {
+    return fileSystemWrapper.getFileCacheKey(conf, path);
+  }
+
+  @Override
+  public List<String> listDirectory(Configuration conf, String path) throws IOException {
+    return fileSystemWrapper.listDirectory(conf, path);
+  }
+
+  @Override
+  public List<FileCacheKey> listDirectoryKeys(Configuration conf, String path) throws IOException {
+    return fileSystemWrapper.listDirectoryKeys(conf, path);
+  }
+
+  @Override
+  public void concat(Configuration conf, List<String> parts, String path) throws IOException {
+    fileSystemWrapper.concat(conf, parts, path);
+  }
+
+  /**
+   * Reads a file in fixed-size blocks, from the local cache if possible, otherwise from the file
+   * (which is only opened if a block is not cached), adding the block to the cache.
+   */
+  static class CachingSeekableStream extends SeekableStream {
+    private final FileCacheKey key;
+    private final Callable<SeekableStream> opener;
+    private final LocalBlockCache cache;
+    private final int blockSize;
+    private final String blockNamePrefix;
+    private SeekableStream in;
+    private long currentBlockIndex = -1;
+    private byte[] currentBlock;
+    private long position;
+
+    CachingSeekableStream(
+        FileCacheKey key, Callable<SeekableStream> opener, LocalBlockCache cache, int blockSize) {
+      if (blockSize <= 0) {
+        throw new IllegalArgumentException("Block size must be positive: " + blockSize);
+      }
+      this.key = key;
+      this.opener = opener;
+      this.cache = cache;
+      this.blockSize = blockSize;
+      this.blockNamePrefix =
+          sha1(key.getPath() + "\0" + key.getLength() + "\0" + key.getModificationTime())
+              + "-"
+              + blockSize
+              + "-";
+    }
+
+    @Override
+    public long length() {
+      return key.getLength();
+    }
+
+    @Override
+    public long position() {
+      return position;
+    }
+
+    @Override
+    public void seek(long position) throws IOException {
+      if (position < 0) {
+        throw new IOException(
+            "Cannot seek to negative position " + position + " in " + key.getPath());
+      }
+      this.position = position;
+    }
+
+    @Override
+    public long skip(long n) {
+      long skipped = Math.max(0, Math.min(n, length() - position));
+      position += skipped;
+      return skipped;
+    }
+
+    @Override
+    public int read() throws IOException {
+      if (position >= length()) {
+        return -1;
+      }
+      byte[] block = getBlock(position / blockSize);
+      return block[(int) (position++ % blockSize)] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int len) throws IOException {
+      if (len == 0) {
+        return 0;
+      }
+      if (position >= length()) {
+        return -1;
+      }
+      int total = 0;
+      while (total < len && position < length()) {
+        byte[] block = getBlock(position / blockSize);
+        int offsetInBlock = (int) (position % blockSize);
+        int n = Math.min(len - total, block.length - offsetInBlock);
+        System.arraycopy(block, offsetInBlock, buffer, offset + total, n);
+        total += n;
+        position += n;
+      }
+      return total;
+    }
+
+    /** @return the block, from the cache, or read from the file and added to the cache */
+    private byte[] getBlock(long blockIndex) throws IOException {
+      if (blockIndex == currentBlockIndex) {
+        return currentBlock;
+      }
+      String name = blockNamePrefix + blockIndex;
+      byte[] block = cache.get(name);
+      if (block == null) {
+        long blockStart = blockIndex * blockSize;
+        block = new byte[(int) Math.min(blockSize, length() - blockStart)];
+        SeekableStream stream = getStream();
+        stream.seek(blockStart);
+        stream.readFully(block);
+        cache.put(name, block);
+      }
+      currentBlockIndex = blockIndex;
+      currentBlock = block;
+      return block;
+    }
+
+    private SeekableStream getStream() throws IOException {
+      if (in == null) {
+        try {
+          in = opener.call();
+        } catch (IOException e) {
+          throw e;
+        } catch (Exception e) {
+          throw new IOException(e);
+        }
+      }
+      return in;
+    }
+
+    private static String sha1(String s) {
+      try {
+        StringBuilder sb = new StringBuilder();
+        for (byte b :
+            MessageDigest.getInstance("SHA-1").digest(s.getBytes(StandardCharsets.UTF_8))) {
+          sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+      } catch (NoSuchAlgorithmException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      currentBlockIndex = -1;
+      currentBlock = null;
+      if (in != null) {
+        in.close();
+      }
+    }
+
+    @Override
+    public boolean eof() {
+      return position >= length();
+    }
+
+    @Override
+    public String getSource() {
+      return key.getPath();
+    }
+  }
+}
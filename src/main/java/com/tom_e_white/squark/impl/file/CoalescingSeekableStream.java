@@ -0,0 +1,355 @@
+package com.tom_e_white.squark.impl.file;
+
+import com.google.common.base.Throwables;
+import htsjdk.samtools.seekablestream.SeekableStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link SeekableStream} for reading the parts of a file that an index query needs. The byte
+ * ranges that will be read are given up front, and nearby ranges are merged into larger ones, so
+ * that many small chunks a few KB apart (as for sparse intervals) are fetched with a few large
+ * reads rather than a seek and read each. Each merged range is read into memory in full, along with
+ * the following ranges (concurrently, using more than one stream on the file if allowed), and reads
+ * are served from memory. Reads outside the ranges go directly to the file.
+ */
+public class CoalescingSeekableStream extends SeekableStream {
+
+  private final SeekableStream in;
+  private final Callable<SeekableStream> opener;
+  private final long maxGap;
+  private final int maxRangeSize;
+  private final int concurrency;
+  private final BlockingQueue<SeekableStream> streams = new LinkedBlockingQueue<>();
+  private final List<SeekableStream> openedStreams = new ArrayList<>(); // apart from in
+  private long[] rangeStarts = new long[0];
+  private long[] rangeEnds = new long[0];
+  private final Map<Integer, Future<byte[]>> fetches = new HashMap<>();
+  private int currentRange = -1;
+  private byte[] currentData;
+  private long position;
+  private volatile boolean closed;
+
+  /**
+   * @param in the stream to read from
+   * @param opener opens another stream on the file, for reading ranges concurrently, or null to
+   *     only use the given stream
+   * @param maxGap the largest gap between ranges for them to be merged
+   * @param maxRangeSize the largest merged range; larger ranges are read directly from the file
+   * @param concurrency the number of ranges to read at once, and also the number of streams used
+   */
+  public CoalescingSeekableStream(
+      SeekableStream in,
+      Callable<SeekableStream> opener,
+      long maxGap,
+      int maxRangeSize,
+      int concurrency) {
+    if (maxGap < 0 || maxRangeSize <= 0 || concurrency <= 0) {
+      throw new IllegalArgumentException(
+          "Invalid range settings: maximum gap "
+              + maxGap
+              + ", maximum range size "
+              + maxRangeSize
+              + ", concurrency "
+              + concurrency);
+    }
+    this.in = in;
+    this.opener = opener;
+    this.maxGap = maxGap;
+    this.maxRangeSize = maxRangeSize;
+    this.concurrency = concurrency;
+    streams.add(in);
+  }
+
+  /**
+   * Set the byte ranges of the file that will be read, replacing any ranges set before.
+   *
+   * @param ranges the start (inclusive) and end (exclusive) of each range, in any order
+   */
+  public void setRanges(List<long[]> ranges) {
+    cancelFetches();
+    currentRange = -1;
+    currentData = null;
+    List<long[]> merged = mergeRanges(ranges, maxGap, maxRangeSize);
+    rangeStarts = merged.stream().mapToLong(range -> range[0]).toArray();
+    rangeEnds = merged.stream().mapToLong(range -> range[1]).toArray();
+  }
+
+  /**
+   * @return the ranges sorted and merged where they overlap or are no more than the maximum gap
+   *     apart, without merging beyond the maximum size, and leaving out ranges that are larger than
+   *     the maximum size
+   */
+  static List<long[]> mergeRanges(List<long[]> ranges, long maxGap, int maxRangeSize) {
+    List<long[]> sorted = new ArrayList<>(ranges);
+    sorted.sort(Comparator.comparingLong(range -> range[0]));
+    List<long[]> merged = new ArrayList<>();
+    for (long[] range : sorted) {
+      long[] last = merged.isEmpty() ? null : merged.get(merged.size() - 1);
+      if (last != null
+          && range[0] <= last[1] + maxGap
+          && Math.max(last[1], range[1]) - last[0] <= maxRangeSize) {
+        last[1] = Math.max(last[1], range[1]);
+      } else if (last != null && range[0] < last[1]) {
+        // overlaps, but too big to merge, so only add the part that's not in the last range
+        if (range[1] > last[1]) {
+          merged.add(new long[] {last[1], range[1]});
+        }
+      } else {
+        merged.add(new long[] {range[0], range[1]});
+      }
+    }
+    merged.removeIf(range -> range[1] - range[0] > maxRangeSize);
+    return merged;
+  }
+
+  @Override
+  public long length() {
+    return in.length();
+  }
+
+  @Override
+  public long position() {
+    return position;
+  }
+
+  @Override
+  public void seek(long position) {
+    this.position = position;
+  }
+
+  @Override
+  public long skip(long n) {
+    if (n <= 0) {
+      return 0;
+    }
+    position += n;
+    return n;
+  }
+
+  @Override
+  public int read() throws IOException {
+    if (currentData != null) {
+      long offset = position - rangeStarts[currentRange];
+      if (offset >= 0 && offset < currentData.length) {
+        position++;
+        return currentData[(int) offset] & 0xff;
+      }
+    }
+    byte[] b = new byte[1];
+    return read(b, 0, 1) == 1 ? b[0] & 0xff : -1;
+  }
+
+  @Override
+  public int read(byte[] buffer, int offset, int length) throws IOException {
+    if (length == 0) {
+      return 0;
+    }
+    int total = 0;
+    while (total < length) {
+      int range = findRange(position);
+      int n;
+      if (range >= 0) {
+        byte[] data = getRange(range);
+        long available = rangeStarts[range] + data.length - position;
+        if (available <= 0) {
+          break; // the range extends beyond the end of the file
+        }
+        n = (int) Math.min(length - total, available);
+        System.arraycopy(data, (int) (position - rangeStarts[range]), buffer, offset + total, n);
+      } else {
+        // read directly, up to the start of the next range
+        int next = -(range + 1);
+        long limit = next < rangeStarts.length ? rangeStarts[next] : Long.MAX_VALUE;
+        n = readDirect(buffer, offset + total, (int) Math.min(length - total, limit - position));
+        if (n <= 0) {
+          break;
+        }
+      }
+      total += n;
+      position += n;
+    }
+    return total == 0 ? -1 : total;
+  }
+
+  /**
+   * @return the index of the range containing the position, or (-(insertion point) - 1) if it is
+   *     not in a range, where the insertion point is the index of the next range
+   */
+  private int findRange(long position) {
+    if (currentRange >= 0
+        && position >= rangeStarts[currentRange]
+        && position < rangeEnds[currentRange]) {
+      return currentRange;
+    }
+    int index = Arrays.binarySearch(rangeStarts, position);
+    if (index >= 0) {
+      return index;
+    }
+    int insertionPoint = -index - 1;
+    if (insertionPoint > 0 && position < rangeEnds[insertionPoint - 1]) {
+      return insertionPoint - 1;
+    }
+    return index;
+  }
+
+  /** @return the data for the range, starting to read the following ranges too */
+  private byte[] getRange(int range) throws IOException {
+    if (range == currentRange) {
+      return currentData;
+    }
+    // drop ranges that are behind, or too far ahead, since ranges are usually read in order
+    Iterator<Map.Entry<Integer, Future<byte[]>>> iterator = fetches.entrySet().iterator();
+    while (iterator.hasNext()) {
+      Map.Entry<Integer, Future<byte[]>> entry = iterator.next();
+      if (entry.getKey() < range || entry.getKey() >= range + concurrency) {
+        entry.getValue().cancel(false);
+        iterator.remove();
+      }
+    }
+    for (int r = range; r < Math.min(range + concurrency, rangeStarts.length); r++) {
+      if (!fetches.containsKey(r)) {
+        long start = rangeStarts[r];
+        int length = (int) (rangeEnds[r] - start);
+        fetches.put(r, PrefetchingSeekableStream.EXECUTOR.submit(() -> fetch(start, length)));
+      }
+    }
+    Future<byte[]> fetch = fetches.remove(range);
+    try {
+      currentData = fetch.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while reading range");
+    } catch (ExecutionException e) {
+      Throwables.propagateIfPossible(e.getCause(), IOException.class);
+      throw new IOException(e.getCause());
+    }
+    currentRange = range;
+    return currentData;
+  }
+
+  private byte[] fetch(long start, int length) throws Exception {
+    SeekableStream stream = borrow();
+    try {
+      stream.seek(start);
+      byte[] data = new byte[length];
+      int total = 0;
+      while (total < length) {
+        int n = stream.read(data, total, length - total);
+        if (n <= 0) {
+          return Arrays.copyOf(data, total); // the end of the file
+        }
+        total += n;
+      }
+      return data;
+    } finally {
+      streams.add(stream);
+    }
+  }
+
+  private int readDirect(byte[] buffer, int offset, int length) throws IOException {
+    SeekableStream stream;
+    try {
+      stream = borrow();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for stream");
+    }
+    try {
+      stream.seek(position);
+      return stream.read(buffer, offset, length);
+    } finally {
+      streams.add(stream);
+    }
+  }
+
+  /** @return a stream that isn't being used, opening another if there are fewer than allowed */
+  private SeekableStream borrow() throws IOException, InterruptedException {
+    SeekableStream stream = streams.poll();
+    if (stream != null) {
+      return stream;
+    }
+    synchronized (openedStreams) {
+      if (closed) {
+        throw new IOException("Stream closed: " + in.getSource());
+      }
+      if (opener != null && openedStreams.size() + 1 < concurrency) {
+        try {
+          stream = opener.call();
+        } catch (Exception e) {
+          Throwables.propagateIfPossible(e, IOException.class);
+          throw new IOException(e);
+        }
+        openedStreams.add(stream);
+        return stream;
+      }
+    }
+    // wait for a stream to be given back, unless this stream is closed (and has taken them all)
+    while ((stream = streams.poll(100, TimeUnit.MILLISECONDS)) == null) {
+      if (closed) {
+        throw new IOException("Stream closed: " + in.getSource());
+      }
+    }
+    return stream;
+  }
+
+  private void cancelFetches() {
+    for (Future<byte[]> fetch : fetches.values()) {
+      fetch.cancel(false);
+    }
+    fetches.clear();
+  }
+
+  @Override
+  public void close() throws IOException {
+    closed = true;
+    cancelFetches();
+    currentData = null;
+    // wait for any reads in progress to give their streams back before closing them
+    List<SeekableStream> all = new ArrayList<>();
+    synchronized (openedStreams) {
+      try {
+        for (int i = 0; i < openedStreams.size() + 1; i++) {
+          all.add(streams.take());
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while closing");
+      }
+    }
+    IOException exception = null;
+    for (SeekableStream stream : all) {
+      try {
+        stream.close();
+      } catch (IOException e) {
+        exception = e;
+      }
+    }
+    if (exception != null) {
+      throw exception;
+    }
+  }
+
+  @Override
+  public boolean eof() {
+    return position >= in.length();
+  }
+
+  @Override
+  public String getSource() {
+    return in.getSource();
+  }
+}
@@ -0,0 +1,39 @@
+package com.tom_e_white.squark.impl.file;
+
+import java.io.IOException;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+
+/**
+ * Settings for combining the splits of many small files into fewer partitions, each of which holds
+ * several files (or ranges of files) up to the split size, so that a directory of many small shards
+ * doesn't need a task per file. Large files are still split.
+ *
+ * @see CombiningFileSplitInputFormat
+ * @see CombiningTextInputFormat
+ */
+public class CombinedSplits {
+
+  /** Whether the files in a directory are combined into partitions (the default). */
+  public static final String ENABLED_KEY = "squark.split.combine-files.enabled";
+
+  /** The maximum size of a combined split if the split size is not set. */
+  public static final long DEFAULT_MAX_SPLIT_SIZE = 128 * 1024 * 1024;
+
+  /** @return whether the splits for the path should be combined, which is only for directories */
+  public static boolean isEnabled(
+      FileSystemWrapper fileSystemWrapper, Configuration conf, String path) throws IOException {
+    return conf.getBoolean(ENABLED_KEY, true) && fileSystemWrapper.isDirectory(conf, path);
+  }
+
+  /**
+   * @return the maximum size of a combined split, which is the split size if it is set. It must not
+   *     be zero, since then all the files on a node are combined into one split.
+   */
+  static long getMaxSplitSize(Configuration conf) {
+    long maxSplitSize = conf.getLong(FileInputFormat.SPLIT_MAXSIZE, 0);
+    return maxSplitSize > 0 && maxSplitSize < Long.MAX_VALUE
+        ? maxSplitSize
+        : DEFAULT_MAX_SPLIT_SIZE;
+  }
+}
@@ -0,0 +1,79 @@
+package com.tom_e_white.squark.impl.file;
+
+import java.io.IOException;
+import java.util.List;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.input.CombineFileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.CombineFileSplit;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+
+/**
+ * Like {@link FileSplitInputFormat}, but small files (and ranges of large files) are combined into
+ * splits of up to the split size, preserving locality, and each combined split has a record for
+ * each of the file ranges in it. Should not be used directly.
+ *
+ * @see CombinedSplits
+ */
+public class CombiningFileSplitInputFormat extends CombineFileInputFormat<Void, FileSplit> {
+
+  static class CombinedFileSplitRecordReader extends RecordReader<Void, FileSplit> {
+
+    private CombineFileSplit split;
+    private int index = -1;
+    private FileSplit current = null;
+
+    @Override
+    public void initialize(InputSplit split, TaskAttemptContext context) {
+      this.split = (CombineFileSplit) split;
+    }
+
+    @Override
+    public boolean nextKeyValue() throws IOException {
+      index++;
+      if (index < split.getNumPaths()) {
+        current =
+            new FileSplit(
+                split.getPath(index),
+                split.getOffset(index),
+                split.getLength(index),
+                split.getLocations());
+        return true;
+      }
+      current = null;
+      return false;
+    }
+
+    @Override
+    public Void getCurrentKey() {
+      return null;
+    }
+
+    @Override
+    public FileSplit getCurrentValue() {
+      return current;
+    }
+
+    @Override
+    public float getProgress() {
+      return split.getNumPaths() == 0 ? 1 : Math.min(1, (float) index / split.getNumPaths());
+    }
+
+    @Override
+    public void close() {}
+  }
+
+  @Override
+  public List<InputSplit> getSplits(JobContext job) throws IOException {
+    setMaxSplitSize(CombinedSplits.getMaxSplitSize(job.getConfiguration()));
+    return super.getSplits(job);
+  }
+
+  @Override
+  public RecordReader<Void, FileSplit> createRecordReader(
+      InputSplit split, TaskAttemptContext context) {
+    return new CombinedFileSplitRecordReader();
+  }
+}
@@ -0,0 +1,71 @@
+package com.tom_e_white.squark.impl.file;
+
+import java.io.IOException;
+import java.util.List;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.input.CombineFileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.CombineFileRecordReader;
+import org.apache.hadoop.mapreduce.lib.input.CombineFileRecordReaderWrapper;
+import org.apache.hadoop.mapreduce.lib.input.CombineFileSplit;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
+
+/**
+ * Reads the lines of text files, combining small files (and ranges of large files) into splits of
+ * up to the split size. Unlike {@link TextInputFormat}, the key for each line is the index of the
+ * file in the split that the line is from, so that readers can tell which file each line is from
+ * (see {@link #getPath(InputSplit, LongWritable)}), for example to decode it using the file's
+ * header.
+ *
+ * @see CombinedSplits
+ */
+public class CombiningTextInputFormat extends CombineFileInputFormat<LongWritable, Text> {
+
+  /** Reads the lines of one of the files in a combined split. */
+  static class FileLineRecordReader extends CombineFileRecordReaderWrapper<LongWritable, Text> {
+    private final LongWritable key;
+
+    // this signature is needed by CombineFileRecordReader
+    public FileLineRecordReader(CombineFileSplit split, TaskAttemptContext context, Integer index)
+        throws IOException, InterruptedException {
+      super(new TextInputFormat(), split, context, index);
+      this.key = new LongWritable(index);
+    }
+
+    @Override
+    public LongWritable getCurrentKey() {
+      return key;
+    }
+  }
+
+  /**
+   * @param split a split from this input format, or a {@link FileSplit}
+   * @param key the key of a line read from the split
+   * @return the path of the file that the line is from
+   */
+  public static Path getPath(InputSplit split, LongWritable key) {
+    if (split instanceof CombineFileSplit) {
+      return ((CombineFileSplit) split).getPath((int) key.get());
+    }
+    return ((FileSplit) split).getPath();
+  }
+
+  @Override
+  public List<InputSplit> getSplits(JobContext job) throws IOException {
+    setMaxSplitSize(CombinedSplits.getMaxSplitSize(job.getConfiguration()));
+    return super.getSplits(job);
+  }
+
+  @Override
+  public RecordReader<LongWritable, Text> createRecordReader(
+      InputSplit split, TaskAttemptContext context) throws IOException {
+    return new CombineFileRecordReader<>(
+        (CombineFileSplit) split, context, FileLineRecordReader.class);
+  }
+}
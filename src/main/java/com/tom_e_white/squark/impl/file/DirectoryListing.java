@@ -0,0 +1,113 @@
+package com.tom_e_white.squark.impl.file;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+
+/**
+ * The entries in a directory, with their lengths and modification times, from a single listing. A
+ * source reading a directory of many files can use the listing to find file lengths, cache keys,
+ * and whether index files exist, rather than asking the filesystem for each file in turn.
+ *
+ * <p>The lengths and modification times are those at the time of the listing, so a source that
+ * caches values derived from a file's contents should key them by the file's current status (see
+ * {@link FileCacheKey#of}), since a file may be rewritten in place without the directory changing.
+ */
+public class DirectoryListing {
+
+  private final String path;
+  private final long modificationTime;
+  private final Map<String, FileCacheKey> files = new LinkedHashMap<>(); // in path order
+
+  /**
+   * @param modificationTime the directory's modification time, from before it was listed
+   * @param files the entries in the directory, in path order
+   */
+  public DirectoryListing(String path, long modificationTime, List<FileCacheKey> files) {
+    this.path = path;
+    this.modificationTime = modificationTime;
+    for (FileCacheKey file : files) {
+      this.files.put(file.getPath(), file);
+    }
+  }
+
+  /** @return the paths of the entries in the directory, in order */
+  public List<String> getPaths() {
+    return new ArrayList<>(files.keySet());
+  }
+
+  public boolean contains(String path) {
+    return files.containsKey(path);
+  }
+
+  /**
+   * @return the cache key (which has the length and modification time at the time of the listing)
+   *     for an entry, or null
+   */
+  public FileCacheKey getFileCacheKey(String path) {
+    return files.get(path);
+  }
+
+  /** @return the first entry in the directory that is not hidden */
+  public String getFirstFile() {
+    return files
+        .keySet()
+        .stream()
+        .filter(p -> !FileSystemWrapper.isHidden(p))
+        .findFirst()
+        .orElseThrow(() -> new IllegalArgumentException("No files found in " + path));
+  }
+
+  /**
+   * A cache of directory listings, which lasts as long as the object that reads the directories
+   * (such as a storage object), so a directory is only listed again if it has changed (that is,
+   * entries have been added, removed or replaced, which changes its modification time) however many
+   * times it is read. Only used on the driver.
+   */
+  public static class Cache {
+    // keyed by filesystem wrapper class and path, since paths in listings depend on the wrapper
+    private final Map<List<String>, DirectoryListing> listings = new ConcurrentHashMap<>();
+
+    /**
+     * @return the listing for the directory, listing it if it has not been listed before, or if its
+     *     modification time has changed since it was
+     */
+    public DirectoryListing get(
+        FileSystemWrapper fileSystemWrapper, Configuration conf, String path) throws IOException {
+      List<String> key = Arrays.asList(fileSystemWrapper.getClass().getName(), path);
+      long modificationTime = fileSystemWrapper.getModificationTime(conf, path);
+      DirectoryListing listing = listings.get(key);
+      if (listing == null || listing.modificationTime != modificationTime) {
+        listing =
+            new DirectoryListing(
+                path, modificationTime, fileSystemWrapper.listDirectoryKeys(conf, path));
+        listings.put(key, listing);
+      }
+      return listing;
+    }
+
+    /**
+     * Remove any cached listing of the path, and of its parent directory, for example because it is
+     * being written to (which adds it to its parent, if it is a new file or directory). Paths are
+     * compared without their scheme or any trailing slash.
+     */
+    public void invalidate(String path) {
+      Path p = new Path(path);
+      String dir = p.toUri().getPath();
+      String parent = p.getParent() == null ? null : p.getParent().toUri().getPath();
+      listings
+          .keySet()
+          .removeIf(
+              key -> {
+                String listed = new Path(key.get(1)).toUri().getPath();
+                return listed.equals(dir) || listed.equals(parent);
+              });
+    }
+  }
+}
@@ -0,0 +1,71 @@
+package com.tom_e_white.squark.impl.file;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Objects;
+import org.apache.hadoop.conf.Configuration;
+
+/**
+ * A key for caching information derived from a file. The key includes the file's length and
+ * modification time, so that a cached value is not used if the file has been changed since the
+ * value was computed.
+ */
+public class FileCacheKey implements Serializable {
+  private final String path;
+  private final long length;
+  private final long modificationTime;
+
+  public FileCacheKey(String path, long length, long modificationTime) {
+    this.path = path;
+    this.length = length;
+    this.modificationTime = modificationTime;
+  }
+
+  public static FileCacheKey of(
+      FileSystemWrapper fileSystemWrapper, Configuration conf, String path) throws IOException {
+    return fileSystemWrapper.getFileCacheKey(conf, path);
+  }
+
+  public String getPath() {
+    return path;
+  }
+
+  public long getLength() {
+    return length;
+  }
+
+  public long getModificationTime() {
+    return modificationTime;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (o == null || getClass() != o.getClass()) {
+      return false;
+    }
+    FileCacheKey that = (FileCacheKey) o;
+    return length == that.length
+        && modificationTime == that.modificationTime
+        && path.equals(that.path);
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(path, length, modificationTime);
+  }
+
+  @Override
+  public String toString() {
+    return "FileCacheKey{"
+        + "path="
+        + path
+        + ", length="
+        + length
+        + ", modificationTime="
+        + modificationTime
+        + '}';
+  }
+}
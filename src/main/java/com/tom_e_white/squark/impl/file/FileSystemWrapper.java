@@ -4,6 +4,7 @@ import htsjdk.samtools.seekablestream.SeekableStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
 import org.apache.commons.io.FilenameUtils;
@@ -25,24 +26,51 @@ public interface FileSystemWrapper extends Serializable {
 
   long getFileLength(Configuration conf, String path) throws IOException;
 
+  long getModificationTime(Configuration conf, String path) throws IOException;
+
   boolean isDirectory(Configuration conf, String path) throws IOException;
 
+  /** @return whether the path is on the local filesystem */
+  boolean isLocal(Configuration conf, String path) throws IOException;
+
+  /**
+   * @return a cache key for the file, which has its length and modification time. Filesystems that
+   *     can should get both from a single request for the file's status.
+   */
+  default FileCacheKey getFileCacheKey(Configuration conf, String path) throws IOException {
+    return new FileCacheKey(path, getFileLength(conf, path), getModificationTime(conf, path));
+  }
+
+  /** @return the files in the directory, in path order, leaving out any subdirectories */
   List<String> listDirectory(Configuration conf, String path) throws IOException;
 
+  /**
+   * @return a cache key, which has the length and modification time, for each file in the
+   *     directory, in the same order as {@link #listDirectory(Configuration, String)}. Filesystems
+   *     that can should get these from the listing itself, rather than asking for each entry.
+   */
+  default List<FileCacheKey> listDirectoryKeys(Configuration conf, String path) throws IOException {
+    List<FileCacheKey> keys = new ArrayList<>();
+    for (String p : listDirectory(conf, path)) {
+      keys.add(getFileCacheKey(conf, p));
+    }
+    return keys;
+  }
+
   void concat(Configuration conf, List<String> parts, String path) throws IOException;
 
   default String firstFileInDirectory(Configuration conf, String path) throws IOException {
     Optional<String> firstPath =
-        listDirectory(conf, path)
-            .stream()
-            .filter(
-                f ->
-                    !(FilenameUtils.getBaseName(f).startsWith(".")
-                        || FilenameUtils.getBaseName(f).startsWith("_")))
-            .findFirst();
+        listDirectory(conf, path).stream().filter(f -> !isHidden(f)).findFirst();
     if (!firstPath.isPresent()) {
       throw new IllegalArgumentException("No files found in " + path);
     }
     return firstPath.get();
   }
+
+  /** @return whether the file is hidden, that is its name starts with "." or "_" */
+  static boolean isHidden(String path) {
+    String name = FilenameUtils.getBaseName(path);
+    return name.startsWith(".") || name.startsWith("_");
+  }
 }
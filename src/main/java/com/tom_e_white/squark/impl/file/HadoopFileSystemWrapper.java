@@ -1,14 +1,16 @@
 package com.tom_e_white.squark.impl.file;
 
-import htsjdk.samtools.ExtSeekableBufferedStream;
 import htsjdk.samtools.seekablestream.SeekableStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.file.Paths;
 import java.util.Arrays;
+import java.util.Comparator;
 import java.util.List;
 import java.util.stream.Collectors;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.fs.Seekable;
@@ -16,13 +18,40 @@ import org.apache.hadoop.io.IOUtils;
 
 public class HadoopFileSystemWrapper implements FileSystemWrapper {
 
+  /**
+   * Whether files are read using positional reads and a block cache (the default), rather than by
+   * seeking the underlying stream.
+   */
+  public static final String POSITIONAL_READ_KEY = "squark.hadoop.positional-read.enabled";
+
+  public static final String POSITIONAL_READ_BLOCK_SIZE_KEY =
+      "squark.hadoop.positional-read.block-size";
+  public static final String POSITIONAL_READ_CACHE_BLOCKS_KEY =
+      "squark.hadoop.positional-read.cache-blocks";
+
   @Override
   public SeekableStream open(Configuration conf, String path) throws IOException {
     Path p = new Path(path);
     FileSystem fileSystem = p.getFileSystem(conf);
+    if ("file".equals(fileSystem.getScheme())) {
+      java.nio.file.Path file = Paths.get(fileSystem.makeQualified(p).toUri());
+      if (MappedSeekableStream.isEnabled(conf, file)) {
+        return MappedSeekableStream.open(conf, file);
+      }
+    }
     long len = fileSystem.getFileStatus(p).getLen();
-    return new ExtSeekableBufferedStream(
-        new SeekableHadoopStream<>(fileSystem.open(p), len, path.toString()));
+    if (conf.getBoolean(POSITIONAL_READ_KEY, true)) {
+      return new PositionalReadSeekableStream<>(
+          fileSystem.open(p),
+          len,
+          path,
+          conf.getInt(
+              POSITIONAL_READ_BLOCK_SIZE_KEY, PositionalReadSeekableStream.DEFAULT_BLOCK_SIZE),
+          conf.getInt(
+              POSITIONAL_READ_CACHE_BLOCKS_KEY, PositionalReadSeekableStream.DEFAULT_CACHE_BLOCKS));
+    }
+    return ReadAhead.buffer(
+        conf, new SeekableHadoopStream<>(fileSystem.open(p), len, path.toString()));
   }
 
   @Override
@@ -53,6 +82,13 @@ public class HadoopFileSystemWrapper implements FileSystemWrapper {
     return fileSystem.getFileStatus(p).getLen();
   }
 
+  @Override
+  public long getModificationTime(Configuration conf, String path) throws IOException {
+    Path p = new Path(path);
+    FileSystem fileSystem = p.getFileSystem(conf);
+    return fileSystem.getFileStatus(p).getModificationTime();
+  }
+
   @Override
   public boolean isDirectory(Configuration conf, String path) throws IOException {
     Path p = new Path(path);
@@ -60,16 +96,44 @@ public class HadoopFileSystemWrapper implements FileSystemWrapper {
     return fileSystem.isDirectory(p);
   }
 
+  @Override
+  public boolean isLocal(Configuration conf, String path) throws IOException {
+    return "file".equals(new Path(path).getFileSystem(conf).getScheme());
+  }
+
+  @Override
+  public FileCacheKey getFileCacheKey(Configuration conf, String path) throws IOException {
+    Path p = new Path(path);
+    FileSystem fileSystem = p.getFileSystem(conf);
+    FileStatus fileStatus = fileSystem.getFileStatus(p);
+    return new FileCacheKey(path, fileStatus.getLen(), fileStatus.getModificationTime());
+  }
+
   @Override
   public List<String> listDirectory(Configuration conf, String path) throws IOException {
     Path p = new Path(path);
     FileSystem fileSystem = p.getFileSystem(conf);
     return Arrays.stream(fileSystem.listStatus(p))
+        .filter(FileStatus::isFile)
         .map(fs -> fs.getPath().toUri().toString())
         .sorted()
         .collect(Collectors.toList());
   }
 
+  @Override
+  public List<FileCacheKey> listDirectoryKeys(Configuration conf, String path) throws IOException {
+    Path p = new Path(path);
+    FileSystem fileSystem = p.getFileSystem(conf);
+    return Arrays.stream(fileSystem.listStatus(p))
+        .filter(FileStatus::isFile)
+        .map(
+            fs ->
+                new FileCacheKey(
+                    fs.getPath().toUri().toString(), fs.getLen(), fs.getModificationTime()))
+        .sorted(Comparator.comparing(FileCacheKey::getPath))
+        .collect(Collectors.toList());
+  }
+
   @Override
   public void concat(Configuration conf, List<String> parts, String path) throws IOException {
     // target must be in same directory as parts being concat'ed
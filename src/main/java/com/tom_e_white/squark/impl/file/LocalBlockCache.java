@@ -0,0 +1,113 @@
+package com.tom_e_white.squark.impl.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A cache of file blocks on local disk, shared by all the tasks in a JVM (that is, an executor)
+ * that use the same cache directory. Each block is stored in its own file, and the least recently
+ * used blocks are deleted when the total size of the blocks would be more than the maximum. Blocks
+ * that are already in the directory (from an earlier executor, for example) are counted towards the
+ * maximum, and are evicted first.
+ *
+ * @see CachingFileSystemWrapper
+ */
+class LocalBlockCache {
+
+  private static final Map<String, LocalBlockCache> CACHES = new ConcurrentHashMap<>();
+
+  private final Path dir;
+  private final long maxSize;
+  private final LinkedHashMap<String, Long> blockSizes; // in least recently used order
+  private long size;
+
+  LocalBlockCache(Path dir, long maxSize) throws IOException {
+    this.dir = dir;
+    this.maxSize = maxSize;
+    this.blockSizes = new LinkedHashMap<>(16, 0.75f, true);
+    Files.createDirectories(dir);
+    File[] files = dir.toFile().listFiles(file -> !file.getName().startsWith("."));
+    if (files != null) {
+      Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+      for (File file : files) {
+        blockSizes.put(file.getName(), file.length());
+        size += file.length();
+      }
+    }
+    evict();
+  }
+
+  /** @return the cache for the directory, creating it if there isn't one in this JVM */
+  static LocalBlockCache get(String dir, long maxSize) throws IOException {
+    LocalBlockCache cache = CACHES.get(dir);
+    if (cache == null) {
+      synchronized (CACHES) {
+        cache = CACHES.get(dir);
+        if (cache == null) {
+          cache = new LocalBlockCache(Paths.get(dir), maxSize);
+          CACHES.put(dir, cache);
+        }
+      }
+    }
+    return cache;
+  }
+
+  /** @return the block's data, or null if it is not in the cache */
+  byte[] get(String name) throws IOException {
+    synchronized (this) {
+      if (blockSizes.get(name) == null) {
+        return null;
+      }
+    }
+    try {
+      return Files.readAllBytes(dir.resolve(name));
+    } catch (NoSuchFileException e) {
+      return null; // evicted since it was looked up
+    }
+  }
+
+  /** Add a block to the cache, evicting the least recently used blocks if needed. */
+  void put(String name, byte[] data) throws IOException {
+    if (data.length > maxSize) {
+      return;
+    }
+    // write to a hidden file, then rename, so a partly-written block is never read
+    Path tmp = Files.createTempFile(dir, ".", ".tmp");
+    try {
+      Files.write(tmp, data);
+      Files.move(tmp, dir.resolve(name), StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(tmp);
+    }
+    synchronized (this) {
+      Long previous = blockSizes.put(name, (long) data.length);
+      size += data.length - (previous == null ? 0 : previous);
+      evict();
+    }
+  }
+
+  private synchronized void evict() throws IOException {
+    Iterator<Map.Entry<String, Long>> eldest = blockSizes.entrySet().iterator();
+    while (size > maxSize && eldest.hasNext()) {
+      Map.Entry<String, Long> entry = eldest.next();
+      Files.deleteIfExists(dir.resolve(entry.getKey()));
+      size -= entry.getValue();
+      eldest.remove();
+    }
+  }
+
+  synchronized long size() {
+    return size;
+  }
+}
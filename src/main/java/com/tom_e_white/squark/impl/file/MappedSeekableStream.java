@@ -0,0 +1,162 @@
+package com.tom_e_white.squark.impl.file;
+
+import htsjdk.samtools.seekablestream.SeekableStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import org.apache.hadoop.conf.Configuration;
+
+/**
+ * A {@link SeekableStream} for a local file that is memory-mapped ({@link FileChannel#map}), so
+ * reads are copied straight from the page cache into the caller's buffer (such as the BGZF
+ * inflater's), rather than through a read-ahead buffer on the heap. Since a mapping can be no more
+ * than 2GB, the file is mapped in fixed-size windows, each of which is mapped when it is first
+ * read, and reads that cross windows are split between them. A seek just moves the stream's
+ * position, so it needs no buffering or read-ahead.
+ *
+ * <p>Memory-mapping is only used for files on the local filesystem, and only if enabled. Files must
+ * not be truncated while they are mapped. For the Hadoop local filesystem, checksum files are not
+ * checked.
+ */
+public class MappedSeekableStream extends SeekableStream {
+
+  /** Whether local files are read by memory-mapping them (disabled by default). */
+  public static final String ENABLED_KEY = "squark.mmap.enabled";
+
+  public static final String WINDOW_SIZE_KEY = "squark.mmap.window-size";
+
+  public static final int DEFAULT_WINDOW_SIZE = 1024 * 1024 * 1024;
+
+  private final FileChannel channel;
+  private final long length;
+  private final String source;
+  private final int windowSize;
+  private final MappedByteBuffer[] windows;
+  private long position;
+
+  public MappedSeekableStream(Path path) throws IOException {
+    this(path, DEFAULT_WINDOW_SIZE);
+  }
+
+  /** @param windowSize the size of each mapping of the file */
+  public MappedSeekableStream(Path path, int windowSize) throws IOException {
+    if (windowSize <= 0) {
+      throw new IllegalArgumentException("Window size must be positive: " + windowSize);
+    }
+    this.channel = FileChannel.open(path, StandardOpenOption.READ);
+    this.length = channel.size();
+    this.source = path.toUri().toString();
+    this.windowSize = windowSize;
+    this.windows = new MappedByteBuffer[(int) ((length + windowSize - 1) / windowSize)];
+  }
+
+  /**
+   * @param conf the configuration, or null
+   * @return whether files on the given path's filesystem should be read by memory-mapping them
+   */
+  public static boolean isEnabled(Configuration conf, Path path) {
+    return conf != null
+        && conf.getBoolean(ENABLED_KEY, false)
+        && path.getFileSystem() == FileSystems.getDefault();
+  }
+
+  /** @return a stream for the given local file, using the window size in the configuration */
+  public static MappedSeekableStream open(Configuration conf, Path path) throws IOException {
+    return new MappedSeekableStream(path, conf.getInt(WINDOW_SIZE_KEY, DEFAULT_WINDOW_SIZE));
+  }
+
+  @Override
+  public long length() {
+    return length;
+  }
+
+  @Override
+  public long position() {
+    return position;
+  }
+
+  @Override
+  public void seek(long position) throws IOException {
+    if (position < 0) {
+      throw new IOException("Cannot seek to negative position " + position + " in " + source);
+    }
+    this.position = position;
+  }
+
+  @Override
+  public long skip(long n) {
+    long skipped = Math.max(0, Math.min(n, length - position));
+    position += skipped;
+    return skipped;
+  }
+
+  @Override
+  public int read() throws IOException {
+    if (position >= length) {
+      return -1;
+    }
+    MappedByteBuffer window = getWindow((int) (position / windowSize));
+    return window.get((int) (position++ % windowSize)) & 0xff;
+  }
+
+  @Override
+  public int read(byte[] buffer, int offset, int len) throws IOException {
+    if (len == 0) {
+      return 0;
+    }
+    if (position >= length) {
+      return -1;
+    }
+    int total = 0;
+    while (total < len && position < length) {
+      MappedByteBuffer window = getWindow((int) (position / windowSize));
+      int offsetInWindow = (int) (position % windowSize);
+      int n = Math.min(len - total, window.limit() - offsetInWindow);
+      // a duplicate has its own position, so the shared window is not changed
+      ByteBuffer slice = window.duplicate();
+      slice.position(offsetInWindow);
+      slice.get(buffer, offset + total, n);
+      total += n;
+      position += n;
+    }
+    return total;
+  }
+
+  /** @return the window, mapping it if it has not been read before */
+  private MappedByteBuffer getWindow(int index) throws IOException {
+    MappedByteBuffer window = windows[index];
+    if (window == null) {
+      if (!channel.isOpen()) {
+        throw new IOException("Stream closed: " + source);
+      }
+      long start = (long) index * windowSize;
+      window =
+          channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(windowSize, length - start));
+      windows[index] = window;
+    }
+    return window;
+  }
+
+  @Override
+  public void close() throws IOException {
+    // the mappings are released when they are garbage collected
+    for (int i = 0; i < windows.length; i++) {
+      windows[i] = null;
+    }
+    channel.close();
+  }
+
+  @Override
+  public boolean eof() {
+    return position >= length;
+  }
+
+  @Override
+  public String getSource() {
+    return source;
+  }
+}
@@ -14,17 +14,20 @@ public class Merger {
     fileSystemWrapper = new HadoopFileSystemWrapper();
   }
 
+  /** @return the files in the directory that will be merged, in the order they are merged */
+  public List<String> listParts(Configuration conf, String partDirectory) throws IOException {
+    List<String> parts = fileSystemWrapper.listDirectory(conf, partDirectory);
+    return parts
+        .stream()
+        .filter(
+            f ->
+                !(FilenameUtils.getBaseName(f).startsWith(".")
+                    || FilenameUtils.getBaseName(f).startsWith("_")))
+        .collect(Collectors.toList());
+  }
+
   public void mergeParts(Configuration conf, String partDirectory, String outputFile)
       throws IOException {
-    List<String> parts = fileSystemWrapper.listDirectory(conf, partDirectory);
-    List<String> filteredParts =
-        parts
-            .stream()
-            .filter(
-                f ->
-                    !(FilenameUtils.getBaseName(f).startsWith(".")
-                        || FilenameUtils.getBaseName(f).startsWith("_")))
-            .collect(Collectors.toList());
-    fileSystemWrapper.concat(conf, filteredParts, outputFile);
+    fileSystemWrapper.concat(conf, listParts(conf, partDirectory), outputFile);
   }
 }
@@ -0,0 +1,88 @@
+package com.tom_e_white.squark.impl.file;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.hadoop.fs.Path;
+
+/**
+ * A cache of metadata read or computed from files, such as headers, parsed indexes, and split
+ * plans, so that reading the same files again (for example, to run another interval query) doesn't
+ * need to read them again. Each value is keyed by the file's path, length, and modification time,
+ * so a value is not used if the file has changed, and by the kind of value. The least recently used
+ * values are evicted when there are more than a fixed number. Values should not be changed once
+ * they are cached, so mutable values (like headers) should be copied before they are returned to
+ * users.
+ *
+ * <p>The cache lasts as long as the object that owns it (such as a storage object), and is only
+ * used on the driver. It is safe to use from more than one thread.
+ */
+public class MetadataCache {
+
+  /** Loads a value that is not in the cache. */
+  public interface Loader<V> {
+    V load() throws IOException;
+  }
+
+  private static final int MAX_ENTRIES = 10_000;
+
+  private final Map<List<Object>, Object> values =
+      Collections.synchronizedMap(
+          new LinkedHashMap<List<Object>, Object>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<List<Object>, Object> eldest) {
+              return size() > MAX_ENTRIES;
+            }
+          });
+
+  /** @return the cached value of the given kind for the file, or null if there is none */
+  @SuppressWarnings("unchecked")
+  public <V> V get(FileCacheKey key, String kind) {
+    return (V) values.get(Arrays.asList(key, kind));
+  }
+
+  public <V> void put(FileCacheKey key, String kind, V value) {
+    values.put(Arrays.asList(key, kind), value);
+  }
+
+  /**
+   * @return the cached value of the given kind for the file, loading and caching it if there is
+   *     none. The value may be loaded more than once if it is looked up by more than one thread at
+   *     the same time.
+   */
+  public <V> V get(FileCacheKey key, String kind, Loader<V> loader) throws IOException {
+    V value = get(key, kind);
+    if (value == null) {
+      value = loader.load();
+      put(key, kind, value);
+    }
+    return value;
+  }
+
+  /**
+   * Remove any cached values for the file (and its index files, whose names start with the file's
+   * name), or for the files in the directory, for example because it is being written to. Paths are
+   * compared without their scheme, so a path may be given with or without one.
+   */
+  public void invalidate(String path) {
+    String filePath = new Path(path).toUri().getPath();
+    String dir = filePath.endsWith("/") ? filePath : filePath + "/";
+    synchronized (values) {
+      values
+          .keySet()
+          .removeIf(
+              key -> {
+                String p = new Path(((FileCacheKey) key.get(0)).getPath()).toUri().getPath();
+                return p.equals(filePath) || p.startsWith(filePath + ".") || p.startsWith(dir);
+              });
+    }
+  }
+
+  /** Remove all cached values. */
+  public void clear() {
+    values.clear();
+  }
+}
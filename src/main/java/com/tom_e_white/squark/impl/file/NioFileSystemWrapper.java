@@ -1,25 +1,40 @@
 package com.tom_e_white.squark.impl.file;
 
-import htsjdk.samtools.ExtSeekableBufferedStream;
+import com.google.common.base.Throwables;
 import htsjdk.samtools.seekablestream.SeekablePathStream;
 import htsjdk.samtools.seekablestream.SeekableStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.net.URI;
+import java.nio.file.DirectoryStream;
 import java.nio.file.FileSystemNotFoundException;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
 
 public class NioFileSystemWrapper implements FileSystemWrapper {
 
   @Override
   public SeekableStream open(Configuration conf, String path) throws IOException {
-    return new ExtSeekableBufferedStream(new SeekablePathStream(asPath(path)));
+    Path p = asPath(path);
+    if (MappedSeekableStream.isEnabled(conf, p)) {
+      return MappedSeekableStream.open(conf, p);
+    }
+    return ReadAhead.buffer(conf, new SeekablePathStream(p));
   }
 
   @Override
@@ -42,14 +57,95 @@ public class NioFileSystemWrapper implements FileSystemWrapper {
     return Files.size(asPath(path));
   }
 
+  @Override
+  public long getModificationTime(Configuration conf, String path) throws IOException {
+    return Files.getLastModifiedTime(asPath(path)).toMillis();
+  }
+
   @Override
   public boolean isDirectory(Configuration conf, String path) throws IOException {
     return Files.isDirectory(asPath(path));
   }
 
+  @Override
+  public boolean isLocal(Configuration conf, String path) {
+    return "file".equals(asPath(path).getFileSystem().provider().getScheme());
+  }
+
+  @Override
+  public FileCacheKey getFileCacheKey(Configuration conf, String path) throws IOException {
+    BasicFileAttributes attributes = Files.readAttributes(asPath(path), BasicFileAttributes.class);
+    return new FileCacheKey(path, attributes.size(), attributes.lastModifiedTime().toMillis());
+  }
+
   @Override
   public List<String> listDirectory(Configuration conf, String path) throws IOException {
-    return null;
+    return listEntries(path)
+        .stream()
+        .filter(p -> Files.isRegularFile(asPath(p)))
+        .collect(Collectors.toList());
+  }
+
+  /** @return the entries in the directory, including subdirectories, in path order */
+  private List<String> listEntries(String path) throws IOException {
+    List<String> paths = new ArrayList<>();
+    try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream(asPath(path))) {
+      for (Path p : directoryStream) {
+        paths.add(p.toUri().toString());
+      }
+    }
+    Collections.sort(paths);
+    return paths;
+  }
+
+  /**
+   * Finds the lengths and modification times of the entries in the directory in parallel, using the
+   * number of threads for listing files ({@link FileInputFormat#LIST_STATUS_NUM_THREADS}), since
+   * for cloud stores each one is a separate request. Subdirectories are found from the same
+   * request, and left out.
+   */
+  @Override
+  public List<FileCacheKey> listDirectoryKeys(Configuration conf, String path) throws IOException {
+    List<String> paths = listEntries(path);
+    int threads =
+        conf == null
+            ? FileInputFormat.DEFAULT_LIST_STATUS_NUM_THREADS
+            : conf.getInt(
+                FileInputFormat.LIST_STATUS_NUM_THREADS,
+                FileInputFormat.DEFAULT_LIST_STATUS_NUM_THREADS);
+    ExecutorService executorService =
+        Executors.newFixedThreadPool(Math.max(1, Math.min(paths.size(), threads)));
+    try {
+      List<Future<FileCacheKey>> futures = new ArrayList<>();
+      for (String p : paths) {
+        futures.add(
+            executorService.submit(
+                () -> {
+                  BasicFileAttributes attributes =
+                      Files.readAttributes(asPath(p), BasicFileAttributes.class);
+                  return attributes.isRegularFile()
+                      ? new FileCacheKey(
+                          p, attributes.size(), attributes.lastModifiedTime().toMillis())
+                      : null;
+                }));
+      }
+      List<FileCacheKey> keys = new ArrayList<>();
+      for (Future<FileCacheKey> future : futures) {
+        FileCacheKey key = future.get();
+        if (key != null) {
+          keys.add(key);
+        }
+      }
+      return keys;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while listing " + path);
+    } catch (ExecutionException e) {
+      Throwables.propagateIfPossible(e.getCause(), IOException.class);
+      throw new IOException(e.getCause());
+    } finally {
+      executorService.shutdownNow();
+    }
   }
 
   @Override
@@ -0,0 +1,167 @@
+package com.tom_e_white.squark.impl.file;
+
+import htsjdk.samtools.seekablestream.SeekableStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.apache.hadoop.fs.PositionedReadable;
+
+/**
+ * A {@link SeekableStream} that reads fixed-size blocks of a file using positional reads ({@link
+ * PositionedReadable#readFully(long, byte[], int, int)}), and keeps the most recently used blocks
+ * in a small cache. A seek just moves the stream's position, so random access (such as reading
+ * index chunks, or skipping CRAM containers) doesn't cause the underlying stream to be re-opened at
+ * a new position, which for HDFS means a new connection to a datanode. Reads of at least a block
+ * that are not cached are read directly into the caller's buffer.
+ */
+public class PositionalReadSeekableStream<S extends InputStream & PositionedReadable>
+    extends SeekableStream {
+
+  public static final int DEFAULT_BLOCK_SIZE = 128 * 1024;
+  public static final int DEFAULT_CACHE_BLOCKS = 8;
+
+  private final S in;
+  private final long length;
+  private final String source;
+  private final int blockSize;
+  private final int cacheBlocks;
+  private final LinkedHashMap<Long, byte[]> blocks; // in least recently used order
+  private long currentBlockIndex = -1; // the last block used, so reading bytes avoids the map
+  private byte[] currentBlock;
+  private long position;
+
+  public PositionalReadSeekableStream(S in, long length, String source) {
+    this(in, length, source, DEFAULT_BLOCK_SIZE, DEFAULT_CACHE_BLOCKS);
+  }
+
+  /**
+   * @param blockSize the size of the blocks that are read and cached
+   * @param cacheBlocks the maximum number of blocks to cache
+   */
+  public PositionalReadSeekableStream(
+      S in, long length, String source, int blockSize, int cacheBlocks) {
+    if (blockSize <= 0 || cacheBlocks <= 0) {
+      throw new IllegalArgumentException(
+          "Block size and number of cached blocks must be positive: "
+              + blockSize
+              + ", "
+              + cacheBlocks);
+    }
+    this.in = in;
+    this.length = length;
+    this.source = source;
+    this.blockSize = blockSize;
+    this.cacheBlocks = cacheBlocks;
+    this.blocks = new LinkedHashMap<>(cacheBlocks * 2, 0.75f, true);
+  }
+
+  @Override
+  public long length() {
+    return length;
+  }
+
+  @Override
+  public long position() {
+    return position;
+  }
+
+  @Override
+  public void seek(long position) throws IOException {
+    if (position < 0) {
+      throw new IOException("Cannot seek to negative position " + position + " in " + source);
+    }
+    this.position = position;
+  }
+
+  @Override
+  public long skip(long n) {
+    long skipped = Math.max(0, Math.min(n, length - position));
+    position += skipped;
+    return skipped;
+  }
+
+  @Override
+  public int read() throws IOException {
+    if (position >= length) {
+      return -1;
+    }
+    byte[] block = getBlock(position / blockSize);
+    return block[(int) (position++ % blockSize)] & 0xff;
+  }
+
+  @Override
+  public int read(byte[] buffer, int offset, int len) throws IOException {
+    if (len == 0) {
+      return 0;
+    }
+    if (position >= length) {
+      return -1;
+    }
+    int total = 0;
+    while (total < len && position < length) {
+      long blockIndex = position / blockSize;
+      int remaining = (int) Math.min(len - total, length - position);
+      if (remaining >= blockSize && !blocks.containsKey(blockIndex)) {
+        // a large read gains nothing from the cache, so read the rest of it directly
+        in.readFully(position, buffer, offset + total, remaining);
+        total += remaining;
+        position += remaining;
+        break;
+      }
+      byte[] block = getBlock(blockIndex);
+      int offsetInBlock = (int) (position % blockSize);
+      int n = Math.min(remaining, blockSize - offsetInBlock);
+      System.arraycopy(block, offsetInBlock, buffer, offset + total, n);
+      total += n;
+      position += n;
+    }
+    return total;
+  }
+
+  /** @return the block, reading it (and evicting the least recently used block) if not cached */
+  private byte[] getBlock(long blockIndex) throws IOException {
+    if (blockIndex == currentBlockIndex) {
+      return currentBlock;
+    }
+    byte[] block = blocks.get(blockIndex);
+    if (block != null) {
+      currentBlockIndex = blockIndex;
+      currentBlock = block;
+      return block;
+    }
+    currentBlockIndex = -1; // in case the evicted block is the current one, and the read fails
+    if (blocks.size() >= cacheBlocks) {
+      Iterator<Map.Entry<Long, byte[]>> eldest = blocks.entrySet().iterator();
+      block = eldest.next().getValue(); // reuse the evicted block's array
+      eldest.remove();
+    } else {
+      block = new byte[blockSize];
+    }
+    long blockStart = blockIndex * blockSize;
+    in.readFully(blockStart, block, 0, (int) Math.min(blockSize, length - blockStart));
+    blocks.put(blockIndex, block);
+    currentBlockIndex = blockIndex;
+    currentBlock = block;
+    return block;
+  }
+
+  @Override
+  public void close() throws IOException {
+    blocks.clear();
+    currentBlockIndex = -1;
+    currentBlock = null;
+    in.close();
+  }
+
+  @Override
+  public boolean eof() {
+    return position >= length;
+  }
+
+  @Override
+  public String getSource() {
+    return source;
+  }
+}
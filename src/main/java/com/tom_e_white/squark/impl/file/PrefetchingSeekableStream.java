@@ -0,0 +1,272 @@
+package com.tom_e_white.squark.impl.file;
+
+import com.google.common.base.Throwables;
+import htsjdk.samtools.seekablestream.SeekableStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A {@link SeekableStream} for scanning a range of a file (such as a partition), which reads ahead
+ * on a background thread once it sees that the range is being read sequentially, so that fetching
+ * the next part of the file overlaps with decoding the current part. Up to a fixed number of
+ * buffers are read ahead, and no further than the end of the range. A seek that is not to a
+ * position that has been (or is being) read ahead cancels the reads ahead, and sequential reading
+ * has to be seen again before reading ahead resumes.
+ *
+ * <p>The wrapped stream is only used by one thread at a time, but it may be a different thread for
+ * each read, so it must not rely on being used from a single thread.
+ */
+public class PrefetchingSeekableStream extends SeekableStream {
+
+  private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+  // shared by the streams in this package that read in the background
+  static final ExecutorService EXECUTOR =
+      Executors.newCachedThreadPool(
+          runnable -> {
+            Thread thread =
+                new Thread(runnable, "squark-prefetch-" + THREAD_COUNT.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+          });
+
+  private static class Block {
+    private final long start;
+    private final byte[] data;
+    private final int length; // the number of bytes read, less than requested at end of stream
+
+    Block(long start, byte[] data, int length) {
+      this.start = start;
+      this.data = data;
+      this.length = length;
+    }
+
+    boolean contains(long position) {
+      return position >= start && position < start + length;
+    }
+
+    long end() {
+      return start + length;
+    }
+  }
+
+  private static class Fetch {
+    private final long start;
+    private final long end; // the requested end
+    private final Future<Block> future;
+
+    Fetch(long start, long end, Future<Block> future) {
+      this.start = start;
+      this.end = end;
+      this.future = future;
+    }
+  }
+
+  private final SeekableStream in;
+  private final long start;
+  private final long end;
+  private final int bufferSize;
+  private final int buffers;
+  private final Deque<Fetch> fetches = new ArrayDeque<>(); // reads ahead, in order
+  private final Deque<byte[]> freeBuffers = new ArrayDeque<>();
+  private Block current;
+  private long nextFetchStart;
+  private long position;
+
+  /**
+   * @param in the stream to read from
+   * @param start the start of the range that is scanned
+   * @param end the end of the range that is scanned, beyond which nothing is read ahead
+   * @param bufferSize the size of each read
+   * @param buffers the maximum number of buffers to read ahead
+   */
+  public PrefetchingSeekableStream(
+      SeekableStream in, long start, long end, int bufferSize, int buffers) {
+    if (bufferSize <= 0 || buffers <= 0) {
+      throw new IllegalArgumentException(
+          "Buffer size and number of buffers must be positive: " + bufferSize + ", " + buffers);
+    }
+    this.in = in;
+    this.start = start;
+    this.end = end;
+    this.bufferSize = bufferSize;
+    this.buffers = buffers;
+  }
+
+  @Override
+  public long length() {
+    return in.length();
+  }
+
+  @Override
+  public long position() {
+    return position;
+  }
+
+  @Override
+  public void seek(long position) throws IOException {
+    this.position = position; // the reads ahead are checked on the next read
+  }
+
+  @Override
+  public long skip(long n) {
+    if (n <= 0) {
+      return 0;
+    }
+    position += n;
+    return n;
+  }
+
+  @Override
+  public int read() throws IOException {
+    if (!ensureBlock()) {
+      return -1;
+    }
+    return current.data[(int) (position++ - current.start)] & 0xff;
+  }
+
+  @Override
+  public int read(byte[] buffer, int offset, int length) throws IOException {
+    if (length == 0) {
+      return 0;
+    }
+    int total = 0;
+    while (total < length && ensureBlock()) {
+      int n = (int) Math.min(length - total, current.end() - position);
+      System.arraycopy(current.data, (int) (position - current.start), buffer, offset + total, n);
+      total += n;
+      position += n;
+    }
+    return total == 0 ? -1 : total;
+  }
+
+  /**
+   * Make the current block the one containing the position, using a block that has been read ahead
+   * if possible, otherwise reading it now.
+   *
+   * @return false if the position is at or beyond the end of the stream
+   */
+  private boolean ensureBlock() throws IOException {
+    if (current != null && current.contains(position)) {
+      return true;
+    }
+    // a forward move within a buffer of the end of the current block counts as sequential, so
+    // that skipping over some data (like the BGZF block guesser does) keeps reading ahead
+    boolean sequential =
+        current != null && position >= current.end() && position < current.end() + bufferSize;
+
+    // discard reads ahead that have been skipped over
+    while (!fetches.isEmpty() && fetches.peekFirst().end <= position) {
+      fetches.removeFirst().future.cancel(false);
+    }
+    Fetch fetch = fetches.peekFirst();
+    if (fetch != null && position >= fetch.start) {
+      fetches.removeFirst();
+      setCurrent(await(fetch.future));
+      readAhead();
+      return current.contains(position);
+    }
+
+    // not read ahead, so read now, and start reading ahead if reading sequentially
+    cancelFetches();
+    byte[] data = takeBuffer();
+    setCurrent(read(in, position, data, data.length));
+    if (sequential && position >= start && position < end) {
+      nextFetchStart = current.end();
+      readAhead();
+    }
+    return current.contains(position);
+  }
+
+  private void setCurrent(Block block) {
+    if (current != null && freeBuffers.size() < buffers + 1) {
+      freeBuffers.addLast(current.data); // the array is not used by any read ahead
+    }
+    current = block;
+  }
+
+  private byte[] takeBuffer() {
+    byte[] data = freeBuffers.pollFirst();
+    return data != null ? data : new byte[bufferSize];
+  }
+
+  /** Start reading ahead, up to the maximum number of buffers, but not beyond the end. */
+  private void readAhead() {
+    if (current.length < current.data.length) {
+      return; // at the end of the stream
+    }
+    while (fetches.size() < buffers && nextFetchStart < end) {
+      long fetchStart = nextFetchStart;
+      byte[] data = takeBuffer();
+      Future<Block> future = EXECUTOR.submit(() -> read(in, fetchStart, data, data.length));
+      fetches.addLast(new Fetch(fetchStart, fetchStart + data.length, future));
+      nextFetchStart += data.length;
+    }
+  }
+
+  /** Read a block from the stream, which is locked so it is only read by one thread at a time. */
+  private static Block read(SeekableStream in, long position, byte[] data, int length)
+      throws IOException {
+    synchronized (in) {
+      in.seek(position);
+      int total = 0;
+      while (total < length) {
+        int n = in.read(data, total, length - total);
+        if (n <= 0) {
+          break;
+        }
+        total += n;
+      }
+      return new Block(position, data, total);
+    }
+  }
+
+  private static Block await(Future<Block> future) throws IOException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while reading ahead");
+    } catch (ExecutionException e) {
+      Throwables.propagateIfPossible(e.getCause(), IOException.class);
+      throw new IOException(e.getCause());
+    }
+  }
+
+  /**
+   * Cancel the reads ahead. Their buffers are not reused, since a read that has already started may
+   * still be writing to its buffer.
+   */
+  private void cancelFetches() {
+    for (Fetch fetch : fetches) {
+      fetch.future.cancel(false);
+    }
+    fetches.clear();
+  }
+
+  @Override
+  public void close() throws IOException {
+    cancelFetches();
+    synchronized (in) { // wait for any read ahead in progress
+      in.close();
+    }
+    current = null;
+    freeBuffers.clear();
+  }
+
+  @Override
+  public boolean eof() {
+    return position >= in.length();
+  }
+
+  @Override
+  public String getSource() {
+    return in.getSource();
+  }
+}
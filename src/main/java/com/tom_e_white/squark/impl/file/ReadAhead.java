@@ -0,0 +1,124 @@
+package com.tom_e_white.squark.impl.file;
+
+import htsjdk.samtools.ExtSeekableBufferedStream;
+import htsjdk.samtools.seekablestream.SeekableStream;
+import java.util.List;
+import java.util.concurrent.Callable;
+import org.apache.hadoop.conf.Configuration;
+
+/**
+ * Creates the buffered streams that files are read through, using the read-ahead sizes set in the
+ * configuration (or the defaults). The read-ahead adapts between the minimum and maximum sizes
+ * depending on whether the file is being read sequentially or randomly. Streams for scanning a
+ * partition may also read ahead on a background thread, and streams for index queries may read
+ * nearby chunks together. None of this is needed for local files that are memory-mapped ({@link
+ * MappedSeekableStream}), so they are read directly.
+ *
+ * @see ExtSeekableBufferedStream
+ */
+public class ReadAhead {
+
+  public static final String MIN_SIZE_KEY = "squark.read-ahead.min-size";
+  public static final String MAX_SIZE_KEY = "squark.read-ahead.max-size";
+
+  /** Whether partitions that are scanned sequentially are read ahead on a background thread. */
+  public static final String PREFETCH_KEY = "squark.read-ahead.prefetch.enabled";
+
+  public static final String PREFETCH_BUFFER_SIZE_KEY = "squark.read-ahead.prefetch.buffer-size";
+  public static final String PREFETCH_BUFFERS_KEY = "squark.read-ahead.prefetch.buffers";
+
+  public static final int DEFAULT_PREFETCH_BUFFER_SIZE = 1024 * 1024;
+  public static final int DEFAULT_PREFETCH_BUFFERS = 2;
+
+  /** Whether nearby chunks read for an index query are merged into larger reads. */
+  public static final String COALESCE_KEY = "squark.read-ahead.coalesce.enabled";
+
+  public static final String COALESCE_MAX_GAP_KEY = "squark.read-ahead.coalesce.max-gap";
+  public static final String COALESCE_MAX_RANGE_SIZE_KEY =
+      "squark.read-ahead.coalesce.max-range-size";
+  public static final String COALESCE_CONCURRENCY_KEY = "squark.read-ahead.coalesce.concurrency";
+
+  public static final long DEFAULT_COALESCE_MAX_GAP = 256 * 1024;
+  public static final int DEFAULT_COALESCE_MAX_RANGE_SIZE = 8 * 1024 * 1024;
+  public static final int DEFAULT_COALESCE_CONCURRENCY = 2;
+
+  /** Set the minimum and maximum read-ahead sizes in the configuration. */
+  public static void setSizes(Configuration conf, int minSize, int maxSize) {
+    if (minSize <= 0 || maxSize < minSize) {
+      throw new IllegalArgumentException(
+          "Invalid read-ahead sizes, minimum " + minSize + ", maximum " + maxSize);
+    }
+    conf.setInt(MIN_SIZE_KEY, minSize);
+    conf.setInt(MAX_SIZE_KEY, maxSize);
+  }
+
+  /**
+   * @param conf the configuration, or null to use the default sizes
+   * @return a buffered stream for reading the given stream, or the stream itself if it is already
+   *     buffered, or is memory-mapped
+   */
+  public static SeekableStream buffer(Configuration conf, SeekableStream in) {
+    if (in instanceof ExtSeekableBufferedStream || in instanceof MappedSeekableStream) {
+      return in;
+    }
+    if (conf == null) {
+      return new ExtSeekableBufferedStream(in);
+    }
+    return new ExtSeekableBufferedStream(
+        in,
+        conf.getInt(MIN_SIZE_KEY, ExtSeekableBufferedStream.DEFAULT_MIN_READ_AHEAD),
+        conf.getInt(MAX_SIZE_KEY, ExtSeekableBufferedStream.DEFAULT_MAX_READ_AHEAD));
+  }
+
+  /**
+   * @param start the start of the range of the file that will be scanned
+   * @param end the end of the range of the file that will be scanned
+   * @return a stream that reads ahead on a background thread when the range is read sequentially,
+   *     or the stream itself if prefetching is disabled, or it is memory-mapped
+   * @see PrefetchingSeekableStream
+   */
+  public static SeekableStream prefetch(
+      Configuration conf, SeekableStream in, long start, long end) {
+    if (!conf.getBoolean(PREFETCH_KEY, true) || in instanceof MappedSeekableStream) {
+      return in;
+    }
+    return new PrefetchingSeekableStream(
+        in,
+        start,
+        end,
+        conf.getInt(PREFETCH_BUFFER_SIZE_KEY, DEFAULT_PREFETCH_BUFFER_SIZE),
+        conf.getInt(PREFETCH_BUFFERS_KEY, DEFAULT_PREFETCH_BUFFERS));
+  }
+
+  /**
+   * @param opener opens another stream on the file, so that ranges can be read concurrently
+   * @return a stream that reads the byte ranges set with {@link #setRanges(SeekableStream, List)}
+   *     using a few large reads, or the stream itself if coalescing is disabled, or it is
+   *     memory-mapped
+   * @see CoalescingSeekableStream
+   */
+  public static SeekableStream coalesce(
+      Configuration conf, SeekableStream in, Callable<SeekableStream> opener) {
+    if (!conf.getBoolean(COALESCE_KEY, true) || in instanceof MappedSeekableStream) {
+      return in;
+    }
+    return new CoalescingSeekableStream(
+        in,
+        opener,
+        conf.getLong(COALESCE_MAX_GAP_KEY, DEFAULT_COALESCE_MAX_GAP),
+        conf.getInt(COALESCE_MAX_RANGE_SIZE_KEY, DEFAULT_COALESCE_MAX_RANGE_SIZE),
+        conf.getInt(COALESCE_CONCURRENCY_KEY, DEFAULT_COALESCE_CONCURRENCY));
+  }
+
+  /**
+   * Set the byte ranges of the file that will be read from a stream returned by {@link
+   * #coalesce(Configuration, SeekableStream, Callable)}. Does nothing for other streams.
+   *
+   * @param ranges the start (inclusive) and end (exclusive) of each range
+   */
+  public static void setRanges(SeekableStream in, List<long[]> ranges) {
+    if (in instanceof CoalescingSeekableStream) {
+      ((CoalescingSeekableStream) in).setRanges(ranges);
+    }
+  }
+}
@@ -0,0 +1,60 @@
+package com.tom_e_white.squark.impl.formats;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.Base64;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.spark.broadcast.Broadcast;
+
+/**
+ * Passes per-job objects to Hadoop input and output formats in the job's {@link Configuration},
+ * rather than in static fields, so that concurrent jobs in the same JVM don't interfere with each
+ * other. Large objects, such as headers, should be broadcast, so that only the (small) broadcast
+ * handle is stored in the configuration.
+ */
+public class HadoopConfigurationUtil {
+
+  /** Store a serializable object in the configuration, using Java serialization. */
+  public static void setSerializable(Configuration conf, String key, Serializable value)
+      throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+      out.writeObject(value);
+    }
+    conf.set(key, Base64.getEncoder().encodeToString(bytes.toByteArray()));
+  }
+
+  /** @return the object stored in the configuration, or null if there is none */
+  @SuppressWarnings("unchecked")
+  public static <T> T getSerializable(Configuration conf, String key) throws IOException {
+    String value = conf.get(key);
+    if (value == null) {
+      return null;
+    }
+    try (ObjectInputStream in =
+        new ObjectInputStream(new ByteArrayInputStream(Base64.getDecoder().decode(value)))) {
+      return (T) in.readObject();
+    } catch (ClassNotFoundException e) {
+      throw new IOException(e);
+    }
+  }
+
+  /** Store a broadcast variable in the configuration, so its value can be read in a task. */
+  public static void setBroadcast(Configuration conf, String key, Broadcast<?> broadcast)
+      throws IOException {
+    setSerializable(conf, key, broadcast);
+  }
+
+  /** @return the value of the broadcast variable stored in the configuration */
+  public static <T> T getBroadcastValue(Configuration conf, String key) throws IOException {
+    Broadcast<T> broadcast = getSerializable(conf, key);
+    if (broadcast == null) {
+      throw new IllegalStateException("No broadcast variable set in configuration for " + key);
+    }
+    return broadcast.getValue();
+  }
+}
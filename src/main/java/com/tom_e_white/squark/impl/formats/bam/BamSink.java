@@ -4,6 +4,8 @@ import com.tom_e_white.squark.HtsjdkReadsRdd;
 import com.tom_e_white.squark.impl.file.FileSystemWrapper;
 import com.tom_e_white.squark.impl.file.HadoopFileSystemWrapper;
 import com.tom_e_white.squark.impl.file.Merger;
+import com.tom_e_white.squark.impl.formats.csi.CsiIndexBuilder;
+import com.tom_e_white.squark.impl.formats.csi.CsiIndexFragments;
 import com.tom_e_white.squark.impl.formats.sam.AbstractSamSink;
 import htsjdk.samtools.SAMFileHeader;
 import htsjdk.samtools.SAMRecord;
@@ -15,6 +17,7 @@ import htsjdk.samtools.util.BlockCompressedStreamConstants;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.StringWriter;
+import org.apache.hadoop.conf.Configuration;
 import org.apache.spark.api.java.JavaRDD;
 import org.apache.spark.api.java.JavaSparkContext;
 import org.apache.spark.api.java.function.PairFunction;
@@ -23,7 +26,8 @@ import scala.Tuple2;
 
 /**
  * Write reads to a single BAM file on Spark. This is done by writing to multiple headerless BAM
- * files in parallel, then merging the resulting files into a single BAM file.
+ * files in parallel, then merging the resulting files into a single BAM file. A CSI index may
+ * optionally be written too, by merging the indexes written for each headerless file.
  *
  * @see BamSource
  * @see HtsjdkReadsRdd
@@ -31,6 +35,16 @@ import scala.Tuple2;
 public class BamSink extends AbstractSamSink {
 
   private FileSystemWrapper fileSystemWrapper = new HadoopFileSystemWrapper();
+  private final boolean writeCsiIndex;
+
+  public BamSink() {
+    this(false);
+  }
+
+  /** @param writeCsiIndex if true, write a CSI index alongside the BAM file */
+  public BamSink(boolean writeCsiIndex) {
+    this.writeCsiIndex = writeCsiIndex;
+  }
 
   @Override
   public void save(
@@ -41,22 +55,23 @@ public class BamSink extends AbstractSamSink {
       String referenceSourcePath)
       throws IOException {
 
+    // the index is built as the records are written, so they must already be sorted
+    if (writeCsiIndex && header.getSortOrder() != SAMFileHeader.SortOrder.coordinate) {
+      throw new IllegalArgumentException(
+          "CSI indexes can only be written for coordinate-sorted reads, not "
+              + header.getSortOrder());
+    }
+
     String shardedDir = path + ".sharded";
     Broadcast<SAMFileHeader> headerBroadcast = jsc.broadcast(header);
+    Configuration jobConf = new Configuration(jsc.hadoopConfiguration());
+    HeaderlessBamOutputFormat.setHeader(jobConf, headerBroadcast);
+    HeaderlessBamOutputFormat.setWriteCsiIndex(jobConf, writeCsiIndex);
     reads
-        .mapPartitions(
-            readIterator -> {
-              HeaderlessBamOutputFormat.setHeader(headerBroadcast.getValue());
-              return readIterator;
-            })
         .mapToPair(
             (PairFunction<SAMRecord, Void, SAMRecord>) samRecord -> new Tuple2<>(null, samRecord))
         .saveAsNewAPIHadoopFile(
-            shardedDir,
-            Void.class,
-            SAMRecord.class,
-            HeaderlessBamOutputFormat.class,
-            jsc.hadoopConfiguration());
+            shardedDir, Void.class, SAMRecord.class, HeaderlessBamOutputFormat.class, jobConf);
 
     String headerFile = shardedDir + "/header";
     try (OutputStream out = fileSystemWrapper.create(jsc.hadoopConfiguration(), headerFile)) {
@@ -68,7 +83,16 @@ public class BamSink extends AbstractSamSink {
       out.write(BlockCompressedStreamConstants.EMPTY_GZIP_BLOCK);
     }
 
-    new Merger().mergeParts(jsc.hadoopConfiguration(), shardedDir, path);
+    Merger merger = new Merger();
+    if (writeCsiIndex) {
+      CsiIndexFragments.mergeIndexFragments(
+          jsc.hadoopConfiguration(),
+          fileSystemWrapper,
+          new CsiIndexBuilder(HeaderlessBamOutputFormat.getReferenceLengths(header)),
+          merger.listParts(jsc.hadoopConfiguration(), shardedDir),
+          path + CsiIndexBuilder.CSI_EXTENSION);
+    }
+    merger.mergeParts(jsc.hadoopConfiguration(), shardedDir, path);
   }
 
   private void writeHeader(SAMFileHeader header, OutputStream out) throws IOException {
@@ -3,14 +3,18 @@ package com.tom_e_white.squark.impl.formats.bam;
 import com.google.common.collect.Iterators;
 import com.tom_e_white.squark.HtsjdkReadsRdd;
 import com.tom_e_white.squark.HtsjdkReadsTraversalParameters;
+import com.tom_e_white.squark.impl.file.CachingFileSystemWrapper;
 import com.tom_e_white.squark.impl.file.HadoopFileSystemWrapper;
 import com.tom_e_white.squark.impl.file.NioFileSystemWrapper;
+import com.tom_e_white.squark.impl.file.ReadAhead;
 import com.tom_e_white.squark.impl.formats.AutocloseIteratorWrapper;
 import com.tom_e_white.squark.impl.formats.BoundedTraversalUtil;
 import com.tom_e_white.squark.impl.formats.SerializableHadoopConfiguration;
 import com.tom_e_white.squark.impl.formats.bgzf.BgzfBlockGuesser.BgzfBlock;
 import com.tom_e_white.squark.impl.formats.bgzf.BgzfBlockSource;
 import com.tom_e_white.squark.impl.formats.bgzf.BgzfVirtualFilePointerUtil;
+import com.tom_e_white.squark.impl.formats.csi.CsiIndex;
+import com.tom_e_white.squark.impl.formats.csi.CsiIndexBuilder;
 import com.tom_e_white.squark.impl.formats.sam.AbstractSamSource;
 import com.tom_e_white.squark.impl.formats.sam.SamFormat;
 import htsjdk.samtools.AbstractBAMFileIndex;
@@ -18,7 +22,6 @@ import htsjdk.samtools.BAMFileReader;
 import htsjdk.samtools.BAMFileSpan;
 import htsjdk.samtools.BAMIndex;
 import htsjdk.samtools.Chunk;
-import htsjdk.samtools.ExtSeekableBufferedStream;
 import htsjdk.samtools.QueryInterval;
 import htsjdk.samtools.SAMFileHeader;
 import htsjdk.samtools.SAMRecord;
@@ -26,11 +29,15 @@ import htsjdk.samtools.SamReader;
 import htsjdk.samtools.SamReader.PrimitiveSamReaderToSamReaderAdapter;
 import htsjdk.samtools.ValidationStringency;
 import htsjdk.samtools.seekablestream.SeekableStream;
+import htsjdk.samtools.util.BlockCompressedFilePointerUtil;
+import htsjdk.samtools.util.BlockCompressedStreamConstants;
 import htsjdk.samtools.util.Locatable;
 import java.io.IOException;
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.spark.api.java.JavaRDD;
 import org.apache.spark.api.java.JavaSparkContext;
@@ -58,7 +65,9 @@ public class BamSource extends AbstractSamSource implements Serializable {
    *     is appropriate for cloud stores where file locality is not relied upon.
    */
   public BamSource(boolean useNio) {
-    super(useNio ? new NioFileSystemWrapper() : new HadoopFileSystemWrapper());
+    super(
+        new CachingFileSystemWrapper(
+            useNio ? new NioFileSystemWrapper() : new HadoopFileSystemWrapper()));
     this.bgzfBlockSource = new BgzfBlockSource(useNio);
   }
 
@@ -68,10 +77,10 @@ public class BamSource extends AbstractSamSource implements Serializable {
   }
 
   /**
-   * @return the {@link ReadRange} for the partition, or null if there is none (e.g. in the case of
-   *     long reads, and/or very small partitions).
+   * @return the {@link ReadRange} for the split, or null if there is none (e.g. in the case of long
+   *     reads, and/or very small splits).
    */
-  private <T extends Locatable> ReadRange getFirstReadInPartition(
+  private <T extends Locatable> ReadRange getFirstReadInSplit(
       Configuration conf,
       Iterator<BgzfBlock> bgzfBlocks,
       ValidationStringency stringency,
@@ -80,16 +89,16 @@ public class BamSource extends AbstractSamSource implements Serializable {
     ReadRange readRange = null;
     BamRecordGuesser bamRecordGuesser = null;
     try {
-      String partitionPath = null;
+      String splitPath = null;
       int index = 0; // limit search to MAX_READ_SIZE positions
       while (bgzfBlocks.hasNext()) {
         BgzfBlock block = bgzfBlocks.next();
-        if (partitionPath == null) { // assume each partition comes from only a single file path
-          partitionPath = block.path;
+        if (splitPath == null) { // the blocks are all from a single split of one file
+          splitPath = block.path;
           try (SamReader samReader =
-              createSamReader(conf, partitionPath, stringency, referenceSourcePath)) {
+              createSamReader(conf, splitPath, stringency, referenceSourcePath)) {
             SAMFileHeader header = samReader.getFileHeader();
-            bamRecordGuesser = getBamRecordGuesser(conf, partitionPath, header);
+            bamRecordGuesser = getBamRecordGuesser(conf, splitPath, header);
           }
         }
         for (int up = 0; up < block.uSize; up++) {
@@ -104,7 +113,7 @@ public class BamSource extends AbstractSamSource implements Serializable {
           long vEnd = BgzfVirtualFilePointerUtil.makeFilePointer(block.end, 0xffff);
           if (bamRecordGuesser.checkRecordStart(vPos)) {
             block.end();
-            return new ReadRange(partitionPath, new Chunk(vPos, vEnd));
+            return new ReadRange(splitPath, new Chunk(vPos, vEnd));
           }
         }
       }
@@ -118,7 +127,7 @@ public class BamSource extends AbstractSamSource implements Serializable {
 
   private BamRecordGuesser getBamRecordGuesser(
       Configuration conf, String path, SAMFileHeader header) throws IOException {
-    SeekableStream ss = new ExtSeekableBufferedStream(fileSystemWrapper.open(conf, path));
+    SeekableStream ss = ReadAhead.buffer(conf, fileSystemWrapper.open(conf, path));
     return new BamRecordGuesser(ss, header.getSequenceDictionary().size(), header);
   }
 
@@ -129,6 +138,7 @@ public class BamSource extends AbstractSamSource implements Serializable {
   @Override
   public <T extends Locatable> JavaRDD<SAMRecord> getReads(
       JavaSparkContext jsc,
+      Configuration conf,
       String path,
       int splitSize,
       HtsjdkReadsTraversalParameters<T> traversalParameters,
@@ -143,83 +153,149 @@ public class BamSource extends AbstractSamSource implements Serializable {
 
     Broadcast<HtsjdkReadsTraversalParameters<T>> traversalParametersBroadcast =
         traversalParameters == null ? null : jsc.broadcast(traversalParameters);
-    SerializableHadoopConfiguration confSer =
-        new SerializableHadoopConfiguration(jsc.hadoopConfiguration());
+    SerializableHadoopConfiguration confSer = new SerializableHadoopConfiguration(conf);
 
-    return bgzfBlockSource
-        .getBgzfBlocks(jsc, path, splitSize)
-        .mapPartitions(
-            (FlatMapFunction<Iterator<BgzfBlock>, SAMRecord>)
-                bgzfBlocks -> {
-                  Configuration conf = confSer.getConf();
-                  ReadRange readRange =
-                      getFirstReadInPartition(conf, bgzfBlocks, stringency, referenceSourcePath);
-                  if (readRange == null) {
-                    return Collections.emptyIterator();
-                  }
-                  String p = readRange.getPath();
-                  SamReader samReader = createSamReader(conf, p, stringency, referenceSourcePath);
-                  SAMFileHeader header = samReader.getFileHeader();
-                  BAMFileReader bamFileReader = createBamFileReader(samReader);
-                  BAMFileSpan splitSpan = new BAMFileSpan(readRange.getSpan());
-                  HtsjdkReadsTraversalParameters<T> traversal =
-                      traversalParametersBroadcast == null
-                          ? null
-                          : traversalParametersBroadcast.getValue();
-                  if (traversal == null) {
-                    // no intervals or unplaced, unmapped reads
-                    return new AutocloseIteratorWrapper<>(
-                        bamFileReader.getIterator(splitSpan), samReader);
-                  } else {
-                    if (!samReader.hasIndex()) {
-                      throw new IllegalArgumentException(
-                          "Intervals set but no BAM index file found for " + p);
-                    }
-                    BAMIndex idx = samReader.indexing().getIndex();
-                    Iterator<SAMRecord> intervalReadsIterator;
-                    if (traversal.getIntervalsForTraversal() == null) {
-                      intervalReadsIterator = Collections.emptyIterator();
-                    } else {
-                      QueryInterval[] queryIntervals =
-                          BoundedTraversalUtil.prepareQueryIntervals(
-                              traversal.getIntervalsForTraversal(), header.getSequenceDictionary());
-                      BAMFileSpan span = BAMFileReader.getFileSpan(queryIntervals, idx);
-                      span = (BAMFileSpan) span.removeContentsBefore(splitSpan);
-                      span = (BAMFileSpan) span.removeContentsAfter(splitSpan);
-                      intervalReadsIterator =
-                          new AutocloseIteratorWrapper<>(
-                              bamFileReader.createIndexIterator(
-                                  queryIntervals, false, span.toCoordinateArray()),
-                              samReader);
-                    }
+    // each split is read separately, even if a partition has splits from more than one file
+    return bgzfBlockSource.flatMapSplits(
+        jsc,
+        conf,
+        path,
+        splitSize,
+        (FlatMapFunction<Iterator<BgzfBlock>, SAMRecord>)
+            bgzfBlocks -> {
+              Configuration c = confSer.getConf();
+              ReadRange readRange =
+                  getFirstReadInSplit(c, bgzfBlocks, stringency, referenceSourcePath);
+              if (readRange == null) {
+                return Collections.emptyIterator();
+              }
+              String p = readRange.getPath();
+              HtsjdkReadsTraversalParameters<T> traversal =
+                  traversalParametersBroadcast == null
+                      ? null
+                      : traversalParametersBroadcast.getValue();
+              // the whole split is scanned if there's no traversal, so read ahead,
+              // otherwise the index chunks are read, so read nearby chunks together
+              SeekableStream in =
+                  traversal == null
+                      ? ReadAhead.prefetch(
+                          c,
+                          fileSystemWrapper.open(c, p),
+                          BlockCompressedFilePointerUtil.getBlockAddress(
+                              readRange.getSpan().getChunkStart()),
+                          BlockCompressedFilePointerUtil.getBlockAddress(
+                                  readRange.getSpan().getChunkEnd())
+                              + BlockCompressedStreamConstants.MAX_COMPRESSED_BLOCK_SIZE)
+                      : ReadAhead.coalesce(
+                          c, fileSystemWrapper.open(c, p), () -> fileSystemWrapper.open(c, p));
+              SamReader samReader = createSamReader(c, p, in, stringency, referenceSourcePath);
+              SAMFileHeader header = samReader.getFileHeader();
+              BAMFileReader bamFileReader = createBamFileReader(samReader);
+              BAMFileSpan splitSpan = new BAMFileSpan(readRange.getSpan());
+              if (traversal == null) {
+                // no intervals or unplaced, unmapped reads
+                return new AutocloseIteratorWrapper<>(
+                    bamFileReader.getIterator(splitSpan), samReader);
+              } else {
+                // a BAI index is used if there is one, otherwise a CSI index, which
+                // supports references longer than 2^29 bases
+                BAMIndex idx = samReader.hasIndex() ? samReader.indexing().getIndex() : null;
+                CsiIndex csiIndex = idx == null ? findCsiIndex(c, p) : null;
+                if (idx == null && csiIndex == null) {
+                  throw new IllegalArgumentException(
+                      "Intervals set but no BAM index file found for " + p);
+                }
+                Iterator<SAMRecord> intervalReadsIterator;
+                if (traversal.getIntervalsForTraversal() == null) {
+                  intervalReadsIterator = Collections.emptyIterator();
+                } else {
+                  QueryInterval[] queryIntervals =
+                      BoundedTraversalUtil.prepareQueryIntervals(
+                          traversal.getIntervalsForTraversal(), header.getSequenceDictionary());
+                  BAMFileSpan span =
+                      idx != null
+                          ? BAMFileReader.getFileSpan(queryIntervals, idx)
+                          : getFileSpan(queryIntervals, csiIndex);
+                  span = (BAMFileSpan) span.removeContentsBefore(splitSpan);
+                  span = (BAMFileSpan) span.removeContentsAfter(splitSpan);
+                  ReadAhead.setRanges(in, getBlockRanges(span));
+                  intervalReadsIterator =
+                      new AutocloseIteratorWrapper<>(
+                          bamFileReader.createIndexIterator(
+                              queryIntervals, false, span.toCoordinateArray()),
+                          samReader);
+                }
 
-                    // add on unplaced unmapped reads if there are any in this range
-                    if (traversal.getTraverseUnplacedUnmapped()) {
-                      long startOfLastLinearBin = idx.getStartOfLastLinearBin();
-                      long noCoordinateCount = ((AbstractBAMFileIndex) idx).getNoCoordinateCount();
-                      if (startOfLastLinearBin != -1 && noCoordinateCount > 0) {
-                        long unplacedUnmappedStart = startOfLastLinearBin;
-                        if (readRange.getSpan().getChunkStart() <= unplacedUnmappedStart
-                            && unplacedUnmappedStart
-                                < readRange.getSpan().getChunkEnd()) { // TODO correct?
-                          SamReader unplacedUnmappedReadsSamReader =
-                              createSamReader(conf, p, stringency, referenceSourcePath);
-                          Iterator<SAMRecord> unplacedUnmappedReadsIterator =
-                              new AutocloseIteratorWrapper<>(
-                                  createBamFileReader(unplacedUnmappedReadsSamReader)
-                                      .queryUnmapped(),
-                                  unplacedUnmappedReadsSamReader);
-                          return Iterators.concat(
-                              intervalReadsIterator, unplacedUnmappedReadsIterator);
-                        }
-                      }
-                      if (traversal.getIntervalsForTraversal() == null) {
-                        samReader.close(); // not used any more
-                      }
+                // add on unplaced unmapped reads if there are any in this range
+                if (traversal.getTraverseUnplacedUnmapped()) {
+                  long unplacedUnmappedStart =
+                      idx != null
+                          ? idx.getStartOfLastLinearBin()
+                          : csiIndex.getEndOfPlacedRecords();
+                  long noCoordinateCount =
+                      idx != null
+                          ? ((AbstractBAMFileIndex) idx).getNoCoordinateCount()
+                          : csiIndex.getNoCoordinateCount();
+                  if (unplacedUnmappedStart != -1 && noCoordinateCount > 0) {
+                    if (readRange.getSpan().getChunkStart() <= unplacedUnmappedStart
+                        && unplacedUnmappedStart
+                            < readRange.getSpan().getChunkEnd()) { // TODO correct?
+                      SamReader unplacedUnmappedReadsSamReader =
+                          createSamReader(c, p, stringency, referenceSourcePath);
+                      BAMFileReader unplacedUnmappedReader =
+                          createBamFileReader(unplacedUnmappedReadsSamReader);
+                      Iterator<SAMRecord> unplacedUnmappedReadsIterator =
+                          new AutocloseIteratorWrapper<>(
+                              idx != null
+                                  ? unplacedUnmappedReader.queryUnmapped()
+                                  : unplacedUnmappedReader.getIterator(
+                                      new BAMFileSpan(
+                                          new Chunk(unplacedUnmappedStart, Long.MAX_VALUE))),
+                              unplacedUnmappedReadsSamReader);
+                      return Iterators.concat(intervalReadsIterator, unplacedUnmappedReadsIterator);
                     }
-                    return intervalReadsIterator;
                   }
-                });
+                  if (traversal.getIntervalsForTraversal() == null) {
+                    samReader.close(); // not used any more
+                  }
+                }
+                return intervalReadsIterator;
+              }
+            });
+  }
+
+  /** @return the byte ranges of the BGZF blocks that the span's chunks are in */
+  private static List<long[]> getBlockRanges(BAMFileSpan span) {
+    List<long[]> ranges = new ArrayList<>();
+    for (Chunk chunk : span.getChunks()) {
+      ranges.add(
+          new long[] {
+            BlockCompressedFilePointerUtil.getBlockAddress(chunk.getChunkStart()),
+            BlockCompressedFilePointerUtil.getBlockAddress(chunk.getChunkEnd())
+                + BlockCompressedStreamConstants.MAX_COMPRESSED_BLOCK_SIZE
+          });
+    }
+    return ranges;
+  }
+
+  /** @return the CSI index for a BAM file, or null if there is none */
+  private CsiIndex findCsiIndex(Configuration conf, String path) throws IOException {
+    String index = path + CsiIndexBuilder.CSI_EXTENSION;
+    if (fileSystemWrapper.exists(conf, index)) {
+      return new CsiIndex(fileSystemWrapper.open(conf, index));
+    }
+    return null;
+  }
+
+  /** @return the span of the file that may contain reads overlapping the intervals */
+  private static BAMFileSpan getFileSpan(QueryInterval[] queryIntervals, CsiIndex csiIndex) {
+    List<Chunk> chunks = new ArrayList<>();
+    for (QueryInterval queryInterval : queryIntervals) {
+      chunks.addAll(
+          csiIndex.getChunks(
+              queryInterval.referenceIndex, queryInterval.start - 1, queryInterval.end));
+    }
+    return new BAMFileSpan(CsiIndex.mergeChunks(chunks));
   }
 
   private BAMFileReader createBamFileReader(SamReader samReader) {
@@ -234,8 +310,7 @@ public class BamSource extends AbstractSamSource implements Serializable {
   }
 
   /**
-   * Stores the virtual span of a partition, from the start of the first read, to the end of the
-   * partition.
+   * Stores the virtual span of a split, from the start of the first read, to the end of the split.
    */
   static class ReadRange implements Serializable {
     private final String path;
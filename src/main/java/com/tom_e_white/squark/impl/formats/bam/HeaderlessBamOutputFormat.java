@@ -1,23 +1,31 @@
 package com.tom_e_white.squark.impl.formats.bam;
 
 import com.tom_e_white.squark.HtsjdkReadsRdd;
+import com.tom_e_white.squark.impl.formats.HadoopConfigurationUtil;
+import com.tom_e_white.squark.impl.formats.csi.CsiIndexBuilder;
+import com.tom_e_white.squark.impl.formats.csi.CsiIndexFragments;
 import htsjdk.samtools.BAMRecordCodec;
 import htsjdk.samtools.SAMFileHeader;
 import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMSequenceRecord;
 import htsjdk.samtools.util.BinaryCodec;
 import htsjdk.samtools.util.BlockCompressedOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.mapreduce.RecordWriter;
 import org.apache.hadoop.mapreduce.TaskAttemptContext;
 import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.spark.broadcast.Broadcast;
 
 /**
  * An output format for writing {@link SAMRecord} objects to BAM files that don't have a header (or
  * terminator), so they can be merged into a single file easily. Files do not have the usual ".bam"
- * extension since they are not complete BAM files. This class should not be used directly.
+ * extension since they are not complete BAM files. If CSI indexing is enabled then the index for
+ * each file (with offsets relative to the start of the file) is written to a hidden file alongside
+ * it, so the indexes can be merged too. This class should not be used directly.
  *
  * @see HtsjdkReadsRdd
  */
@@ -25,21 +33,46 @@ public class HeaderlessBamOutputFormat extends FileOutputFormat<Void, SAMRecord>
 
   static class BamRecordWriter extends RecordWriter<Void, SAMRecord> {
 
+    private final FileSystem fileSystem;
+    private final Path file;
     private final OutputStream out;
+    private final BlockCompressedOutputStream compressedOut;
     private final BinaryCodec binaryCodec;
     private final BAMRecordCodec bamRecordCodec;
+    private final CsiIndexBuilder csiIndexBuilder;
 
-    public BamRecordWriter(Configuration conf, Path file, SAMFileHeader header) throws IOException {
-      this.out = file.getFileSystem(conf).create(file);
-      BlockCompressedOutputStream compressedOut = new BlockCompressedOutputStream(out, null);
+    public BamRecordWriter(
+        Configuration conf, Path file, SAMFileHeader header, boolean writeCsiIndex)
+        throws IOException {
+      this.fileSystem = file.getFileSystem(conf);
+      this.file = file;
+      this.out = fileSystem.create(file);
+      compressedOut = new BlockCompressedOutputStream(out, null);
       binaryCodec = new BinaryCodec(compressedOut);
       bamRecordCodec = new BAMRecordCodec(header);
       bamRecordCodec.setOutputStream(compressedOut);
+      csiIndexBuilder = writeCsiIndex ? new CsiIndexBuilder(getReferenceLengths(header)) : null;
     }
 
     @Override
     public void write(Void ignore, SAMRecord samRecord) {
+      long start = compressedOut.getFilePointer();
       bamRecordCodec.encode(samRecord);
+      if (csiIndexBuilder != null) {
+        int ref = samRecord.getReferenceIndex();
+        if (ref == SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX) {
+          csiIndexBuilder.addNoCoordinateRecord();
+        } else {
+          int beg = samRecord.getAlignmentStart() - 1;
+          csiIndexBuilder.addRecord(
+              ref,
+              beg,
+              samRecord.getReadUnmappedFlag() ? beg + 1 : samRecord.getAlignmentEnd(),
+              start,
+              compressedOut.getFilePointer(),
+              !samRecord.getReadUnmappedFlag());
+        }
+      }
     }
 
     @Override
@@ -47,19 +80,40 @@ public class HeaderlessBamOutputFormat extends FileOutputFormat<Void, SAMRecord>
       binaryCodec.getOutputStream().flush();
       out.close(); // don't close BlockCompressedOutputStream since we don't want to write the
       // terminator
+      if (csiIndexBuilder != null) {
+        CsiIndexFragments.writeIndexFragment(fileSystem, file, csiIndexBuilder);
+      }
     }
   }
 
-  private static SAMFileHeader header;
+  /** @return the length of each reference sequence in the header */
+  static int[] getReferenceLengths(SAMFileHeader header) {
+    return header
+        .getSequenceDictionary()
+        .getSequences()
+        .stream()
+        .mapToInt(SAMSequenceRecord::getSequenceLength)
+        .toArray();
+  }
+
+  private static final String HEADER_KEY = "squark.bam.output.header";
+  private static final String WRITE_CSI_INDEX_KEY = "squark.bam.output.write-csi-index";
+
+  public static void setHeader(Configuration conf, Broadcast<SAMFileHeader> headerBroadcast)
+      throws IOException {
+    HadoopConfigurationUtil.setBroadcast(conf, HEADER_KEY, headerBroadcast);
+  }
 
-  public static void setHeader(SAMFileHeader samFileHeader) {
-    header = samFileHeader;
+  public static void setWriteCsiIndex(Configuration conf, boolean writeCsiIndex) {
+    conf.setBoolean(WRITE_CSI_INDEX_KEY, writeCsiIndex);
   }
 
   @Override
   public RecordWriter<Void, SAMRecord> getRecordWriter(TaskAttemptContext taskAttemptContext)
       throws IOException {
+    Configuration conf = taskAttemptContext.getConfiguration();
+    SAMFileHeader header = HadoopConfigurationUtil.getBroadcastValue(conf, HEADER_KEY);
     Path file = getDefaultWorkFile(taskAttemptContext, "");
-    return new BamRecordWriter(taskAttemptContext.getConfiguration(), file, header);
+    return new BamRecordWriter(conf, file, header, conf.getBoolean(WRITE_CSI_INDEX_KEY, false));
   }
 }
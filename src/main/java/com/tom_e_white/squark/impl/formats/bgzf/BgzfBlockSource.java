@@ -1,5 +1,9 @@
 package com.tom_e_white.squark.impl.formats.bgzf;
 
+import com.tom_e_white.squark.impl.file.CachingFileSystemWrapper;
+import com.tom_e_white.squark.impl.file.CombinedSplits;
+import com.tom_e_white.squark.impl.file.CombiningFileSplitInputFormat;
+import com.tom_e_white.squark.impl.file.FileCacheKey;
 import com.tom_e_white.squark.impl.file.FileSplitInputFormat;
 import com.tom_e_white.squark.impl.file.FileSystemWrapper;
 import com.tom_e_white.squark.impl.file.HadoopFileSystemWrapper;
@@ -10,10 +14,11 @@ import com.tom_e_white.squark.impl.formats.bgzf.BgzfBlockGuesser.BgzfBlock;
 import htsjdk.samtools.util.AbstractIterator;
 import java.io.IOException;
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.stream.Collectors;
-import java.util.stream.LongStream;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
 import org.apache.hadoop.mapreduce.lib.input.FileSplit;
@@ -31,6 +36,10 @@ import scala.Tuple2;
  */
 public class BgzfBlockSource implements Serializable {
 
+  // the split size for NIO reads if none is set, which is the HDFS default block size, since that
+  // is the split size that Hadoop reads use if none is set
+  private static final long DEFAULT_NIO_SPLIT_SIZE = 128 * 1024 * 1024;
+
   private final boolean useNio;
   private final FileSystemWrapper fileSystemWrapper;
 
@@ -44,48 +53,116 @@ public class BgzfBlockSource implements Serializable {
    */
   public BgzfBlockSource(boolean useNio) {
     this.useNio = useNio;
-    this.fileSystemWrapper = useNio ? new NioFileSystemWrapper() : new HadoopFileSystemWrapper();
+    this.fileSystemWrapper =
+        new CachingFileSystemWrapper(
+            useNio ? new NioFileSystemWrapper() : new HadoopFileSystemWrapper());
   }
 
   public JavaRDD<BgzfBlock> getBgzfBlocks(JavaSparkContext jsc, String path, int splitSize)
       throws IOException {
+    // a copy, since the split size is set in it for this read only
+    Configuration conf = new Configuration(jsc.hadoopConfiguration());
+    return flatMapSplits(jsc, conf, path, splitSize, bgzfBlocks -> bgzfBlocks);
+    // TODO: drop final empty block
+  }
+
+  /**
+   * Apply a function to the BGZF blocks of each split of the file or directory. The files in a
+   * directory are combined so that a partition may have more than one split (see {@link
+   * CombinedSplits}), but the function is called separately for each split, so it only ever sees
+   * blocks from a single file.
+   *
+   * @param conf the configuration for the read, which the split size is set in, so it must not be
+   *     shared with other reads (such as the Spark context's configuration)
+   * @param f the function to apply to an iterator over the blocks that start in a split
+   * @return an RDD of the results of the function for all the splits
+   */
+  public <T> JavaRDD<T> flatMapSplits(
+      JavaSparkContext jsc,
+      Configuration conf,
+      String path,
+      int splitSize,
+      FlatMapFunction<Iterator<BgzfBlock>, T> f)
+      throws IOException {
     if (useNio) {
       // Use Java NIO by creating splits with Spark parallelize. File locality is not maintained,
       // but this is not an issue if reading from a cloud store.
 
-      // TODO: support case where path is a directory
-      long len = fileSystemWrapper.getFileLength(null, path);
-      int numSplits = (int) Math.ceil((double) len / splitSize);
-
-      List<Long> range = LongStream.range(0, numSplits).boxed().collect(Collectors.toList());
-      return jsc.parallelize(range, numSplits)
-          .map(idx -> idx * splitSize)
+      List<List<NioSplit>> partitions = getNioPartitions(conf, path, splitSize);
+      SerializableHadoopConfiguration confSer = new SerializableHadoopConfiguration(conf);
+      return jsc.parallelize(partitions, Math.max(1, partitions.size()))
+          .flatMap(partition -> partition.iterator())
           .flatMap(
-              splitStart -> {
-                final long splitEnd = splitStart + splitSize > len ? len : splitStart + splitSize;
-                BgzfBlockGuesser bgzfBlockGuesser = getBgzfSplitGuesser(null, path);
-                return getBgzfBlockIterator(bgzfBlockGuesser, splitStart, splitEnd);
+              split -> {
+                BgzfBlockGuesser bgzfBlockGuesser =
+                    getBgzfSplitGuesser(confSer.getConf(), split.path);
+                return f.call(getBgzfBlockIterator(bgzfBlockGuesser, split.start, split.end));
               });
     } else {
       // Use Hadoop FileSystem API to maintain file locality by using Hadoop's FileInputFormat
 
-      final Configuration conf = jsc.hadoopConfiguration();
       if (splitSize > 0) {
         conf.setInt(FileInputFormat.SPLIT_MAXSIZE, splitSize);
       }
+      Class<? extends FileInputFormat<Void, FileSplit>> inputFormatClass =
+          CombinedSplits.isEnabled(fileSystemWrapper, conf, path)
+              ? CombiningFileSplitInputFormat.class
+              : FileSplitInputFormat.class;
       SerializableHadoopConfiguration confSer = new SerializableHadoopConfiguration(conf);
-      return jsc.newAPIHadoopFile(
-              path, FileSplitInputFormat.class, Void.class, FileSplit.class, conf)
+      return jsc.newAPIHadoopFile(path, inputFormatClass, Void.class, FileSplit.class, conf)
           .flatMap(
-              (FlatMapFunction<Tuple2<Void, FileSplit>, BgzfBlock>)
+              (FlatMapFunction<Tuple2<Void, FileSplit>, T>)
                   t2 -> {
                     FileSplit fileSplit = t2._2();
                     BgzfBlockGuesser bgzfBlockGuesser =
                         getBgzfSplitGuesser(confSer.getConf(), fileSplit.getPath().toString());
-                    return getBgzfBlockIterator(bgzfBlockGuesser, fileSplit);
+                    return f.call(getBgzfBlockIterator(bgzfBlockGuesser, fileSplit));
                   });
     }
-    // TODO: drop final empty block
+  }
+
+  /**
+   * @return the splits for each partition. Each split is no more than the split size (or {@link
+   *     #DEFAULT_NIO_SPLIT_SIZE} if the split size is not positive), and is for the file, or for a
+   *     (non-hidden) file in the directory, in path order. The files in a directory are listed, and
+   *     their lengths found in parallel, by {@link FileSystemWrapper#listDirectoryKeys}, and their
+   *     splits are combined into partitions of up to the split size, unless combining is disabled.
+   */
+  private List<List<NioSplit>> getNioPartitions(Configuration conf, String path, int splitSize)
+      throws IOException {
+    boolean directory = fileSystemWrapper.isDirectory(conf, path);
+    List<FileCacheKey> files;
+    if (directory) {
+      files =
+          fileSystemWrapper
+              .listDirectoryKeys(conf, path)
+              .stream()
+              .filter(file -> !FileSystemWrapper.isHidden(file.getPath()))
+              .collect(Collectors.toList());
+    } else {
+      files = Collections.singletonList(FileCacheKey.of(fileSystemWrapper, conf, path));
+    }
+    long maxSplitSize = splitSize > 0 ? splitSize : DEFAULT_NIO_SPLIT_SIZE;
+    boolean combine = directory && conf.getBoolean(CombinedSplits.ENABLED_KEY, true);
+    List<List<NioSplit>> partitions = new ArrayList<>();
+    List<NioSplit> partition = new ArrayList<>();
+    long partitionSize = 0;
+    for (FileCacheKey file : files) {
+      for (long start = 0; start < file.getLength(); start += maxSplitSize) {
+        long end = Math.min(start + maxSplitSize, file.getLength());
+        if (!partition.isEmpty() && (!combine || partitionSize + end - start > maxSplitSize)) {
+          partitions.add(partition);
+          partition = new ArrayList<>();
+          partitionSize = 0;
+        }
+        partition.add(new NioSplit(file.getPath(), start, end));
+        partitionSize += end - start;
+      }
+    }
+    if (!partition.isEmpty()) {
+      partitions.add(partition);
+    }
+    return partitions;
   }
 
   private BgzfBlockGuesser getBgzfSplitGuesser(Configuration conf, String path) throws IOException {
@@ -123,4 +200,17 @@ public class BgzfBlockSource implements Serializable {
       }
     };
   }
+
+  /** A range of a file to find BGZF blocks in, when using NIO. */
+  private static class NioSplit implements Serializable {
+    private final String path;
+    private final long start;
+    private final long end;
+
+    NioSplit(String path, long start, long end) {
+      this.path = path;
+      this.start = start;
+      this.end = end;
+    }
+  }
 }
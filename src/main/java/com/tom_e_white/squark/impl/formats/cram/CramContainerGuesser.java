@@ -0,0 +1,211 @@
+package com.tom_e_white.squark.impl.formats.cram;
+
+import htsjdk.samtools.cram.io.CramInt;
+import htsjdk.samtools.cram.io.ITF8;
+import htsjdk.samtools.cram.io.LTF8;
+import htsjdk.samtools.cram.structure.Container;
+import htsjdk.samtools.seekablestream.SeekableStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Finds CRAM container boundaries starting from an arbitrary file position, so that the container
+ * offsets for different parts of a file can be found in parallel. A candidate container header is
+ * only accepted if its CRC32 checksum matches, so only CRAM version 3 (and later) files are
+ * supported, since earlier versions do not have a checksum in the container header.
+ */
+class CramContainerGuesser implements Closeable {
+
+  // A container header has up to 9 fixed fields before the landmarks array, each at most 9 bytes
+  private static final int MIN_HEADER_BUFFER_SIZE = 128;
+  // The amount of the file read at a time, so candidate positions are checked without a seek each
+  private static final int WINDOW_SIZE = 64 * 1024;
+  // Landmarks are one per slice, so this is a generous upper bound
+  private static final int MAX_LANDMARKS = 100_000;
+
+  private final SeekableStream in;
+  private final long fileLength;
+  private byte[] window = new byte[WINDOW_SIZE];
+  private long windowStart = -1;
+  private int windowLength;
+
+  public CramContainerGuesser(SeekableStream in, long fileLength) {
+    this.in = in;
+    this.fileLength = fileLength;
+  }
+
+  /**
+   * @return the offsets of all the (non-EOF) containers that start in the range from <code>start
+   *     </code> (inclusive) to <code>end</code> (exclusive)
+   */
+  public List<Long> getContainerOffsets(long start, long end) throws IOException {
+    List<Long> offsets = new ArrayList<>();
+    long pos = guessNextContainerOffset(start, end);
+    while (pos != -1 && pos < end) {
+      Header header = readHeader(pos);
+      if (header == null) {
+        // the last container found was a false match (or the file is corrupt), so look for the
+        // next valid container header
+        pos = guessNextContainerOffset(pos + 1, end);
+        continue;
+      }
+      if (header.container.isEOF()) {
+        break;
+      }
+      offsets.add(pos);
+      pos += header.length + header.container.containerByteSize;
+    }
+    return offsets;
+  }
+
+  /** @return the offset of the first container at or after <code>start</code>, or -1 if none */
+  long guessNextContainerOffset(long start, long end) throws IOException {
+    for (long pos = start; pos < end; pos++) {
+      if (readHeader(pos) != null) {
+        return pos;
+      }
+    }
+    return -1;
+  }
+
+  private Header readHeader(long pos) throws IOException {
+    int len = fill(pos, MIN_HEADER_BUFFER_SIZE);
+    int off = (int) (pos - windowStart);
+    if (len < 4) {
+      return null;
+    }
+    int containerByteSize =
+        CramInt.int32(new byte[] {window[off], window[off + 1], window[off + 2], window[off + 3]});
+    if (containerByteSize <= 0 || containerByteSize > fileLength - pos) { // quick check
+      return null;
+    }
+    ByteBuffer buffer = ByteBuffer.wrap(window, off + 4, len - 4);
+    InputStream bufferStream = new ByteBufferInputStream(buffer);
+    Container container = new Container();
+    container.containerByteSize = containerByteSize;
+    try {
+      container.sequenceId = ITF8.readUnsignedITF8(bufferStream);
+      container.alignmentStart = ITF8.readUnsignedITF8(bufferStream);
+      container.alignmentSpan = ITF8.readUnsignedITF8(bufferStream);
+      container.nofRecords = ITF8.readUnsignedITF8(bufferStream);
+      container.globalRecordCounter = LTF8.readUnsignedLTF8(bufferStream);
+      container.bases = LTF8.readUnsignedLTF8(bufferStream);
+      container.blockCount = ITF8.readUnsignedITF8(bufferStream);
+      int landmarksCount = ITF8.readUnsignedITF8(bufferStream);
+      // unmapped and multi-reference containers have an alignment start of -1
+      if (container.sequenceId < -2
+          || container.alignmentStart < -1
+          || container.nofRecords < 0
+          || container.globalRecordCounter < 0
+          || container.blockCount < 0
+          || landmarksCount < 0
+          || landmarksCount > MAX_LANDMARKS) {
+        return null;
+      }
+      int landmarksPosition = buffer.position() - off;
+      int required = landmarksPosition + landmarksCount * 5 + 4;
+      if (required > len) { // landmarks aren't all in the window, so read again from pos
+        len = fill(pos, required);
+        off = (int) (pos - windowStart);
+        buffer = ByteBuffer.wrap(window, off, len);
+        buffer.position(off + landmarksPosition);
+        bufferStream = new ByteBufferInputStream(buffer);
+      }
+      container.landmarks = new int[landmarksCount];
+      for (int i = 0; i < landmarksCount; i++) {
+        container.landmarks[i] = ITF8.readUnsignedITF8(bufferStream);
+      }
+      int checksumPosition = buffer.position() - off;
+      container.checksum = CramInt.int32(bufferStream);
+      CRC32 crc32 = new CRC32();
+      crc32.update(window, off, checksumPosition);
+      if ((int) crc32.getValue() != container.checksum) {
+        return null;
+      }
+      int headerLength = checksumPosition + 4;
+      if (container.containerByteSize > fileLength - pos - headerLength) {
+        return null;
+      }
+      container.offset = pos;
+      return new Header(container, headerLength);
+    } catch (EOFException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Make sure the window holds the <code>length</code> bytes from <code>pos</code> (or up to the
+   * end of the file), reading from the stream only if it doesn't already.
+   *
+   * @return the number of bytes in the window from <code>pos</code>, which may be more than <code>
+   *     length</code>
+   */
+  private int fill(long pos, int length) throws IOException {
+    long end = Math.min(pos + length, fileLength);
+    if (windowStart < 0 || pos < windowStart || end > windowStart + windowLength) {
+      int toRead = (int) Math.min(Math.max(length, WINDOW_SIZE), fileLength - pos);
+      if (window.length < toRead) {
+        window = new byte[toRead];
+      }
+      in.seek(pos);
+      int off = 0;
+      while (off < toRead) {
+        int ret = in.read(window, off, toRead - off);
+        if (ret < 0) {
+          break;
+        }
+        off += ret;
+      }
+      windowStart = pos;
+      windowLength = off;
+    }
+    return (int) Math.max(0, windowStart + windowLength - pos);
+  }
+
+  @Override
+  public void close() throws IOException {
+    in.close();
+  }
+
+  private static class Header {
+    private final Container container;
+    private final int length;
+
+    Header(Container container, int length) {
+      this.container = container;
+      this.length = length;
+    }
+  }
+
+  /** An input stream over a byte buffer that throws {@link EOFException} on underflow. */
+  private static class ByteBufferInputStream extends InputStream {
+    private final ByteBuffer buffer;
+
+    ByteBufferInputStream(ByteBuffer buffer) {
+      this.buffer = buffer;
+    }
+
+    @Override
+    public int read() throws IOException {
+      if (!buffer.hasRemaining()) {
+        throw new EOFException();
+      }
+      return buffer.get() & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (len > buffer.remaining()) {
+        throw new EOFException();
+      }
+      buffer.get(b, off, len);
+      return len;
+    }
+  }
+}
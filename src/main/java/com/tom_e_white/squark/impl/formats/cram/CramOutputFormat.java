@@ -1,7 +1,8 @@
 package com.tom_e_white.squark.impl.formats.cram;
 
 import com.tom_e_white.squark.HtsjdkReadsRdd;
-import htsjdk.samtools.CRAMContainerStreamWriter;
+import com.tom_e_white.squark.impl.formats.HadoopConfigurationUtil;
+import htsjdk.samtools.ConfigurableCRAMContainerStreamWriter;
 import htsjdk.samtools.SAMFileHeader;
 import htsjdk.samtools.SAMRecord;
 import htsjdk.samtools.cram.ref.CRAMReferenceSource;
@@ -12,6 +13,7 @@ import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.mapreduce.RecordWriter;
 import org.apache.hadoop.mapreduce.TaskAttemptContext;
 import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.spark.broadcast.Broadcast;
 
 /**
  * An output format for writing {@link SAMRecord} objects to CRAM files. Should not be used
@@ -21,34 +23,56 @@ import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
  */
 public class CramOutputFormat extends FileOutputFormat<Void, SAMRecord> {
 
-  private static SAMFileHeader header;
-  private static CRAMReferenceSource refSource;
+  private static final String HEADER_KEY = "squark.cram.output.header";
+  private static final String REFERENCE_SOURCE_KEY = "squark.cram.output.reference-source";
+  private static final String WRITE_PARAMETERS_KEY = "squark.cram.output.write-parameters";
 
-  public static void setHeader(SAMFileHeader samFileHeader) {
-    header = samFileHeader;
+  public static void setHeader(Configuration conf, Broadcast<SAMFileHeader> headerBroadcast)
+      throws IOException {
+    HadoopConfigurationUtil.setBroadcast(conf, HEADER_KEY, headerBroadcast);
+  }
+
+  public static void setReferenceSource(
+      Configuration conf, Broadcast<CRAMReferenceSource> referenceSourceBroadcast)
+      throws IOException {
+    HadoopConfigurationUtil.setBroadcast(conf, REFERENCE_SOURCE_KEY, referenceSourceBroadcast);
   }
 
-  public static void setReferenceSource(CRAMReferenceSource referenceSource) {
-    refSource = referenceSource;
+  public static void setWriteParameters(Configuration conf, CramWriteParameters cramWriteParameters)
+      throws IOException {
+    HadoopConfigurationUtil.setSerializable(conf, WRITE_PARAMETERS_KEY, cramWriteParameters);
   }
 
   @Override
   public RecordWriter<Void, SAMRecord> getRecordWriter(TaskAttemptContext taskAttemptContext)
       throws IOException {
+    Configuration conf = taskAttemptContext.getConfiguration();
+    SAMFileHeader header = HadoopConfigurationUtil.getBroadcastValue(conf, HEADER_KEY);
+    CRAMReferenceSource refSource =
+        HadoopConfigurationUtil.getBroadcastValue(conf, REFERENCE_SOURCE_KEY);
+    CramWriteParameters writeParameters =
+        HadoopConfigurationUtil.getSerializable(conf, WRITE_PARAMETERS_KEY);
+    if (writeParameters == null) {
+      writeParameters = CramWriteParameters.DEFAULT;
+    }
     Path file = getDefaultWorkFile(taskAttemptContext, "");
-    return new CramRecordWriter(taskAttemptContext.getConfiguration(), file, header, refSource);
+    return new CramRecordWriter(conf, file, header, refSource, writeParameters);
   }
 
   static class CramRecordWriter extends RecordWriter<Void, SAMRecord> {
 
     private final OutputStream out;
-    private final CRAMContainerStreamWriter cramWriter;
+    private final ConfigurableCRAMContainerStreamWriter cramWriter;
 
     public CramRecordWriter(
-        Configuration conf, Path file, SAMFileHeader header, CRAMReferenceSource refSource)
+        Configuration conf,
+        Path file,
+        SAMFileHeader header,
+        CRAMReferenceSource refSource,
+        CramWriteParameters writeParameters)
         throws IOException {
       this.out = file.getFileSystem(conf).create(file);
-      cramWriter = new CRAMContainerStreamWriter(out, null, refSource, header, file.toString());
+      cramWriter = writeParameters.createWriter(out, refSource, header, file.toString());
     }
 
     @Override
@@ -15,6 +15,7 @@ import htsjdk.samtools.cram.ref.CRAMReferenceSource;
 import htsjdk.samtools.cram.ref.ReferenceSource;
 import java.io.IOException;
 import java.io.OutputStream;
+import org.apache.hadoop.conf.Configuration;
 import org.apache.spark.api.java.JavaRDD;
 import org.apache.spark.api.java.JavaSparkContext;
 import org.apache.spark.api.java.function.PairFunction;
@@ -31,6 +32,15 @@ import scala.Tuple2;
 public class CramSink extends AbstractSamSink {
 
   private FileSystemWrapper fileSystemWrapper = new HadoopFileSystemWrapper();
+  private final CramWriteParameters writeParameters;
+
+  public CramSink() {
+    this(CramWriteParameters.DEFAULT);
+  }
+
+  public CramSink(CramWriteParameters writeParameters) {
+    this.writeParameters = writeParameters;
+  }
 
   @Override
   public void save(
@@ -46,21 +56,15 @@ public class CramSink extends AbstractSamSink {
         new ReferenceSource(NioFileSystemWrapper.asPath(referenceSourcePath));
     Broadcast<SAMFileHeader> headerBroadcast = jsc.broadcast(header);
     Broadcast<CRAMReferenceSource> referenceSourceBroadCast = jsc.broadcast(referenceSource);
+    Configuration jobConf = new Configuration(jsc.hadoopConfiguration());
+    CramOutputFormat.setHeader(jobConf, headerBroadcast);
+    CramOutputFormat.setReferenceSource(jobConf, referenceSourceBroadCast);
+    CramOutputFormat.setWriteParameters(jobConf, writeParameters);
     reads
-        .mapPartitions(
-            readIterator -> {
-              CramOutputFormat.setHeader(headerBroadcast.getValue());
-              CramOutputFormat.setReferenceSource(referenceSourceBroadCast.getValue());
-              return readIterator;
-            })
         .mapToPair(
             (PairFunction<SAMRecord, Void, SAMRecord>) samRecord -> new Tuple2<>(null, samRecord))
         .saveAsNewAPIHadoopFile(
-            shardedDir,
-            Void.class,
-            SAMRecord.class,
-            CramOutputFormat.class,
-            jsc.hadoopConfiguration());
+            shardedDir, Void.class, SAMRecord.class, CramOutputFormat.class, jobConf);
 
     String headerFile = shardedDir + "/header";
     try (OutputStream out = fileSystemWrapper.create(jsc.hadoopConfiguration(), headerFile)) {
@@ -1,10 +1,17 @@
 package com.tom_e_white.squark.impl.formats.cram;
 
 import com.google.common.collect.Iterators;
+import com.tom_e_white.squark.HtsjdkReadsRddStorage.ReadField;
 import com.tom_e_white.squark.HtsjdkReadsTraversalParameters;
+import com.tom_e_white.squark.impl.file.CachingFileSystemWrapper;
+import com.tom_e_white.squark.impl.file.CombinedSplits;
+import com.tom_e_white.squark.impl.file.CombiningFileSplitInputFormat;
+import com.tom_e_white.squark.impl.file.DirectoryListing;
+import com.tom_e_white.squark.impl.file.FileCacheKey;
 import com.tom_e_white.squark.impl.file.FileSplitInputFormat;
 import com.tom_e_white.squark.impl.file.HadoopFileSystemWrapper;
 import com.tom_e_white.squark.impl.file.NioFileSystemWrapper;
+import com.tom_e_white.squark.impl.file.ReadAhead;
 import com.tom_e_white.squark.impl.formats.AutocloseIteratorWrapper;
 import com.tom_e_white.squark.impl.formats.BoundedTraversalUtil;
 import com.tom_e_white.squark.impl.formats.SerializableHadoopConfiguration;
@@ -20,6 +27,7 @@ import htsjdk.samtools.CRAMFileReader;
 import htsjdk.samtools.CRAMIntervalIterator;
 import htsjdk.samtools.Chunk;
 import htsjdk.samtools.CramContainerHeaderIterator;
+import htsjdk.samtools.ProjectingCRAMIterator;
 import htsjdk.samtools.QueryInterval;
 import htsjdk.samtools.SAMFileHeader;
 import htsjdk.samtools.SAMRecord;
@@ -29,14 +37,21 @@ import htsjdk.samtools.SamReader.PrimitiveSamReaderToSamReaderAdapter;
 import htsjdk.samtools.ValidationStringency;
 import htsjdk.samtools.cram.CRAIEntry;
 import htsjdk.samtools.cram.CRAIIndex;
+import htsjdk.samtools.cram.ref.CRAMReferenceSource;
 import htsjdk.samtools.cram.ref.ReferenceSource;
 import htsjdk.samtools.cram.structure.Container;
 import htsjdk.samtools.seekablestream.SeekableStream;
+import htsjdk.samtools.util.BlockCompressedFilePointerUtil;
+import htsjdk.samtools.util.CloseableIterator;
 import htsjdk.samtools.util.Locatable;
 import java.io.IOException;
 import java.io.Serializable;
 import java.net.URI;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.stream.Collectors;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
@@ -49,8 +64,28 @@ import scala.Tuple2;
 
 public class CramSource extends AbstractSamSource implements Serializable {
 
+  private static final int MAX_DRIVER_THREADS = 16;
+  private static final long DEFAULT_SCAN_RANGE_SIZE = 128 * 1024 * 1024;
+  private static final String CONTAINER_OFFSETS = "container-offsets";
+
+  private final Set<ReadField> readFields;
+
   public CramSource() {
-    super(new HadoopFileSystemWrapper());
+    this(null);
+  }
+
+  /**
+   * @param readFields the optional fields to decode, or null to decode all fields. Data series for
+   *     fields that are not needed are not decoded, see {@link ProjectingCRAMIterator}.
+   */
+  public CramSource(Set<ReadField> readFields) {
+    super(new CachingFileSystemWrapper(new HadoopFileSystemWrapper()));
+    if (readFields == null) {
+      this.readFields = null;
+    } else {
+      this.readFields = EnumSet.noneOf(ReadField.class);
+      this.readFields.addAll(readFields);
+    }
   }
 
   @Override
@@ -61,6 +96,7 @@ public class CramSource extends AbstractSamSource implements Serializable {
   @Override
   public <T extends Locatable> JavaRDD<SAMRecord> getReads(
       JavaSparkContext jsc,
+      Configuration conf,
       String path,
       int splitSize,
       HtsjdkReadsTraversalParameters<T> traversalParameters,
@@ -75,37 +111,38 @@ public class CramSource extends AbstractSamSource implements Serializable {
 
     // Use Hadoop FileSystem API to maintain file locality by using Hadoop's FileInputFormat
 
-    final Configuration conf = jsc.hadoopConfiguration();
     if (splitSize > 0) {
       conf.setInt(FileInputFormat.SPLIT_MAXSIZE, splitSize);
     }
 
-    // store paths (not full URIs) to avoid differences in scheme - this could be improved
-    Map<String, List<Long>> pathToContainerOffsets = new LinkedHashMap<>();
+    // a directory's listing has the file lengths and modification times, and the index files
+    List<String> paths;
+    DirectoryListing listing = null;
     if (fileSystemWrapper.isDirectory(conf, path)) {
-      List<String> paths =
-          fileSystemWrapper
-              .listDirectory(conf, path)
+      listing = listDirectory(conf, path);
+      paths =
+          listing
+              .getPaths()
               .stream()
               .filter(SamFormat.CRAM::fileMatches)
               .collect(Collectors.toList());
-      for (String p : paths) {
-        long cramFileLength = fileSystemWrapper.getFileLength(conf, p);
-        List<Long> containerOffsets = getContainerOffsetsFromIndex(conf, p, cramFileLength);
-        pathToContainerOffsets.put(URI.create(p).getPath(), containerOffsets);
-      }
     } else {
-      long cramFileLength = fileSystemWrapper.getFileLength(conf, path);
-      List<Long> containerOffsets = getContainerOffsetsFromIndex(conf, path, cramFileLength);
-      pathToContainerOffsets.put(URI.create(path).getPath(), containerOffsets);
+      paths = Collections.singletonList(path);
     }
+    Map<String, List<Long>> pathToContainerOffsets =
+        getContainerOffsets(jsc, conf, paths, listing, splitSize);
     Broadcast<Map<String, List<Long>>> containerOffsetsBroadcast =
         jsc.broadcast(pathToContainerOffsets);
 
     SerializableHadoopConfiguration confSer = new SerializableHadoopConfiguration(conf);
     Broadcast<HtsjdkReadsTraversalParameters<T>> traversalParametersBroadcast =
         traversalParameters == null ? null : jsc.broadcast(traversalParameters);
-    return jsc.newAPIHadoopFile(path, FileSplitInputFormat.class, Void.class, FileSplit.class, conf)
+    // the files in a directory are combined into partitions, but each split is read separately
+    Class<? extends FileInputFormat<Void, FileSplit>> inputFormatClass =
+        listing != null && conf.getBoolean(CombinedSplits.ENABLED_KEY, true)
+            ? CombiningFileSplitInputFormat.class
+            : FileSplitInputFormat.class;
+    return jsc.newAPIHadoopFile(path, inputFormatClass, Void.class, FileSplit.class, conf)
         .flatMap(
             (FlatMapFunction<Tuple2<Void, FileSplit>, SAMRecord>)
                 t2 -> {
@@ -120,9 +157,6 @@ public class CramSource extends AbstractSamSource implements Serializable {
                     return Collections.emptyIterator();
                   }
                   Configuration c = confSer.getConf();
-                  SamReader samReader =
-                      createSamReader(c, p, validationStringency, referenceSourcePath);
-                  CRAMFileReader cramFileReader = createCramFileReader(samReader);
                   // TODO: test edge cases
                   // Subtract one from end since CRAMIterator's boundaries are inclusive
                   Chunk readRange =
@@ -134,6 +168,27 @@ public class CramSource extends AbstractSamSource implements Serializable {
                       traversalParametersBroadcast == null
                           ? null
                           : traversalParametersBroadcast.getValue();
+                  if (traversal == null && readFields != null) {
+                    CloseableIterator<SAMRecord> projectingIterator =
+                        createProjectingIterator(
+                            ReadAhead.prefetch(c, fileSystemWrapper.open(c, p), newStart, newEnd),
+                            splitSpan.toCoordinateArray(),
+                            validationStringency,
+                            referenceSourcePath);
+                    return new AutocloseIteratorWrapper<>(projectingIterator, projectingIterator);
+                  }
+                  // the whole split is scanned if there's no traversal, so read ahead
+                  SamReader samReader =
+                      createSamReader(
+                          c,
+                          p,
+                          traversal == null
+                              ? ReadAhead.prefetch(
+                                  c, fileSystemWrapper.open(c, p), newStart, newEnd)
+                              : fileSystemWrapper.open(c, p),
+                          validationStringency,
+                          referenceSourcePath);
+                  CRAMFileReader cramFileReader = createCramFileReader(samReader);
                   if (traversal != null) {
                     SAMFileHeader header = samReader.getFileHeader();
                     SAMSequenceDictionary dict = header.getSequenceDictionary();
@@ -149,21 +204,40 @@ public class CramSource extends AbstractSamSource implements Serializable {
                       BAMFileSpan span = BAMFileReader.getFileSpan(queryIntervals, idx);
                       span = (BAMFileSpan) span.removeContentsBefore(splitSpan);
                       span = (BAMFileSpan) span.removeContentsAfter(splitSpan);
-                      SeekableStream ss = fileSystemWrapper.open(c, p);
-                      // TODO: should go through FileSystemWrapper
-                      ReferenceSource referenceSource =
-                          new ReferenceSource(NioFileSystemWrapper.asPath(referenceSourcePath));
-                      intervalReadsIterator =
-                          new AutocloseIteratorWrapper<>(
-                              new CRAMIntervalIterator(
-                                  queryIntervals,
-                                  false,
-                                  idx,
-                                  ss,
-                                  referenceSource,
-                                  validationStringency,
-                                  span.toCoordinateArray()),
-                              ss);
+                      // read nearby containers together
+                      SeekableStream ss =
+                          ReadAhead.coalesce(
+                              c, fileSystemWrapper.open(c, p), () -> fileSystemWrapper.open(c, p));
+                      ReadAhead.setRanges(ss, getContainerRanges(span, offsets));
+                      if (readFields != null) {
+                        CRAMIntervalIterator cramIntervalIterator =
+                            new CRAMIntervalIterator(
+                                queryIntervals,
+                                false,
+                                createProjectingIterator(
+                                    ss,
+                                    span.toCoordinateArray(),
+                                    validationStringency,
+                                    referenceSourcePath));
+                        intervalReadsIterator =
+                            new AutocloseIteratorWrapper<>(
+                                cramIntervalIterator, cramIntervalIterator);
+                      } else {
+                        // TODO: should go through FileSystemWrapper
+                        ReferenceSource referenceSource =
+                            new ReferenceSource(NioFileSystemWrapper.asPath(referenceSourcePath));
+                        intervalReadsIterator =
+                            new AutocloseIteratorWrapper<>(
+                                new CRAMIntervalIterator(
+                                    queryIntervals,
+                                    false,
+                                    idx,
+                                    ss,
+                                    referenceSource,
+                                    validationStringency,
+                                    span.toCoordinateArray()),
+                                ss);
+                      }
                       samReader.close(); // not needed
                     }
 
@@ -175,6 +249,30 @@ public class CramSource extends AbstractSamSource implements Serializable {
                         long unplacedUnmappedStart = startOfLastLinearBin;
                         if (readRange.getChunkStart() <= unplacedUnmappedStart
                             && unplacedUnmappedStart < readRange.getChunkEnd()) { // TODO correct?
+                          if (readFields != null) {
+                            // read to the end of the file, keeping only unplaced unmapped reads
+                            long[] unplacedUnmappedCoordinates = {
+                              unplacedUnmappedStart,
+                              BgzfVirtualFilePointerUtil.makeFilePointer(
+                                  fileSystemWrapper.getFileLength(c, p))
+                            };
+                            CloseableIterator<SAMRecord> projectingIterator =
+                                createProjectingIterator(
+                                    fileSystemWrapper.open(c, p),
+                                    unplacedUnmappedCoordinates,
+                                    validationStringency,
+                                    referenceSourcePath);
+                            Iterator<SAMRecord> unplacedUnmappedReadsIterator =
+                                new AutocloseIteratorWrapper<>(
+                                    Iterators.filter(
+                                        projectingIterator,
+                                        read ->
+                                            read.getReferenceIndex()
+                                                == SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX),
+                                    projectingIterator);
+                            return Iterators.concat(
+                                intervalReadsIterator, unplacedUnmappedReadsIterator);
+                          }
                           SamReader unplacedUnmappedReadsSamReader =
                               createSamReader(c, p, validationStringency, referenceSourcePath);
                           Iterator<SAMRecord> unplacedUnmappedReadsIterator =
@@ -195,36 +293,184 @@ public class CramSource extends AbstractSamSource implements Serializable {
                 });
   }
 
-  private List<Long> getContainerOffsetsFromIndex(
-      Configuration conf, String path, long cramFileLength) throws IOException {
-    try (SeekableStream in = findIndex(conf, path)) {
-      if (in == null) {
-        return getContainerOffsetsFromFile(conf, path, cramFileLength);
+  /**
+   * Find the container offsets for each of the given CRAM files. Offsets are read from the index if
+   * there is one, otherwise the file is scanned for container headers. Files are processed in
+   * parallel on the driver, and large files without an index are scanned in parallel on the
+   * cluster. Results are cached for files that have not changed.
+   *
+   * @param listing the listing of the directory the files are in, or null for a single file
+   * @return a map from path (not full URI, to avoid differences in scheme) to the container offsets
+   *     for the file, with the file length as the final entry
+   */
+  private Map<String, List<Long>> getContainerOffsets(
+      JavaSparkContext jsc,
+      Configuration conf,
+      List<String> paths,
+      DirectoryListing listing,
+      int splitSize)
+      throws IOException {
+    long scanRangeSize = splitSize > 0 ? splitSize : DEFAULT_SCAN_RANGE_SIZE;
+
+    Map<String, Future<ContainerOffsets>> futures = new LinkedHashMap<>();
+    ExecutorService executorService =
+        Executors.newFixedThreadPool(Math.max(1, Math.min(paths.size(), MAX_DRIVER_THREADS)));
+    try {
+      for (String p : paths) {
+        futures.put(
+            p,
+            executorService.submit(
+                () -> getContainerOffsetsOnDriver(conf, p, listing, scanRangeSize)));
       }
-      List<Long> containerOffsets = new ArrayList<>();
-      CRAIIndex index = CRAMCRAIIndexer.readIndex(in);
-      for (CRAIEntry entry : index.getCRAIEntries()) {
-        containerOffsets.add(entry.containerStartOffset);
+      Map<String, ContainerOffsets> pathToOffsets = new LinkedHashMap<>();
+      for (Map.Entry<String, Future<ContainerOffsets>> entry : futures.entrySet()) {
+        pathToOffsets.put(entry.getKey(), entry.getValue().get());
       }
-      containerOffsets.add(cramFileLength);
-      return containerOffsets;
+      scanContainerOffsets(jsc, conf, pathToOffsets, scanRangeSize);
+
+      // store paths (not full URIs) to avoid differences in scheme - this could be improved
+      Map<String, List<Long>> pathToContainerOffsets = new LinkedHashMap<>();
+      for (Map.Entry<String, ContainerOffsets> entry : pathToOffsets.entrySet()) {
+        ContainerOffsets containerOffsets = entry.getValue();
+        metadataCache.put(containerOffsets.key, CONTAINER_OFFSETS, containerOffsets.offsets);
+        pathToContainerOffsets.put(URI.create(entry.getKey()).getPath(), containerOffsets.offsets);
+      }
+      return pathToContainerOffsets;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException(e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IOException(e.getCause());
+    } finally {
+      executorService.shutdownNow();
     }
   }
 
-  private List<Long> getContainerOffsetsFromFile(
-      Configuration conf, String path, long cramFileLength) throws IOException {
+  /**
+   * Find the container offsets for the given file on the driver, either from the cache, the index,
+   * or by scanning the file. Large CRAM 3 files without an index are not scanned here; instead the
+   * returned object has null offsets and records where the first container starts so that the file
+   * can be scanned in parallel by {@link #scanContainerOffsets}.
+   */
+  private ContainerOffsets getContainerOffsetsOnDriver(
+      Configuration conf, String path, DirectoryListing listing, long scanRangeSize)
+      throws IOException {
+    // the key is from the file's current status, since it may have been rewritten since the
+    // directory was listed
+    FileCacheKey key = FileCacheKey.of(fileSystemWrapper, conf, path);
+    List<Long> cachedOffsets = metadataCache.get(key, CONTAINER_OFFSETS);
+    if (cachedOffsets != null) {
+      return new ContainerOffsets(key, cachedOffsets, -1);
+    }
+    long cramFileLength = key.getLength();
+    try (SeekableStream in = findIndex(conf, path, listing)) {
+      if (in != null) {
+        List<Long> containerOffsets = new ArrayList<>();
+        CRAIIndex index = CRAMCRAIIndexer.readIndex(in);
+        for (CRAIEntry entry : index.getCRAIEntries()) {
+          containerOffsets.add(entry.containerStartOffset);
+        }
+        containerOffsets.add(cramFileLength);
+        return new ContainerOffsets(key, containerOffsets, -1);
+      }
+    }
     try (SeekableStream seekableStream = fileSystemWrapper.open(conf, path)) {
       CramContainerHeaderIterator it = new CramContainerHeaderIterator(seekableStream);
+      long firstContainerOffset = seekableStream.position();
+      if (it.getCramHeader().getVersion().major >= 3
+          && cramFileLength - firstContainerOffset > scanRangeSize) {
+        return new ContainerOffsets(key, null, firstContainerOffset);
+      }
       List<Long> containerOffsets = new ArrayList<Long>();
       while (it.hasNext()) {
         Container container = it.next();
         containerOffsets.add(container.offset);
       }
       containerOffsets.add(cramFileLength);
-      return containerOffsets;
+      return new ContainerOffsets(key, containerOffsets, -1);
     }
   }
 
+  /**
+   * Find the container offsets for any files that have not already had their offsets found on the
+   * driver, by splitting each file into ranges and using a {@link CramContainerGuesser} to find the
+   * containers that start in each range.
+   */
+  private void scanContainerOffsets(
+      JavaSparkContext jsc,
+      Configuration conf,
+      Map<String, ContainerOffsets> pathToOffsets,
+      long scanRangeSize) {
+    List<ScanRange> scanRanges = new ArrayList<>();
+    for (Map.Entry<String, ContainerOffsets> entry : pathToOffsets.entrySet()) {
+      ContainerOffsets containerOffsets = entry.getValue();
+      if (containerOffsets.offsets != null) {
+        continue;
+      }
+      long len = containerOffsets.key.getLength();
+      for (long start = containerOffsets.firstContainerOffset;
+          start < len;
+          start += scanRangeSize) {
+        scanRanges.add(
+            new ScanRange(entry.getKey(), len, start, Math.min(start + scanRangeSize, len)));
+      }
+    }
+    if (scanRanges.isEmpty()) {
+      return;
+    }
+
+    SerializableHadoopConfiguration confSer = new SerializableHadoopConfiguration(conf);
+    Map<String, List<Long>> scannedOffsets =
+        jsc.parallelize(scanRanges, scanRanges.size())
+            .flatMap(
+                range -> {
+                  Configuration c = confSer.getConf();
+                  try (CramContainerGuesser guesser =
+                      new CramContainerGuesser(
+                          fileSystemWrapper.open(c, range.path), range.length)) {
+                    return guesser
+                        .getContainerOffsets(range.start, range.end)
+                        .stream()
+                        .map(offset -> new Tuple2<>(range.path, offset))
+                        .iterator();
+                  }
+                })
+            .collect()
+            .stream()
+            .collect(
+                Collectors.groupingBy(
+                    Tuple2::_1, Collectors.mapping(Tuple2::_2, Collectors.toList())));
+
+    for (Map.Entry<String, ContainerOffsets> entry : pathToOffsets.entrySet()) {
+      ContainerOffsets containerOffsets = entry.getValue();
+      if (containerOffsets.offsets != null) {
+        continue;
+      }
+      List<Long> offsets =
+          new ArrayList<>(scannedOffsets.getOrDefault(entry.getKey(), Collections.emptyList()));
+      Collections.sort(offsets);
+      offsets.add(containerOffsets.key.getLength());
+      entry.setValue(new ContainerOffsets(containerOffsets.key, offsets, -1));
+    }
+  }
+
+  /** @return the byte ranges of the containers that the span's chunks are in */
+  private static List<long[]> getContainerRanges(BAMFileSpan span, List<Long> containerOffsets) {
+    long fileLength = containerOffsets.get(containerOffsets.size() - 1);
+    List<long[]> ranges = new ArrayList<>();
+    for (Chunk chunk : span.getChunks()) {
+      long start = BlockCompressedFilePointerUtil.getBlockAddress(chunk.getChunkStart());
+      long lastContainerStart = BlockCompressedFilePointerUtil.getBlockAddress(chunk.getChunkEnd());
+      long end =
+          nextContainerOffset(containerOffsets, Math.min(lastContainerStart + 1, fileLength));
+      ranges.add(new long[] {start, end});
+    }
+    return ranges;
+  }
+
   private static long nextContainerOffset(List<Long> containerOffsets, long position) {
     int index = Collections.binarySearch(containerOffsets, position);
     long offset;
@@ -245,7 +491,63 @@ public class CramSource extends AbstractSamSource implements Serializable {
     return offset;
   }
 
+  @Override
+  protected CRAMReferenceSource getReferenceSource(String referenceSourcePath) {
+    if (referenceSourcePath == null
+        && readFields != null
+        && !readFields.contains(ReadField.BASES)) {
+      // bases are not decoded, so no reference is needed
+      return (sequence, tryNameVariants) -> null;
+    }
+    return super.getReferenceSource(referenceSourcePath);
+  }
+
+  private CloseableIterator<SAMRecord> createProjectingIterator(
+      SeekableStream in,
+      long[] coordinates,
+      ValidationStringency validationStringency,
+      String referenceSourcePath)
+      throws IOException {
+    boolean decodeBases = readFields.contains(ReadField.BASES);
+    return new ProjectingCRAMIterator(
+        in,
+        decodeBases ? getReferenceSource(referenceSourcePath) : null,
+        coordinates,
+        validationStringency,
+        readFields.contains(ReadField.NAME),
+        decodeBases,
+        readFields.contains(ReadField.QUALITIES),
+        readFields.contains(ReadField.TAGS));
+  }
+
   private CRAMFileReader createCramFileReader(SamReader samReader) throws IOException {
     return (CRAMFileReader) ((PrimitiveSamReaderToSamReaderAdapter) samReader).underlyingReader();
   }
+
+  private static class ContainerOffsets {
+    private final FileCacheKey key;
+    private final List<Long> offsets;
+    private final long firstContainerOffset;
+
+    ContainerOffsets(FileCacheKey key, List<Long> offsets, long firstContainerOffset) {
+      this.key = key;
+      this.offsets = offsets;
+      this.firstContainerOffset = firstContainerOffset;
+    }
+  }
+
+  /** A range of a file to scan for container headers. */
+  static class ScanRange implements Serializable {
+    private final String path;
+    private final long length;
+    private final long start;
+    private final long end;
+
+    ScanRange(String path, long length, long start, long end) {
+      this.path = path;
+      this.length = length;
+      this.start = start;
+      this.end = end;
+    }
+  }
 }
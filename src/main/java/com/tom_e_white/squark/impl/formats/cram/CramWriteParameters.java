@@ -0,0 +1,78 @@
+package com.tom_e_white.squark.impl.formats.cram;
+
+import htsjdk.samtools.ConfigurableCRAMContainerStreamWriter;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.cram.build.CramEncodingStrategy;
+import htsjdk.samtools.cram.ref.CRAMReferenceSource;
+import java.io.OutputStream;
+import java.io.Serializable;
+
+/**
+ * Parameters that control how CRAM containers are built when writing: the number of records in each
+ * slice, the number of slices in each container, the strategy for choosing block compressors, and
+ * the number of threads used to encode containers in each task.
+ */
+public class CramWriteParameters implements Serializable {
+
+  public static final CramWriteParameters DEFAULT =
+      new CramWriteParameters(
+          ConfigurableCRAMContainerStreamWriter.DEFAULT_RECORDS_PER_SLICE,
+          ConfigurableCRAMContainerStreamWriter.DEFAULT_SLICES_PER_CONTAINER,
+          CramEncodingStrategy.DEFAULT,
+          ConfigurableCRAMContainerStreamWriter.DEFAULT_ENCODING_THREADS);
+
+  private final int recordsPerSlice;
+  private final int slicesPerContainer;
+  private final CramEncodingStrategy encodingStrategy;
+  private final int encodingThreads;
+
+  public CramWriteParameters(
+      int recordsPerSlice,
+      int slicesPerContainer,
+      CramEncodingStrategy encodingStrategy,
+      int encodingThreads) {
+    if (recordsPerSlice <= 0) {
+      throw new IllegalArgumentException("Records per slice must be positive: " + recordsPerSlice);
+    }
+    if (slicesPerContainer <= 0) {
+      throw new IllegalArgumentException(
+          "Slices per container must be positive: " + slicesPerContainer);
+    }
+    this.recordsPerSlice = recordsPerSlice;
+    this.slicesPerContainer = slicesPerContainer;
+    if (encodingThreads <= 0) {
+      throw new IllegalArgumentException("Encoding threads must be positive: " + encodingThreads);
+    }
+    this.encodingStrategy = encodingStrategy;
+    this.encodingThreads = encodingThreads;
+  }
+
+  public int getRecordsPerSlice() {
+    return recordsPerSlice;
+  }
+
+  public int getSlicesPerContainer() {
+    return slicesPerContainer;
+  }
+
+  public CramEncodingStrategy getEncodingStrategy() {
+    return encodingStrategy;
+  }
+
+  public int getEncodingThreads() {
+    return encodingThreads;
+  }
+
+  public ConfigurableCRAMContainerStreamWriter createWriter(
+      OutputStream out, CRAMReferenceSource refSource, SAMFileHeader header, String cramId) {
+    return new ConfigurableCRAMContainerStreamWriter(
+        out,
+        refSource,
+        header,
+        cramId,
+        recordsPerSlice,
+        slicesPerContainer,
+        encodingStrategy,
+        encodingThreads);
+  }
+}
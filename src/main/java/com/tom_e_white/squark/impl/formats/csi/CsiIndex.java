@@ -0,0 +1,233 @@
+package com.tom_e_white.squark.impl.formats.csi;
+
+import htsjdk.samtools.Chunk;
+import htsjdk.samtools.util.BlockCompressedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads a <a href="https://samtools.github.io/hts-specs/CSIv1.pdf">CSI index</a>, and finds the
+ * chunks of the indexed BGZF-compressed file that may contain records overlapping a region. Unlike
+ * BAI and tabix indexes, CSI indexes can index references longer than 2^29 bases, since the depth
+ * of the binning index is stored in the index.
+ *
+ * @see CsiIndexBuilder
+ */
+public class CsiIndex {
+
+  private static final byte[] MAGIC = {'C', 'S', 'I', 1};
+  private static final int TABIX_META_LENGTH = 28; // the fixed part of the tabix metadata
+
+  private final int minShift;
+  private final int depth;
+  private final List<String> sequenceNames;
+  private final List<Map<Integer, Bin>> refBins = new ArrayList<>();
+  private final long[] refEnds; // the virtual offset of the end of the last record for each ref
+  private final long noCoordinateCount;
+
+  private static class Bin {
+    private final long loffset;
+    private final long[] chunks; // start and end virtual offsets, in pairs
+
+    Bin(long loffset, long[] chunks) {
+      this.loffset = loffset;
+      this.chunks = chunks;
+    }
+  }
+
+  /** Read a CSI index from a (BGZF-compressed) stream, closing the stream. */
+  public CsiIndex(InputStream in) throws IOException {
+    try (DataInputStream data = new DataInputStream(new BlockCompressedInputStream(in))) {
+      byte[] magic = new byte[MAGIC.length];
+      data.readFully(magic);
+      if (!Arrays.equals(magic, MAGIC)) {
+        throw new IOException("Not a CSI index");
+      }
+      ByteBuffer buffer = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+      minShift = readInt(data, buffer);
+      depth = readInt(data, buffer);
+      byte[] aux = new byte[readInt(data, buffer)];
+      data.readFully(aux);
+      sequenceNames = parseSequenceNames(aux);
+      int numRefs = readInt(data, buffer);
+      refEnds = new long[numRefs];
+      int pseudoBin = binLimit() + 1;
+      for (int ref = 0; ref < numRefs; ref++) {
+        Map<Integer, Bin> bins = new HashMap<>();
+        refEnds[ref] = -1;
+        int numBins = readInt(data, buffer);
+        for (int i = 0; i < numBins; i++) {
+          int bin = readInt(data, buffer);
+          long loffset = readLong(data, buffer);
+          long[] chunks = new long[readInt(data, buffer) * 2];
+          for (int c = 0; c < chunks.length; c++) {
+            chunks[c] = readLong(data, buffer);
+          }
+          if (bin == pseudoBin) {
+            refEnds[ref] = chunks[1]; // the other chunk records the number of (un)mapped records
+          } else {
+            bins.put(bin, new Bin(loffset, chunks));
+          }
+        }
+        refBins.add(bins);
+      }
+      long count;
+      try {
+        count = readLong(data, buffer);
+      } catch (EOFException e) {
+        count = 0; // the number of records without coordinates is optional
+      }
+      noCoordinateCount = count;
+    }
+  }
+
+  private static int readInt(DataInputStream data, ByteBuffer buffer) throws IOException {
+    buffer.clear();
+    data.readFully(buffer.array(), 0, 4);
+    return buffer.getInt(0);
+  }
+
+  private static long readLong(DataInputStream data, ByteBuffer buffer) throws IOException {
+    buffer.clear();
+    data.readFully(buffer.array(), 0, 8);
+    return buffer.getLong(0);
+  }
+
+  /** @return the sequence names from tabix-style auxiliary data, or null if there are none */
+  private static List<String> parseSequenceNames(byte[] aux) {
+    if (aux.length < TABIX_META_LENGTH) {
+      return null;
+    }
+    ByteBuffer buffer = ByteBuffer.wrap(aux).order(ByteOrder.LITTLE_ENDIAN);
+    int namesLength = buffer.getInt(TABIX_META_LENGTH - 4);
+    if (namesLength <= 0 || TABIX_META_LENGTH + namesLength > aux.length) {
+      return null;
+    }
+    List<String> names = new ArrayList<>();
+    int start = TABIX_META_LENGTH;
+    for (int i = start; i < TABIX_META_LENGTH + namesLength; i++) {
+      if (aux[i] == 0) {
+        names.add(new String(aux, start, i - start, StandardCharsets.UTF_8));
+        start = i + 1;
+      }
+    }
+    return names;
+  }
+
+  /**
+   * @return the names of the sequences, as stored in the index by tabix or bcftools for text
+   *     formats, or null if the index doesn't store them (as for BAM and BCF, where the sequences
+   *     are those in the header)
+   */
+  public List<String> getSequenceNames() {
+    return sequenceNames;
+  }
+
+  /** @return the index of a sequence name in the index, or -1 if it is not present */
+  public int getSequenceIndex(String name) {
+    return sequenceNames == null ? -1 : sequenceNames.indexOf(name);
+  }
+
+  /** @return the number of records without coordinates (unplaced unmapped reads) */
+  public long getNoCoordinateCount() {
+    return noCoordinateCount;
+  }
+
+  /**
+   * @return the virtual file offset of the end of the last record that has a reference, which is
+   *     where records without coordinates start, or -1 if no records have a reference
+   */
+  public long getEndOfPlacedRecords() {
+    return Arrays.stream(refEnds).max().orElse(-1);
+  }
+
+  /**
+   * @param ref the index of the reference sequence
+   * @param beg the zero-based start of the region
+   * @param end the zero-based exclusive end of the region, or a non-positive number for the end of
+   *     the reference
+   * @return the chunks that may contain records overlapping the region, sorted and merged
+   */
+  public List<Chunk> getChunks(int ref, int beg, int end) {
+    List<Chunk> chunks = new ArrayList<>();
+    if (ref < 0 || ref >= refBins.size()) {
+      return chunks;
+    }
+    long maxEnd = 1L << (minShift + depth * 3);
+    long regionEnd = end <= 0 ? maxEnd : Math.min(end, maxEnd);
+    long regionBeg = Math.max(0, beg);
+    if (regionBeg >= regionEnd) {
+      return chunks;
+    }
+    Map<Integer, Bin> bins = refBins.get(ref);
+    long minOffset = minOffset(bins, regionBeg);
+    for (int level = 0, t = 0; level <= depth; t += 1 << (level * 3), level++) {
+      int shift = minShift + (depth - level) * 3;
+      int first = t + (int) (regionBeg >> shift);
+      int last = t + (int) ((regionEnd - 1) >> shift);
+      for (int b = first; b <= last; b++) {
+        Bin bin = bins.get(b);
+        if (bin == null) {
+          continue;
+        }
+        for (int c = 0; c < bin.chunks.length; c += 2) {
+          if (bin.chunks[c + 1] > minOffset) {
+            chunks.add(new Chunk(bin.chunks[c], bin.chunks[c + 1]));
+          }
+        }
+      }
+    }
+    return mergeChunks(chunks);
+  }
+
+  /**
+   * @return the smallest virtual offset of a record that may overlap the start of the region, from
+   *     the loffset of the lowest-level bin containing the start (as htslib)
+   */
+  private long minOffset(Map<Integer, Bin> bins, long beg) {
+    int bin = ((1 << (depth * 3)) - 1) / 7 + (int) (beg >> minShift);
+    while (true) {
+      Bin b = bins.get(bin);
+      if (b != null) {
+        return b.loffset;
+      }
+      if (bin == 0) {
+        return 0;
+      }
+      bin = (bin - 1) >> 3;
+    }
+  }
+
+  /** @return the chunks sorted by start, with overlapping or adjacent chunks merged */
+  public static List<Chunk> mergeChunks(List<Chunk> chunks) {
+    List<Chunk> sorted = new ArrayList<>(chunks);
+    sorted.sort(Comparator.comparingLong(Chunk::getChunkStart));
+    List<Chunk> merged = new ArrayList<>();
+    for (Chunk chunk : sorted) {
+      Chunk last = merged.isEmpty() ? null : merged.get(merged.size() - 1);
+      if (last != null && chunk.getChunkStart() <= last.getChunkEnd()) {
+        if (chunk.getChunkEnd() > last.getChunkEnd()) {
+          merged.set(merged.size() - 1, new Chunk(last.getChunkStart(), chunk.getChunkEnd()));
+        }
+      } else {
+        merged.add(chunk);
+      }
+    }
+    return merged;
+  }
+
+  private int binLimit() {
+    return ((1 << ((depth + 1) * 3)) - 1) / 7;
+  }
+}
@@ -0,0 +1,316 @@
+package com.tom_e_white.squark.impl.formats.csi;
+
+import htsjdk.samtools.util.BinaryCodec;
+import htsjdk.samtools.util.BlockCompressedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Builds a <a href="https://samtools.github.io/hts-specs/CSIv1.pdf">CSI index</a> for a
+ * BGZF-compressed file of coordinate-sorted records. The index for a file that was written in parts
+ * can be built by building an index for each part (with virtual file offsets relative to the start
+ * of the part), then appending them in order, so the file never has to be re-read.
+ */
+public class CsiIndexBuilder implements Serializable {
+
+  public static final String CSI_EXTENSION = ".csi";
+
+  private static final byte[] MAGIC = {'C', 'S', 'I', 1};
+  private static final int DEFAULT_MIN_SHIFT = 14;
+  private static final long DEFAULT_MAX_LENGTH = (1L << 31) - 1;
+  private static final long UNSET = -1;
+
+  private final int minShift;
+  private final int depth;
+  private final RefIndex[] refs;
+  private byte[] aux = new byte[0];
+  private long noCoordinateCount;
+  // the reference and start of the last record added, to check that records are in order
+  private int lastRef = -1;
+  private int lastBeg = -1;
+
+  /**
+   * @param refLengths the length of each reference sequence, or 0 if unknown; used to choose the
+   *     depth of the binning index so that long references can be indexed
+   */
+  public CsiIndexBuilder(int[] refLengths) {
+    this.minShift = DEFAULT_MIN_SHIFT;
+    this.depth = depthFor(Arrays.stream(refLengths).max().orElse(0));
+    this.refs = new RefIndex[refLengths.length];
+  }
+
+  /** @return the smallest depth for which the binning index covers the given length (as htslib) */
+  private int depthFor(long maxLength) {
+    long length = (maxLength == 0 ? DEFAULT_MAX_LENGTH : maxLength) + 256;
+    int depth = 0;
+    for (long size = 1L << minShift; length > size; size <<= 3) {
+      depth++;
+    }
+    return depth;
+  }
+
+  /**
+   * Set the auxiliary data that is written to the index, such as the tabix metadata for text
+   * formats.
+   *
+   * @see #tabixVcfAux(List)
+   */
+  public void setAux(byte[] aux) {
+    this.aux = aux;
+  }
+
+  /**
+   * @return the tabix metadata for a VCF file with the given sequence names, as written by bcftools
+   *     in the auxiliary data of CSI indexes for bgzipped VCF
+   */
+  public static byte[] tabixVcfAux(List<String> sequenceNames) {
+    ByteArrayOutputStream names = new ByteArrayOutputStream();
+    for (String name : sequenceNames) {
+      byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+      names.write(bytes, 0, bytes.length);
+      names.write(0);
+    }
+    ByteBuffer buffer = ByteBuffer.allocate(28 + names.size()).order(ByteOrder.LITTLE_ENDIAN);
+    buffer.putInt(2); // format: VCF
+    buffer.putInt(1); // sequence column
+    buffer.putInt(2); // start column
+    buffer.putInt(0); // end column (none)
+    buffer.putInt('#'); // comment character
+    buffer.putInt(0); // lines to skip
+    buffer.putInt(names.size());
+    buffer.put(names.toByteArray());
+    return buffer.array();
+  }
+
+  /**
+   * Add a mapped record to the index. Records must be added in coordinate order.
+   *
+   * @throws IllegalArgumentException if the record is before the last one added
+   * @param ref the index of the record's reference sequence
+   * @param beg the zero-based start of the record
+   * @param end the zero-based exclusive end of the record
+   * @param vStart the virtual file offset of the start of the record
+   * @param vEnd the virtual file offset of the end of the record
+   */
+  public void addRecord(int ref, int beg, int end, long vStart, long vEnd) {
+    addRecord(ref, beg, end, vStart, vEnd, true);
+  }
+
+  /**
+   * Add a record to the index. Records must be added in coordinate order.
+   *
+   * @param ref the index of the record's reference sequence
+   * @param beg the zero-based start of the record
+   * @param end the zero-based exclusive end of the record
+   * @param vStart the virtual file offset of the start of the record
+   * @param vEnd the virtual file offset of the end of the record
+   * @param mapped false for a read that is placed on a reference but is unmapped
+   * @throws IllegalArgumentException if the record is before the last one added, or if a record
+   *     with no reference has been added
+   */
+  public void addRecord(int ref, int beg, int end, long vStart, long vEnd, boolean mapped) {
+    if (ref < lastRef || (ref == lastRef && beg < lastBeg)) {
+      throw new IllegalArgumentException(
+          String.format(
+              "Records must be in coordinate order to be indexed, but found reference %d start %d "
+                  + "after reference %d start %d",
+              ref, beg, lastRef, lastBeg));
+    }
+    if (noCoordinateCount > 0) {
+      throw new IllegalArgumentException(
+          "Records must be in coordinate order to be indexed, but found a record with a reference "
+              + "after records with no reference");
+    }
+    lastRef = ref;
+    lastBeg = beg;
+    if (end <= beg) {
+      end = beg + 1;
+    }
+    RefIndex refIndex = refs[ref];
+    if (refIndex == null) {
+      refIndex = refs[ref] = new RefIndex();
+    }
+    refIndex.addChunk(reg2bin(beg, end), vStart, vEnd);
+    refIndex.setLinear(beg >> minShift, (end - 1) >> minShift, vStart);
+    if (refIndex.offBeg == UNSET) {
+      refIndex.offBeg = vStart;
+    }
+    refIndex.offEnd = vEnd;
+    if (mapped) {
+      refIndex.mapped++;
+    } else {
+      refIndex.unmapped++;
+    }
+  }
+
+  /** Count a record that has no reference (an unplaced unmapped read). */
+  public void addNoCoordinateRecord() {
+    noCoordinateCount++;
+  }
+
+  /**
+   * Append the index for the next part of the file.
+   *
+   * @param next the index for the next part, with virtual file offsets relative to its start
+   * @param compressedOffset the (compressed) offset of the start of the next part in the file
+   */
+  public void append(CsiIndexBuilder next, long compressedOffset) {
+    long shift = compressedOffset << 16;
+    noCoordinateCount += next.noCoordinateCount;
+    for (int ref = 0; ref < refs.length; ref++) {
+      RefIndex nextRefIndex = next.refs[ref];
+      if (nextRefIndex == null) {
+        continue;
+      }
+      RefIndex refIndex = refs[ref];
+      if (refIndex == null) {
+        refIndex = refs[ref] = new RefIndex();
+      }
+      for (Map.Entry<Integer, List<long[]>> entry : nextRefIndex.bins.entrySet()) {
+        for (long[] chunk : entry.getValue()) {
+          refIndex.addChunk(entry.getKey(), chunk[0] + shift, chunk[1] + shift);
+        }
+      }
+      for (int window = 0; window < nextRefIndex.windows; window++) {
+        if (nextRefIndex.linear[window] != UNSET) {
+          refIndex.setLinear(window, window, nextRefIndex.linear[window] + shift);
+        }
+      }
+      if (refIndex.offBeg == UNSET) {
+        refIndex.offBeg = nextRefIndex.offBeg + shift;
+      }
+      refIndex.offEnd = nextRefIndex.offEnd + shift;
+      refIndex.mapped += nextRefIndex.mapped;
+      refIndex.unmapped += nextRefIndex.unmapped;
+    }
+  }
+
+  /** Write the index in (BGZF-compressed) CSI format, closing the stream. */
+  public void write(OutputStream out) throws IOException {
+    BinaryCodec codec = new BinaryCodec(new BlockCompressedOutputStream(out, null));
+    codec.writeBytes(MAGIC);
+    codec.writeInt(minShift);
+    codec.writeInt(depth);
+    codec.writeInt(aux.length);
+    codec.writeBytes(aux);
+    codec.writeInt(refs.length);
+    for (RefIndex refIndex : refs) {
+      if (refIndex == null) {
+        codec.writeInt(0);
+        continue;
+      }
+      refIndex.fillLinear();
+      codec.writeInt(refIndex.bins.size() + 1); // including the pseudo-bin
+      for (Map.Entry<Integer, List<long[]>> entry : refIndex.bins.entrySet()) {
+        int bin = entry.getKey();
+        List<long[]> chunks = entry.getValue();
+        codec.writeInt(bin);
+        codec.writeLong(refIndex.loffset(binStartWindow(bin)));
+        codec.writeInt(chunks.size());
+        for (long[] chunk : chunks) {
+          codec.writeLong(chunk[0]);
+          codec.writeLong(chunk[1]);
+        }
+      }
+      // the pseudo-bin records the extent of the reference, and the number of records
+      codec.writeInt(binLimit() + 1);
+      codec.writeLong(0);
+      codec.writeInt(2);
+      codec.writeLong(refIndex.offBeg);
+      codec.writeLong(refIndex.offEnd);
+      codec.writeLong(refIndex.mapped);
+      codec.writeLong(refIndex.unmapped);
+    }
+    codec.writeLong(noCoordinateCount);
+    codec.close();
+  }
+
+  /** The same as htslib's hts_reg2bin. */
+  private int reg2bin(long beg, long end) {
+    end--;
+    int s = minShift;
+    int t = ((1 << (depth * 3)) - 1) / 7;
+    for (int l = depth; l > 0; l--, s += 3, t -= 1 << (l * 3)) {
+      if (beg >> s == end >> s) {
+        return (int) (t + (beg >> s));
+      }
+    }
+    return 0;
+  }
+
+  private int binLimit() {
+    return ((1 << ((depth + 1) * 3)) - 1) / 7;
+  }
+
+  /** @return the linear index window at the start of the region covered by a bin */
+  private int binStartWindow(int bin) {
+    int level = 0;
+    for (int b = bin; b > 0; b = (b - 1) >> 3) {
+      level++;
+    }
+    int firstBinAtLevel = ((1 << (level * 3)) - 1) / 7;
+    return (bin - firstBinAtLevel) << ((depth - level) * 3);
+  }
+
+  private static class RefIndex implements Serializable {
+    private final TreeMap<Integer, List<long[]>> bins = new TreeMap<>();
+    // the virtual offset of the first record overlapping each window of 2^minShift bases
+    private long[] linear = new long[0];
+    private int windows;
+    private long offBeg = UNSET;
+    private long offEnd = UNSET;
+    private long mapped;
+    private long unmapped;
+
+    void addChunk(int bin, long vStart, long vEnd) {
+      List<long[]> chunks = bins.computeIfAbsent(bin, b -> new ArrayList<>());
+      long[] last = chunks.isEmpty() ? null : chunks.get(chunks.size() - 1);
+      if (last != null && last[1] == vStart) {
+        last[1] = vEnd; // extend the last chunk since it is contiguous
+      } else {
+        chunks.add(new long[] {vStart, vEnd});
+      }
+    }
+
+    void setLinear(int firstWindow, int lastWindow, long vStart) {
+      if (lastWindow >= linear.length) {
+        int oldLength = linear.length;
+        linear = Arrays.copyOf(linear, Math.max(lastWindow + 1, oldLength * 2));
+        Arrays.fill(linear, oldLength, linear.length, UNSET);
+      }
+      windows = Math.max(windows, lastWindow + 1);
+      for (int window = firstWindow; window <= lastWindow; window++) {
+        if (linear[window] == UNSET) {
+          linear[window] = vStart;
+        }
+      }
+    }
+
+    /**
+     * Fill in windows that no records overlap with the offset of the next window that does, as
+     * htslib does.
+     */
+    void fillLinear() {
+      for (int window = windows - 2; window >= 0; window--) {
+        if (linear[window] == UNSET) {
+          linear[window] = linear[window + 1];
+        }
+      }
+    }
+
+    /** @return the offset of the first record overlapping the window, or 0 if there is none */
+    long loffset(int window) {
+      return window < windows ? linear[window] : 0;
+    }
+  }
+}
@@ -0,0 +1,68 @@
+package com.tom_e_white.squark.impl.formats.csi;
+
+import com.tom_e_white.squark.impl.file.FileSystemWrapper;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.util.List;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+/**
+ * Writes the CSI index for each headerless part of a file to a hidden file alongside the part (with
+ * offsets relative to the start of the part), and merges them into an index for the whole file when
+ * the parts are merged, so the file never has to be re-read to index it.
+ */
+public class CsiIndexFragments {
+
+  /** @return the hidden file that the CSI index for a headerless part is written to */
+  public static Path getIndexFragment(Path part) {
+    return new Path(part.getParent(), "." + part.getName() + CsiIndexBuilder.CSI_EXTENSION);
+  }
+
+  /** Write the index for a headerless part. */
+  public static void writeIndexFragment(
+      FileSystem fileSystem, Path part, CsiIndexBuilder csiIndexBuilder) throws IOException {
+    try (ObjectOutputStream out =
+        new ObjectOutputStream(fileSystem.create(getIndexFragment(part)))) {
+      out.writeObject(csiIndexBuilder);
+    }
+  }
+
+  /**
+   * Merge the indexes for each part, by shifting the offsets in each by the length of the parts
+   * that will precede it in the merged file, then delete them.
+   *
+   * @param csiIndexBuilder an empty index for the merged file, to append the indexes for the parts
+   *     to
+   * @param parts all the parts of the merged file, in order, including the header and terminator
+   * @param path the path to write the merged index to
+   */
+  public static void mergeIndexFragments(
+      Configuration conf,
+      FileSystemWrapper fileSystemWrapper,
+      CsiIndexBuilder csiIndexBuilder,
+      List<String> parts,
+      String path)
+      throws IOException {
+    long offset = 0;
+    for (String part : parts) {
+      String indexFragment = getIndexFragment(new Path(part)).toString();
+      if (fileSystemWrapper.exists(conf, indexFragment)) {
+        try (ObjectInputStream in =
+            new ObjectInputStream(fileSystemWrapper.open(conf, indexFragment))) {
+          csiIndexBuilder.append((CsiIndexBuilder) in.readObject(), offset);
+        } catch (ClassNotFoundException e) {
+          throw new IOException(e);
+        }
+        fileSystemWrapper.delete(conf, indexFragment);
+      }
+      offset += fileSystemWrapper.getFileLength(conf, part);
+    }
+    try (OutputStream out = fileSystemWrapper.create(conf, path)) {
+      csiIndexBuilder.write(out);
+    }
+  }
+}
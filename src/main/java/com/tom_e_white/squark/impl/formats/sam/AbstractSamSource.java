@@ -1,7 +1,10 @@
 package com.tom_e_white.squark.impl.formats.sam;
 
 import com.tom_e_white.squark.HtsjdkReadsTraversalParameters;
+import com.tom_e_white.squark.impl.file.DirectoryListing;
+import com.tom_e_white.squark.impl.file.FileCacheKey;
 import com.tom_e_white.squark.impl.file.FileSystemWrapper;
+import com.tom_e_white.squark.impl.file.MetadataCache;
 import com.tom_e_white.squark.impl.file.NioFileSystemWrapper;
 import htsjdk.samtools.SAMFileHeader;
 import htsjdk.samtools.SAMRecord;
@@ -9,6 +12,7 @@ import htsjdk.samtools.SamInputResource;
 import htsjdk.samtools.SamReader;
 import htsjdk.samtools.SamReaderFactory;
 import htsjdk.samtools.ValidationStringency;
+import htsjdk.samtools.cram.ref.CRAMReferenceSource;
 import htsjdk.samtools.cram.ref.ReferenceSource;
 import htsjdk.samtools.seekablestream.SeekableStream;
 import htsjdk.samtools.util.Locatable;
@@ -25,35 +29,65 @@ import org.apache.spark.api.java.JavaSparkContext;
 public abstract class AbstractSamSource implements Serializable {
 
   protected final FileSystemWrapper fileSystemWrapper;
+  // only used on the driver
+  private transient DirectoryListing.Cache directoryListingCache = new DirectoryListing.Cache();
+  protected transient MetadataCache metadataCache = new MetadataCache();
 
   protected AbstractSamSource(FileSystemWrapper fileSystemWrapper) {
     this.fileSystemWrapper = fileSystemWrapper;
   }
 
+  /**
+   * Use the given cache for directory listings, so that directories read by more than one source
+   * (for example, by each read from a storage object) are only listed once.
+   */
+  public void setDirectoryListingCache(DirectoryListing.Cache directoryListingCache) {
+    this.directoryListingCache = directoryListingCache;
+  }
+
+  /**
+   * Use the given cache for headers and split plans, so that files read more than once (for
+   * example, by each read from a storage object) only have them read or computed once.
+   */
+  public void setMetadataCache(MetadataCache metadataCache) {
+    this.metadataCache = metadataCache;
+  }
+
+  /** @return the listing of the directory, which may have been cached */
+  protected DirectoryListing listDirectory(Configuration conf, String path) throws IOException {
+    return directoryListingCache.get(fileSystemWrapper, conf, path);
+  }
+
   public abstract SamFormat getSamFormat();
 
+  /**
+   * @param conf the configuration for the read, which may have settings that are not in the Spark
+   *     context's configuration
+   */
   public SAMFileHeader getFileHeader(
-      JavaSparkContext jsc,
-      String path,
-      ValidationStringency stringency,
-      String referenceSourcePath)
+      Configuration conf, String path, ValidationStringency stringency, String referenceSourcePath)
       throws IOException {
     // TODO: support multiple headers
-    Configuration conf = jsc.hadoopConfiguration();
-    String firstSamPath;
-    if (fileSystemWrapper.isDirectory(conf, path)) {
-      firstSamPath = fileSystemWrapper.firstFileInDirectory(conf, path);
-    } else {
-      firstSamPath = path;
-    }
-    try (SamReader samReader =
-        createSamReader(conf, firstSamPath, stringency, referenceSourcePath)) {
-      return samReader.getFileHeader();
-    }
+    // the key is from the file's current status, since it may have changed since it was listed
+    String headerPath =
+        fileSystemWrapper.isDirectory(conf, path) ? listDirectory(conf, path).getFirstFile() : path;
+    FileCacheKey key = FileCacheKey.of(fileSystemWrapper, conf, headerPath);
+    SAMFileHeader header =
+        metadataCache.get(
+            key,
+            "header-" + stringency, // since the stringency may affect what is read
+            () -> {
+              try (SamReader samReader =
+                  createSamReader(conf, key.getPath(), stringency, referenceSourcePath)) {
+                return samReader.getFileHeader();
+              }
+            });
+    return header.clone(); // since the caller may change it
   }
 
   public abstract <T extends Locatable> JavaRDD<SAMRecord> getReads(
       JavaSparkContext jsc,
+      Configuration conf,
       String path,
       int splitSize,
       HtsjdkReadsTraversalParameters<T> traversalParameters,
@@ -64,7 +98,18 @@ public abstract class AbstractSamSource implements Serializable {
   protected SamReader createSamReader(
       Configuration conf, String path, ValidationStringency stringency, String referenceSourcePath)
       throws IOException {
-    SeekableStream in = fileSystemWrapper.open(conf, path);
+    return createSamReader(
+        conf, path, fileSystemWrapper.open(conf, path), stringency, referenceSourcePath);
+  }
+
+  /** Create a reader for the file, which reads from the given stream (opened for the file). */
+  protected SamReader createSamReader(
+      Configuration conf,
+      String path,
+      SeekableStream in,
+      ValidationStringency stringency,
+      String referenceSourcePath)
+      throws IOException {
     SeekableStream indexStream = findIndex(conf, path);
     SamReaderFactory readerFactory =
         SamReaderFactory.makeDefault()
@@ -74,10 +119,9 @@ public abstract class AbstractSamSource implements Serializable {
     if (stringency != null) {
       readerFactory.validationStringency(stringency);
     }
-    if (referenceSourcePath != null) {
-      // TODO: should go through FileSystemWrapper
-      readerFactory.referenceSource(
-          new ReferenceSource(NioFileSystemWrapper.asPath(referenceSourcePath)));
+    CRAMReferenceSource referenceSource = getReferenceSource(referenceSourcePath);
+    if (referenceSource != null) {
+      readerFactory.referenceSource(referenceSource);
     }
     SamInputResource resource = SamInputResource.of(in);
     if (indexStream != null) {
@@ -86,19 +130,38 @@ public abstract class AbstractSamSource implements Serializable {
     return readerFactory.open(resource);
   }
 
+  /** @return the reference source for reading CRAM, or null if there is none */
+  protected CRAMReferenceSource getReferenceSource(String referenceSourcePath) {
+    if (referenceSourcePath == null) {
+      return null;
+    }
+    // TODO: should go through FileSystemWrapper
+    return new ReferenceSource(NioFileSystemWrapper.asPath(referenceSourcePath));
+  }
+
   protected SeekableStream findIndex(Configuration conf, String path) throws IOException {
+    return findIndex(conf, path, null);
+  }
+
+  /**
+   * @param listing the listing of the directory that the file is in, which is used to check whether
+   *     an index exists, or null to ask the filesystem
+   * @return a stream for the file's index, or null if there is none
+   */
+  protected SeekableStream findIndex(Configuration conf, String path, DirectoryListing listing)
+      throws IOException {
     SamFormat samFormat = getSamFormat();
     if (samFormat.getIndexExtension() == null) {
       return null; // doesn't support indexes
     }
     String index = path + samFormat.getIndexExtension();
-    if (fileSystemWrapper.exists(conf, index)) {
+    if (listing != null ? listing.contains(index) : fileSystemWrapper.exists(conf, index)) {
       return fileSystemWrapper.open(conf, index);
     }
     index =
         path.replaceFirst(
             Pattern.quote(samFormat.getExtension()) + "$", samFormat.getIndexExtension());
-    if (fileSystemWrapper.exists(conf, index)) {
+    if (listing != null ? listing.contains(index) : fileSystemWrapper.exists(conf, index)) {
       return fileSystemWrapper.open(conf, index);
     }
     return null;
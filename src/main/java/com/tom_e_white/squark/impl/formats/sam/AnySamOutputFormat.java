@@ -1,7 +1,9 @@
 package com.tom_e_white.squark.impl.formats.sam;
 
 import com.tom_e_white.squark.HtsjdkReadsRdd;
-import htsjdk.samtools.CRAMFileWriter;
+import com.tom_e_white.squark.impl.formats.HadoopConfigurationUtil;
+import com.tom_e_white.squark.impl.formats.cram.CramWriteParameters;
+import htsjdk.samtools.ConfigurableCRAMContainerStreamWriter;
 import htsjdk.samtools.SAMFileHeader;
 import htsjdk.samtools.SAMFileWriter;
 import htsjdk.samtools.SAMFileWriterFactory;
@@ -14,6 +16,7 @@ import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.mapreduce.RecordWriter;
 import org.apache.hadoop.mapreduce.TaskAttemptContext;
 import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.spark.broadcast.Broadcast;
 
 /**
  * An output format for writing {@link SAMRecord} objects to BAM/CRAM/SAM files (including header
@@ -26,25 +29,31 @@ public class AnySamOutputFormat extends FileOutputFormat<Void, SAMRecord> {
   static class AnySamRecordWriter extends RecordWriter<Void, SAMRecord> {
 
     private final SAMFileWriter samFileWriter;
+    private final ConfigurableCRAMContainerStreamWriter cramWriter;
 
     public AnySamRecordWriter(
         Configuration conf,
         Path file,
         SAMFileHeader header,
         SamFormat samFormat,
-        CRAMReferenceSource refSource)
+        CRAMReferenceSource refSource,
+        CramWriteParameters cramWriteParameters)
         throws IOException {
       OutputStream out = file.getFileSystem(conf).create(file);
       SAMFileWriterFactory writerFactory = new SAMFileWriterFactory().setUseAsyncIo(false);
       switch (samFormat) {
         case BAM:
           samFileWriter = writerFactory.makeBAMWriter(header, true, out);
+          cramWriter = null;
           break;
         case CRAM:
-          samFileWriter = new CRAMFileWriter(out, refSource, header, null);
+          samFileWriter = null;
+          cramWriter = cramWriteParameters.createWriter(out, refSource, header, file.toString());
+          cramWriter.writeHeader(header);
           break;
         case SAM:
           samFileWriter = writerFactory.makeSAMWriter(header, true, out);
+          cramWriter = null;
           break;
         default:
           throw new IllegalArgumentException("Unrecognized format: " + samFormat);
@@ -53,36 +62,62 @@ public class AnySamOutputFormat extends FileOutputFormat<Void, SAMRecord> {
 
     @Override
     public void write(Void ignore, SAMRecord samRecord) {
-      samFileWriter.addAlignment(samRecord);
+      if (cramWriter != null) {
+        cramWriter.writeAlignment(samRecord);
+      } else {
+        samFileWriter.addAlignment(samRecord);
+      }
     }
 
     @Override
     public void close(TaskAttemptContext taskAttemptContext) {
-      samFileWriter.close();
+      if (cramWriter != null) {
+        cramWriter.finish(true); // write terminator
+      } else {
+        samFileWriter.close();
+      }
     }
   }
 
-  private static SAMFileHeader header;
-  private static SamFormat samFormat;
-  private static CRAMReferenceSource refSource;
+  private static final String HEADER_KEY = "squark.sam.output.header";
+  private static final String SAM_FORMAT_KEY = "squark.sam.output.format";
+  private static final String REFERENCE_SOURCE_KEY = "squark.sam.output.reference-source";
+  private static final String CRAM_WRITE_PARAMETERS_KEY = "squark.sam.output.cram-write-parameters";
 
-  public static void setHeader(SAMFileHeader samFileHeader) {
-    AnySamOutputFormat.header = samFileHeader;
+  public static void setHeader(Configuration conf, Broadcast<SAMFileHeader> headerBroadcast)
+      throws IOException {
+    HadoopConfigurationUtil.setBroadcast(conf, HEADER_KEY, headerBroadcast);
   }
 
-  public static void setSamFormat(SamFormat samFormat) {
-    AnySamOutputFormat.samFormat = samFormat;
+  public static void setSamFormat(Configuration conf, SamFormat samFormat) {
+    conf.setEnum(SAM_FORMAT_KEY, samFormat);
   }
 
-  public static void setReferenceSource(CRAMReferenceSource referenceSource) {
-    AnySamOutputFormat.refSource = referenceSource;
+  public static void setReferenceSource(
+      Configuration conf, Broadcast<CRAMReferenceSource> referenceSourceBroadcast)
+      throws IOException {
+    HadoopConfigurationUtil.setBroadcast(conf, REFERENCE_SOURCE_KEY, referenceSourceBroadcast);
+  }
+
+  public static void setCramWriteParameters(
+      Configuration conf, CramWriteParameters cramWriteParameters) throws IOException {
+    HadoopConfigurationUtil.setSerializable(conf, CRAM_WRITE_PARAMETERS_KEY, cramWriteParameters);
   }
 
   @Override
   public RecordWriter<Void, SAMRecord> getRecordWriter(TaskAttemptContext taskAttemptContext)
       throws IOException {
+    Configuration conf = taskAttemptContext.getConfiguration();
+    SAMFileHeader header = HadoopConfigurationUtil.getBroadcastValue(conf, HEADER_KEY);
+    SamFormat samFormat = conf.getEnum(SAM_FORMAT_KEY, SamFormat.BAM);
+    CRAMReferenceSource refSource =
+        HadoopConfigurationUtil.getBroadcastValue(conf, REFERENCE_SOURCE_KEY);
+    CramWriteParameters cramWriteParameters =
+        HadoopConfigurationUtil.getSerializable(conf, CRAM_WRITE_PARAMETERS_KEY);
+    if (cramWriteParameters == null) {
+      cramWriteParameters = CramWriteParameters.DEFAULT;
+    }
     Path file = getDefaultWorkFile(taskAttemptContext, samFormat.getExtension());
-    return new AnySamRecordWriter(
-        taskAttemptContext.getConfiguration(), file, header, samFormat, refSource);
+    return new AnySamRecordWriter(conf, file, header, samFormat, refSource, cramWriteParameters);
   }
 }
@@ -4,12 +4,14 @@ import com.tom_e_white.squark.HtsjdkReadsRdd;
 import com.tom_e_white.squark.impl.file.FileSystemWrapper;
 import com.tom_e_white.squark.impl.file.HadoopFileSystemWrapper;
 import com.tom_e_white.squark.impl.file.NioFileSystemWrapper;
+import com.tom_e_white.squark.impl.formats.cram.CramWriteParameters;
 import htsjdk.samtools.SAMFileHeader;
 import htsjdk.samtools.SAMRecord;
 import htsjdk.samtools.cram.ref.CRAMReferenceSource;
 import htsjdk.samtools.cram.ref.ReferenceSource;
 import java.io.IOException;
 import java.io.Serializable;
+import org.apache.hadoop.conf.Configuration;
 import org.apache.spark.api.java.JavaRDD;
 import org.apache.spark.api.java.JavaSparkContext;
 import org.apache.spark.api.java.function.PairFunction;
@@ -31,9 +33,15 @@ import scala.Tuple2;
 public class AnySamSinkMultiple extends AbstractSamSink implements Serializable {
 
   private SamFormat samFormat;
+  private CramWriteParameters cramWriteParameters;
 
   public AnySamSinkMultiple(SamFormat samFormat) {
+    this(samFormat, CramWriteParameters.DEFAULT);
+  }
+
+  public AnySamSinkMultiple(SamFormat samFormat, CramWriteParameters cramWriteParameters) {
     this.samFormat = samFormat;
+    this.cramWriteParameters = cramWriteParameters;
   }
 
   @Override
@@ -57,17 +65,15 @@ public class AnySamSinkMultiple extends AbstractSamSink implements Serializable
             : new ReferenceSource(NioFileSystemWrapper.asPath(referenceSourcePath));
     Broadcast<SAMFileHeader> headerBroadcast = jsc.broadcast(header);
     Broadcast<CRAMReferenceSource> referenceSourceBroadCast = jsc.broadcast(referenceSource);
+    Configuration jobConf = new Configuration(jsc.hadoopConfiguration());
+    AnySamOutputFormat.setHeader(jobConf, headerBroadcast);
+    AnySamOutputFormat.setSamFormat(jobConf, samFormat);
+    AnySamOutputFormat.setReferenceSource(jobConf, referenceSourceBroadCast);
+    AnySamOutputFormat.setCramWriteParameters(jobConf, cramWriteParameters);
     reads
-        .mapPartitions(
-            readIterator -> {
-              AnySamOutputFormat.setHeader(headerBroadcast.getValue());
-              AnySamOutputFormat.setSamFormat(samFormat);
-              AnySamOutputFormat.setReferenceSource(referenceSourceBroadCast.getValue());
-              return readIterator;
-            })
         .mapToPair(
             (PairFunction<SAMRecord, Void, SAMRecord>) samRecord -> new Tuple2<>(null, samRecord))
         .saveAsNewAPIHadoopFile(
-            path, Void.class, SAMRecord.class, AnySamOutputFormat.class, jsc.hadoopConfiguration());
+            path, Void.class, SAMRecord.class, AnySamOutputFormat.class, jobConf);
   }
 }
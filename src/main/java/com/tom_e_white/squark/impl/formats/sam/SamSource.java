@@ -1,6 +1,9 @@
 package com.tom_e_white.squark.impl.formats.sam;
 
 import com.tom_e_white.squark.HtsjdkReadsTraversalParameters;
+import com.tom_e_white.squark.impl.file.CachingFileSystemWrapper;
+import com.tom_e_white.squark.impl.file.CombinedSplits;
+import com.tom_e_white.squark.impl.file.CombiningTextInputFormat;
 import com.tom_e_white.squark.impl.file.HadoopFileSystemWrapper;
 import htsjdk.samtools.DefaultSAMRecordFactory;
 import htsjdk.samtools.SAMFileHeader;
@@ -24,7 +27,7 @@ import org.apache.spark.broadcast.Broadcast;
 public class SamSource extends AbstractSamSource implements Serializable {
 
   public SamSource() {
-    super(new HadoopFileSystemWrapper());
+    super(new CachingFileSystemWrapper(new HadoopFileSystemWrapper()));
   }
 
   @Override
@@ -35,6 +38,7 @@ public class SamSource extends AbstractSamSource implements Serializable {
   @Override
   public <T extends Locatable> JavaRDD<SAMRecord> getReads(
       JavaSparkContext jsc,
+      Configuration conf,
       String path,
       int splitSize,
       HtsjdkReadsTraversalParameters<T> traversalParameters,
@@ -44,17 +48,16 @@ public class SamSource extends AbstractSamSource implements Serializable {
 
     // Use Hadoop FileSystem API to maintain file locality by using Hadoop's FileInputFormat
 
-    final Configuration conf = jsc.hadoopConfiguration();
     if (splitSize > 0) {
       conf.setInt(FileInputFormat.SPLIT_MAXSIZE, splitSize);
     }
 
-    SAMFileHeader samHeader = getFileHeader(jsc, path, validationStringency, referenceSourcePath);
+    SAMFileHeader samHeader = getFileHeader(conf, path, validationStringency, referenceSourcePath);
     Broadcast<SAMFileHeader> samHeaderBroadcast = jsc.broadcast(samHeader);
     Broadcast<HtsjdkReadsTraversalParameters<T>> traversalParametersBroadcast =
         traversalParameters == null ? null : jsc.broadcast(traversalParameters);
 
-    return textFile(jsc, path)
+    return textFile(jsc, conf, path)
         .mapPartitions(
             (FlatMapFunction<Iterator<String>, SAMRecord>)
                 lines -> {
@@ -78,10 +81,15 @@ public class SamSource extends AbstractSamSource implements Serializable {
                 });
   }
 
-  private <T extends Locatable> JavaRDD<String> textFile(JavaSparkContext jsc, String path) {
-    // Use this over JavaSparkContext#textFile since this allows the configuration to be passed in
-    return jsc.newAPIHadoopFile(
-            path, TextInputFormat.class, LongWritable.class, Text.class, jsc.hadoopConfiguration())
+  private <T extends Locatable> JavaRDD<String> textFile(
+      JavaSparkContext jsc, Configuration conf, String path) throws IOException {
+    // Use this over JavaSparkContext#textFile since this allows the configuration to be passed in.
+    // The files in a directory are combined into partitions, since they all have the same header.
+    Class<? extends FileInputFormat<LongWritable, Text>> inputFormatClass =
+        CombinedSplits.isEnabled(fileSystemWrapper, conf, path)
+            ? CombiningTextInputFormat.class
+            : TextInputFormat.class;
+    return jsc.newAPIHadoopFile(path, inputFormatClass, LongWritable.class, Text.class, conf)
         .map(pair -> pair._2.toString())
         .setName(path);
   }
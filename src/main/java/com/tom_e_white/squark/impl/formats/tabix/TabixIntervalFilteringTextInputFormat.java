@@ -1,73 +1,421 @@
 package com.tom_e_white.squark.impl.formats.tabix;
 
-import com.tom_e_white.squark.impl.formats.bgzf.BgzfVirtualFilePointerUtil;
+import com.google.common.base.Throwables;
+import com.tom_e_white.squark.impl.file.CachingFileSystemWrapper;
+import com.tom_e_white.squark.impl.file.FileCacheKey;
+import com.tom_e_white.squark.impl.file.FileSystemWrapper;
+import com.tom_e_white.squark.impl.file.HadoopFileSystemWrapper;
+import com.tom_e_white.squark.impl.file.MetadataCache;
+import com.tom_e_white.squark.impl.file.ReadAhead;
+import com.tom_e_white.squark.impl.formats.HadoopConfigurationUtil;
+import com.tom_e_white.squark.impl.formats.csi.CsiIndex;
+import com.tom_e_white.squark.impl.formats.csi.CsiIndexBuilder;
+import htsjdk.samtools.Chunk;
+import htsjdk.samtools.util.BlockCompressedInputStream;
 import htsjdk.samtools.util.Locatable;
 import htsjdk.tribble.index.Block;
 import htsjdk.tribble.index.tabix.TabixIndex;
+import htsjdk.tribble.util.TabixUtils;
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
 import org.apache.hadoop.mapreduce.InputSplit;
 import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
 import org.apache.hadoop.mapreduce.lib.input.FileSplit;
 import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
 
 /**
- * A {@link TextInputFormat} that uses a tabix index to filter out any splits that don't overlap any
- * interval in a given set. Note that this format is not aware of the record type, so it cannot
- * filter records - this must be done by the code using this class.
+ * A {@link TextInputFormat} that uses a tabix or CSI index to only read the parts of a
+ * BGZF-compressed file that overlap any interval in a given set. The index chunks for the intervals
+ * are found on the driver before the job is created (see {@link #getFileChunks}), so that the
+ * caller's cache of parsed indexes can be used, and are passed to the format in the configuration.
+ * Each chunk is assigned to the split that contains its start, splits with no chunks are dropped,
+ * and the record reader for each split seeks to the start of each of its chunks and stops reading
+ * at the chunk end. Note that this format is not aware of the record type, so it cannot filter
+ * records that are in a chunk but don't overlap an interval - this must be done by the code using
+ * this class.
  */
 public class TabixIntervalFilteringTextInputFormat extends TextInputFormat {
 
-  private static TabixIndex tabixIndex;
-  private static List<? extends Locatable> intervals;
+  private static final String FILE_CHUNKS_KEY = "squark.tabix.input.file-chunks";
 
-  public static void setTabixIndex(TabixIndex tabixIndex) {
-    TabixIntervalFilteringTextInputFormat.tabixIndex = tabixIndex;
+  /**
+   * Set the chunks to read for each file, as returned by {@link #getFileChunks}. Input files that
+   * have no chunks are not read.
+   */
+  public static void setFileChunks(Configuration conf, Map<String, List<Chunk>> fileChunks)
+      throws IOException {
+    HadoopConfigurationUtil.setSerializable(conf, FILE_CHUNKS_KEY, new HashMap<>(fileChunks));
   }
 
-  public static void setIntervals(List<? extends Locatable> intervals) {
-    TabixIntervalFilteringTextInputFormat.intervals = intervals;
+  private static Map<String, List<Chunk>> getFileChunks(Configuration conf) throws IOException {
+    Map<String, List<Chunk>> fileChunks =
+        HadoopConfigurationUtil.getSerializable(conf, FILE_CHUNKS_KEY);
+    if (fileChunks == null) {
+      throw new IllegalStateException("File chunks not set");
+    }
+    return fileChunks;
+  }
+
+  /**
+   * Find the chunks of each file that overlap the intervals, by using the file's index. The indexes
+   * are read in parallel using the number of threads for listing files ({@link
+   * FileInputFormat#LIST_STATUS_NUM_THREADS}), since there may be many files, and are cached in the
+   * given cache, so they are only read again if they have changed.
+   *
+   * @param conf the configuration
+   * @param metadataCache the cache for parsed indexes
+   * @param files the files to read
+   * @param intervals the intervals to read
+   * @return the merged chunks for each file that has any, keyed by the file's path without its
+   *     scheme
+   * @throws IllegalArgumentException if a file has no tabix or CSI index
+   */
+  public static Map<String, List<Chunk>> getFileChunks(
+      Configuration conf,
+      MetadataCache metadataCache,
+      List<String> files,
+      List<? extends Locatable> intervals)
+      throws IOException {
+    int threads =
+        Math.min(
+            files.size(), conf.getInt(LIST_STATUS_NUM_THREADS, DEFAULT_LIST_STATUS_NUM_THREADS));
+    ExecutorService executorService = Executors.newFixedThreadPool(Math.max(1, threads));
+    try {
+      List<Future<List<Chunk>>> futures = new ArrayList<>();
+      for (String file : files) {
+        futures.add(
+            executorService.submit(
+                () -> getChunks(conf, metadataCache, new Path(file), intervals)));
+      }
+      Map<String, List<Chunk>> fileChunks = new HashMap<>();
+      for (int i = 0; i < files.size(); i++) {
+        List<Chunk> chunks = futures.get(i).get();
+        if (!chunks.isEmpty()) {
+          fileChunks.put(key(new Path(files.get(i))), chunks);
+        }
+      }
+      return fileChunks;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while reading indexes");
+    } catch (ExecutionException e) {
+      Throwables.propagateIfPossible(e.getCause(), IOException.class);
+      throw new IOException(e.getCause());
+    } finally {
+      executorService.shutdownNow();
+    }
+  }
+
+  // ignore the scheme and authority, since they may be written differently for the same file
+  private static String key(Path file) {
+    return file.toUri().getPath();
+  }
+
+  /**
+   * @return the tabix (.tbi) index for a file if there is one, otherwise the CSI (.csi) index, or
+   *     null if there is neither
+   */
+  public static Path findIndex(Configuration conf, Path file) throws IOException {
+    FileSystem fileSystem = file.getFileSystem(conf);
+    for (String extension :
+        new String[] {TabixUtils.STANDARD_INDEX_EXTENSION, CsiIndexBuilder.CSI_EXTENSION}) {
+      Path index = file.suffix(extension);
+      if (fileSystem.exists(index)) {
+        return index;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Lists the input files, leaving out directories, and files with no chunks that overlap the
+   * intervals (including index files), so that no splits are planned for them.
+   */
+  @Override
+  protected List<FileStatus> listStatus(JobContext job) throws IOException {
+    Map<String, List<Chunk>> fileChunks = getFileChunks(job.getConfiguration());
+    return super.listStatus(job)
+        .stream()
+        .filter(file -> file.isFile() && fileChunks.containsKey(key(file.getPath())))
+        .collect(Collectors.toList());
+  }
+
+  /** @return the chunks of a file that overlap the intervals, by using its index */
+  private static List<Chunk> getChunks(
+      Configuration conf,
+      MetadataCache metadataCache,
+      Path file,
+      List<? extends Locatable> intervals)
+      throws IOException {
+    Path indexPath = findIndex(conf, file);
+    if (indexPath == null) {
+      throw new IllegalArgumentException(
+          "Intervals set but no tabix or CSI index file found for " + file);
+    }
+    FileSystemWrapper fileSystemWrapper =
+        new CachingFileSystemWrapper(new HadoopFileSystemWrapper());
+    // the index is only read if it hasn't been read before, or has changed
+    FileCacheKey key = FileCacheKey.of(fileSystemWrapper, conf, indexPath.toString());
+    List<Chunk> chunks = new ArrayList<>();
+    if (indexPath.getName().endsWith(CsiIndexBuilder.CSI_EXTENSION)) {
+      CsiIndex csiIndex =
+          metadataCache.get(
+              key,
+              "csi-index",
+              () -> new CsiIndex(fileSystemWrapper.open(conf, indexPath.toString())));
+      if (csiIndex.getSequenceNames() == null) {
+        throw new IOException("CSI index has no sequence names: " + indexPath);
+      }
+      for (Locatable interval : intervals) {
+        int ref = csiIndex.getSequenceIndex(interval.getContig());
+        chunks.addAll(csiIndex.getChunks(ref, interval.getStart() - 1, interval.getEnd()));
+      }
+    } else {
+      TabixIndex tabixIndex =
+          metadataCache.get(
+              key,
+              "tabix-index",
+              () -> {
+                try (InputStream indexIn =
+                    new BlockCompressedInputStream(
+                        fileSystemWrapper.open(conf, indexPath.toString()))) {
+                  return new TabixIndex(indexIn);
+                }
+              });
+      for (Locatable interval : intervals) {
+        for (Block block :
+            tabixIndex.getBlocks(interval.getContig(), interval.getStart(), interval.getEnd())) {
+          chunks.add(new Chunk(block.getStartPosition(), block.getEndPosition()));
+        }
+      }
+    }
+    // merge overlapping or adjacent chunks so that no line is read twice
+    return CsiIndex.mergeChunks(chunks);
   }
 
   @Override
   public List<InputSplit> getSplits(JobContext job) throws IOException {
-    List<InputSplit> splits = super.getSplits(job);
+    Map<String, List<Chunk>> fileChunks = getFileChunks(job.getConfiguration());
+    List<InputSplit> splits = super.getSplits(job); // only has splits for files with chunks
 
-    // filter out any splits that do not overlap intervals, by using the tabix index
+    // assign each chunk to the split containing its start, and filter out splits with no chunks
     List<InputSplit> filteredSplits = new ArrayList<>();
-    List<Block> blocks = new ArrayList<>();
-    for (Locatable interval : intervals) {
-      String contig = interval.getContig();
-      int intervalStart = interval.getStart();
-      int intervalEnd = interval.getEnd();
-      blocks.addAll(tabixIndex.getBlocks(contig, intervalStart, intervalEnd));
-    }
     for (InputSplit split : splits) {
       if (!(split instanceof FileSplit)) {
         filteredSplits.add(split);
       } else {
         FileSplit fileSplit = (FileSplit) split;
-        long virtualSplitStart = BgzfVirtualFilePointerUtil.makeFilePointer(fileSplit.getStart());
-        long virtualSplitEnd =
-            BgzfVirtualFilePointerUtil.makeFilePointer(
-                fileSplit.getStart() + fileSplit.getLength());
-        for (Block block : blocks) {
-          long blockStart = block.getStartPosition();
-          long blockEnd = block.getEndPosition();
-          if (overlaps(virtualSplitStart, virtualSplitEnd, blockStart, blockEnd)) {
-            filteredSplits.add(split);
-            break;
+        long splitStart = fileSplit.getStart();
+        long splitEnd = fileSplit.getStart() + fileSplit.getLength();
+        List<Chunk> splitChunks = new ArrayList<>();
+        for (Chunk chunk :
+            fileChunks.getOrDefault(key(fileSplit.getPath()), Collections.emptyList())) {
+          long blockAddress = BlockCompressedInputStream.getFileBlock(chunk.getChunkStart());
+          if (blockAddress >= splitStart && blockAddress < splitEnd) {
+            splitChunks.add(chunk);
           }
         }
+        if (!splitChunks.isEmpty()) {
+          filteredSplits.add(
+              new TabixChunkFileSplit(
+                  fileSplit.getPath(),
+                  fileSplit.getStart(),
+                  fileSplit.getLength(),
+                  fileSplit.getLocations(),
+                  splitChunks));
+        }
       }
     }
     return filteredSplits;
   }
 
-  private static boolean overlaps(long start, long end, long start2, long end2) {
-    return (start2 >= start && start2 <= end)
-        || (end2 >= start && end2 <= end)
-        || (start >= start2 && end <= end2);
+  @Override
+  public RecordReader<LongWritable, Text> createRecordReader(
+      InputSplit split, TaskAttemptContext context) {
+    if (split instanceof TabixChunkFileSplit) {
+      return new TabixChunkRecordReader();
+    }
+    return super.createRecordReader(split, context);
+  }
+
+  /** A file split that records the virtual file ranges of the tabix chunks to read. */
+  public static class TabixChunkFileSplit extends FileSplit {
+    private long[] chunkStarts;
+    private long[] chunkEnds;
+
+    public TabixChunkFileSplit() {} // for deserialization
+
+    TabixChunkFileSplit(Path file, long start, long length, String[] hosts, List<Chunk> chunks) {
+      super(file, start, length, hosts);
+      chunkStarts = chunks.stream().mapToLong(Chunk::getChunkStart).toArray();
+      chunkEnds = chunks.stream().mapToLong(Chunk::getChunkEnd).toArray();
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+      super.write(out);
+      out.writeInt(chunkStarts.length);
+      for (int i = 0; i < chunkStarts.length; i++) {
+        out.writeLong(chunkStarts[i]);
+        out.writeLong(chunkEnds[i]);
+      }
+    }
+
+    @Override
+    public void readFields(DataInput in) throws IOException {
+      super.readFields(in);
+      int numChunks = in.readInt();
+      chunkStarts = new long[numChunks];
+      chunkEnds = new long[numChunks];
+      for (int i = 0; i < numChunks; i++) {
+        chunkStarts[i] = in.readLong();
+        chunkEnds[i] = in.readLong();
+      }
+    }
+  }
+
+  /**
+   * Reads the lines in each tabix chunk of a split. The key is the virtual file offset of the line.
+   * Lines are read from the current BGZF block into a buffer, so the virtual file offset of every
+   * line is known without reading the file a byte at a time.
+   */
+  static class TabixChunkRecordReader extends RecordReader<LongWritable, Text> {
+
+    private final LongWritable key = new LongWritable();
+    private final Text value = new Text();
+    // a BGZF block is at most 64K uncompressed, so the buffer never spans blocks
+    private final byte[] buffer = new byte[64 * 1024];
+    private int bufferPos;
+    private int bufferLength;
+    private long bufferStart; // the virtual file offset of the start of the buffer
+
+    private BlockCompressedInputStream in;
+    private long[] chunkStarts;
+    private long[] chunkEnds;
+    private int chunk = -1;
+
+    @Override
+    public void initialize(InputSplit split, TaskAttemptContext context) throws IOException {
+      TabixChunkFileSplit chunkSplit = (TabixChunkFileSplit) split;
+      Configuration conf = context.getConfiguration();
+      in =
+          new BlockCompressedInputStream(
+              ReadAhead.buffer(
+                  conf,
+                  new CachingFileSystemWrapper(new HadoopFileSystemWrapper())
+                      .open(conf, chunkSplit.getPath().toString())));
+      chunkStarts = chunkSplit.chunkStarts;
+      chunkEnds = chunkSplit.chunkEnds;
+    }
+
+    @Override
+    public boolean nextKeyValue() throws IOException {
+      while (chunk < chunkStarts.length) {
+        if (chunk >= 0) {
+          long pos = bufferPos < bufferLength ? bufferStart + bufferPos : in.getFilePointer();
+          if (pos < chunkEnds[chunk] && readLine(pos)) {
+            return true;
+          }
+        }
+        chunk++;
+        if (chunk < chunkStarts.length) {
+          in.seek(chunkStarts[chunk]);
+          bufferPos = bufferLength = 0;
+        }
+      }
+      return false;
+    }
+
+    /** @return false if at the end of the file */
+    private boolean readLine(long pos) throws IOException {
+      key.set(pos);
+      value.clear();
+      boolean read = false;
+      while (bufferPos < bufferLength || fillBuffer()) {
+        read = true;
+        int end = bufferPos;
+        while (end < bufferLength && buffer[end] != '\n') {
+          end++;
+        }
+        value.append(buffer, bufferPos, end - bufferPos);
+        if (end < bufferLength) {
+          bufferPos = end + 1; // skip the newline
+          int length = value.getLength();
+          if (length > 0 && value.getBytes()[length - 1] == '\r') {
+            value.set(value.getBytes(), 0, length - 1);
+          }
+          return true;
+        }
+        bufferPos = end;
+      }
+      return read; // the last line may not have a newline
+    }
+
+    /**
+     * Read the rest of the current BGZF block (or the next one that isn't empty) into the buffer.
+     *
+     * @return false if at the end of the file
+     */
+    private boolean fillBuffer() throws IOException {
+      // available() moves to the next block if this one is used up. It returns zero for an empty
+      // block (such as the terminator at the end of each part of a concatenated file) as well as
+      // at the end of the file, but only at the end of the file does the file pointer stop moving.
+      long filePointer = -1;
+      int available;
+      while ((available = in.available()) <= 0) {
+        if (in.getFilePointer() == filePointer) {
+          return false;
+        }
+        filePointer = in.getFilePointer();
+      }
+      bufferStart = in.getFilePointer();
+      bufferLength = in.read(buffer, 0, Math.min(available, buffer.length));
+      bufferPos = 0;
+      return bufferLength > 0;
+    }
+
+    @Override
+    public LongWritable getCurrentKey() {
+      return key;
+    }
+
+    @Override
+    public Text getCurrentValue() {
+      return value;
+    }
+
+    @Override
+    public float getProgress() {
+      return chunkStarts.length == 0 ? 1.0f : Math.min(1.0f, (float) chunk / chunkStarts.length);
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (in != null) {
+        in.close();
+      }
+    }
   }
 }
@@ -0,0 +1,218 @@
+package com.tom_e_white.squark.impl.formats.vcf;
+
+import htsjdk.variant.bcf2.BCF2Type;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Converts BCF records between BCF 2.1, which is what htsjdk's encoder writes and its decoder
+ * understands, and BCF 2.2, which is the only version that htslib (and so bcftools) can read. The
+ * record layout is the same in both versions, but BCF 2.2 reserves the eight smallest values of
+ * each integer type: the smallest is the missing value (as in BCF 2.1), and the next one marks the
+ * end of a vector that is shorter than the field's length, where BCF 2.1 pads with missing values.
+ * Floats have an end of vector value too.
+ *
+ * <p>When converting to BCF 2.2, missing values at the end of a vector (after its first value) are
+ * taken to be padding, and integer values in the reserved range are written using a wider type.
+ * When converting to BCF 2.1, end of vector values become missing values.
+ */
+final class Bcf22Converter {
+
+  private static final int FLOAT_MISSING = 0x7F800001;
+  private static final int FLOAT_END_OF_VECTOR = 0x7F800002;
+
+  // sentinels for integer values that have been read, which are outside the range of an int
+  private static final long MISSING = Long.MIN_VALUE;
+  private static final long END_OF_VECTOR = Long.MIN_VALUE + 1;
+
+  private Bcf22Converter() {}
+
+  /**
+   * @param record a BCF 2.1 record, including the shared and individual block lengths
+   * @return the record in BCF 2.2, with updated block lengths
+   * @throws IllegalArgumentException if the record has an integer value that BCF 2.2 cannot
+   *     represent
+   */
+  static byte[] toBcf22(byte[] record) {
+    return convert(record, true);
+  }
+
+  /**
+   * @param record a BCF 2.2 record, including the shared and individual block lengths
+   * @return the record in BCF 2.1
+   */
+  static byte[] toBcf21(byte[] record) {
+    return convert(record, false);
+  }
+
+  private static byte[] convert(byte[] record, boolean toBcf22) {
+    ByteBuffer in = ByteBuffer.wrap(record).order(ByteOrder.LITTLE_ENDIAN);
+    // widening integers can at most double the size of the values
+    ByteBuffer out = ByteBuffer.allocate(2 * record.length).order(ByteOrder.LITTLE_ENDIAN);
+    in.position(8);
+    out.position(8);
+
+    // CHROM, POS, rlen, QUAL, n_allele_info, and n_fmt_sample
+    int nAlleleInfo = in.getInt(8 + 16);
+    int nFmtSample = in.getInt(8 + 20);
+    out.put(record, 8, 24);
+    in.position(8 + 24);
+    int nAllele = nAlleleInfo >>> 16;
+    int nInfo = nAlleleInfo & 0xffff;
+    int nFmt = nFmtSample >>> 24;
+    int nSample = nFmtSample & 0xffffff;
+
+    convertTypedValues(in, out, 1, toBcf22); // ID
+    for (int i = 0; i < nAllele; i++) {
+      convertTypedValues(in, out, 1, toBcf22);
+    }
+    convertTypedValues(in, out, 1, toBcf22); // FILTER
+    for (int i = 0; i < nInfo; i++) {
+      convertTypedValues(in, out, 1, toBcf22); // key
+      convertTypedValues(in, out, 1, toBcf22); // value
+    }
+    int sharedEnd = out.position();
+
+    // each format field has a vector of values for every sample
+    for (int i = 0; i < nFmt; i++) {
+      convertTypedValues(in, out, 1, toBcf22); // key
+      convertTypedValues(in, out, nSample, toBcf22);
+    }
+    out.putInt(0, sharedEnd - 8);
+    out.putInt(4, out.position() - sharedEnd);
+    return Arrays.copyOf(out.array(), out.position());
+  }
+
+  /** Convert a type descriptor, and the given number of vectors of values that follow it. */
+  private static void convertTypedValues(
+      ByteBuffer in, ByteBuffer out, int vectors, boolean toBcf22) {
+    byte descriptor = in.get();
+    int type = descriptor & 0x0f;
+    int count = (descriptor >> 4) & 0x0f;
+    int countStart = in.position();
+    if (count == 15) { // the count is too large for the descriptor, so is a typed int
+      count = readInt(in, in.get() & 0x0f);
+    }
+    byte[] countBytes = Arrays.copyOfRange(in.array(), countStart, in.position());
+
+    if (type == BCF2Type.INT8.getID()
+        || type == BCF2Type.INT16.getID()
+        || type == BCF2Type.INT32.getID()) {
+      long[] values = new long[count * vectors];
+      int missing = missingInt(type);
+      for (int i = 0; i < values.length; i++) {
+        int value = readInt(in, type);
+        values[i] =
+            value == missing ? MISSING : !toBcf22 && value == missing + 1 ? END_OF_VECTOR : value;
+      }
+      int outputType = type;
+      if (toBcf22) {
+        markEndOfVectors(values, count, MISSING, END_OF_VECTOR);
+        for (long value : values) {
+          if (value != MISSING && value != END_OF_VECTOR) {
+            outputType = Math.max(outputType, getBcf22IntType(value));
+          }
+        }
+      } else {
+        for (int i = 0; i < values.length; i++) {
+          if (values[i] == END_OF_VECTOR) {
+            values[i] = MISSING;
+          }
+        }
+      }
+      out.put((byte) ((descriptor & 0xf0) | outputType));
+      out.put(countBytes);
+      int outputMissing = missingInt(outputType);
+      for (long value : values) {
+        writeInt(
+            out,
+            outputType,
+            value == MISSING
+                ? outputMissing
+                : value == END_OF_VECTOR ? outputMissing + 1 : (int) value);
+      }
+    } else if (type == BCF2Type.FLOAT.getID()) {
+      long[] values = new long[count * vectors];
+      for (int i = 0; i < values.length; i++) {
+        values[i] = in.getInt();
+      }
+      if (toBcf22) {
+        markEndOfVectors(values, count, FLOAT_MISSING, FLOAT_END_OF_VECTOR);
+      } else {
+        for (int i = 0; i < values.length; i++) {
+          if (values[i] == FLOAT_END_OF_VECTOR) {
+            values[i] = FLOAT_MISSING;
+          }
+        }
+      }
+      out.put(descriptor);
+      out.put(countBytes);
+      for (long value : values) {
+        out.putInt((int) value);
+      }
+    } else if (type == BCF2Type.CHAR.getID() || type == 0) { // strings are padded with NULs
+      int length = type == 0 ? 0 : count * vectors;
+      out.put(descriptor);
+      out.put(countBytes);
+      out.put(in.array(), in.position(), length);
+      in.position(in.position() + length);
+    } else {
+      throw new IllegalArgumentException("Unknown BCF type: " + type);
+    }
+  }
+
+  /**
+   * Replace the missing values at the end of each vector, apart from the first value, with end of
+   * vector values.
+   */
+  private static void markEndOfVectors(long[] values, int count, long missing, long endOfVector) {
+    for (int start = 0; start < values.length; start += count) {
+      for (int i = start + count - 1; i > start && values[i] == missing; i--) {
+        values[i] = endOfVector;
+      }
+    }
+  }
+
+  /** @return the smallest integer type that can represent the value in BCF 2.2 */
+  private static int getBcf22IntType(long value) {
+    if (value >= Byte.MIN_VALUE + 8 && value <= Byte.MAX_VALUE) {
+      return BCF2Type.INT8.getID();
+    } else if (value >= Short.MIN_VALUE + 8 && value <= Short.MAX_VALUE) {
+      return BCF2Type.INT16.getID();
+    } else if (value >= Integer.MIN_VALUE + 8) {
+      return BCF2Type.INT32.getID();
+    }
+    throw new IllegalArgumentException("Integer value cannot be written in BCF 2.2: " + value);
+  }
+
+  private static int missingInt(int type) {
+    if (type == BCF2Type.INT8.getID()) {
+      return Byte.MIN_VALUE;
+    } else if (type == BCF2Type.INT16.getID()) {
+      return Short.MIN_VALUE;
+    }
+    return Integer.MIN_VALUE;
+  }
+
+  private static int readInt(ByteBuffer in, int type) {
+    if (type == BCF2Type.INT8.getID()) {
+      return in.get();
+    } else if (type == BCF2Type.INT16.getID()) {
+      return in.getShort();
+    } else if (type == BCF2Type.INT32.getID()) {
+      return in.getInt();
+    }
+    throw new IllegalArgumentException("Not a BCF integer type: " + type);
+  }
+
+  private static void writeInt(ByteBuffer out, int type, int value) {
+    if (type == BCF2Type.INT8.getID()) {
+      out.put((byte) value);
+    } else if (type == BCF2Type.INT16.getID()) {
+      out.putShort((short) value);
+    } else {
+      out.putInt(value);
+    }
+  }
+}
@@ -0,0 +1,94 @@
+package com.tom_e_white.squark.impl.formats.vcf;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Converts the (uncompressed) BCF 2.1 written to it by htsjdk's BCF encoder to BCF 2.2, so that the
+ * files can be read by htslib and bcftools. The header is written with the BCF 2.2 version, and
+ * each record is converted by {@link Bcf22Converter} as soon as it has all been written, so the
+ * underlying stream's position is at the end of the record when the encoder returns.
+ */
+class Bcf22OutputStream extends FilterOutputStream {
+
+  private static final int HEADER_PREFIX_LENGTH = 9; // magic, and the length of the header text
+
+  private byte[] buffer = new byte[64 * 1024];
+  private int length;
+  private boolean headerConverted;
+
+  Bcf22OutputStream(OutputStream out) {
+    super(out);
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    ensureCapacity(length + 1);
+    buffer[length++] = (byte) b;
+    convert();
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    ensureCapacity(length + len);
+    System.arraycopy(b, off, buffer, length, len);
+    length += len;
+    convert();
+  }
+
+  private void ensureCapacity(int capacity) {
+    if (capacity > buffer.length) {
+      buffer = Arrays.copyOf(buffer, Math.max(capacity, 2 * buffer.length));
+    }
+  }
+
+  /** Convert and write the header, and any records, that have been written in full. */
+  private void convert() throws IOException {
+    ByteBuffer lengths = ByteBuffer.wrap(buffer).order(ByteOrder.LITTLE_ENDIAN);
+    while (true) {
+      if (!headerConverted) {
+        if (length < HEADER_PREFIX_LENGTH) {
+          return;
+        }
+        if (buffer[0] != 'B' || buffer[1] != 'C' || buffer[2] != 'F' || buffer[3] != 2) {
+          throw new IOException("Not a BCF2 stream");
+        }
+        int headerLength = HEADER_PREFIX_LENGTH + lengths.getInt(5);
+        if (length < headerLength) {
+          return;
+        }
+        buffer[4] = 2; // the minor version
+        out.write(buffer, 0, headerLength);
+        consume(headerLength);
+        headerConverted = true;
+      } else {
+        if (length < 8) {
+          return;
+        }
+        int recordLength = 8 + lengths.getInt(0) + lengths.getInt(4);
+        if (length < recordLength) {
+          return;
+        }
+        out.write(Bcf22Converter.toBcf22(Arrays.copyOf(buffer, recordLength)));
+        consume(recordLength);
+      }
+    }
+  }
+
+  private void consume(int n) {
+    System.arraycopy(buffer, n, buffer, 0, length - n);
+    length -= n;
+  }
+
+  @Override
+  public void close() throws IOException {
+    super.close();
+    if (length > 0) {
+      throw new IOException("Incomplete BCF record at end of stream");
+    }
+  }
+}
@@ -0,0 +1,141 @@
+package com.tom_e_white.squark.impl.formats.vcf;
+
+import htsjdk.samtools.seekablestream.SeekableStream;
+import htsjdk.samtools.util.BlockCompressedInputStream;
+import htsjdk.variant.bcf2.BCF2Type;
+import htsjdk.variant.vcf.VCFHeader;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import org.apache.hadoop.io.IOUtils;
+
+/**
+ * Checks whether a virtual position in a BGZF-compressed BCF file is the start of a BCF record, by
+ * checking that the fixed fields of a run of consecutive records are consistent with the header.
+ * This is the BCF analogue of the BAM record guesser.
+ */
+class BcfRecordGuesser implements Closeable {
+
+  private final BlockCompressedInputStream uncompressedBytes;
+  private final int[] contigLengths;
+  private final int sampleCount;
+  private final int recordsToCheck = 10;
+
+  private final ByteBuffer buf = ByteBuffer.allocate(33).order(ByteOrder.LITTLE_ENDIAN);
+
+  public BcfRecordGuesser(SeekableStream ss, VCFHeader header) {
+    this.uncompressedBytes = new BlockCompressedInputStream(ss);
+    this.contigLengths = BcfSource.getContigLengths(header);
+    this.sampleCount = header.getNGenotypeSamples();
+  }
+
+  public boolean checkRecordStart(long vPos) {
+    return checkRecordStart(vPos, 0);
+  }
+
+  private boolean checkRecordStart(long vPos, int successfulRecords) {
+    if (successfulRecords == recordsToCheck) {
+      return true;
+    }
+    try {
+      long nextVPos = checkRecordStartInternal(vPos);
+      // recursive call stack is up to `recordsToCheck` calls deep, which is OK
+      return nextVPos != -1 && checkRecordStart(nextVPos, successfulRecords + 1);
+    } catch (EOFException e) {
+      // EOF is OK if at least one record has been successfully checked (e.g. for last record)
+      return successfulRecords > 0;
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    uncompressedBytes.close();
+  }
+
+  /** @return the virtual position of the next record, or -1 if there is not a record at vPos */
+  private long checkRecordStartInternal(long vPos) throws IOException {
+    // The fixed fields at the start of a BCF record are as follows (all little endian)
+    //
+    // Field              Length (bytes)   Cumulative offset (bytes)
+    // ------------------ ---------------- -------------------------
+    // l_shared           4                0
+    // l_indiv            4                4
+    // CHROM              4                8
+    // POS                4                12
+    // rlen               4                16
+    // QUAL               4                20
+    // n_allele_info      4                24 (n_allele << 16 | n_info)
+    // n_fmt_sample       4                28 (n_fmt << 24 | n_sample)
+    // ID (typed string)  1+               32
+
+    seek(uncompressedBytes, vPos);
+    readFully(uncompressedBytes, buf.array(), 0, buf.capacity());
+
+    final int sharedLength = buf.getInt(0);
+    final int indivLength = buf.getInt(4);
+    if (sharedLength < buf.capacity() - 8 || indivLength < 0) {
+      return -1;
+    }
+
+    final int chrom = buf.getInt(8);
+    final int pos = buf.getInt(12);
+    final int rlen = buf.getInt(16);
+    if (chrom < 0 || chrom >= contigLengths.length || pos < 0 || rlen < 0) {
+      return -1;
+    }
+    if (contigLengths[chrom] > 0 && pos > contigLengths[chrom]) {
+      return -1; // Locus too large
+    }
+
+    final int alleleCount = buf.getInt(24) >>> 16;
+    final int formatCount = buf.getInt(28) >>> 24;
+    final int recordSampleCount = buf.getInt(28) & 0xffffff;
+    if (alleleCount == 0 || recordSampleCount != sampleCount) {
+      return -1;
+    }
+    if ((formatCount == 0 || sampleCount == 0) && indivLength != 0) {
+      return -1; // Genotype data without any format fields or samples
+    }
+
+    if ((buf.get(32) & 0x0f) != BCF2Type.CHAR.getID()) {
+      return -1; // ID is a typed string
+    }
+
+    seek(uncompressedBytes, vPos);
+    IOUtils.skipFully(uncompressedBytes, 8L + sharedLength + indivLength);
+    return uncompressedBytes.getPosition();
+  }
+
+  // Modifies BlockCompressedInputStream#seek to throw EOFException when an attempting to seek past
+  // EOF
+  private static void seek(BlockCompressedInputStream blockCompressedInputStream, long pos)
+      throws IOException {
+    try {
+      blockCompressedInputStream.seek(pos);
+    } catch (IOException e) {
+      if (e.getMessage().startsWith("Invalid file pointer")) {
+        throw new EOFException(e.getMessage());
+      }
+      throw e;
+    }
+  }
+
+  // Duplicate of method in Hadoop IOUtils except it throws EOFException rather than IOException for
+  // EOF
+  private static void readFully(InputStream in, byte buf[], int off, int len) throws IOException {
+    int toRead = len;
+    while (toRead > 0) {
+      int ret = in.read(buf, off, toRead);
+      if (ret < 0) {
+        throw new EOFException("Premature EOF from inputStream");
+      }
+      toRead -= ret;
+      off += ret;
+    }
+  }
+}
@@ -0,0 +1,91 @@
+package com.tom_e_white.squark.impl.formats.vcf;
+
+import com.tom_e_white.squark.HtsjdkVariantsRdd;
+import com.tom_e_white.squark.impl.file.FileSystemWrapper;
+import com.tom_e_white.squark.impl.file.HadoopFileSystemWrapper;
+import com.tom_e_white.squark.impl.file.Merger;
+import com.tom_e_white.squark.impl.formats.csi.CsiIndexBuilder;
+import com.tom_e_white.squark.impl.formats.csi.CsiIndexFragments;
+import htsjdk.samtools.util.BlockCompressedOutputStream;
+import htsjdk.samtools.util.BlockCompressedStreamConstants;
+import htsjdk.variant.variantcontext.VariantContext;
+import htsjdk.variant.variantcontext.writer.VariantContextWriter;
+import htsjdk.variant.variantcontext.writer.VariantContextWriterBuilder;
+import htsjdk.variant.vcf.VCFHeader;
+import java.io.IOException;
+import java.io.OutputStream;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.spark.api.java.JavaRDD;
+import org.apache.spark.api.java.JavaSparkContext;
+import org.apache.spark.api.java.function.PairFunction;
+import org.apache.spark.broadcast.Broadcast;
+import scala.Tuple2;
+
+/**
+ * Write variants to a single BGZF-compressed BCF file on Spark. This is done by writing to multiple
+ * headerless BCF files in parallel, then merging the resulting files into a single BCF file. A CSI
+ * index may optionally be written too, by merging the indexes written for each headerless file.
+ *
+ * @see BcfSource
+ * @see HtsjdkVariantsRdd
+ */
+public class BcfSink extends AbstractVcfSink {
+
+  private FileSystemWrapper fileSystemWrapper = new HadoopFileSystemWrapper();
+  private final boolean writeCsiIndex;
+
+  public BcfSink() {
+    this(false);
+  }
+
+  /** @param writeCsiIndex if true, write a CSI index alongside the BCF file */
+  public BcfSink(boolean writeCsiIndex) {
+    this.writeCsiIndex = writeCsiIndex;
+  }
+
+  @Override
+  public void save(
+      JavaSparkContext jsc, VCFHeader vcfHeader, JavaRDD<VariantContext> variants, String path)
+      throws IOException {
+    String shardedDir = path + ".sharded";
+    Broadcast<VCFHeader> headerBroadcast = jsc.broadcast(vcfHeader);
+    Configuration jobConf = new Configuration(jsc.hadoopConfiguration());
+    HeaderlessBcfOutputFormat.setHeader(jobConf, headerBroadcast);
+    HeaderlessBcfOutputFormat.setWriteCsiIndex(jobConf, writeCsiIndex);
+    variants
+        .mapToPair(
+            (PairFunction<VariantContext, Void, VariantContext>)
+                variantContext -> new Tuple2<>(null, variantContext))
+        .saveAsNewAPIHadoopFile(
+            shardedDir, Void.class, VariantContext.class, HeaderlessBcfOutputFormat.class, jobConf);
+
+    String headerFile = shardedDir + "/header";
+    try (OutputStream headerOut = fileSystemWrapper.create(jsc.hadoopConfiguration(), headerFile)) {
+      BlockCompressedOutputStream out = new BlockCompressedOutputStream(headerOut, null);
+      VariantContextWriter writer =
+          new VariantContextWriterBuilder()
+              .clearOptions()
+              .setOutputBCFStream(new Bcf22OutputStream(out))
+              .build();
+      writer.writeHeader(vcfHeader);
+      out.flush(); // don't close BlockCompressedOutputStream since we don't want to write the
+      // terminator after the header
+    }
+
+    String terminatorFile = shardedDir + "/terminator";
+    try (OutputStream out = fileSystemWrapper.create(jsc.hadoopConfiguration(), terminatorFile)) {
+      out.write(BlockCompressedStreamConstants.EMPTY_GZIP_BLOCK);
+    }
+
+    Merger merger = new Merger();
+    if (writeCsiIndex) {
+      CsiIndexFragments.mergeIndexFragments(
+          jsc.hadoopConfiguration(),
+          fileSystemWrapper,
+          new CsiIndexBuilder(BcfSource.getContigLengths(vcfHeader)),
+          merger.listParts(jsc.hadoopConfiguration(), shardedDir),
+          path + CsiIndexBuilder.CSI_EXTENSION);
+    }
+    merger.mergeParts(jsc.hadoopConfiguration(), shardedDir, path);
+  }
+}
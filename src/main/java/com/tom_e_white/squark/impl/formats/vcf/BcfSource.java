@@ -0,0 +1,336 @@
+package com.tom_e_white.squark.impl.formats.vcf;
+
+import com.tom_e_white.squark.HtsjdkVariantsRddStorage.GenotypeDecoding;
+import com.tom_e_white.squark.impl.file.CachingFileSystemWrapper;
+import com.tom_e_white.squark.impl.file.FileCacheKey;
+import com.tom_e_white.squark.impl.file.FileSystemWrapper;
+import com.tom_e_white.squark.impl.file.HadoopFileSystemWrapper;
+import com.tom_e_white.squark.impl.file.MetadataCache;
+import com.tom_e_white.squark.impl.file.ReadAhead;
+import com.tom_e_white.squark.impl.formats.SerializableHadoopConfiguration;
+import com.tom_e_white.squark.impl.formats.bgzf.BgzfBlockGuesser.BgzfBlock;
+import com.tom_e_white.squark.impl.formats.bgzf.BgzfBlockSource;
+import com.tom_e_white.squark.impl.formats.bgzf.BgzfVirtualFilePointerUtil;
+import htsjdk.samtools.util.AbstractIterator;
+import htsjdk.samtools.util.BlockCompressedInputStream;
+import htsjdk.samtools.util.Locatable;
+import htsjdk.samtools.util.OverlapDetector;
+import htsjdk.tribble.TribbleException;
+import htsjdk.tribble.readers.PositionalBufferedStream;
+import htsjdk.variant.bcf2.BCF2Codec;
+import htsjdk.variant.bcf2.BCFVersion;
+import htsjdk.variant.variantcontext.VariantContext;
+import htsjdk.variant.variantcontext.VariantContextBuilder;
+import htsjdk.variant.vcf.VCFContigHeaderLine;
+import htsjdk.variant.vcf.VCFHeader;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.spark.api.java.JavaRDD;
+import org.apache.spark.api.java.JavaSparkContext;
+import org.apache.spark.api.java.function.FlatMapFunction;
+import org.apache.spark.broadcast.Broadcast;
+
+/**
+ * Load variants from a BGZF-compressed BCF file on Spark. The file is split on BGZF block
+ * boundaries, then the first record in each partition is found using a {@link BcfRecordGuesser},
+ * and records are decoded using htsjdk's {@link BCF2Codec}.
+ */
+public class BcfSource implements Serializable {
+
+  public static final String BCF_EXTENSION = ".bcf";
+
+  private static final int MAX_RECORD_SIZE = 10_000_000;
+
+  private final FileSystemWrapper fileSystemWrapper =
+      new CachingFileSystemWrapper(new HadoopFileSystemWrapper());
+  private final BgzfBlockSource bgzfBlockSource = new BgzfBlockSource();
+  private final Set<String> samples;
+  // only used on the driver
+  private transient MetadataCache metadataCache = new MetadataCache();
+
+  public BcfSource() {
+    this(GenotypeDecoding.DEFAULT, null);
+  }
+
+  /**
+   * @param genotypeDecoding how genotypes are decoded; BCF genotypes are always decoded lazily, so
+   *     only {@link GenotypeDecoding#SITES_ONLY} has any effect
+   * @param samples the samples to read genotypes for, or null to read all samples
+   */
+  public BcfSource(GenotypeDecoding genotypeDecoding, Set<String> samples) {
+    this.samples =
+        genotypeDecoding == GenotypeDecoding.SITES_ONLY ? Collections.emptySet() : samples;
+  }
+
+  public static boolean isBcf(String path) {
+    return path.endsWith(BCF_EXTENSION);
+  }
+
+  /**
+   * @return the length of each contig in the header, in the order used by BCF records, or 0 if the
+   *     length is unknown
+   */
+  static int[] getContigLengths(VCFHeader header) {
+    List<VCFContigHeaderLine> contigLines = header.getContigLines();
+    int[] contigLengths = new int[contigLines.size()];
+    for (int i = 0; i < contigLengths.length; i++) {
+      try {
+        contigLengths[i] = contigLines.get(i).getSAMSequenceRecord().getSequenceLength();
+      } catch (TribbleException e) {
+        contigLengths[i] = 0; // no length field, so unknown
+      }
+    }
+    return contigLengths;
+  }
+
+  /**
+   * Use the given cache for headers, so that files read more than once (for example, by each read
+   * from a storage object) only have their headers read once.
+   */
+  public void setMetadataCache(MetadataCache metadataCache) {
+    this.metadataCache = metadataCache;
+  }
+
+  public VCFHeader getFileHeader(JavaSparkContext jsc, String path) throws IOException {
+    Configuration conf = jsc.hadoopConfiguration();
+    String firstBcfPath;
+    if (fileSystemWrapper.isDirectory(conf, path)) {
+      firstBcfPath = fileSystemWrapper.firstFileInDirectory(conf, path);
+    } else {
+      firstBcfPath = path;
+    }
+    VCFHeader header =
+        metadataCache.get(
+            FileCacheKey.of(fileSystemWrapper, conf, firstBcfPath),
+            "header",
+            () -> {
+              try (BlockCompressedInputStream in =
+                  new BlockCompressedInputStream(fileSystemWrapper.open(conf, firstBcfPath))) {
+                return (VCFHeader)
+                    new BCF2Codec().readHeader(new PositionalBufferedStream(in)).getHeaderValue();
+              }
+            });
+    return new VCFHeader(header); // since the caller may change it
+  }
+
+  /**
+   * @return the header for the variants returned by {@link #getVariants}, which only has the
+   *     samples being read
+   */
+  public VCFHeader getHeader(JavaSparkContext jsc, String path) throws IOException {
+    return VcfSource.selectSamples(getFileHeader(jsc, path), samples, path);
+  }
+
+  public <T extends Locatable> JavaRDD<VariantContext> getVariants(
+      JavaSparkContext jsc, String path, int splitSize, List<T> intervals) throws IOException {
+    // check the samples are present before starting
+    getHeader(jsc, path);
+
+    Set<String> samples = this.samples;
+    Broadcast<List<T>> intervalsBroadcast = intervals == null ? null : jsc.broadcast(intervals);
+    // a copy, since the split size is set in it for this read only
+    Configuration readConf = new Configuration(jsc.hadoopConfiguration());
+    SerializableHadoopConfiguration confSer = new SerializableHadoopConfiguration(readConf);
+
+    // each split is read separately, even if a partition has splits from more than one file
+    return bgzfBlockSource.flatMapSplits(
+        jsc,
+        readConf,
+        path,
+        splitSize,
+        (FlatMapFunction<Iterator<BgzfBlock>, VariantContext>)
+            bgzfBlocks -> {
+              Configuration conf = confSer.getConf();
+              RecordRange recordRange = getFirstRecordInSplit(conf, bgzfBlocks);
+              if (recordRange == null) {
+                return Collections.emptyIterator();
+              }
+              final OverlapDetector<T> overlapDetector =
+                  intervalsBroadcast == null
+                      ? null
+                      : OverlapDetector.create(intervalsBroadcast.getValue());
+              Iterator<VariantContext> variants =
+                  new BcfRecordIterator(
+                      new BlockCompressedInputStream(
+                          ReadAhead.buffer(conf, fileSystemWrapper.open(conf, recordRange.path))),
+                      recordRange.codec,
+                      recordRange.bcf22,
+                      recordRange.start,
+                      recordRange.end);
+              return new AbstractIterator<VariantContext>() {
+                @Override
+                protected VariantContext advance() {
+                  while (variants.hasNext()) {
+                    VariantContext vc = variants.next();
+                    if (overlapDetector == null || overlapDetector.overlapsAny(vc)) {
+                      return selectSamples(vc, samples);
+                    }
+                  }
+                  return null;
+                }
+              };
+            });
+  }
+
+  private static VariantContext selectSamples(VariantContext vc, Set<String> samples) {
+    if (samples == null) {
+      return vc;
+    } else if (samples.isEmpty()) {
+      // avoid decoding the genotypes at all
+      return new VariantContextBuilder(vc).noGenotypes().make();
+    }
+    return vc.subContextFromSamples(samples, false);
+  }
+
+  /**
+   * @return the {@link RecordRange} for the split, or null if there is none (e.g. in the case of
+   *     very large records, and/or very small splits). The range has a codec that has already read
+   *     the file's header, so the header is only read once for the split.
+   */
+  private RecordRange getFirstRecordInSplit(Configuration conf, Iterator<BgzfBlock> bgzfBlocks)
+      throws IOException {
+    BcfRecordGuesser bcfRecordGuesser = null;
+    BCF2Codec codec = new BCF2Codec();
+    boolean bcf22 = false;
+    try {
+      String splitPath = null;
+      int index = 0; // limit search to MAX_RECORD_SIZE positions
+      while (bgzfBlocks.hasNext()) {
+        BgzfBlock block = bgzfBlocks.next();
+        if (splitPath == null) { // the blocks are all from a single split of one file
+          splitPath = block.path;
+          VCFHeader header;
+          try (BufferedInputStream in =
+              new BufferedInputStream(
+                  new BlockCompressedInputStream(fileSystemWrapper.open(conf, splitPath)))) {
+            in.mark(BCFVersion.MAGIC_HEADER_START.length + 2);
+            bcf22 = BCFVersion.readBCFVersion(in).getMinorVersion() >= 2;
+            in.reset();
+            header =
+                (VCFHeader) codec.readHeader(new PositionalBufferedStream(in)).getHeaderValue();
+          }
+          bcfRecordGuesser =
+              new BcfRecordGuesser(
+                  ReadAhead.buffer(conf, fileSystemWrapper.open(conf, splitPath)), header);
+        }
+        for (int up = 0; up < block.uSize; up++) {
+          index++;
+          if (index > MAX_RECORD_SIZE) {
+            return null;
+          }
+          long vPos = BgzfVirtualFilePointerUtil.makeFilePointer(block.pos, up);
+          // As the guesser goes to the next BGZF block before looking for BCF
+          // records, the ending BGZF blocks have to always be traversed fully.
+          // Hence force the length to be 0xffff, the maximum possible.
+          long vEnd = BgzfVirtualFilePointerUtil.makeFilePointer(block.end, 0xffff);
+          if (bcfRecordGuesser.checkRecordStart(vPos)) {
+            block.end();
+            return new RecordRange(splitPath, vPos, vEnd, codec, bcf22);
+          }
+        }
+      }
+    } finally {
+      if (bcfRecordGuesser != null) {
+        bcfRecordGuesser.close();
+      }
+    }
+    return null;
+  }
+
+  /**
+   * An iterator over the BCF records that start in a virtual file range. Each record is read into
+   * memory then decoded, so that the start of each record is known. The codec must have already
+   * read the file's header. Since the codec only understands BCF 2.1, BCF 2.2 records are converted
+   * to BCF 2.1 before they are decoded.
+   */
+  private static class BcfRecordIterator extends AbstractIterator<VariantContext> {
+    private final BlockCompressedInputStream in;
+    private final BCF2Codec codec;
+    private final boolean bcf22;
+    private final long end;
+    private final ByteBuffer recordSizes = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+
+    BcfRecordIterator(
+        BlockCompressedInputStream in, BCF2Codec codec, boolean bcf22, long start, long end)
+        throws IOException {
+      this.in = in;
+      this.codec = codec;
+      this.bcf22 = bcf22;
+      this.end = end;
+      in.seek(start);
+    }
+
+    @Override
+    protected VariantContext advance() {
+      try {
+        if (in.getFilePointer() >= end || !readRecordSizes()) {
+          in.close();
+          return null; // end iteration
+        }
+        int sharedLength = recordSizes.getInt(0);
+        int indivLength = recordSizes.getInt(4);
+        byte[] record = new byte[8 + sharedLength + indivLength];
+        System.arraycopy(recordSizes.array(), 0, record, 0, 8);
+        readFully(record, 8, sharedLength + indivLength);
+        if (bcf22) {
+          record = Bcf22Converter.toBcf21(record);
+        }
+        return codec.decode(
+            new PositionalBufferedStream(new ByteArrayInputStream(record), record.length));
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    }
+
+    /** @return false if at the end of the file */
+    private boolean readRecordSizes() throws IOException {
+      int n = in.read(recordSizes.array(), 0, 8);
+      if (n <= 0) {
+        return false;
+      }
+      readFully(recordSizes.array(), n, 8 - n);
+      return true;
+    }
+
+    private void readFully(byte[] buf, int off, int len) throws IOException {
+      while (len > 0) {
+        int n = in.read(buf, off, len);
+        if (n < 0) {
+          throw new EOFException("Truncated BCF record");
+        }
+        off += n;
+        len -= n;
+      }
+    }
+  }
+
+  /**
+   * Stores the virtual range of a split, from the start of the first record to the end, and the
+   * codec for decoding its records, and whether the file is BCF 2.2.
+   */
+  static class RecordRange {
+    private final String path;
+    private final long start;
+    private final long end;
+    private final BCF2Codec codec;
+    private final boolean bcf22;
+
+    public RecordRange(String path, long start, long end, BCF2Codec codec, boolean bcf22) {
+      this.path = path;
+      this.start = start;
+      this.end = end;
+      this.codec = codec;
+      this.bcf22 = bcf22;
+    }
+  }
+}
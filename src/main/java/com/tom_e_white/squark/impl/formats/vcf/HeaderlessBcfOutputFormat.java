@@ -0,0 +1,148 @@
+package com.tom_e_white.squark.impl.formats.vcf;
+
+import com.tom_e_white.squark.HtsjdkVariantsRdd;
+import com.tom_e_white.squark.impl.formats.HadoopConfigurationUtil;
+import com.tom_e_white.squark.impl.formats.csi.CsiIndexBuilder;
+import com.tom_e_white.squark.impl.formats.csi.CsiIndexFragments;
+import htsjdk.samtools.util.BlockCompressedOutputStream;
+import htsjdk.variant.variantcontext.VariantContext;
+import htsjdk.variant.variantcontext.writer.VariantContextWriter;
+import htsjdk.variant.variantcontext.writer.VariantContextWriterBuilder;
+import htsjdk.variant.vcf.VCFContigHeaderLine;
+import htsjdk.variant.vcf.VCFHeader;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.spark.broadcast.Broadcast;
+
+/**
+ * An output format for writing {@link VariantContext} objects to BGZF-compressed BCF files that
+ * don't have a header (or terminator), so they can be merged into a single file easily. Files do
+ * not have the usual ".bcf" extension since they are not complete BCF files. If CSI indexing is
+ * enabled then the index for each file (with offsets relative to the start of the file) is written
+ * to a hidden file alongside it, so the indexes can be merged too. This class should not be used
+ * directly.
+ *
+ * @see HtsjdkVariantsRdd
+ */
+public class HeaderlessBcfOutputFormat extends FileOutputFormat<Void, VariantContext> {
+
+  static class BcfRecordWriter extends RecordWriter<Void, VariantContext> {
+
+    private final FileSystem fileSystem;
+    private final OutputStream out;
+    private final BlockCompressedOutputStream compressedOut;
+    private final VariantContextWriter variantContextWriter;
+    private final Map<String, Integer> contigIndexes;
+    private final CsiIndexBuilder csiIndexBuilder;
+    private final Path file;
+
+    public BcfRecordWriter(Configuration conf, Path file, VCFHeader header, boolean writeCsiIndex)
+        throws IOException {
+      this.fileSystem = file.getFileSystem(conf);
+      this.file = file;
+      this.out = fileSystem.create(file);
+      this.compressedOut = new BlockCompressedOutputStream(out, null);
+      // the writer has to be given the header to set up its encoders, but the header is not
+      // written to the file
+      HeaderSkippingOutputStream headerSkippingOut = new HeaderSkippingOutputStream(compressedOut);
+      variantContextWriter =
+          new VariantContextWriterBuilder()
+              .clearOptions()
+              .setOutputBCFStream(new Bcf22OutputStream(headerSkippingOut))
+              .build();
+      variantContextWriter.writeHeader(header);
+      headerSkippingOut.headerWritten = true;
+
+      if (writeCsiIndex) {
+        List<VCFContigHeaderLine> contigLines = header.getContigLines();
+        contigIndexes = new HashMap<>();
+        for (int i = 0; i < contigLines.size(); i++) {
+          contigIndexes.put(contigLines.get(i).getID(), i);
+        }
+        csiIndexBuilder = new CsiIndexBuilder(BcfSource.getContigLengths(header));
+      } else {
+        contigIndexes = null;
+        csiIndexBuilder = null;
+      }
+    }
+
+    @Override
+    public void write(Void ignore, VariantContext variantContext) {
+      long start = compressedOut.getFilePointer();
+      variantContextWriter.add(variantContext);
+      if (csiIndexBuilder != null) {
+        csiIndexBuilder.addRecord(
+            contigIndexes.get(variantContext.getContig()),
+            variantContext.getStart() - 1,
+            variantContext.getEnd(),
+            start,
+            compressedOut.getFilePointer());
+      }
+    }
+
+    @Override
+    public void close(TaskAttemptContext taskAttemptContext) throws IOException {
+      compressedOut.flush();
+      out.close(); // don't close BlockCompressedOutputStream since we don't want to write the
+      // terminator
+      if (csiIndexBuilder != null) {
+        CsiIndexFragments.writeIndexFragment(fileSystem, file, csiIndexBuilder);
+      }
+    }
+  }
+
+  /** Discards everything written to it until the header has been written. */
+  private static class HeaderSkippingOutputStream extends FilterOutputStream {
+    private boolean headerWritten;
+
+    HeaderSkippingOutputStream(OutputStream out) {
+      super(out);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      if (headerWritten) {
+        out.write(b);
+      }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      if (headerWritten) {
+        out.write(b, off, len);
+      }
+    }
+  }
+
+  private static final String HEADER_KEY = "squark.bcf.output.header";
+  private static final String WRITE_CSI_INDEX_KEY = "squark.bcf.output.write-csi-index";
+
+  public static void setHeader(Configuration conf, Broadcast<VCFHeader> headerBroadcast)
+      throws IOException {
+    HadoopConfigurationUtil.setBroadcast(conf, HEADER_KEY, headerBroadcast);
+  }
+
+  public static void setWriteCsiIndex(Configuration conf, boolean writeCsiIndex) {
+    conf.setBoolean(WRITE_CSI_INDEX_KEY, writeCsiIndex);
+  }
+
+  @Override
+  public RecordWriter<Void, VariantContext> getRecordWriter(TaskAttemptContext taskAttemptContext)
+      throws IOException {
+    Configuration conf = taskAttemptContext.getConfiguration();
+    VCFHeader header = HadoopConfigurationUtil.getBroadcastValue(conf, HEADER_KEY);
+    boolean writeCsiIndex = conf.getBoolean(WRITE_CSI_INDEX_KEY, false);
+    Path file = getDefaultWorkFile(taskAttemptContext, "");
+    return new BcfRecordWriter(conf, file, header, writeCsiIndex);
+  }
+}
@@ -0,0 +1,102 @@
+package com.tom_e_white.squark.impl.formats.vcf;
+
+import com.tom_e_white.squark.HtsjdkVariantsRdd;
+import com.tom_e_white.squark.impl.formats.HadoopConfigurationUtil;
+import com.tom_e_white.squark.impl.formats.csi.CsiIndexBuilder;
+import com.tom_e_white.squark.impl.formats.csi.CsiIndexFragments;
+import htsjdk.samtools.util.BlockCompressedOutputStream;
+import htsjdk.variant.variantcontext.VariantContext;
+import htsjdk.variant.vcf.VCFContigHeaderLine;
+import htsjdk.variant.vcf.VCFEncoder;
+import htsjdk.variant.vcf.VCFHeader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.spark.broadcast.Broadcast;
+
+/**
+ * An output format for writing {@link VariantContext} objects to BGZF-compressed VCF files that
+ * don't have a header (or terminator), and writing a CSI index for each file to a hidden file
+ * alongside it, so both the files and their indexes can be merged. This class should not be used
+ * directly.
+ *
+ * @see HtsjdkVariantsRdd
+ */
+public class HeaderlessVcfOutputFormat extends FileOutputFormat<Void, VariantContext> {
+
+  static class IndexingVcfRecordWriter extends RecordWriter<Void, VariantContext> {
+
+    private final FileSystem fileSystem;
+    private final Path file;
+    private final OutputStream out;
+    private final BlockCompressedOutputStream compressedOut;
+    private final VCFEncoder vcfEncoder;
+    private final Map<String, Integer> contigIndexes = new HashMap<>();
+    private final CsiIndexBuilder csiIndexBuilder;
+
+    public IndexingVcfRecordWriter(Configuration conf, Path file, VCFHeader header)
+        throws IOException {
+      this.fileSystem = file.getFileSystem(conf);
+      this.file = file;
+      this.out = fileSystem.create(file);
+      this.compressedOut = new BlockCompressedOutputStream(out, null);
+      this.vcfEncoder = new VCFEncoder(header, false, false);
+      List<VCFContigHeaderLine> contigLines = header.getContigLines();
+      for (int i = 0; i < contigLines.size(); i++) {
+        contigIndexes.put(contigLines.get(i).getID(), i);
+      }
+      this.csiIndexBuilder = new CsiIndexBuilder(BcfSource.getContigLengths(header));
+    }
+
+    @Override
+    public void write(Void ignore, VariantContext variantContext) throws IOException {
+      Integer contigIndex = contigIndexes.get(variantContext.getContig());
+      if (contigIndex == null) {
+        throw new IllegalArgumentException(
+            "Contig not in header, so cannot be indexed: " + variantContext.getContig());
+      }
+      long start = compressedOut.getFilePointer();
+      compressedOut.write(vcfEncoder.encode(variantContext).getBytes(StandardCharsets.UTF_8));
+      compressedOut.write('\n');
+      csiIndexBuilder.addRecord(
+          contigIndex,
+          variantContext.getStart() - 1,
+          variantContext.getEnd(),
+          start,
+          compressedOut.getFilePointer());
+    }
+
+    @Override
+    public void close(TaskAttemptContext taskAttemptContext) throws IOException {
+      compressedOut.flush();
+      out.close(); // don't close BlockCompressedOutputStream since we don't want to write the
+      // terminator
+      CsiIndexFragments.writeIndexFragment(fileSystem, file, csiIndexBuilder);
+    }
+  }
+
+  private static final String HEADER_KEY = "squark.vcf.headerless.output.header";
+
+  public static void setHeader(Configuration conf, Broadcast<VCFHeader> headerBroadcast)
+      throws IOException {
+    HadoopConfigurationUtil.setBroadcast(conf, HEADER_KEY, headerBroadcast);
+  }
+
+  @Override
+  public RecordWriter<Void, VariantContext> getRecordWriter(TaskAttemptContext taskAttemptContext)
+      throws IOException {
+    Configuration conf = taskAttemptContext.getConfiguration();
+    VCFHeader header = HadoopConfigurationUtil.getBroadcastValue(conf, HEADER_KEY);
+    Path file = getDefaultWorkFile(taskAttemptContext, "");
+    return new IndexingVcfRecordWriter(conf, file, header);
+  }
+}
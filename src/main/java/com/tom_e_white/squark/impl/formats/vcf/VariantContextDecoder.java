@@ -0,0 +1,190 @@
+package com.tom_e_white.squark.impl.formats.vcf;
+
+import com.tom_e_white.squark.HtsjdkVariantsRddStorage.GenotypeDecoding;
+import htsjdk.tribble.TribbleException;
+import htsjdk.variant.variantcontext.Allele;
+import htsjdk.variant.variantcontext.LazyGenotypesContext;
+import htsjdk.variant.variantcontext.VariantContext;
+import htsjdk.variant.variantcontext.VariantContextBuilder;
+import htsjdk.variant.vcf.VCFCodec;
+import htsjdk.variant.vcf.VCFHeader;
+import htsjdk.variant.vcf.VCFHeaderLine;
+import htsjdk.variant.vcf.VCFHeaderVersion;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Decodes VCF data lines into {@link VariantContext} objects, controlling when (and whether) the
+ * genotype columns are decoded. Not thread safe, so one instance should be used per partition.
+ */
+class VariantContextDecoder {
+
+  private static final int SITE_COLUMNS = 8;
+  private static final String FILE_FORMAT_KEY = "fileformat";
+
+  private final VCFCodec codec;
+  private final int[] sampleOffsets;
+  private final GenotypeDecoding genotypeDecoding;
+  private final int nSamples;
+  private byte[] selectedColumns = new byte[1024];
+  private int selectedLength;
+
+  /**
+   * @param header the header for the decoded variants, which only has the selected samples
+   * @param sampleOffsets the (sorted) offsets in the file of the samples to decode, or null to
+   *     decode all samples in the file
+   * @param genotypeDecoding how genotypes are decoded
+   */
+  VariantContextDecoder(VCFHeader header, int[] sampleOffsets, GenotypeDecoding genotypeDecoding) {
+    this.codec = new VCFCodec();
+    codec.setVCFHeader(header, getVersion(header));
+    this.sampleOffsets = sampleOffsets;
+    this.genotypeDecoding = genotypeDecoding;
+    this.nSamples = header.getNGenotypeSamples();
+  }
+
+  /**
+   * @return the version of the header, from its fileformat line, or VCFv4.1 if it doesn't have one
+   *     that is recognized
+   */
+  static VCFHeaderVersion getVersion(VCFHeader header) {
+    VCFHeaderLine fileFormat = header.getOtherHeaderLine(FILE_FORMAT_KEY);
+    VCFHeaderVersion version =
+        fileFormat == null ? null : VCFHeaderVersion.toHeaderVersion(fileFormat.getValue());
+    return version == null ? VCFHeaderVersion.VCF4_1 : version;
+  }
+
+  /**
+   * Decode a VCF data line held in a (possibly reused) buffer. Only the columns that are needed are
+   * converted to a string for the codec. htsjdk's codec only decodes strings (it splits the line
+   * into a substring per column, and keeps substrings as attribute values), so if all the columns
+   * are needed the whole line is converted, once. Parsing the bytes directly would mean replacing
+   * the codec's parser, including its allele, filter and attribute caches, which is not done here.
+   *
+   * @param line the buffer containing the line, without a line terminator
+   * @param length the length of the line in the buffer
+   */
+  public VariantContext decode(byte[] line, int length) {
+    return decode(
+        sampleOffsets == null
+            ? new String(line, 0, length, StandardCharsets.UTF_8)
+            : selectSamples(line, length));
+  }
+
+  private VariantContext decode(String line) {
+    if (genotypeDecoding == GenotypeDecoding.LAZY && nSamples > 0) {
+      return decodeLazily(line);
+    }
+    return codec.decode(line);
+  }
+
+  /**
+   * Remove the sample columns that are not selected from the line by scanning for tabs, so they are
+   * never converted to a string or parsed. If no samples are selected then the FORMAT column is
+   * removed too, unless the line only has the site columns (as in a sites-only VCF).
+   */
+  private String selectSamples(byte[] line, int length) {
+    if (sampleOffsets.length == 0) {
+      int formatStart = indexOfNthTab(line, length, SITE_COLUMNS);
+      return new String(line, 0, formatStart < 0 ? length : formatStart, StandardCharsets.UTF_8);
+    }
+    int start = columnStart(line, length, SITE_COLUMNS + 1);
+    selectedLength = 0;
+    appendSelected(line, 0, start - 1);
+    int offset = 0;
+    for (int sampleOffset : sampleOffsets) {
+      for (; offset < sampleOffset; offset++) {
+        start = indexOfTab(line, length, start) + 1;
+        if (start == 0) {
+          throw missingColumns(line, length);
+        }
+      }
+      int end = indexOfTab(line, length, start);
+      appendSelected(line, start - 1, (end < 0 ? length : end) - start + 1); // including tab
+    }
+    return new String(selectedColumns, 0, selectedLength, StandardCharsets.UTF_8);
+  }
+
+  private void appendSelected(byte[] line, int start, int length) {
+    if (selectedLength + length > selectedColumns.length) {
+      selectedColumns =
+          Arrays.copyOf(
+              selectedColumns, Math.max(selectedLength + length, selectedColumns.length * 2));
+    }
+    System.arraycopy(line, start, selectedColumns, selectedLength, length);
+    selectedLength += length;
+  }
+
+  /**
+   * htsjdk's codec only defers genotype decoding if the samples in the header are sorted, so decode
+   * the site columns here and attach the genotype columns as an unparsed string that is only
+   * decoded when the genotypes are first accessed.
+   */
+  private VariantContext decodeLazily(String line) {
+    VariantContext site = (VariantContext) codec.decodeLoc(line);
+    int genotypesStart = columnStart(line, SITE_COLUMNS);
+    String contig = site.getContig();
+    int start = site.getStart();
+    List<Allele> alleles = site.getAlleles();
+    LazyGenotypesContext genotypes =
+        new LazyGenotypesContext(
+            data -> codec.createGenotypeMap((String) data, alleles, contig, start),
+            line.substring(genotypesStart),
+            nSamples);
+    return new VariantContextBuilder(site).genotypesNoValidation(genotypes).make();
+  }
+
+  /** @return the index in the line of the start of the given (zero-based) column */
+  private static int columnStart(byte[] line, int length, int column) {
+    int pos = -1;
+    for (int i = 0; i < column; i++) {
+      pos = indexOfTab(line, length, pos + 1);
+      if (pos < 0) {
+        throw missingColumns(line, length);
+      }
+    }
+    return pos + 1;
+  }
+
+  /** @return the index in the line of the nth tab (counting from one), or -1 if there are fewer */
+  private static int indexOfNthTab(byte[] line, int length, int n) {
+    int pos = -1;
+    for (int i = 0; i < n; i++) {
+      pos = indexOfTab(line, length, pos + 1);
+      if (pos < 0) {
+        return -1;
+      }
+    }
+    return pos;
+  }
+
+  private static int indexOfTab(byte[] line, int length, int from) {
+    for (int i = from; i < length; i++) {
+      if (line[i] == '\t') {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /** @return the index in the line of the start of the given (zero-based) column */
+  private static int columnStart(String line, int column) {
+    int pos = -1;
+    for (int i = 0; i < column; i++) {
+      pos = line.indexOf('\t', pos + 1);
+      if (pos < 0) {
+        throw missingColumns(line);
+      }
+    }
+    return pos + 1;
+  }
+
+  private static TribbleException missingColumns(byte[] line, int length) {
+    return missingColumns(new String(line, 0, length, StandardCharsets.UTF_8));
+  }
+
+  private static TribbleException missingColumns(String line) {
+    return new TribbleException("There aren't enough columns for line " + line);
+  }
+}
@@ -0,0 +1,148 @@
+package com.tom_e_white.squark.impl.formats.vcf;
+
+import com.tom_e_white.squark.HtsjdkVariantsRddStorage.GenotypeDecoding;
+import htsjdk.variant.vcf.VCFHeader;
+import htsjdk.variant.vcf.VCFHeaderLine;
+import htsjdk.variant.vcf.VCFUtils;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import org.apache.hadoop.fs.Path;
+
+/**
+ * The headers of the VCF files being read, so that the lines in each partition are decoded with the
+ * header (and version) of the file they came from. Files that have the same header share an entry,
+ * so when all the files have the same header (the usual case) only one header is broadcast, however
+ * many files there are.
+ */
+class VcfFileHeaders implements Serializable {
+
+  /** A header, with only the selected samples, and the offsets of those samples in the file. */
+  private static class Entry implements Serializable {
+    private final VCFHeader header;
+    private final int[] sampleOffsets;
+
+    Entry(VCFHeader header, int[] sampleOffsets) {
+      this.header = header;
+      this.sampleOffsets = sampleOffsets;
+    }
+  }
+
+  private final List<Entry> entries = new ArrayList<>();
+  private final Map<String, Integer> fileEntries = new HashMap<>(); // the entry for each file
+  // the entry for each distinct header, only needed while the headers are being added
+  private final transient Map<List<String>, Integer> headerEntries = new HashMap<>();
+  private final transient Set<String> samples;
+  // the files in the order they were added, only needed on the driver
+  private final transient List<String> files = new ArrayList<>();
+
+  /** @param samples the samples to decode, or null to decode all samples */
+  VcfFileHeaders(Set<String> samples) {
+    this.samples = samples;
+  }
+
+  /** Add the header for a file, sharing the entry for an identical header if there is one. */
+  void add(String path, VCFHeader fileHeader) {
+    List<String> headerKey =
+        fileHeader
+            .getMetaDataInInputOrder()
+            .stream()
+            .map(Object::toString)
+            .collect(Collectors.toList());
+    headerKey.addAll(fileHeader.getGenotypeSamples());
+    Integer index = headerEntries.get(headerKey);
+    if (index == null) {
+      index = entries.size();
+      entries.add(
+          new Entry(
+              VcfSource.selectSamples(fileHeader, samples, path),
+              getSampleOffsets(fileHeader, samples)));
+      headerEntries.put(headerKey, index);
+    }
+    fileEntries.put(key(new Path(path)), index);
+    files.add(path);
+  }
+
+  /** @return the files whose headers were added, which is only available on the driver */
+  List<String> getFiles() {
+    return files;
+  }
+
+  private static int[] getSampleOffsets(VCFHeader fileHeader, Set<String> samples) {
+    if (samples == null) {
+      return null;
+    }
+    List<String> fileSamples = fileHeader.getGenotypeSamples();
+    return IntStream.range(0, fileSamples.size())
+        .filter(i -> samples.contains(fileSamples.get(i)))
+        .toArray();
+  }
+
+  /**
+   * @return the header for the variants in all the files, which only has the selected samples. If
+   *     the files have different header lines they are merged, and the samples are in the order of
+   *     the first file (since the genotypes of each variant are in the order of its own file). Only
+   *     available on the driver.
+   * @throws IllegalArgumentException if the files do not all have the same samples, or have header
+   *     lines that cannot be merged
+   */
+  VCFHeader getHeader() {
+    VCFHeader firstHeader = entries.get(0).header;
+    if (entries.size() == 1) {
+      return new VCFHeader(firstHeader); // a copy, since the caller may change it
+    }
+    Set<String> firstSamples = new HashSet<>(firstHeader.getGenotypeSamples());
+    for (String file : files) {
+      List<String> fileSamples = getEntry(new Path(file)).header.getGenotypeSamples();
+      if (fileSamples.size() != firstSamples.size() || !firstSamples.containsAll(fileSamples)) {
+        throw new IllegalArgumentException(
+            "Samples in "
+                + file
+                + " "
+                + fileSamples
+                + " differ from those in "
+                + files.get(0)
+                + " "
+                + firstHeader.getGenotypeSamples());
+      }
+    }
+    Set<VCFHeaderLine> headerLines;
+    try {
+      headerLines =
+          VCFUtils.smartMergeHeaders(
+              entries.stream().map(entry -> entry.header).collect(Collectors.toList()), false);
+    } catch (IllegalStateException e) {
+      throw new IllegalArgumentException("Cannot merge the headers of " + files, e);
+    }
+    return new VCFHeader(headerLines, firstHeader.getGenotypeSamples());
+  }
+
+  /**
+   * @return a decoder for the lines of a file
+   * @throws IllegalArgumentException if the file's header was not added (for example, since it was
+   *     not in the directory when the headers were read)
+   */
+  VariantContextDecoder createDecoder(Path file, GenotypeDecoding genotypeDecoding) {
+    Entry entry = getEntry(file);
+    return new VariantContextDecoder(entry.header, entry.sampleOffsets, genotypeDecoding);
+  }
+
+  private Entry getEntry(Path file) {
+    Integer index = fileEntries.get(key(file));
+    if (index == null) {
+      throw new IllegalArgumentException("No header was read for " + file);
+    }
+    return entries.get(index);
+  }
+
+  // ignore the scheme and authority, since they may be written differently for the same file
+  private static String key(Path file) {
+    return file.toUri().getPath();
+  }
+}
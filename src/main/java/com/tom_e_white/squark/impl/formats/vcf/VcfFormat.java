@@ -3,16 +3,19 @@ package com.tom_e_white.squark.impl.formats.vcf;
 import com.tom_e_white.squark.HtsjdkVariantsRddStorage;
 
 public enum VcfFormat {
-  VCF(".vcf", false),
-  VCF_BGZ(".vcf.bgz", true),
-  VCF_GZ(".vcf.gz", true);
+  VCF(".vcf", false, ".tbi"),
+  VCF_BGZ(".vcf.bgz", true, ".tbi"),
+  VCF_GZ(".vcf.gz", true, ".tbi"),
+  BCF(".bcf", true, ".csi");
 
   private String extension;
   private boolean compressed;
+  private String indexExtension;
 
-  VcfFormat(String extension, boolean compressed) {
+  VcfFormat(String extension, boolean compressed, String indexExtension) {
     this.extension = extension;
     this.compressed = compressed;
+    this.indexExtension = indexExtension;
   }
 
   public String getExtension() {
@@ -20,7 +23,7 @@ public enum VcfFormat {
   }
 
   public String getIndexExtension() {
-    return extension + ".tbi";
+    return extension + indexExtension;
   }
 
   public boolean fileMatches(String path) {
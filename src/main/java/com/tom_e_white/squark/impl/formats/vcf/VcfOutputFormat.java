@@ -1,6 +1,7 @@
 package com.tom_e_white.squark.impl.formats.vcf;
 
 import com.tom_e_white.squark.HtsjdkVariantsRdd;
+import com.tom_e_white.squark.impl.formats.HadoopConfigurationUtil;
 import com.tom_e_white.squark.impl.formats.bgzf.BGZFCodec;
 import htsjdk.samtools.util.BlockCompressedOutputStream;
 import htsjdk.variant.variantcontext.VariantContext;
@@ -14,10 +15,11 @@ import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.mapreduce.RecordWriter;
 import org.apache.hadoop.mapreduce.TaskAttemptContext;
 import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.spark.broadcast.Broadcast;
 
 /**
- * An output format for writing {@link VariantContext} objects to VCF files (including header). This
- * class should not be used directly.
+ * An output format for writing {@link VariantContext} objects to VCF or BGZF-compressed BCF files
+ * (including header). This class should not be used directly.
  *
  * @see HtsjdkVariantsRdd
  */
@@ -30,13 +32,19 @@ public class VcfOutputFormat extends FileOutputFormat<Void, VariantContext> {
     public VcfRecordWriter(Configuration conf, Path file, VCFHeader header, String extension)
         throws IOException {
       OutputStream out = file.getFileSystem(conf).create(file);
-      boolean compressed =
-          extension.endsWith(BGZFCodec.DEFAULT_EXTENSION) || extension.endsWith(".gz");
-      if (compressed) {
-        out = new BlockCompressedOutputStream(out, null);
+      VariantContextWriterBuilder builder = new VariantContextWriterBuilder().clearOptions();
+      if (BcfSource.isBcf(extension)) {
+        builder.setOutputBCFStream(
+            new Bcf22OutputStream(new BlockCompressedOutputStream(out, null)));
+      } else {
+        boolean compressed =
+            extension.endsWith(BGZFCodec.DEFAULT_EXTENSION) || extension.endsWith(".gz");
+        if (compressed) {
+          out = new BlockCompressedOutputStream(out, null);
+        }
+        builder.setOutputVCFStream(out);
       }
-      variantContextWriter =
-          new VariantContextWriterBuilder().clearOptions().setOutputVCFStream(out).build();
+      variantContextWriter = builder.build();
       variantContextWriter.writeHeader(header);
     }
 
@@ -51,21 +59,25 @@ public class VcfOutputFormat extends FileOutputFormat<Void, VariantContext> {
     }
   }
 
-  private static VCFHeader header;
-  private static String extension;
+  private static final String HEADER_KEY = "squark.vcf.output.header";
+  private static final String EXTENSION_KEY = "squark.vcf.output.extension";
 
-  public static void setHeader(VCFHeader vcfHeader) {
-    VcfOutputFormat.header = vcfHeader;
+  public static void setHeader(Configuration conf, Broadcast<VCFHeader> headerBroadcast)
+      throws IOException {
+    HadoopConfigurationUtil.setBroadcast(conf, HEADER_KEY, headerBroadcast);
   }
 
-  public static void setExtension(String extension) {
-    VcfOutputFormat.extension = extension;
+  public static void setExtension(Configuration conf, String extension) {
+    conf.set(EXTENSION_KEY, extension);
   }
 
   @Override
   public RecordWriter<Void, VariantContext> getRecordWriter(TaskAttemptContext taskAttemptContext)
       throws IOException {
+    Configuration conf = taskAttemptContext.getConfiguration();
+    VCFHeader header = HadoopConfigurationUtil.getBroadcastValue(conf, HEADER_KEY);
+    String extension = conf.get(EXTENSION_KEY);
     Path file = getDefaultWorkFile(taskAttemptContext, extension);
-    return new VcfRecordWriter(taskAttemptContext.getConfiguration(), file, header, extension);
+    return new VcfRecordWriter(conf, file, header, extension);
   }
 }
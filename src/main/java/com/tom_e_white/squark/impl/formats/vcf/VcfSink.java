@@ -5,24 +5,44 @@ import com.tom_e_white.squark.impl.file.FileSystemWrapper;
 import com.tom_e_white.squark.impl.file.HadoopFileSystemWrapper;
 import com.tom_e_white.squark.impl.file.Merger;
 import com.tom_e_white.squark.impl.formats.bgzf.BGZFCodec;
+import com.tom_e_white.squark.impl.formats.csi.CsiIndexBuilder;
+import com.tom_e_white.squark.impl.formats.csi.CsiIndexFragments;
 import htsjdk.samtools.util.BlockCompressedOutputStream;
 import htsjdk.samtools.util.BlockCompressedStreamConstants;
 import htsjdk.variant.variantcontext.VariantContext;
 import htsjdk.variant.variantcontext.writer.VariantContextWriter;
 import htsjdk.variant.variantcontext.writer.VariantContextWriterBuilder;
+import htsjdk.variant.vcf.VCFContigHeaderLine;
 import htsjdk.variant.vcf.VCFEncoder;
 import htsjdk.variant.vcf.VCFHeader;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.Iterator;
+import java.util.stream.Collectors;
+import org.apache.hadoop.conf.Configuration;
 import org.apache.spark.api.java.JavaRDD;
 import org.apache.spark.api.java.JavaSparkContext;
 import org.apache.spark.api.java.function.FlatMapFunction;
+import org.apache.spark.api.java.function.PairFunction;
 import org.apache.spark.broadcast.Broadcast;
+import scala.Tuple2;
 
 public class VcfSink extends AbstractVcfSink {
 
   private FileSystemWrapper fileSystemWrapper = new HadoopFileSystemWrapper();
+  private final boolean writeCsiIndex;
+
+  public VcfSink() {
+    this(false);
+  }
+
+  /**
+   * @param writeCsiIndex if true, write a CSI index alongside the VCF file, which must be
+   *     BGZF-compressed
+   */
+  public VcfSink(boolean writeCsiIndex) {
+    this.writeCsiIndex = writeCsiIndex;
+  }
 
   @Override
   public void save(
@@ -30,19 +50,43 @@ public class VcfSink extends AbstractVcfSink {
       throws IOException {
     String shardedDir = path + ".sharded";
     Broadcast<VCFHeader> vcfHeaderBroadcast = jsc.broadcast(vcfHeader);
-    JavaRDD<String> variantStrings =
-        variants.mapPartitions(
-            (FlatMapFunction<Iterator<VariantContext>, String>)
-                variantContexts -> {
-                  VCFEncoder vcfEncoder =
-                      new VCFEncoder(vcfHeaderBroadcast.getValue(), false, false);
-                  return Iterators.transform(variantContexts, vcfEncoder::encode);
-                });
     boolean compressed = path.endsWith(BGZFCodec.DEFAULT_EXTENSION) || path.endsWith(".gz");
-    if (compressed) {
-      variantStrings.saveAsTextFile(shardedDir, BGZFCodec.class);
+    if (writeCsiIndex) {
+      if (!compressed) {
+        throw new IllegalArgumentException("CSI indexes can only be written for compressed VCF");
+      }
+      if (vcfHeader.getContigLines().isEmpty()) {
+        throw new IllegalArgumentException(
+            "CSI indexes can only be written for VCF with contig lines in the header");
+      }
+      // write BGZF blocks directly, rather than through the codec, so the virtual file offset of
+      // each record is known
+      Configuration jobConf = new Configuration(jsc.hadoopConfiguration());
+      HeaderlessVcfOutputFormat.setHeader(jobConf, vcfHeaderBroadcast);
+      variants
+          .mapToPair(
+              (PairFunction<VariantContext, Void, VariantContext>)
+                  variantContext -> new Tuple2<>(null, variantContext))
+          .saveAsNewAPIHadoopFile(
+              shardedDir,
+              Void.class,
+              VariantContext.class,
+              HeaderlessVcfOutputFormat.class,
+              jobConf);
     } else {
-      variantStrings.saveAsTextFile(shardedDir);
+      JavaRDD<String> variantStrings =
+          variants.mapPartitions(
+              (FlatMapFunction<Iterator<VariantContext>, String>)
+                  variantContexts -> {
+                    VCFEncoder vcfEncoder =
+                        new VCFEncoder(vcfHeaderBroadcast.getValue(), false, false);
+                    return Iterators.transform(variantContexts, vcfEncoder::encode);
+                  });
+      if (compressed) {
+        variantStrings.saveAsTextFile(shardedDir, BGZFCodec.class);
+      } else {
+        variantStrings.saveAsTextFile(shardedDir);
+      }
     }
     String headerFile = shardedDir + "/header" + (compressed ? BGZFCodec.DEFAULT_EXTENSION : "");
     try (OutputStream headerOut = fileSystemWrapper.create(jsc.hadoopConfiguration(), headerFile)) {
@@ -59,6 +103,23 @@ public class VcfSink extends AbstractVcfSink {
         out.write(BlockCompressedStreamConstants.EMPTY_GZIP_BLOCK);
       }
     }
-    new Merger().mergeParts(jsc.hadoopConfiguration(), shardedDir, path);
+    Merger merger = new Merger();
+    if (writeCsiIndex) {
+      CsiIndexBuilder csiIndexBuilder = new CsiIndexBuilder(BcfSource.getContigLengths(vcfHeader));
+      csiIndexBuilder.setAux(
+          CsiIndexBuilder.tabixVcfAux(
+              vcfHeader
+                  .getContigLines()
+                  .stream()
+                  .map(VCFContigHeaderLine::getID)
+                  .collect(Collectors.toList())));
+      CsiIndexFragments.mergeIndexFragments(
+          jsc.hadoopConfiguration(),
+          fileSystemWrapper,
+          csiIndexBuilder,
+          merger.listParts(jsc.hadoopConfiguration(), shardedDir),
+          path + CsiIndexBuilder.CSI_EXTENSION);
+    }
+    merger.mergeParts(jsc.hadoopConfiguration(), shardedDir, path);
   }
 }
@@ -2,7 +2,9 @@ package com.tom_e_white.squark.impl.formats.vcf;
 
 import htsjdk.variant.variantcontext.VariantContext;
 import htsjdk.variant.vcf.VCFHeader;
+import java.io.IOException;
 import java.io.Serializable;
+import org.apache.hadoop.conf.Configuration;
 import org.apache.spark.api.java.JavaRDD;
 import org.apache.spark.api.java.JavaSparkContext;
 import org.apache.spark.api.java.function.PairFunction;
@@ -19,23 +21,17 @@ public class VcfSinkMultiple extends AbstractVcfSink implements Serializable {
 
   @Override
   public void save(
-      JavaSparkContext jsc, VCFHeader vcfHeader, JavaRDD<VariantContext> variants, String path) {
+      JavaSparkContext jsc, VCFHeader vcfHeader, JavaRDD<VariantContext> variants, String path)
+      throws IOException {
     Broadcast<VCFHeader> headerBroadcast = jsc.broadcast(vcfHeader);
+    Configuration jobConf = new Configuration(jsc.hadoopConfiguration());
+    VcfOutputFormat.setHeader(jobConf, headerBroadcast);
+    VcfOutputFormat.setExtension(jobConf, extension);
     variants
-        .mapPartitions(
-            readIterator -> {
-              VcfOutputFormat.setHeader(headerBroadcast.getValue());
-              VcfOutputFormat.setExtension(extension);
-              return readIterator;
-            })
         .mapToPair(
             (PairFunction<VariantContext, Void, VariantContext>)
                 variantContext -> new Tuple2<>(null, variantContext))
         .saveAsNewAPIHadoopFile(
-            path,
-            Void.class,
-            VariantContext.class,
-            VcfOutputFormat.class,
-            jsc.hadoopConfiguration());
+            path, Void.class, VariantContext.class, VcfOutputFormat.class, jobConf);
   }
 }
@@ -1,50 +1,97 @@
 package com.tom_e_white.squark.impl.formats.vcf;
 
+import com.google.common.base.Throwables;
+import com.tom_e_white.squark.HtsjdkVariantsRddStorage.GenotypeDecoding;
+import com.tom_e_white.squark.impl.file.CachingFileSystemWrapper;
+import com.tom_e_white.squark.impl.file.CombinedSplits;
+import com.tom_e_white.squark.impl.file.CombiningTextInputFormat;
+import com.tom_e_white.squark.impl.file.FileCacheKey;
 import com.tom_e_white.squark.impl.file.FileSystemWrapper;
 import com.tom_e_white.squark.impl.file.HadoopFileSystemWrapper;
+import com.tom_e_white.squark.impl.file.MetadataCache;
 import com.tom_e_white.squark.impl.formats.bgzf.BGZFCodec;
 import com.tom_e_white.squark.impl.formats.bgzf.BGZFEnhancedGzipCodec;
+import com.tom_e_white.squark.impl.formats.csi.CsiIndexBuilder;
 import com.tom_e_white.squark.impl.formats.tabix.TabixIntervalFilteringTextInputFormat;
 import htsjdk.samtools.SamStreams;
 import htsjdk.samtools.seekablestream.SeekableStream;
-import htsjdk.samtools.util.BlockCompressedInputStream;
 import htsjdk.samtools.util.Locatable;
 import htsjdk.samtools.util.OverlapDetector;
 import htsjdk.tribble.FeatureCodecHeader;
-import htsjdk.tribble.index.tabix.TabixIndex;
 import htsjdk.tribble.readers.AsciiLineReader;
 import htsjdk.tribble.readers.AsciiLineReaderIterator;
 import htsjdk.tribble.util.TabixUtils;
 import htsjdk.variant.variantcontext.VariantContext;
 import htsjdk.variant.vcf.VCFCodec;
 import htsjdk.variant.vcf.VCFHeader;
-import htsjdk.variant.vcf.VCFHeaderVersion;
 import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 import java.util.stream.StreamSupport;
 import java.util.zip.GZIPInputStream;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.LongWritable;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.io.compress.CompressionCodec;
 import org.apache.hadoop.io.compress.CompressionCodecFactory;
 import org.apache.hadoop.io.compress.GzipCodec;
+import org.apache.hadoop.mapreduce.InputSplit;
 import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
 import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
+import org.apache.spark.api.java.JavaNewHadoopRDD;
 import org.apache.spark.api.java.JavaRDD;
 import org.apache.spark.api.java.JavaSparkContext;
-import org.apache.spark.api.java.function.FlatMapFunction;
+import org.apache.spark.api.java.function.Function2;
 import org.apache.spark.broadcast.Broadcast;
+import scala.Tuple2;
 
 public class VcfSource implements Serializable {
 
-  private FileSystemWrapper fileSystemWrapper = new HadoopFileSystemWrapper();
+  private FileSystemWrapper fileSystemWrapper =
+      new CachingFileSystemWrapper(new HadoopFileSystemWrapper());
+  private GenotypeDecoding genotypeDecoding;
+  private Set<String> samples;
+  // only used on the driver
+  private transient MetadataCache metadataCache = new MetadataCache();
+
+  public VcfSource() {
+    this(GenotypeDecoding.DEFAULT, null);
+  }
+
+  /**
+   * @param genotypeDecoding how genotypes are decoded
+   * @param samples the samples to read genotypes for, or null to read all samples
+   */
+  public VcfSource(GenotypeDecoding genotypeDecoding, Set<String> samples) {
+    this.genotypeDecoding = genotypeDecoding;
+    this.samples =
+        genotypeDecoding == GenotypeDecoding.SITES_ONLY ? Collections.emptySet() : samples;
+  }
+
+  /**
+   * Use the given cache for headers, so that files read more than once (for example, by each read
+   * from a storage object) only have their headers read once.
+   */
+  public void setMetadataCache(MetadataCache metadataCache) {
+    this.metadataCache = metadataCache;
+  }
 
   public VCFHeader getFileHeader(JavaSparkContext jsc, String path) throws IOException {
     Configuration conf = jsc.hadoopConfiguration();
@@ -54,8 +101,18 @@ public class VcfSource implements Serializable {
     } else {
       firstVcfPath = path;
     }
-    try (SeekableStream headerIn =
-        fileSystemWrapper.open(jsc.hadoopConfiguration(), firstVcfPath)) {
+    // a copy, since the caller may change it
+    return new VCFHeader(
+        readFileHeader(conf, FileCacheKey.of(fileSystemWrapper, conf, firstVcfPath)));
+  }
+
+  /** @return the file's header, which may have been cached, so must not be changed */
+  private VCFHeader readFileHeader(Configuration conf, FileCacheKey key) throws IOException {
+    return metadataCache.get(key, "header", () -> readFileHeader(conf, key.getPath()));
+  }
+
+  private VCFHeader readFileHeader(Configuration conf, String path) throws IOException {
+    try (SeekableStream headerIn = fileSystemWrapper.open(conf, path)) {
       BufferedInputStream bis = new BufferedInputStream(headerIn);
       // despite the name, isGzippedSAMFile looks for any gzipped stream
       InputStream is = SamStreams.isGzippedSAMFile(bis) ? new GZIPInputStream(bis) : bis;
@@ -65,40 +122,142 @@ public class VcfSource implements Serializable {
     }
   }
 
+  /**
+   * Read the header of each file, so that files with different headers (or header versions) are
+   * decoded correctly. The headers of the files in a directory are read in parallel, using the
+   * number of threads for listing files ({@link FileInputFormat#LIST_STATUS_NUM_THREADS}), since
+   * there may be many files.
+   */
+  VcfFileHeaders getFileHeaders(Configuration conf, String path) throws IOException {
+    VcfFileHeaders fileHeaders = new VcfFileHeaders(samples);
+    if (!fileSystemWrapper.isDirectory(conf, path)) {
+      fileHeaders.add(path, readFileHeader(conf, FileCacheKey.of(fileSystemWrapper, conf, path)));
+      return fileHeaders;
+    }
+    // the listing has the lengths and modification times of the files, for looking up headers
+    List<FileCacheKey> files =
+        fileSystemWrapper
+            .listDirectoryKeys(conf, path)
+            .stream()
+            .filter(file -> isVcfFile(file.getPath()))
+            .collect(Collectors.toList());
+    if (files.isEmpty()) {
+      throw new IllegalArgumentException("No files found in " + path);
+    }
+    int threads =
+        Math.min(
+            files.size(),
+            conf.getInt(
+                FileInputFormat.LIST_STATUS_NUM_THREADS,
+                FileInputFormat.DEFAULT_LIST_STATUS_NUM_THREADS));
+    ExecutorService executorService = Executors.newFixedThreadPool(Math.max(1, threads));
+    try {
+      List<Future<VCFHeader>> futures = new ArrayList<>();
+      for (FileCacheKey file : files) {
+        futures.add(executorService.submit(() -> readFileHeader(conf, file)));
+      }
+      for (int i = 0; i < files.size(); i++) {
+        fileHeaders.add(files.get(i).getPath(), futures.get(i).get());
+      }
+      return fileHeaders;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while reading headers");
+    } catch (ExecutionException e) {
+      Throwables.propagateIfPossible(e.getCause(), IOException.class);
+      throw new IOException(e.getCause());
+    } finally {
+      executorService.shutdownNow();
+    }
+  }
+
+  /** @return whether the file is read as input, rather than being hidden or an index */
+  private static boolean isVcfFile(String path) {
+    String name = new Path(path).getName();
+    return !(name.startsWith(".")
+        || name.startsWith("_")
+        || name.endsWith(TabixUtils.STANDARD_INDEX_EXTENSION)
+        || name.endsWith(CsiIndexBuilder.CSI_EXTENSION));
+  }
+
+  /**
+   * @return the header for the variants returned by {@link #getVariants}, which only has the
+   *     samples being read. For a directory, the headers of the files are merged.
+   * @throws IllegalArgumentException if the files in a directory have different samples, or headers
+   *     that cannot be merged
+   */
+  public VCFHeader getHeader(JavaSparkContext jsc, String path) throws IOException {
+    return getFileHeaders(jsc.hadoopConfiguration(), path).getHeader();
+  }
+
+  /**
+   * @return a copy of the header with only the given samples (in file order), or the header itself
+   *     if samples is null
+   */
+  static VCFHeader selectSamples(VCFHeader fileHeader, Set<String> samples, String path) {
+    if (samples == null) {
+      return fileHeader;
+    }
+    List<String> selectedSamples = new ArrayList<>();
+    for (String sample : fileHeader.getGenotypeSamples()) {
+      if (samples.contains(sample)) {
+        selectedSamples.add(sample);
+      }
+    }
+    if (selectedSamples.size() != samples.size()) {
+      Set<String> missingSamples = new LinkedHashSet<>(samples);
+      missingSamples.removeAll(selectedSamples);
+      throw new IllegalArgumentException("Samples not found in " + path + ": " + missingSamples);
+    }
+    return new VCFHeader(fileHeader.getMetaDataInInputOrder(), selectedSamples);
+  }
+
   public <T extends Locatable> JavaRDD<VariantContext> getVariants(
       JavaSparkContext jsc, String path, int splitSize, List<T> intervals) throws IOException {
 
     // Use Hadoop FileSystem API to maintain file locality by using Hadoop's FileInputFormat
 
-    final Configuration conf = jsc.hadoopConfiguration();
+    // a copy, so that the settings for this read aren't seen by other reads on the same context
+    final Configuration conf = new Configuration(jsc.hadoopConfiguration());
     if (splitSize > 0) {
       conf.setInt(FileInputFormat.SPLIT_MAXSIZE, splitSize);
     }
     enableBGZFCodecs(conf);
 
-    VCFHeader vcfHeader = getFileHeader(jsc, path);
-    Broadcast<VCFHeader> vcfHeaderBroadcast = jsc.broadcast(vcfHeader);
+    GenotypeDecoding genotypeDecoding = this.genotypeDecoding;
+    VcfFileHeaders fileHeaders = getFileHeaders(conf, path);
+    Broadcast<VcfFileHeaders> fileHeadersBroadcast = jsc.broadcast(fileHeaders);
     Broadcast<List<T>> intervalsBroadcast = intervals == null ? null : jsc.broadcast(intervals);
 
-    return textFile(jsc, conf, path, intervals)
-        .mapPartitions(
-            (FlatMapFunction<Iterator<String>, VariantContext>)
-                lines -> {
-                  VCFCodec codec = new VCFCodec(); // Use map partitions so we can reuse codec (not
-                  // broadcast-able)
-                  codec.setVCFHeader(
-                      vcfHeaderBroadcast.getValue(),
-                      VCFHeaderVersion.VCF4_1); // TODO: how to determine version?
+    return textFile(jsc, conf, path, fileHeaders, intervals)
+        .mapPartitionsWithInputSplit(
+            (Function2<InputSplit, Iterator<Tuple2<LongWritable, Text>>, Iterator<VariantContext>>)
+                (split, lines) -> {
+                  // Use map partitions so we can reuse codecs (not broadcast-able), and decode
+                  // with the header of the file each line is from, since a combined split may
+                  // have lines from more than one file
+                  VcfFileHeaders headers = fileHeadersBroadcast.getValue();
+                  Map<Path, VariantContextDecoder> decoders = new HashMap<>();
                   final OverlapDetector<T> overlapDetector =
                       intervalsBroadcast == null
                           ? null
                           : OverlapDetector.create(intervalsBroadcast.getValue());
+                  // The Text object is reused by the record reader, so each line is decoded
+                  // straight from its buffer before the next line is read. Header lines are
+                  // detected from the first byte, and are never converted to strings.
                   return stream(lines)
-                      .filter(line -> !line.startsWith("#"))
-                      .map(codec::decode)
+                      .filter(line -> line._2.getLength() == 0 || line._2.getBytes()[0] != '#')
+                      .map(
+                          line ->
+                              decoders
+                                  .computeIfAbsent(
+                                      CombiningTextInputFormat.getPath(split, line._1),
+                                      file -> headers.createDecoder(file, genotypeDecoding))
+                                  .decode(line._2.getBytes(), line._2.getLength()))
                       .filter(vc -> overlapDetector == null || overlapDetector.overlapsAny(vc))
                       .iterator();
-                });
+                },
+            false);
   }
 
   private void enableBGZFCodecs(Configuration conf) {
@@ -113,41 +272,39 @@ public class VcfSource implements Serializable {
     CompressionCodecFactory.setCodecClasses(conf, new ArrayList<>(codecs));
   }
 
-  private <T extends Locatable> JavaRDD<String> textFile(
-      JavaSparkContext jsc, Configuration conf, String path, List<T> intervals) throws IOException {
+  private <T extends Locatable> JavaNewHadoopRDD<LongWritable, Text> textFile(
+      JavaSparkContext jsc,
+      Configuration conf,
+      String path,
+      VcfFileHeaders fileHeaders,
+      List<T> intervals)
+      throws IOException {
     if (intervals == null) {
-      // Use this over JavaSparkContext#textFile since this allows the configuration to be passed in
-      return jsc.newAPIHadoopFile(
-              path,
-              TextInputFormat.class,
-              LongWritable.class,
-              Text.class,
-              jsc.hadoopConfiguration())
-          .map(pair -> pair._2.toString())
-          .setName(path);
+      // Use this over JavaSparkContext#textFile since this allows the configuration to be passed
+      // in. The files in a directory are combined into partitions.
+      Class<? extends FileInputFormat<LongWritable, Text>> inputFormatClass =
+          CombinedSplits.isEnabled(fileSystemWrapper, conf, path)
+              ? CombiningTextInputFormat.class
+              : TextInputFormat.class;
+      return (JavaNewHadoopRDD<LongWritable, Text>)
+          jsc.newAPIHadoopFile(path, inputFormatClass, LongWritable.class, Text.class, conf)
+              .setName(path);
     } else {
-      try (InputStream indexIn = findIndex(conf, path)) {
-        TabixIndex tabixIndex = new TabixIndex(indexIn);
-        TabixIntervalFilteringTextInputFormat.setTabixIndex(tabixIndex);
-        TabixIntervalFilteringTextInputFormat.setIntervals(intervals);
-        return jsc.newAPIHadoopFile(
-                path,
-                TabixIntervalFilteringTextInputFormat.class,
-                LongWritable.class,
-                Text.class,
-                jsc.hadoopConfiguration())
-            .map(pair -> pair._2.toString())
-            .setName(path);
-      }
-    }
-  }
-
-  private InputStream findIndex(Configuration conf, String path) throws IOException {
-    String index = path + TabixUtils.STANDARD_INDEX_EXTENSION;
-    if (fileSystemWrapper.exists(conf, index)) {
-      return new BlockCompressedInputStream(fileSystemWrapper.open(conf, index));
+      Configuration jobConf = new Configuration(conf);
+      // the indexes are read here rather than when splits are planned, so they are cached
+      TabixIntervalFilteringTextInputFormat.setFileChunks(
+          jobConf,
+          TabixIntervalFilteringTextInputFormat.getFileChunks(
+              conf, metadataCache, fileHeaders.getFiles(), intervals));
+      return (JavaNewHadoopRDD<LongWritable, Text>)
+          jsc.newAPIHadoopFile(
+                  path,
+                  TabixIntervalFilteringTextInputFormat.class,
+                  LongWritable.class,
+                  Text.class,
+                  jobConf)
+              .setName(path);
     }
-    throw new IllegalArgumentException("Intervals set but no tabix index file found for " + path);
   }
 
   private static <T> Stream<T> stream(final Iterator<T> iterator) {
@@ -14,7 +14,7 @@ public class CRAMIntervalIterator extends BAMQueryMultipleIntervalsIteratorFilte
 
   // the granularity of this iterator is the container, so the records returned
   // by it must still be filtered to find those matching the filter criteria
-  private CRAMIterator unfilteredIterator;
+  private CloseableIterator<SAMRecord> unfilteredIterator;
   SAMRecord nextRec = null;
 
   public CRAMIntervalIterator(
@@ -38,6 +38,19 @@ public class CRAMIntervalIterator extends BAMQueryMultipleIntervalsIteratorFilte
     }
   }
 
+  /**
+   * Create an iterator that filters the records returned by the given iterator, which should
+   * iterate over the file span for the queries.
+   */
+  public CRAMIntervalIterator(
+      final QueryInterval[] queries,
+      final boolean contained,
+      CloseableIterator<SAMRecord> unfilteredIterator) {
+    super(queries, contained);
+    this.unfilteredIterator = unfilteredIterator;
+    getNextRecord(); // advance to the first record that matches the filter criteria
+  }
+
   // convert queries -> merged BAMFileSpan -> coordinate array
   private long[] coordinatesFromQueryIntervals(BAMIndex index, QueryInterval[] queries) {
     ArrayList<BAMFileSpan> spanList = new ArrayList<>(1);
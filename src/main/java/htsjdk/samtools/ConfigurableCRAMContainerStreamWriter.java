@@ -0,0 +1,409 @@
+package htsjdk.samtools;
+
+import htsjdk.samtools.cram.build.ConfigurableContainerFactory;
+import htsjdk.samtools.cram.build.CramEncodingStrategy;
+import htsjdk.samtools.cram.build.CramIO;
+import htsjdk.samtools.cram.build.CramNormalizer;
+import htsjdk.samtools.cram.build.Sam2CramRecordFactory;
+import htsjdk.samtools.cram.common.CramVersions;
+import htsjdk.samtools.cram.common.Version;
+import htsjdk.samtools.cram.ref.CRAMReferenceSource;
+import htsjdk.samtools.cram.structure.Container;
+import htsjdk.samtools.cram.structure.ContainerIO;
+import htsjdk.samtools.cram.structure.CramCompressionRecord;
+import htsjdk.samtools.cram.structure.Slice;
+import htsjdk.samtools.util.Log;
+import htsjdk.samtools.util.RuntimeIOException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes CRAM containers in the same way as {@link CRAMContainerStreamWriter}, except that the
+ * number of records per slice, the number of slices per container, and the {@link
+ * CramEncodingStrategy} may be chosen. Lossy quality score preservation and indexing are not
+ * supported.
+ *
+ * <p>If more than one encoding thread is requested then records are batched into containers on the
+ * calling thread, and each container is built (converted, encoded, and compressed) on a bounded
+ * pool of worker threads. Containers are written to the output stream in the order their records
+ * were written, and at most two containers per thread are held in memory waiting to be written.
+ *
+ * <p>TODO: Move to htsjdk
+ */
+public class ConfigurableCRAMContainerStreamWriter {
+  public static final int DEFAULT_RECORDS_PER_SLICE = 10000;
+  public static final int DEFAULT_SLICES_PER_CONTAINER = 1;
+  public static final int DEFAULT_ENCODING_THREADS = 1;
+
+  private static final Version cramVersion = CramVersions.DEFAULT_CRAM_VERSION;
+  private static final int MIN_SINGLE_REF_RECORDS = 1000;
+  private static final int REF_SEQ_INDEX_NOT_INITIALIZED = -3;
+  private static final long ENCODING_THREAD_KEEP_ALIVE_SECONDS = 60;
+
+  private static final Log log = Log.getInstance(ConfigurableCRAMContainerStreamWriter.class);
+
+  private final SAMFileHeader samFileHeader;
+  private final String cramID;
+  private final OutputStream outputStream;
+  private final CRAMReferenceSource source;
+  private final int containerSize;
+  private final ConfigurableContainerFactory containerFactory;
+  private final ExecutorService encodingExecutor;
+  private final int maxPendingContainers;
+  private final Deque<Future<Container>> pendingContainers = new ArrayDeque<>();
+  private List<SAMRecord> samRecords = new ArrayList<>();
+  private int refSeqIndex = REF_SEQ_INDEX_NOT_INITIALIZED;
+  private long globalRecordCounter;
+  private long offset;
+
+  public ConfigurableCRAMContainerStreamWriter(
+      OutputStream outputStream,
+      CRAMReferenceSource source,
+      SAMFileHeader samFileHeader,
+      String cramId) {
+    this(
+        outputStream,
+        source,
+        samFileHeader,
+        cramId,
+        DEFAULT_RECORDS_PER_SLICE,
+        DEFAULT_SLICES_PER_CONTAINER,
+        CramEncodingStrategy.DEFAULT,
+        DEFAULT_ENCODING_THREADS);
+  }
+
+  public ConfigurableCRAMContainerStreamWriter(
+      OutputStream outputStream,
+      CRAMReferenceSource source,
+      SAMFileHeader samFileHeader,
+      String cramId,
+      int recordsPerSlice,
+      int slicesPerContainer,
+      CramEncodingStrategy encodingStrategy,
+      int encodingThreads) {
+    this.outputStream = outputStream;
+    this.samFileHeader = samFileHeader;
+    this.cramID = cramId;
+    this.source = source;
+    this.containerSize = recordsPerSlice * slicesPerContainer;
+    this.containerFactory =
+        new ConfigurableContainerFactory(samFileHeader, recordsPerSlice, encodingStrategy);
+    if (encodingThreads > 1) {
+      ThreadPoolExecutor executor =
+          new ThreadPoolExecutor(
+              encodingThreads,
+              encodingThreads,
+              ENCODING_THREAD_KEEP_ALIVE_SECONDS,
+              TimeUnit.SECONDS,
+              new LinkedBlockingQueue<>(),
+              runnable -> {
+                Thread thread = new Thread(runnable, "cram-encoder");
+                thread.setDaemon(true);
+                return thread;
+              });
+      executor.allowCoreThreadTimeOut(true); // don't leak threads if the writer is not finished
+      this.encodingExecutor = executor;
+      this.maxPendingContainers = 2 * encodingThreads;
+    } else {
+      this.encodingExecutor = null;
+      this.maxPendingContainers = 0;
+    }
+  }
+
+  public void writeAlignment(SAMRecord alignment) {
+    if (shouldFlushContainer(alignment)) {
+      flushContainer();
+    }
+    updateReferenceContext(alignment.getReferenceIndex());
+    samRecords.add(alignment);
+  }
+
+  public void writeHeader(SAMFileHeader header) {
+    offset = CramIO.writeHeader(cramVersion, outputStream, header, cramID);
+  }
+
+  public void finish(boolean writeEOFContainer) {
+    try {
+      if (!samRecords.isEmpty()) {
+        flushContainer();
+      }
+      while (!pendingContainers.isEmpty()) {
+        writeContainer(awaitContainer(pendingContainers.remove()));
+      }
+      if (writeEOFContainer) {
+        CramIO.issueEOF(cramVersion, outputStream);
+      }
+      outputStream.flush();
+      outputStream.close();
+    } catch (IOException e) {
+      throw new RuntimeIOException(e);
+    } finally {
+      if (encodingExecutor != null) {
+        encodingExecutor.shutdownNow();
+      }
+    }
+  }
+
+  private boolean shouldFlushContainer(SAMRecord nextRecord) {
+    if (samRecords.isEmpty()) {
+      refSeqIndex = nextRecord.getReferenceIndex();
+      return false;
+    }
+    if (samRecords.size() >= containerSize) {
+      return true;
+    }
+    if (samFileHeader.getSortOrder() != SAMFileHeader.SortOrder.coordinate) {
+      return false;
+    }
+    // make unmapped reads go into a separate container
+    if (refSeqIndex != SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX
+        && nextRecord.getReferenceIndex() == SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX) {
+      return true;
+    }
+    if (refSeqIndex == Slice.MULTI_REFERENCE) {
+      return false;
+    }
+    if (refSeqIndex == nextRecord.getReferenceIndex()) {
+      return false;
+    }
+    // the reference has changed, so start a new container if there are enough records for a
+    // single-reference container, otherwise switch to a multi-reference container
+    if (samRecords.size() > MIN_SINGLE_REF_RECORDS) {
+      return true;
+    }
+    refSeqIndex = Slice.MULTI_REFERENCE;
+    return false;
+  }
+
+  private void flushContainer() {
+    List<SAMRecord> containerRecords = samRecords;
+    int containerRefSeqIndex = refSeqIndex;
+    long containerGlobalRecordCounter = globalRecordCounter;
+    globalRecordCounter += containerRecords.size();
+    samRecords = new ArrayList<>();
+    refSeqIndex = REF_SEQ_INDEX_NOT_INITIALIZED;
+
+    if (encodingExecutor == null) {
+      writeContainer(
+          buildContainer(containerRecords, containerRefSeqIndex, containerGlobalRecordCounter));
+      return;
+    }
+    pendingContainers.add(
+        encodingExecutor.submit(
+            () ->
+                buildContainer(
+                    containerRecords, containerRefSeqIndex, containerGlobalRecordCounter)));
+    // write containers that are ready, and wait if too many are pending
+    while (!pendingContainers.isEmpty()
+        && (pendingContainers.peek().isDone() || pendingContainers.size() > maxPendingContainers)) {
+      writeContainer(awaitContainer(pendingContainers.remove()));
+    }
+  }
+
+  private void writeContainer(Container container) {
+    try {
+      container.offset = offset;
+      offset += ContainerIO.writeContainer(cramVersion, container, outputStream);
+    } catch (IOException e) {
+      throw new RuntimeIOException(e);
+    }
+  }
+
+  private static Container awaitContainer(Future<Container> future) {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeIOException(e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new RuntimeException(e.getCause());
+    }
+  }
+
+  /** Convert the records to CRAM records and build them into a compressed container. */
+  private Container buildContainer(
+      List<SAMRecord> records, int containerRefSeqIndex, long containerGlobalRecordCounter) {
+    try {
+      return buildContainerUnchecked(records, containerRefSeqIndex, containerGlobalRecordCounter);
+    } catch (IOException e) {
+      throw new RuntimeIOException(e);
+    } catch (IllegalAccessException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private Container buildContainerUnchecked(
+      List<SAMRecord> records, int containerRefSeqIndex, long containerGlobalRecordCounter)
+      throws IllegalAccessException, IOException {
+    byte[] refs;
+    switch (containerRefSeqIndex) {
+      case Slice.MULTI_REFERENCE:
+      case SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX:
+        refs = new byte[0];
+        break;
+      default:
+        refs = source.getReferenceBases(samFileHeader.getSequence(containerRefSeqIndex), true);
+        break;
+    }
+
+    int start = 0;
+    for (SAMRecord r : records) {
+      if (r.getAlignmentStart() != SAMRecord.NO_ALIGNMENT_START) {
+        start = start == 0 ? r.getAlignmentStart() : Math.min(r.getAlignmentStart(), start);
+      }
+    }
+
+    List<CramCompressionRecord> cramRecords = new ArrayList<>(records.size());
+    Sam2CramRecordFactory sam2CramRecordFactory =
+        new Sam2CramRecordFactory(refs, samFileHeader, cramVersion);
+    sam2CramRecordFactory.preserveReadNames = true;
+    sam2CramRecordFactory.captureAllTags = true;
+
+    int index = 0;
+    int prevAlStart = start;
+    for (SAMRecord samRecord : records) {
+      if (samRecord.getReferenceIndex() != SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX
+          && containerRefSeqIndex != samRecord.getReferenceIndex()) {
+        // this may load all ref sequences into memory
+        sam2CramRecordFactory.setRefBases(
+            source.getReferenceBases(
+                samFileHeader.getSequence(samRecord.getReferenceIndex()), true));
+      }
+      CramCompressionRecord cramRecord = sam2CramRecordFactory.createCramRecord(samRecord);
+      cramRecord.index = ++index;
+      cramRecord.alignmentDelta = samRecord.getAlignmentStart() - prevAlStart;
+      cramRecord.alignmentStart = samRecord.getAlignmentStart();
+      prevAlStart = samRecord.getAlignmentStart();
+      if (cramRecord.qualityScores != SAMRecord.NULL_QUALS) {
+        cramRecord.setForcePreserveQualityScores(true);
+      }
+      cramRecords.add(cramRecord);
+    }
+
+    if (sam2CramRecordFactory.getBaseCount() < 3 * sam2CramRecordFactory.getFeatureCount()) {
+      log.warn("Abnormally high number of mismatches, possibly wrong reference.");
+    }
+
+    if (samFileHeader.getSortOrder() == SAMFileHeader.SortOrder.coordinate) {
+      resolveMates(cramRecords);
+    } else {
+      for (CramCompressionRecord cramRecord : cramRecords) {
+        cramRecord.setDetached(true);
+      }
+    }
+
+    Container container =
+        containerFactory.buildContainer(cramRecords, containerGlobalRecordCounter);
+    for (Slice slice : container.slices) {
+      slice.setRefMD5(refs);
+    }
+    return container;
+  }
+
+  /** Link mates that are in the same container, and detach the rest. */
+  private static void resolveMates(List<CramCompressionRecord> cramRecords) {
+    Map<String, CramCompressionRecord> primaryMateMap = new HashMap<>();
+    Map<String, CramCompressionRecord> secondaryMateMap = new HashMap<>();
+    for (CramCompressionRecord r : cramRecords) {
+      if (!r.isMultiFragment()) {
+        detachSingle(r);
+        continue;
+      }
+      Map<String, CramCompressionRecord> mateMap =
+          r.isSecondaryAlignment() ? secondaryMateMap : primaryMateMap;
+      CramCompressionRecord mate = mateMap.get(r.readName);
+      if (mate == null) {
+        mateMap.put(r.readName, r);
+        continue;
+      }
+      CramCompressionRecord prev = mate;
+      while (prev.next != null) {
+        prev = prev.next;
+      }
+      prev.recordsToNextFragment = r.index - prev.index - 1;
+      prev.next = r;
+      r.previous = prev;
+      r.previous.setHasMateDownStream(true);
+      r.setHasMateDownStream(false);
+      r.setDetached(false);
+      r.previous.setDetached(false);
+    }
+
+    // mates are only attached if the template length can be restored from them
+    for (CramCompressionRecord cramRecord : cramRecords) {
+      if (cramRecord.next == null || cramRecord.previous != null) {
+        continue;
+      }
+      CramCompressionRecord last = cramRecord;
+      while (last.next != null) {
+        last = last.next;
+      }
+      if (cramRecord.isFirstSegment() && last.isLastSegment()) {
+        int templateLength = CramNormalizer.computeInsertSize(cramRecord, last);
+        if (cramRecord.templateSize == templateLength) {
+          last = cramRecord.next;
+          while (last.next != null && last.templateSize == -templateLength) {
+            last = last.next;
+          }
+          if (last.templateSize == -templateLength) {
+            continue;
+          }
+        }
+      }
+      detach(cramRecord);
+    }
+
+    for (CramCompressionRecord cramRecord : primaryMateMap.values()) {
+      if (cramRecord.next == null) {
+        detachSingle(cramRecord);
+      }
+    }
+    for (CramCompressionRecord cramRecord : secondaryMateMap.values()) {
+      if (cramRecord.next == null) {
+        detachSingle(cramRecord);
+      }
+    }
+  }
+
+  private static void detachSingle(CramCompressionRecord cramRecord) {
+    cramRecord.setDetached(true);
+    cramRecord.setHasMateDownStream(false);
+    cramRecord.recordsToNextFragment = -1;
+    cramRecord.next = null;
+    cramRecord.previous = null;
+  }
+
+  private static void detach(CramCompressionRecord cramRecord) {
+    do {
+      cramRecord.setDetached(true);
+      cramRecord.setHasMateDownStream(false);
+      cramRecord.recordsToNextFragment = -1;
+    } while ((cramRecord = cramRecord.next) != null);
+  }
+
+  private void updateReferenceContext(int samRecordReferenceIndex) {
+    if (refSeqIndex == Slice.MULTI_REFERENCE) {
+      return;
+    }
+    if (refSeqIndex == REF_SEQ_INDEX_NOT_INITIALIZED) {
+      refSeqIndex = samRecordReferenceIndex;
+    } else if (refSeqIndex != samRecordReferenceIndex) {
+      refSeqIndex = Slice.MULTI_REFERENCE;
+    }
+  }
+}
@@ -25,62 +25,71 @@
 package htsjdk.samtools;
 
 import htsjdk.samtools.seekablestream.SeekableStream;
-import java.io.BufferedInputStream;
 import java.io.IOException;
-import java.io.InputStream;
 
 /**
  * A wrapper class to provide buffered read access to a SeekableStream. Just wrapping such a stream
  * with a BufferedInputStream will not work as it does not support seeking. In this implementation a
- * seek call is delegated to the wrapped stream, and the buffer reset.
+ * seek within the buffer just moves the position in the buffer, and any other seek is deferred
+ * until the next read, so the buffer is only refilled when it is needed.
+ *
+ * <p>The amount read ahead into the buffer adapts to the access pattern: it is doubled (up to a
+ * maximum) each time the buffer is refilled by reading on from the end of the buffer, and halved
+ * (down to a minimum) each time a seek goes outside the buffer. So sequential reads are served by a
+ * few large reads, while random access (such as probing for record starts when splitting a file)
+ * doesn't read much more than it needs, which matters for object stores where every byte fetched
+ * costs. The buffer array is reused, and only reallocated when the read-ahead grows beyond it.
+ * Reads that are larger than the read-ahead are read directly into the caller's buffer.
  *
  * <p>TODO: Contribute changes back to htsjdk.
  */
 public class ExtSeekableBufferedStream extends SeekableStream {
 
-  /**
-   * Little extension to buffered input stream to give access to the available bytes in the buffer.
-   */
-  private class ExtBufferedInputStream extends BufferedInputStream {
-    private ExtBufferedInputStream(final InputStream inputStream, final int i) {
-      super(inputStream, i);
-    }
+  /** The buffer size for streams created with a fixed buffer size, for backwards compatibility. */
+  public static final int DEFAULT_BUFFER_SIZE = 512000;
 
-    /**
-     * Returns the number of bytes that can be read from the buffer without reading more into the
-     * buffer.
-     */
-    int getBytesInBufferAvailable() {
-      if (this.count == this.pos) return 0; // documented test for "is buffer empty"
-      else return this.buf.length - this.pos;
-    }
+  public static final int DEFAULT_MIN_READ_AHEAD = 4 * 1024;
+  public static final int DEFAULT_INITIAL_READ_AHEAD = 64 * 1024;
+  public static final int DEFAULT_MAX_READ_AHEAD = 4 * 1024 * 1024;
 
-    /** Returns the position in the buffer. */
-    int getPositionInBuffer() {
-      return pos;
-    }
+  private static final byte[] EMPTY_BUFFER = new byte[0];
 
-    void changePos(int delta) {
-      this.pos += delta;
+  final SeekableStream wrappedStream;
+  private final int minReadAhead;
+  private final int maxReadAhead;
+  private int readAhead;
+  private byte[] buffer = EMPTY_BUFFER;
+  private long bufferStart = -1; // the position in the stream of the start of the buffer
+  private int bufferLength; // the number of bytes in the buffer
+  private long wrappedPosition = -1; // the position of the wrapped stream, or -1 if not known
+  private long position;
+
+  /** Create a stream with adaptive read-ahead, between the given minimum and maximum. */
+  public ExtSeekableBufferedStream(
+      final SeekableStream stream, final int minReadAhead, final int maxReadAhead) {
+    if (minReadAhead <= 0 || maxReadAhead < minReadAhead) {
+      throw new IllegalArgumentException(
+          "Invalid read-ahead sizes, minimum " + minReadAhead + ", maximum " + maxReadAhead);
     }
+    this.wrappedStream = stream;
+    this.minReadAhead = minReadAhead;
+    this.maxReadAhead = maxReadAhead;
+    this.readAhead = Math.max(minReadAhead, Math.min(DEFAULT_INITIAL_READ_AHEAD, maxReadAhead));
   }
 
-  public static final int DEFAULT_BUFFER_SIZE = 512000;
-
-  private final int bufferSize;
-  final SeekableStream wrappedStream;
-  ExtBufferedInputStream bufferedStream;
-  long position;
-
+  /** Create a stream with a fixed buffer size. */
   public ExtSeekableBufferedStream(final SeekableStream stream, final int bufferSize) {
-    this.bufferSize = bufferSize;
-    this.wrappedStream = stream;
-    this.position = 0;
-    bufferedStream = new ExtBufferedInputStream(wrappedStream, bufferSize);
+    this(stream, bufferSize, bufferSize);
   }
 
+  /** Create a stream with the default adaptive read-ahead. */
   public ExtSeekableBufferedStream(final SeekableStream stream) {
-    this(stream, DEFAULT_BUFFER_SIZE);
+    this(stream, DEFAULT_MIN_READ_AHEAD, DEFAULT_MAX_READ_AHEAD);
+  }
+
+  /** @return the number of bytes that the next refill of the buffer will read */
+  int getReadAhead() {
+    return readAhead;
   }
 
   @Override
@@ -90,62 +99,114 @@ public class ExtSeekableBufferedStream extends SeekableStream {
 
   @Override
   public long skip(final long skipLength) throws IOException {
-    if (skipLength < this.bufferedStream.getBytesInBufferAvailable()) {
-      final long retval = this.bufferedStream.skip(skipLength);
-      this.position += retval;
-      return retval;
-    } else {
-      final long position = this.position + skipLength;
-      seek(position);
-      return skipLength;
+    if (skipLength <= 0) {
+      return 0;
     }
+    seek(position + skipLength);
+    return skipLength;
   }
 
   @Override
   public void seek(final long position) throws IOException {
-    if (this.position == position) {
-      return;
-    }
-    if (position > this.position
-            && (position - this.position < this.bufferedStream.getBytesInBufferAvailable())
-        || position < this.position
-            && (this.position - position < this.bufferedStream.getPositionInBuffer())) {
-      this.bufferedStream.changePos((int) (position - this.position));
-    } else {
-      wrappedStream.seek(position);
-      bufferedStream = new ExtBufferedInputStream(wrappedStream, bufferSize);
+    if (bufferStart >= 0 && (position < bufferStart || position > bufferStart + bufferLength)) {
+      // random access, so read less ahead next time
+      readAhead = Math.max(minReadAhead, readAhead / 2);
     }
     this.position = position;
   }
 
   @Override
   public int read() throws IOException {
-    int b = bufferedStream.read();
-    position++;
-    return b;
+    if (!positionInBuffer() && !fill()) {
+      return -1;
+    }
+    return buffer[(int) (position++ - bufferStart)] & 0xff;
   }
 
   @Override
-  public int read(final byte[] buffer, final int offset, final int length) throws IOException {
-    int nBytesRead = bufferedStream.read(buffer, offset, length);
-    if (nBytesRead > 0) {
-      // if we can't read as many bytes as we are asking for then attempt another read to reset the
-      // buffer.
-      if (nBytesRead < length) {
-        final int additionalBytesRead =
-            bufferedStream.read(buffer, nBytesRead + offset, length - nBytesRead);
-        // if there were additional bytes read then update nBytesRead
-        if (additionalBytesRead > 0) {
-          nBytesRead += additionalBytesRead;
+  public int read(final byte[] b, final int offset, final int length) throws IOException {
+    if (length == 0) {
+      return 0;
+    }
+    int total = 0;
+    while (total < length) {
+      if (!positionInBuffer()) {
+        if (length - total >= readAhead) {
+          // too big for the buffer, so read directly
+          int n = readWrapped(b, offset + total, length - total);
+          if (n > 0) {
+            total += n;
+            position += n;
+            bufferStart = position; // so the next refill is seen as sequential
+            bufferLength = 0;
+          }
+          break;
+        }
+        if (!fill()) {
+          break;
         }
       }
-      position += nBytesRead;
+      int n = (int) Math.min(length - total, bufferStart + bufferLength - position);
+      System.arraycopy(buffer, (int) (position - bufferStart), b, offset + total, n);
+      total += n;
+      position += n;
+    }
+    return total == 0 ? -1 : total;
+  }
+
+  private boolean positionInBuffer() {
+    return position >= bufferStart && position < bufferStart + bufferLength;
+  }
+
+  /**
+   * Refill the buffer from the current position, growing the read-ahead if the buffer is being read
+   * sequentially.
+   *
+   * @return false if the end of the stream has been reached
+   */
+  private boolean fill() throws IOException {
+    if (position == bufferStart + bufferLength) {
+      readAhead = Math.min(maxReadAhead, readAhead * 2);
+    }
+    if (buffer.length < readAhead) {
+      buffer = new byte[readAhead];
+    }
+    bufferStart = position;
+    bufferLength = 0;
+    int n = readWrapped(buffer, 0, readAhead);
+    if (n > 0) {
+      bufferLength = n;
+    }
+    return n > 0;
+  }
+
+  /**
+   * Read from the wrapped stream at the current position, until the requested length is read or the
+   * end of the stream is reached.
+   *
+   * @return the number of bytes read, or -1 if at the end of the stream
+   */
+  private int readWrapped(final byte[] b, final int offset, final int length) throws IOException {
+    if (wrappedPosition != position) {
+      wrappedStream.seek(position);
+      wrappedPosition = position;
+    }
+    int total = 0;
+    while (total < length) {
+      int n = wrappedStream.read(b, offset + total, length - total);
+      if (n <= 0) {
+        break;
+      }
+      total += n;
     }
-    return nBytesRead;
+    wrappedPosition += total;
+    return total == 0 ? -1 : total;
   }
 
   @Override
   public void close() throws IOException {
+    buffer = EMPTY_BUFFER;
+    bufferLength = 0;
     wrappedStream.close();
   }
 
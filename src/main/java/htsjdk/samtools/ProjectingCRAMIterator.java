@@ -0,0 +1,440 @@
+package htsjdk.samtools;
+
+import htsjdk.samtools.cram.CRAMException;
+import htsjdk.samtools.cram.build.Cram2SamRecordFactory;
+import htsjdk.samtools.cram.build.CramIO;
+import htsjdk.samtools.cram.build.CramNormalizer;
+import htsjdk.samtools.cram.encoding.reader.CramRecordReader;
+import htsjdk.samtools.cram.encoding.reader.DataReader;
+import htsjdk.samtools.cram.encoding.reader.DataReaderFactory;
+import htsjdk.samtools.cram.io.DefaultBitInputStream;
+import htsjdk.samtools.cram.io.ITF8;
+import htsjdk.samtools.cram.ref.CRAMReferenceSource;
+import htsjdk.samtools.cram.structure.Block;
+import htsjdk.samtools.cram.structure.CompressionHeader;
+import htsjdk.samtools.cram.structure.Container;
+import htsjdk.samtools.cram.structure.CramCompressionRecord;
+import htsjdk.samtools.cram.structure.CramHeader;
+import htsjdk.samtools.cram.structure.EncodingID;
+import htsjdk.samtools.cram.structure.EncodingKey;
+import htsjdk.samtools.cram.structure.EncodingParams;
+import htsjdk.samtools.cram.structure.LazyContainerIO;
+import htsjdk.samtools.cram.structure.Slice;
+import htsjdk.samtools.seekablestream.SeekableStream;
+import htsjdk.samtools.util.CloseableIterator;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * An iterator over the CRAM records in a file span that only decodes the fields that are needed.
+ * Read names, bases, quality scores, and tags may each be left out, in which case the external
+ * blocks holding the corresponding data series are neither decompressed nor decoded (as long as
+ * they are not shared with a data series that is needed). If bases are left out then no reference
+ * is needed, and reference MD5 checks are not carried out.
+ *
+ * <p>Fields that are left out are set to missing values in the returned records: "*" for read
+ * names, bases, and quality scores, and no tags (other than the read group).
+ *
+ * <p>TODO: Move to htsjdk
+ */
+public class ProjectingCRAMIterator implements CloseableIterator<SAMRecord> {
+
+  private final SeekableStream seekableStream;
+  private final CRAMReferenceSource referenceSource;
+  private final ValidationStringency validationStringency;
+  private final boolean decodeReadNames;
+  private final boolean decodeBases;
+  private final boolean decodeQualities;
+  private final boolean decodeTags;
+  private final Set<EncodingKey> unneededDataSeries;
+
+  private final CramHeader cramHeader;
+  private final SAMFileHeader samFileHeader;
+  private final Iterator<Chunk> chunks;
+  private Chunk currentChunk;
+  private final CramNormalizer normalizer;
+  private final Cram2SamRecordFactory cramToSamRecordFactory;
+  private byte[] refs;
+  private int prevSeqId = SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX;
+  private long samRecordIndex;
+  private Iterator<SAMRecord> iterator = Collections.emptyIterator();
+  private boolean done;
+
+  /**
+   * @param seekableStream the CRAM file
+   * @param referenceSource the reference, which may be null if bases are not decoded
+   * @param coordinates the file span to read, as returned by {@link
+   *     BAMFileSpan#toCoordinateArray()}
+   * @param validationStringency the validation stringency; note that records are not validated if
+   *     bases are not decoded, since they would fail validation
+   * @param decodeReadNames whether to decode read names
+   * @param decodeBases whether to decode bases
+   * @param decodeQualities whether to decode quality scores
+   * @param decodeTags whether to decode tags
+   */
+  public ProjectingCRAMIterator(
+      SeekableStream seekableStream,
+      CRAMReferenceSource referenceSource,
+      long[] coordinates,
+      ValidationStringency validationStringency,
+      boolean decodeReadNames,
+      boolean decodeBases,
+      boolean decodeQualities,
+      boolean decodeTags)
+      throws IOException {
+    if (decodeBases && referenceSource == null) {
+      throw new CRAMException("A reference source is required to decode bases in CRAM files");
+    }
+    this.seekableStream = seekableStream;
+    this.referenceSource = decodeBases ? referenceSource : (sequence, tryNameVariants) -> null;
+    this.validationStringency = validationStringency;
+    this.decodeReadNames = decodeReadNames;
+    this.decodeBases = decodeBases;
+    this.decodeQualities = decodeQualities;
+    this.decodeTags = decodeTags;
+    this.unneededDataSeries = EnumSet.noneOf(EncodingKey.class);
+    if (!decodeReadNames) {
+      unneededDataSeries.add(EncodingKey.RN_ReadName);
+    }
+    if (!decodeBases) {
+      unneededDataSeries.add(EncodingKey.BA_Base);
+      unneededDataSeries.add(EncodingKey.BS_BaseSubstitutionCode);
+      unneededDataSeries.add(EncodingKey.BB_bases);
+    }
+    if (!decodeQualities) {
+      unneededDataSeries.add(EncodingKey.QS_QualityScore);
+      unneededDataSeries.add(EncodingKey.QQ_scores);
+    }
+
+    seekableStream.seek(0);
+    this.cramHeader = CramIO.readCramHeader(seekableStream);
+    this.samFileHeader = cramHeader.getSamFileHeader();
+    List<Chunk> chunkList = new ArrayList<>();
+    for (int i = 0; coordinates != null && i < coordinates.length; i += 2) {
+      chunkList.add(new Chunk(coordinates[i], coordinates[i + 1]));
+    }
+    this.chunks = chunkList.iterator();
+    this.currentChunk = chunks.hasNext() ? chunks.next() : null;
+    this.normalizer = new CramNormalizer(samFileHeader, this.referenceSource);
+    this.cramToSamRecordFactory = new Cram2SamRecordFactory(samFileHeader);
+  }
+
+  /** @return the next container in the file span, or null if there are no more */
+  private Container nextContainer() throws IOException {
+    while (currentChunk != null) {
+      long start = currentChunk.getChunkStart() >> 16;
+      long end = currentChunk.getChunkEnd() >> 16;
+      if (seekableStream.position() < start) {
+        seekableStream.seek(start);
+      }
+      if (seekableStream.position() <= end) {
+        long offset = seekableStream.position();
+        Container container =
+            LazyContainerIO.readContainer(cramHeader.getVersion(), seekableStream);
+        container.offset = offset;
+        return container;
+      }
+      currentChunk = chunks.hasNext() ? chunks.next() : null;
+    }
+    return null;
+  }
+
+  private List<SAMRecord> decodeContainer(Container container) throws IOException {
+    CompressionHeader header = container.header;
+    Set<Object> skipped = findSkippableDataSeries(header);
+    Set<Integer> unusedContentIds = new HashSet<>();
+    for (Object key : skipped) {
+      unusedContentIds.addAll(
+          getExternalContentIds(
+              key instanceof EncodingKey
+                  ? header.encodingMap.get(key)
+                  : header.tMap.get((Integer) key)));
+    }
+    for (Slice slice : container.slices) {
+      // remove the blocks before they are decompressed
+      slice.external.keySet().removeAll(unusedContentIds);
+    }
+
+    ArrayList<CramCompressionRecord> cramRecords = new ArrayList<>(container.nofRecords);
+    for (Slice slice : container.slices) {
+      readSliceRecords(slice, header, skipped, cramRecords);
+    }
+
+    if (decodeBases) {
+      if (container.sequenceId == SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX) {
+        refs = new byte[0];
+        prevSeqId = SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX;
+      } else if (container.sequenceId == Slice.MULTI_REFERENCE) {
+        refs = null;
+        prevSeqId = Slice.MULTI_REFERENCE;
+      } else if (prevSeqId < 0 || prevSeqId != container.sequenceId) {
+        SAMSequenceRecord sequence = samFileHeader.getSequence(container.sequenceId);
+        refs = referenceSource.getReferenceBases(sequence, true);
+        if (refs == null) {
+          throw new CRAMException(
+              String.format(
+                  "Contig %s not found in the reference file.", sequence.getSequenceName()));
+        }
+        prevSeqId = container.sequenceId;
+      }
+      for (Slice slice : container.slices) {
+        if (slice.sequenceId >= 0 && !slice.validateRefMD5(refs)) {
+          throw new CRAMException(
+              String.format(
+                  "Reference sequence MD5 mismatch for slice: sequence id %d, start %d, span %d, expected MD5 %s",
+                  slice.sequenceId,
+                  slice.alignmentStart,
+                  slice.alignmentSpan,
+                  String.format("%032x", new BigInteger(1, slice.refMD5))));
+        }
+      }
+    } else {
+      for (CramCompressionRecord cramRecord : cramRecords) {
+        // stops the normalizer from restoring bases, which would need the reference
+        cramRecord.setUnknownBases(true);
+      }
+    }
+    normalizer.normalize(cramRecords, decodeBases ? refs : null, 0, header.substitutionMatrix);
+
+    List<SAMRecord> records = new ArrayList<>(cramRecords.size());
+    for (CramCompressionRecord cramRecord : cramRecords) {
+      if (!decodeTags) {
+        cramRecord.tags = null;
+      }
+      SAMRecord samRecord = cramToSamRecordFactory.create(cramRecord);
+      if (!decodeReadNames) {
+        samRecord.setReadName(SAMRecord.NULL_SEQUENCE_STRING);
+      }
+      if (!decodeBases) {
+        samRecord.setReadBases(SAMRecord.NULL_SEQUENCE);
+      }
+      if (!decodeQualities) {
+        samRecord.setBaseQualities(SAMRecord.NULL_QUALS);
+      }
+      samRecord.setValidationStringency(validationStringency);
+      if (decodeBases && validationStringency != ValidationStringency.SILENT) {
+        SAMUtils.processValidationErrors(samRecord.isValid(), samRecordIndex, validationStringency);
+      }
+      records.add(samRecord);
+      samRecordIndex++;
+    }
+    return records;
+  }
+
+  /**
+   * Find the data series (keyed by {@link EncodingKey}) and tag values (keyed by tag ID) that are
+   * not needed and can be skipped. A data series can only be skipped if it is stored entirely in
+   * external blocks (rather than the core block, which is read sequentially), and none of those
+   * blocks are shared with a data series that is needed. Tags are either all skipped or not.
+   */
+  private Set<Object> findSkippableDataSeries(CompressionHeader header) {
+    Map<Object, Set<Integer>> contentIds = new HashMap<>();
+    header.encodingMap.forEach((key, params) -> contentIds.put(key, getExternalContentIds(params)));
+    header.tMap.forEach((key, params) -> contentIds.put(key, getExternalContentIds(params)));
+
+    Set<Object> skipped = new HashSet<>();
+    for (Map.Entry<Object, Set<Integer>> entry : contentIds.entrySet()) {
+      Object key = entry.getKey();
+      boolean unneeded =
+          key instanceof EncodingKey ? unneededDataSeries.contains(key) : !decodeTags;
+      if (unneeded && entry.getValue() != null) {
+        skipped.add(key);
+      }
+    }
+    boolean changed = true;
+    while (changed) {
+      Set<Integer> neededContentIds = new HashSet<>();
+      for (Map.Entry<Object, Set<Integer>> entry : contentIds.entrySet()) {
+        if (!skipped.contains(entry.getKey()) && entry.getValue() != null) {
+          neededContentIds.addAll(entry.getValue());
+        }
+      }
+      changed =
+          skipped.removeIf(key -> !Collections.disjoint(contentIds.get(key), neededContentIds));
+      if (!skipped.containsAll(header.tMap.keySet())) {
+        changed |= skipped.removeAll(header.tMap.keySet());
+      }
+    }
+    return skipped;
+  }
+
+  /**
+   * @return the IDs of the external blocks used by an encoding, or null if it uses the core block
+   */
+  private static Set<Integer> getExternalContentIds(EncodingParams params) {
+    Set<Integer> contentIds = new HashSet<>();
+    return addExternalContentIds(params.id, ByteBuffer.wrap(params.params), contentIds)
+        ? contentIds
+        : null;
+  }
+
+  private static boolean addExternalContentIds(
+      EncodingID id, ByteBuffer params, Set<Integer> contentIds) {
+    switch (id) {
+      case NULL:
+        return true;
+      case EXTERNAL:
+        contentIds.add(ITF8.readUnsignedITF8(params));
+        return true;
+      case BYTE_ARRAY_STOP:
+        params.get(); // stop byte
+        contentIds.add(ITF8.readUnsignedITF8(params));
+        return true;
+      case BYTE_ARRAY_LEN:
+        for (int i = 0; i < 2; i++) { // length encoding, then value encoding
+          EncodingID subId = EncodingID.values()[ITF8.readUnsignedITF8(params)];
+          byte[] subParams = new byte[ITF8.readUnsignedITF8(params)];
+          params.get(subParams);
+          if (!addExternalContentIds(subId, ByteBuffer.wrap(subParams), contentIds)) {
+            return false;
+          }
+        }
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  // Adapted from ContainerParser#getRecords
+  private void readSliceRecords(
+      Slice slice,
+      CompressionHeader header,
+      Set<Object> skipped,
+      List<CramCompressionRecord> records) {
+    String seqName = SAMRecord.NO_ALIGNMENT_REFERENCE_NAME;
+    if (slice.sequenceId >= 0) {
+      seqName = samFileHeader.getSequence(slice.sequenceId).getSequenceName();
+    }
+    Map<Integer, InputStream> inputMap = new HashMap<>();
+    for (Map.Entry<Integer, Block> entry : slice.external.entrySet()) {
+      inputMap.put(entry.getKey(), new ByteArrayInputStream(entry.getValue().getRawContent()));
+    }
+    CramRecordReader reader = new CramRecordReader(validationStringency);
+    new DataReaderFactory()
+        .buildReader(
+            reader,
+            new DefaultBitInputStream(new ByteArrayInputStream(slice.coreBlock.getRawContent())),
+            inputMap,
+            header,
+            slice.sequenceId);
+    skipDataSeries(reader, header, skipped);
+
+    int prevStart = slice.alignmentStart;
+    for (int i = 0; i < slice.nofRecords; i++) {
+      CramCompressionRecord record = new CramCompressionRecord();
+      record.sliceIndex = slice.index;
+      record.index = i;
+      reader.read(record);
+      if (record.sequenceId == slice.sequenceId) {
+        record.sequenceName = seqName;
+      } else {
+        record.sequenceName =
+            record.sequenceId == SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX
+                ? SAMRecord.NO_ALIGNMENT_REFERENCE_NAME
+                : samFileHeader.getSequence(record.sequenceId).getSequenceName();
+      }
+      records.add(record);
+      if (header.APDelta) {
+        prevStart += record.alignmentDelta;
+        record.alignmentStart = prevStart;
+      }
+    }
+  }
+
+  /** Replace the readers for skipped data series with readers that return a constant value. */
+  private static void skipDataSeries(
+      CramRecordReader reader, CompressionHeader header, Set<Object> skipped) {
+    if (skipped.contains(EncodingKey.RN_ReadName)) {
+      reader.readNameCodec = new ConstantDataReader<>(new byte[0]);
+    }
+    if (skipped.contains(EncodingKey.BA_Base)) {
+      reader.baseCodec = new ConstantDataReader<>((byte) 'N');
+    }
+    if (skipped.contains(EncodingKey.BS_BaseSubstitutionCode)) {
+      reader.baseSubstitutionCodec = new ConstantDataReader<>((byte) 0);
+    }
+    if (skipped.contains(EncodingKey.BB_bases)) {
+      reader.basesCodec = new ConstantDataReader<>(new byte[0]);
+    }
+    if (skipped.contains(EncodingKey.QS_QualityScore)) {
+      reader.qualityScoreCodec = new ConstantDataReader<>((byte) 0);
+      reader.qualityScoresCodec = new ConstantDataReader<>(new byte[0]);
+    }
+    if (skipped.contains(EncodingKey.QQ_scores)) {
+      reader.scoresCodec = new ConstantDataReader<>(new byte[0]);
+    }
+    if (!header.tMap.isEmpty() && skipped.containsAll(header.tMap.keySet())) {
+      // make every tag list empty so that no tag values are read
+      byte[][][] dictionary = new byte[header.dictionary.length][][];
+      for (int i = 0; i < dictionary.length; i++) {
+        dictionary[i] = new byte[0][];
+      }
+      reader.tagIdDictionary = dictionary;
+    }
+  }
+
+  @Override
+  public boolean hasNext() {
+    while (!iterator.hasNext() && !done) {
+      try {
+        Container container = nextContainer();
+        if (container == null || container.isEOF()) {
+          done = true;
+        } else {
+          iterator = decodeContainer(container).iterator();
+        }
+      } catch (IOException e) {
+        throw new SAMException(e);
+      }
+    }
+    return iterator.hasNext();
+  }
+
+  @Override
+  public SAMRecord next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    return iterator.next();
+  }
+
+  @Override
+  public void close() {
+    try {
+      seekableStream.close();
+    } catch (IOException e) {
+      // ignore, as for CRAMIterator
+    }
+  }
+
+  private static class ConstantDataReader<T> implements DataReader<T> {
+    private final T value;
+
+    ConstantDataReader(T value) {
+      this.value = value;
+    }
+
+    @Override
+    public T readData() {
+      return value;
+    }
+
+    @Override
+    public T readDataArray(int length) {
+      return value;
+    }
+  }
+}
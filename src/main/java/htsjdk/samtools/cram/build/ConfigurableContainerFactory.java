@@ -0,0 +1,163 @@
+package htsjdk.samtools.cram.build;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.cram.digest.ContentDigests;
+import htsjdk.samtools.cram.encoding.ExternalCompressor;
+import htsjdk.samtools.cram.encoding.writer.DataWriterFactory;
+import htsjdk.samtools.cram.encoding.writer.Writer;
+import htsjdk.samtools.cram.io.DefaultBitOutputStream;
+import htsjdk.samtools.cram.io.ExposedByteArrayOutputStream;
+import htsjdk.samtools.cram.structure.Block;
+import htsjdk.samtools.cram.structure.BlockContentType;
+import htsjdk.samtools.cram.structure.CompressionHeader;
+import htsjdk.samtools.cram.structure.Container;
+import htsjdk.samtools.cram.structure.CramCompressionRecord;
+import htsjdk.samtools.cram.structure.Slice;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Builds CRAM containers in the same way as {@link ContainerFactory}, except that the compressors
+ * used for the external blocks are chosen by a {@link CramEncodingStrategy}. Unlike {@link
+ * ContainerFactory} the global record counter is passed in rather than tracked, so containers may
+ * be built concurrently from multiple threads.
+ *
+ * <p>TODO: Move to htsjdk
+ */
+public class ConfigurableContainerFactory {
+  private final SAMFileHeader samFileHeader;
+  private final int recordsPerSlice;
+  private final CramEncodingStrategy encodingStrategy;
+
+  public ConfigurableContainerFactory(
+      SAMFileHeader samFileHeader, int recordsPerSlice, CramEncodingStrategy encodingStrategy) {
+    this.samFileHeader = samFileHeader;
+    this.recordsPerSlice = recordsPerSlice;
+    this.encodingStrategy = encodingStrategy;
+  }
+
+  /**
+   * @param records the records to put in the container
+   * @param globalRecordCounter the number of records in the stream before this container
+   * @return the container, with all blocks compressed
+   */
+  public Container buildContainer(List<CramCompressionRecord> records, long globalRecordCounter)
+      throws IllegalAccessException, IOException {
+    boolean sorted = samFileHeader.getSortOrder() == SAMFileHeader.SortOrder.coordinate;
+    CompressionHeader header = new CompressionHeaderFactory().build(records, null, sorted);
+    header.APDelta = sorted;
+    header.readNamesIncluded = true; // read names are always preserved
+    for (Map.Entry<Integer, ExternalCompressor> entry : header.externalCompressors.entrySet()) {
+      entry.setValue(encodingStrategy.select(entry.getValue()));
+    }
+
+    Container container = new Container();
+    container.header = header;
+    container.nofRecords = records.size();
+    container.globalRecordCounter = globalRecordCounter;
+    container.bases = 0;
+    container.blockCount = 0;
+
+    List<Slice> slices = new ArrayList<>();
+    long lastGlobalRecordCounter = container.globalRecordCounter;
+    for (int i = 0; i < records.size(); i += recordsPerSlice) {
+      List<CramCompressionRecord> sliceRecords =
+          records.subList(i, Math.min(records.size(), i + recordsPerSlice));
+      Slice slice = buildSlice(sliceRecords, header);
+      slice.globalRecordCounter = lastGlobalRecordCounter;
+      lastGlobalRecordCounter += slice.nofRecords;
+      container.bases += slice.bases;
+      slices.add(slice);
+      if (container.sequenceId == SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX
+          && slice.sequenceId != SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX) {
+        container.sequenceId = slice.sequenceId;
+      }
+    }
+    container.slices = slices.toArray(new Slice[slices.size()]);
+    calculateAlignmentBoundaries(container);
+    return container;
+  }
+
+  private static void calculateAlignmentBoundaries(Container container) {
+    int start = Integer.MAX_VALUE;
+    int end = Integer.MIN_VALUE;
+    for (Slice s : container.slices) {
+      if (s.sequenceId != SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX) {
+        start = Math.min(start, s.alignmentStart);
+        end = Math.max(end, s.alignmentStart + s.alignmentSpan);
+      }
+    }
+    if (start < Integer.MAX_VALUE) {
+      container.alignmentStart = start;
+      container.alignmentSpan = end - start;
+    }
+  }
+
+  private static Slice buildSlice(List<CramCompressionRecord> records, CompressionHeader header)
+      throws IllegalAccessException, IOException {
+    Map<Integer, ExposedByteArrayOutputStream> map = new HashMap<>();
+    for (int id : header.externalIds) {
+      map.put(id, new ExposedByteArrayOutputStream());
+    }
+    ExposedByteArrayOutputStream bitBAOS = new ExposedByteArrayOutputStream();
+    DefaultBitOutputStream bitOutputStream = new DefaultBitOutputStream(bitBAOS);
+
+    Slice slice = new Slice();
+    slice.nofRecords = records.size();
+    int minAlStart = Integer.MAX_VALUE;
+    int maxAlEnd = 0;
+    slice.sequenceId = records.get(0).sequenceId;
+    ContentDigests hasher = ContentDigests.create(ContentDigests.ALL);
+    for (CramCompressionRecord record : records) {
+      slice.bases += record.readLength;
+      hasher.add(record);
+      if (slice.sequenceId == Slice.MULTI_REFERENCE) {
+        continue;
+      }
+      if (slice.sequenceId != record.sequenceId) {
+        slice.sequenceId = Slice.MULTI_REFERENCE;
+        continue;
+      }
+      if (record.alignmentStart != 0) {
+        minAlStart = Math.min(record.alignmentStart, minAlStart);
+        maxAlEnd = Math.max(record.getAlignmentEnd(), maxAlEnd);
+      }
+    }
+    slice.sliceTags = hasher.getAsTags();
+    if (slice.sequenceId == Slice.MULTI_REFERENCE || minAlStart == Integer.MAX_VALUE) {
+      slice.alignmentStart = Slice.NO_ALIGNMENT_START;
+      slice.alignmentSpan = Slice.NO_ALIGNMENT_SPAN;
+    } else {
+      slice.alignmentStart = minAlStart;
+      slice.alignmentSpan = maxAlEnd - minAlStart + 1;
+    }
+
+    Writer writer =
+        new DataWriterFactory().buildWriter(bitOutputStream, map, header, slice.sequenceId);
+    int prevAlStart = slice.alignmentStart;
+    for (CramCompressionRecord record : records) {
+      record.alignmentDelta = record.alignmentStart - prevAlStart;
+      prevAlStart = record.alignmentStart;
+      writer.write(record);
+    }
+    bitOutputStream.close();
+
+    slice.coreBlock = Block.buildNewCore(bitBAOS.toByteArray());
+    slice.external = new HashMap<>();
+    for (Map.Entry<Integer, ExposedByteArrayOutputStream> entry : map.entrySet()) {
+      Block externalBlock = new Block();
+      externalBlock.setContentId(entry.getKey());
+      externalBlock.setContentType(BlockContentType.EXTERNAL);
+      ExternalCompressor compressor = header.externalCompressors.get(entry.getKey());
+      byte[] rawData = entry.getValue().toByteArray();
+      externalBlock.setContent(rawData, compressor.compress(rawData));
+      externalBlock.setMethod(compressor.getMethod());
+      slice.external.put(entry.getKey(), externalBlock);
+    }
+    return slice;
+  }
+}
@@ -0,0 +1,46 @@
+package htsjdk.samtools.cram.build;
+
+import htsjdk.samtools.cram.encoding.ExternalCompressor;
+import htsjdk.samtools.cram.encoding.rans.RANS;
+import htsjdk.samtools.cram.structure.BlockCompressionMethod;
+
+/**
+ * A strategy for choosing the compressors used for the external blocks in a CRAM container. The
+ * encodings for each data series are chosen by {@link CompressionHeaderFactory}, then the strategy
+ * may substitute a different compressor for each block, trading speed for size.
+ *
+ * <p>TODO: Move to htsjdk
+ */
+public enum CramEncodingStrategy {
+  /** Use the compressors chosen by htsjdk. */
+  DEFAULT,
+  /**
+   * Favour speed over size by using order-0 rANS (which is faster to encode and decode than
+   * order-1) for all rANS-compressed data series, including quality scores and bases.
+   */
+  FAST,
+  /**
+   * Favour size over speed by using LZMA instead of gzip for all gzip-compressed data series and
+   * tags, including read names.
+   */
+  SMALL;
+
+  /**
+   * @param defaultCompressor the compressor chosen by htsjdk for a block
+   * @return the compressor to use for the block
+   */
+  public ExternalCompressor select(ExternalCompressor defaultCompressor) {
+    switch (this) {
+      case FAST:
+        return defaultCompressor.getMethod() == BlockCompressionMethod.RANS
+            ? ExternalCompressor.createRANS(RANS.ORDER.ZERO)
+            : defaultCompressor;
+      case SMALL:
+        return defaultCompressor.getMethod() == BlockCompressionMethod.GZIP
+            ? ExternalCompressor.createLZMA()
+            : defaultCompressor;
+      default:
+        return defaultCompressor;
+    }
+  }
+}
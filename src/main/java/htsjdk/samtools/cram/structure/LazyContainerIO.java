@@ -0,0 +1,125 @@
+package htsjdk.samtools.cram.structure;
+
+import htsjdk.samtools.BinaryTagCodec;
+import htsjdk.samtools.ValidationStringency;
+import htsjdk.samtools.cram.common.CramVersions;
+import htsjdk.samtools.cram.common.Version;
+import htsjdk.samtools.cram.io.CRC32InputStream;
+import htsjdk.samtools.cram.io.CramArray;
+import htsjdk.samtools.cram.io.CramInt;
+import htsjdk.samtools.cram.io.ITF8;
+import htsjdk.samtools.cram.io.InputStreamUtils;
+import htsjdk.samtools.cram.io.LTF8;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+
+/**
+ * Reads CRAM containers in the same way as {@link ContainerIO}, except that the content of each
+ * block is not decompressed until it is first accessed. This means that blocks that are never used,
+ * such as external blocks for data series that are not needed, are never decompressed.
+ *
+ * <p>TODO: Move to htsjdk
+ */
+public class LazyContainerIO {
+
+  private LazyContainerIO() {}
+
+  public static Container readContainer(Version version, InputStream inputStream)
+      throws IOException {
+    Container container = ContainerIO.readContainerHeader(version.major, inputStream);
+    if (container.isEOF()) {
+      return container;
+    }
+
+    Block block = readBlock(version.major, inputStream);
+    if (block.getContentType() != BlockContentType.COMPRESSION_HEADER) {
+      throw new RuntimeException("Content type does not match: " + block.getContentType().name());
+    }
+    container.header = new CompressionHeader();
+    container.header.read(block.getRawContent());
+
+    container.slices = new Slice[container.landmarks.length];
+    for (int i = 0; i < container.landmarks.length; i++) {
+      Slice slice = readSlice(version.major, inputStream);
+      slice.index = i;
+      slice.offset = container.landmarks[i];
+      slice.size =
+          (i < container.landmarks.length - 1
+                  ? container.landmarks[i + 1]
+                  : container.containerByteSize)
+              - slice.offset;
+      slice.containerOffset = container.offset;
+      container.slices[i] = slice;
+    }
+    return container;
+  }
+
+  private static Slice readSlice(int major, InputStream inputStream) throws IOException {
+    Slice slice = new Slice();
+    slice.headerBlock = readBlock(major, inputStream);
+    InputStream headerStream = new ByteArrayInputStream(slice.headerBlock.getRawContent());
+    slice.sequenceId = ITF8.readUnsignedITF8(headerStream);
+    slice.alignmentStart = ITF8.readUnsignedITF8(headerStream);
+    slice.alignmentSpan = ITF8.readUnsignedITF8(headerStream);
+    slice.nofRecords = ITF8.readUnsignedITF8(headerStream);
+    slice.globalRecordCounter = LTF8.readUnsignedLTF8(headerStream);
+    slice.nofBlocks = ITF8.readUnsignedITF8(headerStream);
+    slice.contentIDs = CramArray.array(headerStream);
+    slice.embeddedRefBlockContentID = ITF8.readUnsignedITF8(headerStream);
+    slice.refMD5 = new byte[16];
+    InputStreamUtils.readFully(headerStream, slice.refMD5, 0, slice.refMD5.length);
+    byte[] tagBytes = InputStreamUtils.readFully(headerStream);
+    if (major >= CramVersions.CRAM_v3.major) {
+      slice.sliceTags =
+          BinaryTagCodec.readTags(
+              tagBytes, 0, tagBytes.length, ValidationStringency.DEFAULT_STRINGENCY);
+    }
+
+    slice.external = new HashMap<>();
+    for (int i = 0; i < slice.nofBlocks; i++) {
+      Block block = readBlock(major, inputStream);
+      switch (block.getContentType()) {
+        case CORE:
+          slice.coreBlock = block;
+          break;
+        case EXTERNAL:
+          if (slice.embeddedRefBlockContentID == block.getContentId()) {
+            slice.embeddedRefBlock = block;
+          }
+          slice.external.put(block.getContentId(), block);
+          break;
+        default:
+          throw new RuntimeException(
+              "Not a slice block, content type id " + block.getContentType().name());
+      }
+    }
+    return slice;
+  }
+
+  private static Block readBlock(int major, InputStream inputStream) throws IOException {
+    boolean v3OrHigher = major >= CramVersions.CRAM_v3.major;
+    if (v3OrHigher) {
+      inputStream = new CRC32InputStream(inputStream);
+    }
+    Block block = new Block();
+    block.setMethod(BlockCompressionMethod.values()[inputStream.read()]);
+    block.setContentType(BlockContentType.values()[inputStream.read()]);
+    block.setContentId(ITF8.readUnsignedITF8(inputStream));
+    int compressedContentSize = ITF8.readUnsignedITF8(inputStream);
+    ITF8.readUnsignedITF8(inputStream); // raw content size is not needed
+    byte[] compressedContent = new byte[compressedContentSize];
+    InputStreamUtils.readFully(inputStream, compressedContent, 0, compressedContent.length);
+    if (v3OrHigher) {
+      int actualChecksum = ((CRC32InputStream) inputStream).getCRC32();
+      int checksum = CramInt.int32(inputStream);
+      if (checksum != actualChecksum) {
+        throw new RuntimeException(
+            String.format("Block CRC32 mismatch: %04x vs %04x", checksum, actualChecksum));
+      }
+    }
+    block.setCompressedContent(compressedContent); // decompressed when first accessed
+    return block;
+  }
+}
@@ -19,6 +19,7 @@ public abstract class BaseTest {
   public static void setup() {
     SparkConf sparkConf = new SparkConf();
     sparkConf.set("spark.serializer", "org.apache.spark.serializer.KryoSerializer");
+    sparkConf.set("spark.kryo.registrator", HtsjdkKryoRegistrator.class.getName());
     jsc = new JavaSparkContext("local", "myapp", sparkConf);
   }
 
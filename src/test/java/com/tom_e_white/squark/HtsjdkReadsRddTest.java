@@ -2,15 +2,34 @@ package com.tom_e_white.squark;
 
 import static com.tom_e_white.squark.AnySamTestUtil.countReads;
 
+import com.google.common.io.Files;
+import com.tom_e_white.squark.HtsjdkReadsRddStorage.CramContainerSizeWriteOption;
+import com.tom_e_white.squark.HtsjdkReadsRddStorage.CramEncodingThreadsWriteOption;
+import com.tom_e_white.squark.HtsjdkReadsRddStorage.CramEncodingWriteOption;
+import com.tom_e_white.squark.HtsjdkReadsRddStorage.FileCardinalityWriteOption;
 import com.tom_e_white.squark.HtsjdkReadsRddStorage.FormatWriteOption;
+import com.tom_e_white.squark.HtsjdkReadsRddStorage.IndexWriteOption;
+import com.tom_e_white.squark.HtsjdkReadsRddStorage.ReadField;
+import com.tom_e_white.squark.impl.file.ReadAhead;
 import com.tom_e_white.squark.impl.formats.sam.SamFormat;
+import htsjdk.samtools.CramContainerHeaderIterator;
 import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.cram.structure.Container;
+import htsjdk.samtools.seekablestream.SeekableFileStream;
+import htsjdk.samtools.seekablestream.SeekableStream;
 import htsjdk.samtools.util.Interval;
 import htsjdk.samtools.util.Locatable;
+import java.io.File;
 import java.io.IOException;
+import java.net.URI;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
 import junitparams.JUnitParamsRunner;
 import junitparams.Parameters;
+import org.apache.spark.api.java.JavaRDD;
 import org.junit.Assert;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -70,6 +89,7 @@ public class HtsjdkReadsRddTest extends BaseTest {
   private Object[] parametersForTestReadAndWriteMultiple() {
     return new Object[][] {
       {null, false, FormatWriteOption.BAM},
+      {null, true, FormatWriteOption.BAM},
       {"test.fa", false, FormatWriteOption.CRAM},
       {null, false, FormatWriteOption.SAM},
     };
@@ -128,6 +148,43 @@ public class HtsjdkReadsRddTest extends BaseTest {
 
     // check we can read back what we've just written
     Assert.assertEquals(expectedCount, htsjdkReadsRddStorage.read(outputPath).getReads().count());
+
+    // with a larger split size the files are combined into fewer partitions
+    JavaRDD<SAMRecord> combined =
+        htsjdkReadsRddStorage.splitSize(1_000_000).read(outputPath).getReads();
+    Assert.assertTrue(combined.getNumPartitions() < listPartFiles(outputPath).size());
+    Assert.assertEquals(expectedCount, combined.count());
+  }
+
+  @Test
+  @Parameters({"false", "true"})
+  public void testReadDirectoryWithNioAndDefaultSplitSize(boolean withSubdirectory)
+      throws Exception {
+    String inputPath =
+        AnySamTestUtil.writeAnySamFile(
+            1000, SAMFileHeader.SortOrder.coordinate, FormatWriteOption.BAM, null);
+    int expectedCount = countReads(inputPath, null);
+
+    // write a directory of BAM files
+    HtsjdkReadsRddStorage htsjdkReadsRddStorage =
+        HtsjdkReadsRddStorage.makeDefault(jsc).splitSize(40000);
+    String outputPath = createTempPath("");
+    htsjdkReadsRddStorage.write(
+        htsjdkReadsRddStorage.read(inputPath),
+        outputPath,
+        FileCardinalityWriteOption.MULTIPLE,
+        FormatWriteOption.BAM);
+    if (withSubdirectory) {
+      // a subdirectory is not read, even if it has a file in it
+      File subdirectory = new File(URI.create(outputPath).getPath(), "subdir");
+      Assert.assertTrue(subdirectory.mkdir());
+      Files.copy(new File(URI.create(inputPath)), new File(subdirectory, "part-00000.bam"));
+    }
+
+    // read it back using NIO, without setting the split size
+    JavaRDD<SAMRecord> reads =
+        HtsjdkReadsRddStorage.makeDefault(jsc).useNio(true).read(outputPath).getReads();
+    Assert.assertEquals(expectedCount, reads.count());
   }
 
   private Object[] parametersForTestReadIntervals() {
@@ -256,6 +313,391 @@ public class HtsjdkReadsRddTest extends BaseTest {
     }
   }
 
+  private Object[] parametersForTestReadIntervalsWithCsiIndex() {
+    return new Object[][] {
+      {
+        new HtsjdkReadsTraversalParameters<>(
+            Arrays.asList(
+                new Interval("chr21", 5000, 9999), // includes two unpaired fragments
+                new Interval("chr21", 20000, 22999)),
+            false)
+      },
+      {
+        new HtsjdkReadsTraversalParameters<>(
+            Arrays.asList(
+                new Interval("chr21", 5000, 9999), // includes two unpaired fragments
+                new Interval("chr21", 20000, 22999)),
+            true)
+      },
+      {new HtsjdkReadsTraversalParameters<>(null, true)},
+    };
+  }
+
+  @Test
+  @Parameters
+  public <T extends Locatable> void testReadIntervalsWithCsiIndex(
+      HtsjdkReadsTraversalParameters<T> traversalParameters) throws Exception {
+    String inputPath =
+        AnySamTestUtil.writeAnySamFile(
+            1000, SAMFileHeader.SortOrder.coordinate, FormatWriteOption.BAM, null);
+
+    HtsjdkReadsRddStorage htsjdkReadsRddStorage =
+        HtsjdkReadsRddStorage.makeDefault(jsc).splitSize(40000).useNio(false);
+
+    // write a copy of the file with a CSI index, rather than a BAI index
+    String outputPath = createTempPath(SamFormat.BAM.getExtension());
+    htsjdkReadsRddStorage.write(
+        htsjdkReadsRddStorage.read(inputPath), outputPath, IndexWriteOption.CSI);
+    Assert.assertTrue(new File(URI.create(outputPath + ".csi")).exists());
+    Assert.assertFalse(new File(URI.create(outputPath + ".bai")).exists());
+
+    int expectedCount = countReads(inputPath, null, traversalParameters);
+    Assert.assertEquals(
+        expectedCount,
+        htsjdkReadsRddStorage.read(outputPath, traversalParameters).getReads().count());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testWriteCsiIndexForUnsortedBam() throws Exception {
+    String inputPath =
+        AnySamTestUtil.writeAnySamFile(
+            100, SAMFileHeader.SortOrder.unsorted, FormatWriteOption.BAM, null);
+    HtsjdkReadsRddStorage htsjdkReadsRddStorage = HtsjdkReadsRddStorage.makeDefault(jsc);
+    htsjdkReadsRddStorage.write(
+        htsjdkReadsRddStorage.read(inputPath),
+        createTempPath(SamFormat.BAM.getExtension()),
+        IndexWriteOption.CSI);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testWriteCsiIndexForCram() throws Exception {
+    String inputPath = getPath("valid.cram");
+    String refPath = getPath("valid.fasta");
+    HtsjdkReadsRddStorage htsjdkReadsRddStorage =
+        HtsjdkReadsRddStorage.makeDefault(jsc).referenceSourcePath(refPath);
+    htsjdkReadsRddStorage.write(
+        htsjdkReadsRddStorage.read(inputPath),
+        createTempPath(SamFormat.CRAM.getExtension()),
+        IndexWriteOption.CSI);
+  }
+
+  @Test
+  public void testReadCramWithoutIndex() throws Exception {
+    String refPath = getPath("test.fa");
+
+    String inputPath =
+        AnySamTestUtil.writeAnySamFile(
+            1000, SAMFileHeader.SortOrder.coordinate, FormatWriteOption.CRAM, refPath);
+    // remove the index so that the file is scanned for container offsets in parallel
+    Assert.assertTrue(
+        new File(URI.create(inputPath + SamFormat.CRAM.getIndexExtension())).delete());
+
+    HtsjdkReadsRddStorage htsjdkReadsRddStorage =
+        HtsjdkReadsRddStorage.makeDefault(jsc).splitSize(1024).referenceSourcePath(refPath);
+
+    HtsjdkReadsRdd htsjdkReadsRdd = htsjdkReadsRddStorage.read(inputPath);
+
+    int expectedCount = countReads(inputPath, refPath);
+    Assert.assertEquals(expectedCount, htsjdkReadsRdd.getReads().count());
+
+    // read again, which uses the cached container offsets
+    Assert.assertEquals(expectedCount, htsjdkReadsRddStorage.read(inputPath).getReads().count());
+  }
+
+  @Test
+  public void testReadAheadIsNotShared() throws Exception {
+    String inputPath = getPath("1.bam");
+    HtsjdkReadsRddStorage htsjdkReadsRddStorage =
+        HtsjdkReadsRddStorage.makeDefault(jsc).readAhead(1024, 8192);
+
+    int expectedCount = countReads(inputPath);
+    Assert.assertEquals(expectedCount, htsjdkReadsRddStorage.read(inputPath).getReads().count());
+
+    // the sizes are only set for reads from the storage object, not in the Spark context
+    Assert.assertNull(jsc.hadoopConfiguration().get(ReadAhead.MIN_SIZE_KEY));
+    Assert.assertNull(jsc.hadoopConfiguration().get(ReadAhead.MAX_SIZE_KEY));
+  }
+
+  @Test
+  public void testReadAfterWritingAndInvalidating() throws Exception {
+    String inputPath =
+        AnySamTestUtil.writeAnySamFile(
+            1000, SAMFileHeader.SortOrder.coordinate, FormatWriteOption.BAM, null);
+    String smallInputPath = getPath("1.bam");
+    HtsjdkReadsRddStorage htsjdkReadsRddStorage =
+        HtsjdkReadsRddStorage.makeDefault(jsc).splitSize(40000);
+
+    // write a directory of several files, and read it so its listing is cached
+    String outputPath = createTempPath("");
+    htsjdkReadsRddStorage.write(
+        htsjdkReadsRddStorage.read(inputPath),
+        outputPath,
+        FileCardinalityWriteOption.MULTIPLE,
+        FormatWriteOption.BAM);
+    Assert.assertTrue(listPartFiles(outputPath).size() > 1);
+    int expectedCount = countReads(inputPath);
+    Assert.assertEquals(expectedCount, htsjdkReadsRddStorage.read(outputPath).getReads().count());
+
+    // writing over the directory with fewer files is seen by the next read
+    HtsjdkReadsRdd smallHtsjdkReadsRdd = htsjdkReadsRddStorage.read(smallInputPath);
+    htsjdkReadsRddStorage.write(
+        new HtsjdkReadsRdd(
+            smallHtsjdkReadsRdd.getHeader(), smallHtsjdkReadsRdd.getReads().coalesce(1)),
+        outputPath,
+        FileCardinalityWriteOption.MULTIPLE,
+        FormatWriteOption.BAM);
+    List<String> partFiles = listPartFiles(outputPath);
+    Assert.assertEquals(1, partFiles.size());
+    int smallCount = countReads(smallInputPath);
+    Assert.assertEquals(smallCount, htsjdkReadsRddStorage.read(outputPath).getReads().count());
+
+    // a file added by another process is seen once the directory is invalidated
+    File partFile = new File(URI.create(partFiles.get(0)));
+    Files.copy(partFile, new File(partFile.getParentFile(), "part-r-99999.bam"));
+    Assert.assertEquals(
+        2 * smallCount,
+        htsjdkReadsRddStorage.invalidate(outputPath).read(outputPath).getReads().count());
+  }
+
+  @Test
+  public void testReadAfterRewritingOutsideStorage() throws Exception {
+    String refPath = getPath("test.fa");
+
+    // use few enough reads that every slice starts within the (short) reference
+    String inputPath =
+        AnySamTestUtil.writeAnySamFile(
+            40, SAMFileHeader.SortOrder.coordinate, FormatWriteOption.CRAM, refPath);
+    HtsjdkReadsRddStorage htsjdkReadsRddStorage =
+        HtsjdkReadsRddStorage.makeDefault(jsc).splitSize(1024).referenceSourcePath(refPath);
+
+    // write a single file and a directory of several files, both with many small containers, and
+    // read the directory so its listing and container offsets are cached
+    HtsjdkReadsRdd htsjdkReadsRdd = htsjdkReadsRddStorage.read(inputPath);
+    String singlePath = createTempPath(SamFormat.CRAM.getExtension());
+    htsjdkReadsRddStorage.write(
+        htsjdkReadsRdd, singlePath, FormatWriteOption.CRAM, new CramContainerSizeWriteOption(5, 1));
+    String outputPath = createTempPath("");
+    htsjdkReadsRddStorage.write(
+        htsjdkReadsRdd,
+        outputPath,
+        FileCardinalityWriteOption.MULTIPLE,
+        FormatWriteOption.CRAM,
+        new CramContainerSizeWriteOption(5, 1));
+    List<String> partFiles = listPartFiles(outputPath);
+    Collections.sort(partFiles);
+    Assert.assertTrue(partFiles.size() > 1);
+    Assert.assertEquals(
+        countReads(inputPath, refPath), htsjdkReadsRddStorage.read(outputPath).getReads().count());
+
+    // rewrite the first file in place, with the contents of the single file (which is longer and
+    // has containers in different places), so that the directory doesn't change
+    File dir = new File(URI.create(outputPath));
+    long dirModificationTime = dir.lastModified();
+    File first = new File(URI.create(partFiles.get(0)));
+    Files.copy(new File(URI.create(singlePath)), first);
+    Assert.assertTrue(new File(dir, "." + first.getName() + ".crc").delete());
+    Assert.assertTrue(dir.setLastModified(dirModificationTime));
+
+    // the next read uses the file's new length and container offsets
+    int expectedCount = 0;
+    for (String part : partFiles) {
+      expectedCount += countReads(part, refPath);
+    }
+    Assert.assertEquals(expectedCount, htsjdkReadsRddStorage.read(outputPath).getReads().count());
+  }
+
+  private Object[] parametersForTestReadCramWithProjection() {
+    return new Object[][] {
+      {null},
+      {
+        new HtsjdkReadsTraversalParameters<>(
+            Arrays.asList(
+                new Interval("chr21", 5000, 9999), // includes two unpaired fragments
+                new Interval("chr21", 20000, 22999)),
+            false)
+      },
+    };
+  }
+
+  @Test
+  @Parameters
+  public <T extends Locatable> void testReadCramWithProjection(
+      HtsjdkReadsTraversalParameters<T> traversalParameters) throws Exception {
+    String refPath = getPath("test.fa");
+
+    String inputPath =
+        AnySamTestUtil.writeAnySamFile(
+            1000, SAMFileHeader.SortOrder.coordinate, FormatWriteOption.CRAM, refPath);
+
+    List<SAMRecord> expectedReads =
+        HtsjdkReadsRddStorage.makeDefault(jsc)
+            .splitSize(40000)
+            .referenceSourcePath(refPath)
+            .read(inputPath, traversalParameters)
+            .getReads()
+            .collect();
+
+    // projecting all fields should give the same reads as a normal read
+    List<SAMRecord> allFieldsReads =
+        HtsjdkReadsRddStorage.makeDefault(jsc)
+            .splitSize(40000)
+            .referenceSourcePath(refPath)
+            .projection(EnumSet.allOf(ReadField.class))
+            .read(inputPath, traversalParameters)
+            .getReads()
+            .collect();
+    Assert.assertEquals(expectedReads.size(), allFieldsReads.size());
+    for (int i = 0; i < expectedReads.size(); i++) {
+      Assert.assertEquals(
+          expectedReads.get(i).getSAMString(), allFieldsReads.get(i).getSAMString());
+    }
+
+    // projecting no fields should only give the core fields, and doesn't need a reference
+    List<SAMRecord> coreFieldsReads =
+        HtsjdkReadsRddStorage.makeDefault(jsc)
+            .splitSize(40000)
+            .projection(EnumSet.noneOf(ReadField.class))
+            .read(inputPath, traversalParameters)
+            .getReads()
+            .collect();
+    Assert.assertEquals(expectedReads.size(), coreFieldsReads.size());
+    for (int i = 0; i < expectedReads.size(); i++) {
+      SAMRecord expected = expectedReads.get(i);
+      SAMRecord actual = coreFieldsReads.get(i);
+      Assert.assertEquals(expected.getFlags(), actual.getFlags());
+      Assert.assertEquals(expected.getReferenceName(), actual.getReferenceName());
+      Assert.assertEquals(expected.getAlignmentStart(), actual.getAlignmentStart());
+      Assert.assertEquals(expected.getMappingQuality(), actual.getMappingQuality());
+      Assert.assertEquals(expected.getCigarString(), actual.getCigarString());
+      Assert.assertEquals(expected.getMateAlignmentStart(), actual.getMateAlignmentStart());
+      Assert.assertEquals(SAMRecord.NULL_SEQUENCE_STRING, actual.getReadName());
+      Assert.assertEquals(SAMRecord.NULL_SEQUENCE_STRING, actual.getReadString());
+      Assert.assertEquals(SAMRecord.NULL_QUALS_STRING, actual.getBaseQualityString());
+    }
+  }
+
+  private Object[] parametersForTestReadCramWithoutReference() {
+    return new Object[][] {
+      {null},
+      {
+        new HtsjdkReadsTraversalParameters<>(
+            Arrays.asList(
+                new Interval("chr21", 5000, 9999), // includes two unpaired fragments
+                new Interval("chr21", 20000, 22999)),
+            true)
+      },
+      {new HtsjdkReadsTraversalParameters<>(null, true)},
+    };
+  }
+
+  @Test
+  @Parameters
+  public <T extends Locatable> void testReadCramWithoutReference(
+      HtsjdkReadsTraversalParameters<T> traversalParameters) throws Exception {
+    String refPath = getPath("test.fa");
+
+    String inputPath =
+        AnySamTestUtil.writeAnySamFile(
+            1000, SAMFileHeader.SortOrder.coordinate, FormatWriteOption.CRAM, refPath);
+
+    List<SAMRecord> expectedReads =
+        HtsjdkReadsRddStorage.makeDefault(jsc)
+            .splitSize(40000)
+            .referenceSourcePath(refPath)
+            .read(inputPath, traversalParameters)
+            .getReads()
+            .collect();
+
+    // all fields apart from the bases are read, and no reference is needed
+    List<SAMRecord> actualReads =
+        HtsjdkReadsRddStorage.makeDefault(jsc)
+            .splitSize(40000)
+            .projection(EnumSet.complementOf(EnumSet.of(ReadField.BASES)))
+            .read(inputPath, traversalParameters)
+            .getReads()
+            .collect();
+    Assert.assertEquals(expectedReads.size(), actualReads.size());
+    for (int i = 0; i < expectedReads.size(); i++) {
+      SAMRecord expected = expectedReads.get(i);
+      expected.setReadBases(SAMRecord.NULL_SEQUENCE);
+      Assert.assertEquals(expected.getSAMString(), actualReads.get(i).getSAMString());
+    }
+  }
+
+  private Object[] parametersForTestWriteCramWithContainerOptions() {
+    return new Object[][] {
+      {FileCardinalityWriteOption.SINGLE, 10, 2, CramEncodingWriteOption.DEFAULT, 1},
+      {FileCardinalityWriteOption.SINGLE, 25, 1, CramEncodingWriteOption.FAST, 1},
+      {FileCardinalityWriteOption.SINGLE, 10000, 1, CramEncodingWriteOption.SMALL, 1},
+      {FileCardinalityWriteOption.MULTIPLE, 10, 3, CramEncodingWriteOption.FAST, 1},
+      {FileCardinalityWriteOption.SINGLE, 5, 1, CramEncodingWriteOption.DEFAULT, 4},
+      {FileCardinalityWriteOption.MULTIPLE, 5, 2, CramEncodingWriteOption.SMALL, 3},
+    };
+  }
+
+  @Test
+  @Parameters
+  public void testWriteCramWithContainerOptions(
+      FileCardinalityWriteOption fileCardinalityWriteOption,
+      int recordsPerSlice,
+      int slicesPerContainer,
+      CramEncodingWriteOption cramEncodingWriteOption,
+      int encodingThreads)
+      throws Exception {
+    String refPath = getPath("test.fa");
+
+    // use few enough reads that every slice starts within the (short) reference
+    String inputPath =
+        AnySamTestUtil.writeAnySamFile(
+            40, SAMFileHeader.SortOrder.coordinate, FormatWriteOption.CRAM, refPath);
+
+    HtsjdkReadsRddStorage htsjdkReadsRddStorage =
+        HtsjdkReadsRddStorage.makeDefault(jsc).splitSize(1024).referenceSourcePath(refPath);
+
+    HtsjdkReadsRdd htsjdkReadsRdd = htsjdkReadsRddStorage.read(inputPath);
+    List<SAMRecord> expectedReads = htsjdkReadsRdd.getReads().collect();
+
+    String outputPath =
+        createTempPath(
+            fileCardinalityWriteOption == FileCardinalityWriteOption.SINGLE
+                ? SamFormat.CRAM.getExtension()
+                : "");
+    htsjdkReadsRddStorage.write(
+        htsjdkReadsRdd,
+        outputPath,
+        FormatWriteOption.CRAM,
+        fileCardinalityWriteOption,
+        new CramContainerSizeWriteOption(recordsPerSlice, slicesPerContainer),
+        cramEncodingWriteOption,
+        new CramEncodingThreadsWriteOption(encodingThreads));
+
+    // check that the containers and slices are no larger than requested
+    List<String> cramFiles =
+        fileCardinalityWriteOption == FileCardinalityWriteOption.SINGLE
+            ? Collections.singletonList(outputPath)
+            : listPartFiles(outputPath);
+    for (String cramFile : cramFiles) {
+      try (SeekableStream in = new SeekableFileStream(new File(URI.create(cramFile)))) {
+        CramContainerHeaderIterator iterator = new CramContainerHeaderIterator(in);
+        while (iterator.hasNext()) {
+          Container container = iterator.next();
+          Assert.assertTrue(container.nofRecords <= recordsPerSlice * slicesPerContainer);
+          Assert.assertTrue(container.landmarks.length <= slicesPerContainer);
+        }
+      }
+      if (SamtoolsTestUtil.isSamtoolsAvailable()) {
+        SamtoolsTestUtil.countReads(cramFile, refPath); // check samtools can read the file
+      }
+    }
+
+    // check we can read back what we've just written
+    List<SAMRecord> actualReads = htsjdkReadsRddStorage.read(outputPath).getReads().collect();
+    Assert.assertEquals(expectedReads.size(), actualReads.size());
+    for (int i = 0; i < expectedReads.size(); i++) {
+      Assert.assertEquals(expectedReads.get(i).getSAMString(), actualReads.get(i).getSAMString());
+    }
+  }
+
   @Test(expected = IllegalArgumentException.class)
   public void testMappedOnlyFails() throws Exception {
     String inputPath =
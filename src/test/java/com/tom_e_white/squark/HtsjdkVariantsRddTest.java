@@ -2,15 +2,52 @@ package com.tom_e_white.squark;
 
 import static com.tom_e_white.squark.VcfTestUtil.countVariants;
 
+import com.tom_e_white.squark.HtsjdkVariantsRddStorage.FileCardinalityWriteOption;
 import com.tom_e_white.squark.HtsjdkVariantsRddStorage.FormatWriteOption;
+import com.tom_e_white.squark.HtsjdkVariantsRddStorage.GenotypeDecoding;
+import com.tom_e_white.squark.HtsjdkVariantsRddStorage.IndexWriteOption;
+import com.tom_e_white.squark.impl.file.MetadataCache;
+import com.tom_e_white.squark.impl.formats.tabix.TabixIntervalFilteringTextInputFormat;
 import com.tom_e_white.squark.impl.formats.vcf.VcfFormat;
+import htsjdk.samtools.util.BlockCompressedInputStream;
+import htsjdk.samtools.util.BlockCompressedOutputStream;
 import htsjdk.samtools.util.Interval;
+import htsjdk.samtools.util.OverlapDetector;
+import htsjdk.tribble.index.IndexFactory;
+import htsjdk.tribble.util.TabixUtils;
+import htsjdk.variant.variantcontext.Genotype;
 import htsjdk.variant.variantcontext.VariantContext;
+import htsjdk.variant.variantcontext.VariantContextBuilder;
+import htsjdk.variant.vcf.VCFCodec;
+import htsjdk.variant.vcf.VCFFileReader;
+import htsjdk.variant.vcf.VCFHeader;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
 import junitparams.JUnitParamsRunner;
 import junitparams.Parameters;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
 import org.apache.spark.api.java.JavaRDD;
 import org.junit.Assert;
 import org.junit.Test;
@@ -147,4 +184,670 @@ public class HtsjdkVariantsRddTest extends BaseTest {
     int expectedCount = countVariants(inputPath, interval);
     Assert.assertEquals(expectedCount, variants.count());
   }
+
+  @Test
+  @Parameters({"HiSeq.10000.vcf.bgz", "HiSeq.10000.bcf"})
+  public void testReadsOnSameContextHaveTheirOwnSplitSize(String inputFile)
+      throws IOException, URISyntaxException {
+    String inputPath = getPath(inputFile);
+    String maxSplitSize = jsc.hadoopConfiguration().get(FileInputFormat.SPLIT_MAXSIZE);
+
+    JavaRDD<VariantContext> smallSplits =
+        HtsjdkVariantsRddStorage.makeDefault(jsc)
+            .splitSize(128 * 1024)
+            .read(inputPath)
+            .getVariants();
+    JavaRDD<VariantContext> defaultSplits =
+        HtsjdkVariantsRddStorage.makeDefault(jsc).read(inputPath).getVariants();
+
+    // the second read doesn't use the first read's split size
+    Assert.assertEquals(4, smallSplits.getNumPartitions());
+    Assert.assertEquals(1, defaultSplits.getNumPartitions());
+    Assert.assertEquals(maxSplitSize, jsc.hadoopConfiguration().get(FileInputFormat.SPLIT_MAXSIZE));
+  }
+
+  @Test
+  public void testReadMultipleIntervals() throws IOException, URISyntaxException {
+    String inputPath = getPath("HiSeq.10000.vcf.bgz");
+    // sparse intervals across several splits, including overlapping intervals
+    List<Interval> intervals =
+        Arrays.asList(
+            new Interval("chr1", 10000, 20000),
+            new Interval("chr1", 15000, 30000),
+            new Interval("chr1", 1000000, 1001000),
+            new Interval("chr1", 2700000, 2800000),
+            new Interval("chr1", 8000000, 8000100));
+    HtsjdkVariantsRddStorage htsjdkVariantsRddStorage =
+        HtsjdkVariantsRddStorage.makeDefault(jsc).splitSize(32 * 1024);
+
+    List<String> expected = summariesOverlapping(htsjdkVariantsRddStorage, inputPath, intervals);
+    List<String> actual =
+        htsjdkVariantsRddStorage
+            .read(inputPath, intervals)
+            .getVariants()
+            .map(HtsjdkVariantsRddTest::summarize)
+            .collect();
+    Assert.assertFalse(expected.isEmpty());
+    Assert.assertEquals(expected, actual);
+  }
+
+  @Test
+  public void testReadIntervalsWithCsiIndex() throws IOException, URISyntaxException {
+    String inputPath = getPath("HiSeq.10000.vcf.bgz");
+    List<Interval> intervals =
+        Arrays.asList(
+            new Interval("chr1", 10000, 20000),
+            new Interval("chr1", 1000000, 1001000),
+            new Interval("chr1", 2700000, 2800000));
+    HtsjdkVariantsRddStorage htsjdkVariantsRddStorage =
+        HtsjdkVariantsRddStorage.makeDefault(jsc).splitSize(32 * 1024);
+
+    // write a copy of the file with a CSI index, rather than a tabix index
+    String outputPath = createTempPath(".vcf.gz");
+    htsjdkVariantsRddStorage.write(
+        htsjdkVariantsRddStorage.read(inputPath), outputPath, IndexWriteOption.CSI);
+    Assert.assertTrue(new File(URI.create(outputPath + ".csi")).exists());
+    Assert.assertFalse(new File(URI.create(outputPath + ".tbi")).exists());
+    if (BcftoolsTestUtil.isBcftoolsAvailable()) {
+      Assert.assertEquals(
+          countVariants(inputPath, intervals.get(2)),
+          BcftoolsTestUtil.countVariants(outputPath, intervals.get(2)));
+    }
+
+    List<String> expected = summariesOverlapping(htsjdkVariantsRddStorage, inputPath, intervals);
+    List<String> actual =
+        htsjdkVariantsRddStorage
+            .read(outputPath, intervals)
+            .getVariants()
+            .map(HtsjdkVariantsRddTest::summarize)
+            .collect();
+    Assert.assertFalse(expected.isEmpty());
+    Assert.assertEquals(expected, actual);
+  }
+
+  @Test
+  public void testReadIntervalsWithEmptyBgzfBlocks() throws IOException, URISyntaxException {
+    String inputPath = getPath("HiSeq.10000.vcf.bgz");
+    List<Interval> intervals = Collections.singletonList(new Interval("chr1", 10000, 2800000));
+    HtsjdkVariantsRddStorage htsjdkVariantsRddStorage =
+        HtsjdkVariantsRddStorage.makeDefault(jsc).splitSize(128 * 1024 * 1024);
+
+    // write a copy of the file as concatenated BGZF parts of 500 lines, each ending with an empty
+    // terminator block, so the tabix chunk for the interval has empty blocks in the middle
+    File outputFile = new File(URI.create(createTempPath(".vcf.gz")));
+    List<String> lines;
+    try (BufferedReader reader =
+        new BufferedReader(
+            new InputStreamReader(
+                new BlockCompressedInputStream(new File(URI.create(inputPath))),
+                StandardCharsets.UTF_8))) {
+      lines = reader.lines().collect(Collectors.toList());
+    }
+    try (OutputStream out = new FileOutputStream(outputFile)) {
+      for (int i = 0; i < lines.size(); i += 500) {
+        ByteArrayOutputStream part = new ByteArrayOutputStream();
+        try (BlockCompressedOutputStream bgzf = new BlockCompressedOutputStream(part, null)) {
+          for (String line : lines.subList(i, Math.min(i + 500, lines.size()))) {
+            bgzf.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+          }
+        }
+        part.writeTo(out);
+      }
+    }
+    IndexFactory.createIndex(outputFile, new VCFCodec(), IndexFactory.IndexType.TABIX)
+        .write(new File(outputFile.getPath() + TabixUtils.STANDARD_INDEX_EXTENSION));
+
+    List<String> expected = summariesOverlapping(htsjdkVariantsRddStorage, inputPath, intervals);
+    List<String> actual =
+        htsjdkVariantsRddStorage
+            .read(outputFile.toURI().toString(), intervals)
+            .getVariants()
+            .map(HtsjdkVariantsRddTest::summarize)
+            .collect();
+    Assert.assertTrue(expected.size() > 1000);
+    Assert.assertEquals(expected, actual);
+  }
+
+  @Test
+  public void testReadIntervalsFromMultipleFiles() throws IOException, URISyntaxException {
+    String inputPath = getPath("HiSeq.10000.vcf.bgz");
+    // the second file has no variants in the intervals, so it is not read
+    List<Interval> intervals =
+        Arrays.asList(new Interval("chr1", 10000, 20000), new Interval("chr1", 2700000, 2720000));
+    HtsjdkVariantsRddStorage htsjdkVariantsRddStorage =
+        HtsjdkVariantsRddStorage.makeDefault(jsc).splitSize(32 * 1024);
+
+    // split the file into a directory of three indexed files
+    HtsjdkVariantsRdd htsjdkVariantsRdd = htsjdkVariantsRddStorage.read(inputPath);
+    String outputDir = createTempPath("");
+    int[] boundaries = {0, 1000000, 2600000, Integer.MAX_VALUE};
+    for (int i = 0; i < boundaries.length - 1; i++) {
+      int start = boundaries[i];
+      int end = boundaries[i + 1];
+      JavaRDD<VariantContext> variants =
+          htsjdkVariantsRdd
+              .getVariants()
+              .filter(vc -> vc.getStart() >= start && vc.getStart() < end);
+      htsjdkVariantsRddStorage.write(
+          new HtsjdkVariantsRdd(htsjdkVariantsRdd.getHeader(), variants),
+          outputDir + "/part-" + i + ".vcf.gz",
+          IndexWriteOption.CSI);
+    }
+
+    // no split is planned for the second file
+    Job job = Job.getInstance(jsc.hadoopConfiguration());
+    FileInputFormat.setInputPaths(job, outputDir);
+    List<String> files = new ArrayList<>();
+    for (int i = 0; i < boundaries.length - 1; i++) {
+      files.add(outputDir + "/part-" + i + ".vcf.gz");
+    }
+    TabixIntervalFilteringTextInputFormat.setFileChunks(
+        job.getConfiguration(),
+        TabixIntervalFilteringTextInputFormat.getFileChunks(
+            job.getConfiguration(), new MetadataCache(), files, intervals));
+    Set<String> splitFiles = new HashSet<>();
+    for (InputSplit split : new TabixIntervalFilteringTextInputFormat().getSplits(job)) {
+      splitFiles.add(((FileSplit) split).getPath().getName());
+    }
+    Assert.assertEquals(new HashSet<>(Arrays.asList("part-0.vcf.gz", "part-2.vcf.gz")), splitFiles);
+
+    List<String> expected =
+        new ArrayList<>(summariesOverlapping(htsjdkVariantsRddStorage, inputPath, intervals));
+    List<String> actual =
+        new ArrayList<>(
+            htsjdkVariantsRddStorage
+                .read(outputDir, intervals)
+                .getVariants()
+                .map(HtsjdkVariantsRddTest::summarize)
+                .collect());
+    // the files in a directory are not necessarily read in order
+    Collections.sort(expected);
+    Collections.sort(actual);
+    Assert.assertFalse(expected.isEmpty());
+    Assert.assertEquals(expected, actual);
+  }
+
+  @Test
+  public void testReadFilesWithDifferentHeaders() throws IOException, URISyntaxException {
+    // the second file has a different header version, an extra header line, and its samples in a
+    // different order
+    File inputFile = new File(URI.create(getPath("test.vcf")));
+    List<String> lines = Files.readAllLines(inputFile.toPath());
+    List<String> reorderedLines = new ArrayList<>();
+    for (String line : lines) {
+      if (line.startsWith("##fileformat=")) {
+        reorderedLines.add("##fileformat=VCFv4.2");
+        reorderedLines.add("##INFO=<ID=XX,Number=1,Type=Integer,Description=\"Extra\">");
+      } else if (line.startsWith("##")) {
+        reorderedLines.add(line);
+      } else {
+        // move the last sample column to be the first
+        List<String> columns = new ArrayList<>(Arrays.asList(line.split("\t")));
+        columns.add(9, columns.remove(columns.size() - 1));
+        reorderedLines.add(String.join("\t", columns));
+      }
+    }
+    File dir = createTempFile("");
+    Assert.assertTrue(dir.mkdir());
+    Files.write(new File(dir, "part-0.vcf").toPath(), lines);
+    Files.write(new File(dir, "part-1.vcf").toPath(), reorderedLines);
+
+    for (Set<String> samples : Arrays.asList(null, Collections.singleton("NA00003"))) {
+      List<String> expected =
+          genotypeSummaries(HtsjdkVariantsRddStorage.makeDefault(jsc).samples(samples), inputFile);
+      List<String> actual =
+          genotypeSummaries(HtsjdkVariantsRddStorage.makeDefault(jsc).samples(samples), dir);
+      List<String> expectedTwice = new ArrayList<>(expected);
+      expectedTwice.addAll(expected);
+      Collections.sort(expectedTwice);
+      Assert.assertEquals(expectedTwice, actual);
+
+      // the header lines are merged
+      VCFHeader header =
+          HtsjdkVariantsRddStorage.makeDefault(jsc)
+              .samples(samples)
+              .read(dir.toURI().toString())
+              .getHeader();
+      Assert.assertTrue(header.hasInfoLine("XX"));
+      Assert.assertTrue(header.hasInfoLine("DP"));
+      Assert.assertEquals(
+          samples == null ? new HashSet<>(Arrays.asList("NA00001", "NA00002", "NA00003")) : samples,
+          new HashSet<>(header.getGenotypeSamples()));
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testReadFilesWithDifferentSamples() throws IOException, URISyntaxException {
+    // the second file doesn't have the last sample
+    File inputFile = new File(URI.create(getPath("test.vcf")));
+    List<String> lines = Files.readAllLines(inputFile.toPath());
+    List<String> fewerSamplesLines = new ArrayList<>();
+    for (String line : lines) {
+      fewerSamplesLines.add(
+          line.startsWith("##") ? line : line.substring(0, line.lastIndexOf('\t')));
+    }
+    File dir = createTempFile("");
+    Assert.assertTrue(dir.mkdir());
+    Files.write(new File(dir, "part-0.vcf").toPath(), lines);
+    Files.write(new File(dir, "part-1.vcf").toPath(), fewerSamplesLines);
+
+    HtsjdkVariantsRddStorage.makeDefault(jsc).read(dir.toURI().toString());
+  }
+
+  /** @return the sorted genotypes of each variant, by sample name */
+  private List<String> genotypeSummaries(HtsjdkVariantsRddStorage storage, File file)
+      throws IOException {
+    List<String> summaries =
+        new ArrayList<>(
+            storage
+                .read(file.toURI().toString())
+                .getVariants()
+                .map(
+                    vc ->
+                        vc.getStart()
+                            + ":"
+                            + vc.getGenotypes()
+                                .stream()
+                                .map(Genotype::toString)
+                                .sorted()
+                                .collect(Collectors.joining(",")))
+                .collect());
+    Collections.sort(summaries);
+    return summaries;
+  }
+
+  /** @return the summaries of the variants in a file that overlap the intervals, in file order */
+  private static List<String> summariesOverlapping(
+      HtsjdkVariantsRddStorage htsjdkVariantsRddStorage, String path, List<Interval> intervals)
+      throws IOException {
+    // filter on the driver, since intervals are not serializable
+    OverlapDetector<Interval> overlapDetector = OverlapDetector.create(intervals);
+    return htsjdkVariantsRddStorage
+        .read(path)
+        .getVariants()
+        .map(HtsjdkVariantsRddTest::summarize)
+        .collect()
+        .stream()
+        .filter(
+            summary -> {
+              // the summary starts with the contig, start, and end
+              String[] fields = summary.split("\t");
+              return overlapDetector.overlapsAny(
+                  new Interval(
+                      fields[0], Integer.parseInt(fields[1]), Integer.parseInt(fields[2])));
+            })
+        .collect(Collectors.toList());
+  }
+
+  private Object[] parametersForTestReadMatchesHtsjdk() {
+    return new Object[][] {
+      {"test.vcf", GenotypeDecoding.DEFAULT},
+      {"test.sites.vcf", GenotypeDecoding.DEFAULT},
+      {"HiSeq.10000.vcf.bgz", GenotypeDecoding.DEFAULT},
+      {"HiSeq.10000.vcf.bgz", GenotypeDecoding.LAZY},
+    };
+  }
+
+  @Test
+  @Parameters
+  public void testReadMatchesHtsjdk(String inputFile, GenotypeDecoding genotypeDecoding)
+      throws IOException, URISyntaxException {
+    String inputPath = getPath(inputFile);
+
+    // lines are decoded straight from the record reader's buffer, so check they decode to the
+    // same variants as htsjdk's own reader gives
+    List<String> expected = new ArrayList<>();
+    try (VCFFileReader reader = VcfTestUtil.parseVcf(new File(URI.create(inputPath)))) {
+      for (VariantContext vc : reader) {
+        expected.add(vc.toStringDecodeGenotypes());
+      }
+    }
+    HtsjdkVariantsRdd actual =
+        HtsjdkVariantsRddStorage.makeDefault(jsc)
+            .splitSize(128 * 1024)
+            .genotypeDecoding(genotypeDecoding)
+            .read(inputPath);
+    Assert.assertEquals(
+        expected, actual.getVariants().map(VariantContext::toStringDecodeGenotypes).collect());
+  }
+
+  private Object[] parametersForTestReadWithGenotypeDecoding() {
+    return new Object[][] {
+      {"test.vcf", GenotypeDecoding.LAZY},
+      {"test.vcf", GenotypeDecoding.SITES_ONLY},
+      {"test.sites.vcf", GenotypeDecoding.SITES_ONLY},
+      {"HiSeq.10000.vcf.bgz", GenotypeDecoding.LAZY},
+      {"HiSeq.10000.vcf.bgz", GenotypeDecoding.SITES_ONLY},
+    };
+  }
+
+  @Test
+  @Parameters
+  public void testReadWithGenotypeDecoding(String inputFile, GenotypeDecoding genotypeDecoding)
+      throws IOException, URISyntaxException {
+    String inputPath = getPath(inputFile);
+
+    HtsjdkVariantsRdd expected =
+        HtsjdkVariantsRddStorage.makeDefault(jsc).splitSize(128 * 1024).read(inputPath);
+    HtsjdkVariantsRdd actual =
+        HtsjdkVariantsRddStorage.makeDefault(jsc)
+            .splitSize(128 * 1024)
+            .genotypeDecoding(genotypeDecoding)
+            .read(inputPath);
+
+    if (genotypeDecoding == GenotypeDecoding.SITES_ONLY) {
+      Assert.assertFalse(actual.getHeader().hasGenotypingData());
+      Assert.assertEquals(0, actual.getVariants().filter(VariantContext::hasGenotypes).count());
+      // compare sites only
+      Assert.assertEquals(
+          expected
+              .getVariants()
+              .map(vc -> new VariantContextBuilder(vc).noGenotypes().make())
+              .map(VariantContext::toStringDecodeGenotypes)
+              .collect(),
+          actual.getVariants().map(VariantContext::toStringDecodeGenotypes).collect());
+    } else {
+      Assert.assertEquals(
+          expected.getHeader().getGenotypeSamples(), actual.getHeader().getGenotypeSamples());
+      Assert.assertEquals(
+          expected.getVariants().map(VariantContext::toStringDecodeGenotypes).collect(),
+          actual.getVariants().map(VariantContext::toStringDecodeGenotypes).collect());
+    }
+  }
+
+  private Object[] parametersForTestCollectLazilyDecodedVariants() {
+    return new Object[][] {
+      {"test.vcf", new String[] {}},
+      {"test.vcf", new String[] {"NA00003", "NA00001"}},
+      {"HiSeq.10000.vcf.bgz", new String[] {}},
+    };
+  }
+
+  @Test
+  @Parameters
+  public void testCollectLazilyDecodedVariants(String inputFile, String[] samples)
+      throws IOException, URISyntaxException {
+    String inputPath = getPath(inputFile);
+    Set<String> sampleSet = samples.length == 0 ? null : new HashSet<>(Arrays.asList(samples));
+
+    HtsjdkVariantsRdd expected =
+        HtsjdkVariantsRddStorage.makeDefault(jsc)
+            .splitSize(128 * 1024)
+            .samples(sampleSet)
+            .read(inputPath);
+    HtsjdkVariantsRdd actual =
+        HtsjdkVariantsRddStorage.makeDefault(jsc)
+            .splitSize(128 * 1024)
+            .genotypeDecoding(GenotypeDecoding.LAZY)
+            .samples(sampleSet)
+            .read(inputPath);
+
+    // the genotypes are decoded when the variants are serialized, both for a collect and a shuffle
+    // (filters are sorted since they are in a hash set, which may iterate in a different order once
+    // deserialized)
+    List<String> expectedVariants =
+        expected.getVariants().map(HtsjdkVariantsRddTest::toStringWithSortedFilters).collect();
+    Assert.assertEquals(
+        expectedVariants,
+        actual
+            .getVariants()
+            .collect()
+            .stream()
+            .map(HtsjdkVariantsRddTest::toStringWithSortedFilters)
+            .collect(Collectors.toList()));
+    Assert.assertEquals(
+        new HashSet<>(expectedVariants),
+        new HashSet<>(
+            actual
+                .getVariants()
+                .repartition(2)
+                .map(HtsjdkVariantsRddTest::toStringWithSortedFilters)
+                .collect()));
+  }
+
+  private static String toStringWithSortedFilters(VariantContext vc) {
+    return new VariantContextBuilder(vc)
+        .unfiltered()
+        .make()
+        .toStringDecodeGenotypes()
+        .replaceFirst(" filters=$", " filters=" + String.join(",", new TreeSet<>(vc.getFilters())));
+  }
+
+  private Object[] parametersForTestReadSamples() {
+    return new Object[][] {
+      {"test.vcf", GenotypeDecoding.DEFAULT, new String[] {"NA00003", "NA00001"}},
+      {"test.vcf", GenotypeDecoding.LAZY, new String[] {"NA00003", "NA00001"}},
+      {"test.vcf", GenotypeDecoding.DEFAULT, new String[] {"NA00002"}},
+      {"test.vcf", GenotypeDecoding.DEFAULT, new String[] {}},
+      {"test.sites.vcf", GenotypeDecoding.DEFAULT, new String[] {}},
+      {"HiSeq.10000.vcf.bgz", GenotypeDecoding.LAZY, new String[] {"NA12878"}},
+    };
+  }
+
+  @Test
+  @Parameters
+  public void testReadSamples(String inputFile, GenotypeDecoding genotypeDecoding, String[] samples)
+      throws IOException, URISyntaxException {
+    String inputPath = getPath(inputFile);
+    Set<String> sampleSet = new HashSet<>(Arrays.asList(samples));
+
+    HtsjdkVariantsRdd expected =
+        HtsjdkVariantsRddStorage.makeDefault(jsc).splitSize(128 * 1024).read(inputPath);
+    HtsjdkVariantsRdd actual =
+        HtsjdkVariantsRddStorage.makeDefault(jsc)
+            .splitSize(128 * 1024)
+            .genotypeDecoding(genotypeDecoding)
+            .samples(sampleSet)
+            .read(inputPath);
+
+    List<String> expectedSamples = new ArrayList<>(expected.getHeader().getGenotypeSamples());
+    expectedSamples.retainAll(sampleSet);
+    Assert.assertEquals(expectedSamples, actual.getHeader().getGenotypeSamples());
+    Assert.assertEquals(
+        expected
+            .getVariants()
+            .map(vc -> vc.subContextFromSamples(sampleSet, false))
+            .map(VariantContext::toStringDecodeGenotypes)
+            .collect(),
+        actual.getVariants().map(VariantContext::toStringDecodeGenotypes).collect());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testReadMissingSamples() throws IOException, URISyntaxException {
+    HtsjdkVariantsRddStorage.makeDefault(jsc)
+        .samples(Collections.singleton("missing"))
+        .read(getPath("test.vcf"));
+  }
+
+  private Object[] parametersForTestReadBcf() {
+    return new Object[][] {
+      {"test.vcf", "test.bcf", null, 128 * 1024},
+      {"HiSeq.10000.vcf.bgz", "HiSeq.10000.bcf", null, 128 * 1024},
+      {"HiSeq.10000.vcf.bgz", "HiSeq.10000.bcf", null, 32 * 1024},
+      {
+        "HiSeq.10000.vcf.bgz", "HiSeq.10000.bcf", new Interval("chr1", 2700000, 2800000), 128 * 1024
+      },
+    };
+  }
+
+  @Test
+  @Parameters
+  public void testReadBcf(String vcfFile, String bcfFile, Interval interval, int splitSize)
+      throws IOException, URISyntaxException {
+    List<Interval> intervals = interval == null ? null : Collections.singletonList(interval);
+    HtsjdkVariantsRddStorage htsjdkVariantsRddStorage =
+        HtsjdkVariantsRddStorage.makeDefault(jsc).splitSize(splitSize);
+
+    HtsjdkVariantsRdd expected = htsjdkVariantsRddStorage.read(getPath(vcfFile), intervals);
+    HtsjdkVariantsRdd actual = htsjdkVariantsRddStorage.read(getPath(bcfFile), intervals);
+
+    Assert.assertEquals(
+        expected.getHeader().getGenotypeSamples(), actual.getHeader().getGenotypeSamples());
+    if (interval == null && bcfFile.startsWith("HiSeq")) {
+      Assert.assertTrue(actual.getVariants().getNumPartitions() > 1);
+    }
+    // BCF is decoded with a different codec, so compare the fields that are in common
+    Assert.assertEquals(
+        expected.getVariants().map(HtsjdkVariantsRddTest::summarize).collect(),
+        actual.getVariants().map(HtsjdkVariantsRddTest::summarize).collect());
+  }
+
+  private Object[] parametersForTestWriteBcf() {
+    return new Object[][] {
+      {"test.vcf", FileCardinalityWriteOption.SINGLE, IndexWriteOption.NONE},
+      {"HiSeq.10000.vcf.bgz", FileCardinalityWriteOption.SINGLE, IndexWriteOption.NONE},
+      {"HiSeq.10000.vcf.bgz", FileCardinalityWriteOption.SINGLE, IndexWriteOption.CSI},
+      {"HiSeq.10000.vcf.bgz", FileCardinalityWriteOption.MULTIPLE, IndexWriteOption.NONE},
+    };
+  }
+
+  @Test
+  @Parameters
+  public void testWriteBcf(
+      String inputFile,
+      FileCardinalityWriteOption fileCardinalityWriteOption,
+      IndexWriteOption indexWriteOption)
+      throws IOException, URISyntaxException {
+    HtsjdkVariantsRddStorage htsjdkVariantsRddStorage =
+        HtsjdkVariantsRddStorage.makeDefault(jsc).splitSize(128 * 1024);
+    HtsjdkVariantsRdd htsjdkVariantsRdd = htsjdkVariantsRddStorage.read(getPath(inputFile));
+    int expectedCount = (int) htsjdkVariantsRdd.getVariants().count();
+
+    String outputPath =
+        createTempPath(
+            fileCardinalityWriteOption == FileCardinalityWriteOption.SINGLE ? ".bcf" : "");
+    htsjdkVariantsRddStorage.write(
+        htsjdkVariantsRdd,
+        outputPath,
+        FormatWriteOption.BCF,
+        fileCardinalityWriteOption,
+        indexWriteOption);
+
+    List<String> outputFiles =
+        fileCardinalityWriteOption == FileCardinalityWriteOption.SINGLE
+            ? Collections.singletonList(outputPath)
+            : listPartFiles(outputPath);
+    for (String outputFile : outputFiles) {
+      Assert.assertTrue(VcfTestUtil.isBlockCompressed(outputFile));
+      assertBcf22Header(outputFile, htsjdkVariantsRdd.getHeader().getGenotypeSamples());
+    }
+    if (BcftoolsTestUtil.isBcftoolsAvailable()) {
+      int totalCountBcftools = 0;
+      for (String outputFile : outputFiles) {
+        totalCountBcftools += BcftoolsTestUtil.countVariants(outputFile);
+      }
+      Assert.assertEquals(expectedCount, totalCountBcftools);
+    }
+
+    if (indexWriteOption == IndexWriteOption.CSI) {
+      String indexPath = outputPath + ".csi";
+      Assert.assertTrue(VcfTestUtil.isBlockCompressed(indexPath));
+      try (InputStream in = new BlockCompressedInputStream(new File(URI.create(indexPath)))) {
+        byte[] magic = new byte[4];
+        Assert.assertEquals(4, in.read(magic));
+        Assert.assertArrayEquals(new byte[] {'C', 'S', 'I', 1}, magic);
+      }
+      if (BcftoolsTestUtil.isBcftoolsAvailable()) {
+        // bcftools uses the index for region queries
+        Interval interval = new Interval("chr1", 2700000, 2800000);
+        Assert.assertEquals(
+            countVariants(getPath(inputFile), interval),
+            BcftoolsTestUtil.countVariants(outputPath, interval));
+      }
+    }
+
+    // check we can read back what we've just written
+    HtsjdkVariantsRdd actual = htsjdkVariantsRddStorage.read(outputPath);
+    Assert.assertEquals(
+        htsjdkVariantsRdd.getHeader().getGenotypeSamples(),
+        actual.getHeader().getGenotypeSamples());
+    List<String> expectedVariants =
+        new ArrayList<>(
+            htsjdkVariantsRdd.getVariants().map(HtsjdkVariantsRddTest::summarize).collect());
+    List<String> actualVariants =
+        new ArrayList<>(actual.getVariants().map(HtsjdkVariantsRddTest::summarize).collect());
+    if (fileCardinalityWriteOption == FileCardinalityWriteOption.MULTIPLE) {
+      // the files in a directory are not necessarily read in order
+      Collections.sort(expectedVariants);
+      Collections.sort(actualVariants);
+    }
+    Assert.assertEquals(expectedVariants, actualVariants);
+  }
+
+  /**
+   * Check that the file starts with the BCF 2.2 magic bytes (since bcftools can only read BCF 2.2),
+   * then the length of the header text, which is a NUL-terminated VCF header.
+   */
+  private static void assertBcf22Header(String path, List<String> samples) throws IOException {
+    try (DataInputStream in =
+        new DataInputStream(new BlockCompressedInputStream(new File(URI.create(path))))) {
+      byte[] magic = new byte[5];
+      in.readFully(magic);
+      Assert.assertArrayEquals(new byte[] {'B', 'C', 'F', 2, 2}, magic);
+      int headerLength = Integer.reverseBytes(in.readInt()); // little-endian
+      byte[] header = new byte[headerLength];
+      in.readFully(header);
+      Assert.assertEquals(0, header[headerLength - 1]);
+      String headerText = new String(header, 0, headerLength - 1, StandardCharsets.US_ASCII);
+      Assert.assertTrue(headerText.startsWith("##fileformat=VCFv4.2\n"));
+      List<String> columns =
+          new ArrayList<>(
+              Arrays.asList("CHROM", "POS", "ID", "REF", "ALT", "QUAL", "FILTER", "INFO"));
+      if (!samples.isEmpty()) {
+        columns.add("FORMAT");
+        columns.addAll(samples);
+      }
+      Assert.assertTrue(headerText.endsWith("\n#" + String.join("\t", columns) + "\n"));
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testWriteCsiIndexForUncompressedVcf() throws IOException, URISyntaxException {
+    HtsjdkVariantsRddStorage htsjdkVariantsRddStorage = HtsjdkVariantsRddStorage.makeDefault(jsc);
+    HtsjdkVariantsRdd htsjdkVariantsRdd = htsjdkVariantsRddStorage.read(getPath("test.vcf"));
+    htsjdkVariantsRddStorage.write(htsjdkVariantsRdd, createTempPath(".vcf"), IndexWriteOption.CSI);
+  }
+
+  @Test
+  public void testWriteCsiIndexForUnsortedVcf() throws IOException, URISyntaxException {
+    HtsjdkVariantsRddStorage htsjdkVariantsRddStorage = HtsjdkVariantsRddStorage.makeDefault(jsc);
+    HtsjdkVariantsRdd htsjdkVariantsRdd =
+        htsjdkVariantsRddStorage.read(getPath("HiSeq.10000.vcf.bgz"));
+    JavaRDD<VariantContext> reversed =
+        htsjdkVariantsRdd
+            .getVariants()
+            .coalesce(1)
+            .mapPartitions(
+                it -> {
+                  List<VariantContext> variants = new ArrayList<>();
+                  it.forEachRemaining(variants::add);
+                  Collections.reverse(variants);
+                  return variants.iterator();
+                });
+    try {
+      htsjdkVariantsRddStorage.write(
+          new HtsjdkVariantsRdd(htsjdkVariantsRdd.getHeader(), reversed),
+          createTempPath(".vcf.gz"),
+          IndexWriteOption.CSI);
+      Assert.fail("Expected the write to fail, since the variants are not sorted");
+    } catch (Exception e) { // the job fails, since the records are indexed as they are written
+      Assert.assertTrue(e.getMessage(), e.getMessage().contains("must be in coordinate order"));
+    }
+  }
+
+  private static String summarize(VariantContext vc) {
+    // quality and extended attributes are not compared since BCF decodes them as different types
+    return String.join(
+        "\t",
+        vc.getContig(),
+        String.valueOf(vc.getStart()),
+        String.valueOf(vc.getEnd()),
+        vc.getID(),
+        vc.getAlleles().toString(),
+        vc.getFilters().toString(),
+        vc.getGenotypes()
+            .stream()
+            .map(g -> g.getSampleName() + ":" + g.getGenotypeString())
+            .collect(Collectors.joining(",")));
+  }
 }
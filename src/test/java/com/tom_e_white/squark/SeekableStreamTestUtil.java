@@ -0,0 +1,43 @@
+package com.tom_e_white.squark;
+
+import htsjdk.samtools.seekablestream.SeekableStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Assert;
+
+public class SeekableStreamTestUtil {
+
+  /** @return the given number of random bytes, which are the same each time */
+  public static byte[] randomBytes(int length) {
+    byte[] data = new byte[length];
+    new Random(42).nextBytes(data);
+    return data;
+  }
+
+  /**
+   * Seek to random positions in the stream and read up to the given number of bytes from each,
+   * checking that the bytes, the position, and the byte after the read (or the end of the stream)
+   * match the data.
+   */
+  public static void assertRandomReads(
+      byte[] data, SeekableStream in, Random random, int reads, int maxLength) throws IOException {
+    for (int i = 0; i < reads; i++) {
+      int position = random.nextInt(data.length);
+      int length = random.nextInt(maxLength) + 1;
+      in.seek(position);
+      byte[] buffer = new byte[length];
+      int n = in.read(buffer, 0, length);
+      Assert.assertEquals(Math.min(length, data.length - position), n);
+      Assert.assertArrayEquals(
+          Arrays.copyOfRange(data, position, position + n), Arrays.copyOf(buffer, n));
+      Assert.assertEquals(position + n, in.position());
+      if (position + n < data.length) {
+        Assert.assertEquals(data[position + n] & 0xff, in.read());
+      } else {
+        Assert.assertTrue(in.eof());
+        Assert.assertEquals(-1, in.read());
+      }
+    }
+  }
+}
@@ -0,0 +1,100 @@
+package com.tom_e_white.squark.impl.file;
+
+import static com.tom_e_white.squark.SeekableStreamTestUtil.assertRandomReads;
+import static com.tom_e_white.squark.SeekableStreamTestUtil.randomBytes;
+
+import com.google.common.io.Files;
+import htsjdk.samtools.seekablestream.ByteArraySeekableStream;
+import htsjdk.samtools.seekablestream.SeekableStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.hadoop.conf.Configuration;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CachingFileSystemWrapperTest {
+
+  @Test
+  public void testReadsAreCached() throws IOException {
+    byte[] data = randomBytes(10_000);
+    Random random = new Random(42);
+    AtomicInteger opens = new AtomicInteger();
+    Callable<SeekableStream> opener =
+        () -> {
+          opens.incrementAndGet();
+          return new ByteArraySeekableStream(data);
+        };
+    File dir = Files.createTempDir();
+    LocalBlockCache cache = new LocalBlockCache(dir.toPath(), 1_000_000);
+    FileCacheKey key = new FileCacheKey("s3a://bucket/file", data.length, 1L);
+
+    // the first read fetches every block, and the second finds them all in the cache
+    try (SeekableStream in =
+        new CachingFileSystemWrapper.CachingSeekableStream(key, opener, cache, 1000)) {
+      byte[] buffer = new byte[data.length];
+      in.readFully(buffer);
+      Assert.assertArrayEquals(data, buffer);
+    }
+    Assert.assertEquals(1, opens.get());
+    Assert.assertEquals(data.length, cache.size());
+    Assert.assertEquals(10, dir.list((d, name) -> !name.startsWith(".")).length);
+    try (SeekableStream in =
+        new CachingFileSystemWrapper.CachingSeekableStream(key, opener, cache, 1000)) {
+      assertRandomReads(data, in, random, 100, 2500);
+    }
+    Assert.assertEquals(1, opens.get());
+
+    // a file that has changed is not read from the cache
+    try (SeekableStream in =
+        new CachingFileSystemWrapper.CachingSeekableStream(
+            new FileCacheKey("s3a://bucket/file", data.length, 2L), opener, cache, 1000)) {
+      assertRandomReads(data, in, random, 100, 2500);
+    }
+    Assert.assertEquals(2, opens.get());
+  }
+
+  @Test
+  public void testLocalFilesAreNotCached() throws IOException {
+    File dir = Files.createTempDir();
+    File file = new File(dir, "a file.bin");
+    Files.write(randomBytes(1000), file);
+    Configuration conf = new Configuration();
+    conf.setBoolean(CachingFileSystemWrapper.ENABLED_KEY, true);
+    conf.set(CachingFileSystemWrapper.DIR_KEY, new File(dir, "cache").getPath());
+
+    // a path without a scheme is on the default filesystem, which is local
+    FileSystemWrapper hadoop = new CachingFileSystemWrapper(new HadoopFileSystemWrapper());
+    try (SeekableStream in = hadoop.open(conf, file.getPath())) {
+      Assert.assertFalse(in instanceof CachingFileSystemWrapper.CachingSeekableStream);
+    }
+    FileSystemWrapper nio = new CachingFileSystemWrapper(new NioFileSystemWrapper());
+    try (SeekableStream in = nio.open(conf, file.toURI().toString())) {
+      Assert.assertFalse(in instanceof CachingFileSystemWrapper.CachingSeekableStream);
+    }
+    Assert.assertEquals(
+        new FileCacheKey(file.getPath(), 1000, file.lastModified()),
+        hadoop.getFileCacheKey(conf, file.getPath()));
+    Assert.assertFalse(new File(dir, "cache").exists());
+  }
+
+  @Test
+  public void testEviction() throws IOException {
+    File dir = Files.createTempDir();
+    LocalBlockCache cache = new LocalBlockCache(dir.toPath(), 2500);
+    cache.put("a", new byte[1000]);
+    cache.put("b", new byte[1000]);
+    Assert.assertNotNull(cache.get("a")); // so b is the least recently used
+    cache.put("c", new byte[1000]);
+    Assert.assertNull(cache.get("b"));
+    Assert.assertNotNull(cache.get("a"));
+    Assert.assertNotNull(cache.get("c"));
+    Assert.assertEquals(2000, cache.size());
+    Assert.assertFalse(new File(dir, "b").exists());
+
+    // blocks already in the directory are found by a new cache
+    Assert.assertEquals(2000, new LocalBlockCache(dir.toPath(), 2500).size());
+  }
+}
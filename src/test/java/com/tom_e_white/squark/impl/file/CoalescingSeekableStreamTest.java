@@ -0,0 +1,92 @@
+package com.tom_e_white.squark.impl.file;
+
+import static com.tom_e_white.squark.SeekableStreamTestUtil.randomBytes;
+
+import htsjdk.samtools.seekablestream.ByteArraySeekableStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CoalescingSeekableStreamTest {
+
+  /** Counts the reads from the underlying streams. */
+  private static class CountingStream extends ByteArraySeekableStream {
+    private final AtomicInteger reads;
+
+    CountingStream(byte[] bytes, AtomicInteger reads) {
+      super(bytes);
+      this.reads = reads;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+      reads.incrementAndGet();
+      return super.read(buffer, offset, length);
+    }
+  }
+
+  @Test
+  public void testMergeRanges() {
+    List<long[]> ranges =
+        Arrays.asList(
+            new long[] {5000, 6000},
+            new long[] {0, 1000},
+            new long[] {1500, 2000},
+            new long[] {1800, 2500},
+            new long[] {10_000, 30_000},
+            new long[] {40_000, 41_000});
+    List<long[]> merged = CoalescingSeekableStream.mergeRanges(ranges, 1000, 10_000);
+    // ranges that are too big are left out
+    Assert.assertEquals(3, merged.size());
+    Assert.assertArrayEquals(new long[] {0, 2500}, merged.get(0));
+    Assert.assertArrayEquals(new long[] {5000, 6000}, merged.get(1));
+    Assert.assertArrayEquals(new long[] {40_000, 41_000}, merged.get(2));
+  }
+
+  @Test
+  public void testSparseReads() throws IOException {
+    byte[] data = randomBytes(1_000_000);
+    AtomicInteger reads = new AtomicInteger();
+    Random random = new Random(42);
+
+    // many small chunks a few KB apart, in order, as read for an index query
+    List<long[]> chunks = new ArrayList<>();
+    for (long start = 1000; start < 990_000; start += 2000 + random.nextInt(8000)) {
+      chunks.add(new long[] {start, start + 100 + random.nextInt(1000)});
+    }
+    try (CoalescingSeekableStream in =
+        new CoalescingSeekableStream(
+            new CountingStream(data, reads),
+            () -> new CountingStream(data, reads),
+            10_000,
+            100_000,
+            3)) {
+      in.setRanges(chunks);
+      for (long[] chunk : chunks) {
+        int length = (int) (chunk[1] - chunk[0]);
+        byte[] buffer = new byte[length];
+        in.seek(chunk[0]);
+        Assert.assertEquals(length, in.read(buffer, 0, length));
+        Assert.assertArrayEquals(Arrays.copyOfRange(data, (int) chunk[0], (int) chunk[1]), buffer);
+        Assert.assertEquals(data[(int) chunk[1]] & 0xff, in.read());
+      }
+      Assert.assertTrue(reads.get() < chunks.size() / 5);
+
+      // reads outside the ranges, and past the end of the file
+      in.seek(0);
+      Assert.assertEquals(data[0] & 0xff, in.read());
+      byte[] buffer = new byte[20_000];
+      in.seek(990_000);
+      Assert.assertEquals(10_000, in.read(buffer, 0, buffer.length));
+      Assert.assertArrayEquals(
+          Arrays.copyOfRange(data, 990_000, 1_000_000), Arrays.copyOf(buffer, 10_000));
+      Assert.assertEquals(-1, in.read());
+      Assert.assertTrue(in.eof());
+    }
+  }
+}
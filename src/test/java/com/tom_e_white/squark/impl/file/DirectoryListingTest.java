@@ -0,0 +1,82 @@
+package com.tom_e_white.squark.impl.file;
+
+import com.google.common.io.Files;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import org.apache.hadoop.conf.Configuration;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class DirectoryListingTest {
+
+  @Test
+  public void testListing() throws IOException {
+    File dir = Files.createTempDir();
+    Files.write(new byte[10], new File(dir, "b.cram"));
+    Files.write(new byte[20], new File(dir, "a.cram"));
+    Files.write(new byte[5], new File(dir, "a.cram.crai"));
+    Files.write(new byte[0], new File(dir, "_SUCCESS"));
+
+    FileSystemWrapper fileSystemWrapper = new HadoopFileSystemWrapper();
+    Configuration conf = new Configuration();
+    String path = dir.toURI().toString();
+    DirectoryListing.Cache cache = new DirectoryListing.Cache();
+    DirectoryListing listing = cache.get(fileSystemWrapper, conf, path);
+
+    // the same paths as listing the directory, with the lengths and modification times
+    List<String> paths = fileSystemWrapper.listDirectory(conf, path);
+    Assert.assertEquals(paths, listing.getPaths());
+    for (String p : paths) {
+      Assert.assertEquals(FileCacheKey.of(fileSystemWrapper, conf, p), listing.getFileCacheKey(p));
+    }
+    String first = listing.getFirstFile();
+    Assert.assertTrue(first.endsWith("a.cram"));
+    Assert.assertTrue(listing.contains(first + ".crai"));
+    String b = paths.stream().filter(p -> p.endsWith("/b.cram")).findFirst().get();
+    Assert.assertFalse(listing.contains(b + ".crai"));
+
+    // the cached listing is used until it is invalidated, or the directory's modification time
+    // changes
+    long modificationTime = dir.lastModified();
+    Files.write(new byte[30], new File(dir, "c.cram"));
+    Assert.assertTrue(dir.setLastModified(modificationTime));
+    Assert.assertSame(listing, cache.get(fileSystemWrapper, conf, path));
+    cache.invalidate(path);
+    listing = cache.get(fileSystemWrapper, conf, path);
+    Assert.assertEquals(5, listing.getPaths().size());
+    Files.write(new byte[40], new File(dir, "d.cram"));
+    Assert.assertTrue(dir.setLastModified(modificationTime + 10_000));
+    Assert.assertNotSame(listing, cache.get(fileSystemWrapper, conf, path));
+    listing = cache.get(fileSystemWrapper, conf, path);
+    Assert.assertEquals(6, listing.getPaths().size());
+
+    // invalidating a file in the directory (for example, because it is being written) also
+    // invalidates the directory's listing
+    Assert.assertSame(listing, cache.get(fileSystemWrapper, conf, path));
+    cache.invalidate(new File(dir, "e.cram").toURI().toString());
+    Assert.assertNotSame(listing, cache.get(fileSystemWrapper, conf, path));
+  }
+
+  @Test
+  public void testListingLeavesOutSubdirectories() throws IOException {
+    File dir = Files.createTempDir();
+    Files.write(new byte[10], new File(dir, "a.cram"));
+    File subdirectory = new File(dir, "b");
+    Assert.assertTrue(subdirectory.mkdir());
+    Files.write(new byte[20], new File(subdirectory, "c.cram"));
+
+    Configuration conf = new Configuration();
+    String path = dir.toURI().toString();
+    for (FileSystemWrapper fileSystemWrapper :
+        new FileSystemWrapper[] {new HadoopFileSystemWrapper(), new NioFileSystemWrapper()}) {
+      List<String> paths = fileSystemWrapper.listDirectory(conf, path);
+      Assert.assertEquals(1, paths.size());
+      Assert.assertTrue(paths.get(0).endsWith("/a.cram"));
+      List<FileCacheKey> keys = fileSystemWrapper.listDirectoryKeys(conf, path);
+      Assert.assertEquals(1, keys.size());
+      Assert.assertEquals(paths.get(0), keys.get(0).getPath());
+      Assert.assertEquals(10, keys.get(0).getLength());
+    }
+  }
+}
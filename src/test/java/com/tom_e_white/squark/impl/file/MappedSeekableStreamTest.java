@@ -0,0 +1,53 @@
+package com.tom_e_white.squark.impl.file;
+
+import static com.tom_e_white.squark.SeekableStreamTestUtil.assertRandomReads;
+import static com.tom_e_white.squark.SeekableStreamTestUtil.randomBytes;
+
+import htsjdk.samtools.seekablestream.SeekableStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+import junitparams.JUnitParamsRunner;
+import junitparams.Parameters;
+import org.apache.hadoop.conf.Configuration;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(JUnitParamsRunner.class)
+public class MappedSeekableStreamTest {
+
+  @Test
+  @Parameters({"false", "true"})
+  public void testRandomAccess(boolean useNio) throws IOException {
+    byte[] data = randomBytes(10_000);
+    Random random = new Random(42);
+    File file = File.createTempFile("mapped", ".bin");
+    file.deleteOnExit();
+    Files.write(file.toPath(), data);
+
+    // use small windows so reads span windows
+    Configuration conf = new Configuration();
+    conf.setBoolean(MappedSeekableStream.ENABLED_KEY, true);
+    conf.setInt(MappedSeekableStream.WINDOW_SIZE_KEY, 1000);
+    FileSystemWrapper fileSystemWrapper =
+        useNio ? new NioFileSystemWrapper() : new HadoopFileSystemWrapper();
+    try (SeekableStream in = fileSystemWrapper.open(conf, file.toURI().toString())) {
+      Assert.assertTrue(in instanceof MappedSeekableStream);
+      Assert.assertSame(in, ReadAhead.buffer(conf, in));
+      Assert.assertEquals(data.length, in.length());
+      assertRandomReads(data, in, random, 1000, 2500);
+
+      in.seek(9_990);
+      Assert.assertEquals(10, in.skip(100));
+      Assert.assertEquals(-1, in.read(new byte[1], 0, 1));
+    }
+
+    // not used unless enabled
+    conf.setBoolean(MappedSeekableStream.ENABLED_KEY, false);
+    try (SeekableStream in = fileSystemWrapper.open(conf, file.toURI().toString())) {
+      Assert.assertFalse(in instanceof MappedSeekableStream);
+    }
+  }
+}
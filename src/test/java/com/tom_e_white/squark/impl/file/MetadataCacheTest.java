@@ -0,0 +1,39 @@
+package com.tom_e_white.squark.impl.file;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class MetadataCacheTest {
+
+  @Test
+  public void testCache() throws IOException {
+    MetadataCache cache = new MetadataCache();
+    AtomicInteger loads = new AtomicInteger();
+    MetadataCache.Loader<String> loader = () -> "header" + loads.incrementAndGet();
+
+    // a value is only loaded once, unless the file changes
+    FileCacheKey key = new FileCacheKey("file:/data/dir/a.vcf.gz", 100, 1);
+    Assert.assertEquals("header1", cache.get(key, "header", loader));
+    Assert.assertEquals("header1", cache.get(key, "header", loader));
+    Assert.assertEquals(
+        "header2",
+        cache.get(new FileCacheKey("file:/data/dir/a.vcf.gz", 200, 2), "header", loader));
+    Assert.assertNull(cache.get(key, "index"));
+
+    // invalidating a file removes its values, and those of its index files
+    FileCacheKey indexKey = new FileCacheKey("file:/data/dir/a.vcf.gz.tbi", 10, 1);
+    FileCacheKey otherKey = new FileCacheKey("file:/data/dir/ab.vcf.gz", 100, 1);
+    cache.put(indexKey, "index", "index");
+    cache.put(otherKey, "header", "other");
+    cache.invalidate("/data/dir/a.vcf.gz"); // without the scheme
+    Assert.assertNull(cache.get(key, "header"));
+    Assert.assertNull(cache.get(indexKey, "index"));
+    Assert.assertEquals("other", cache.get(otherKey, "header"));
+
+    // invalidating a directory removes the values for its files
+    cache.invalidate("file:/data/dir");
+    Assert.assertNull(cache.get(otherKey, "header"));
+  }
+}
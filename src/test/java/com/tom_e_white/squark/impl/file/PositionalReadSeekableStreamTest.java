@@ -0,0 +1,39 @@
+package com.tom_e_white.squark.impl.file;
+
+import static com.tom_e_white.squark.SeekableStreamTestUtil.assertRandomReads;
+import static com.tom_e_white.squark.SeekableStreamTestUtil.randomBytes;
+
+import htsjdk.samtools.seekablestream.SeekableStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+import org.apache.hadoop.conf.Configuration;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class PositionalReadSeekableStreamTest {
+
+  @Test
+  public void testRandomAccess() throws IOException {
+    byte[] data = randomBytes(10_000);
+    Random random = new Random(42);
+    File file = File.createTempFile("positional-read", ".bin");
+    file.deleteOnExit();
+    Files.write(file.toPath(), data);
+
+    // use small blocks and cache so reads span blocks and blocks are evicted
+    Configuration conf = new Configuration();
+    conf.setInt(HadoopFileSystemWrapper.POSITIONAL_READ_BLOCK_SIZE_KEY, 1000);
+    conf.setInt(HadoopFileSystemWrapper.POSITIONAL_READ_CACHE_BLOCKS_KEY, 3);
+    try (SeekableStream in = new HadoopFileSystemWrapper().open(conf, file.toURI().toString())) {
+      Assert.assertTrue(in instanceof PositionalReadSeekableStream);
+      Assert.assertEquals(data.length, in.length());
+      assertRandomReads(data, in, random, 1000, 2500);
+
+      in.seek(9_990);
+      Assert.assertEquals(10, in.skip(100));
+      Assert.assertEquals(-1, in.read(new byte[1], 0, 1));
+    }
+  }
+}
@@ -0,0 +1,81 @@
+package com.tom_e_white.squark.impl.file;
+
+import static com.tom_e_white.squark.SeekableStreamTestUtil.randomBytes;
+
+import htsjdk.samtools.seekablestream.ByteArraySeekableStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class PrefetchingSeekableStreamTest {
+
+  /** Records the threads that the stream is read from. */
+  private static class ThreadRecordingStream extends ByteArraySeekableStream {
+    private final Set<String> threads = ConcurrentHashMap.newKeySet();
+
+    ThreadRecordingStream(byte[] bytes) {
+      super(bytes);
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+      threads.add(Thread.currentThread().getName());
+      return super.read(buffer, offset, length);
+    }
+  }
+
+  @Test
+  public void testSequentialScan() throws IOException {
+    byte[] data = randomBytes(100_000);
+    ThreadRecordingStream recording = new ThreadRecordingStream(data);
+    try (PrefetchingSeekableStream in =
+        new PrefetchingSeekableStream(recording, 20_000, 80_000, 1000, 3)) {
+      in.seek(20_000);
+      byte[] buffer = new byte[100];
+      for (int position = 20_000; position < data.length; position += buffer.length) {
+        Assert.assertEquals(buffer.length, in.read(buffer, 0, buffer.length));
+        Assert.assertArrayEquals(
+            Arrays.copyOfRange(data, position, position + buffer.length), buffer);
+      }
+      Assert.assertEquals(-1, in.read());
+      Assert.assertTrue(in.eof());
+    }
+    Assert.assertTrue(
+        recording.threads.stream().anyMatch(thread -> thread.startsWith("squark-prefetch-")));
+  }
+
+  @Test
+  public void testRandomAccess() throws IOException {
+    byte[] data = randomBytes(100_000);
+    Random random = new Random(42);
+    try (PrefetchingSeekableStream in =
+        new PrefetchingSeekableStream(new ByteArraySeekableStream(data), 0, 100_000, 1000, 2)) {
+      int position = 0;
+      for (int i = 0; i < 2000; i++) {
+        // mostly read on (so reads ahead are started), sometimes jump backwards or forwards
+        if (random.nextInt(10) == 0) {
+          position = random.nextInt(data.length);
+          in.seek(position);
+        }
+        int length = random.nextInt(1500) + 1;
+        byte[] buffer = new byte[length];
+        int n = in.read(buffer, 0, length);
+        if (position == data.length) {
+          Assert.assertEquals(-1, n);
+          position = 0;
+          in.seek(position);
+          continue;
+        }
+        Assert.assertEquals(Math.min(length, data.length - position), n);
+        Assert.assertArrayEquals(
+            Arrays.copyOfRange(data, position, position + n), Arrays.copyOf(buffer, n));
+        position += n;
+        Assert.assertEquals(position, in.position());
+      }
+    }
+  }
+}
@@ -7,6 +7,7 @@ import java.net.URISyntaxException;
 import java.util.List;
 import junitparams.JUnitParamsRunner;
 import junitparams.Parameters;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
 import org.apache.spark.api.java.JavaRDD;
 import org.junit.Assert;
 import org.junit.Test;
@@ -32,4 +33,19 @@ public class BgzfBlockSourceTest extends BaseTest {
     Assert.assertEquals(14146, collect.get(0).cSize);
     Assert.assertEquals(65498, collect.get(0).uSize);
   }
+
+  @Test
+  public void testReadsOnSameContextHaveTheirOwnSplitSize() throws IOException, URISyntaxException {
+    String inputPath = ClassLoader.getSystemClassLoader().getResource("1.bam").toURI().toString();
+    String maxSplitSize = jsc.hadoopConfiguration().get(FileInputFormat.SPLIT_MAXSIZE);
+
+    JavaRDD<BgzfBlock> smallSplits =
+        new BgzfBlockSource().getBgzfBlocks(jsc, inputPath, 128 * 1024);
+    JavaRDD<BgzfBlock> defaultSplits = new BgzfBlockSource().getBgzfBlocks(jsc, inputPath, 0);
+
+    // the second read doesn't use the first read's split size
+    Assert.assertEquals(5, smallSplits.getNumPartitions());
+    Assert.assertEquals(1, defaultSplits.getNumPartitions());
+    Assert.assertEquals(maxSplitSize, jsc.hadoopConfiguration().get(FileInputFormat.SPLIT_MAXSIZE));
+  }
 }
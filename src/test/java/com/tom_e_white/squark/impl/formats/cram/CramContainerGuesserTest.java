@@ -0,0 +1,96 @@
+package com.tom_e_white.squark.impl.formats.cram;
+
+import htsjdk.samtools.ConfigurableCRAMContainerStreamWriter;
+import htsjdk.samtools.CramContainerHeaderIterator;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.SamReaderFactory;
+import htsjdk.samtools.cram.build.CramEncodingStrategy;
+import htsjdk.samtools.cram.ref.ReferenceSource;
+import htsjdk.samtools.seekablestream.ByteArraySeekableStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CramContainerGuesserTest {
+
+  @Test
+  public void testGuessContainers() throws IOException, URISyntaxException {
+    byte[] cram = writeCram3();
+    List<Long> offsets = getContainerOffsets(cram);
+    Assert.assertTrue(offsets.size() > 3);
+
+    // scanning the file in ranges finds the same containers as reading their headers in turn
+    List<Long> guessedOffsets = new ArrayList<>();
+    try (CramContainerGuesser guesser =
+        new CramContainerGuesser(new ByteArraySeekableStream(cram), cram.length)) {
+      for (long start = offsets.get(0); start < cram.length; start += 1000) {
+        guessedOffsets.addAll(
+            guesser.getContainerOffsets(start, Math.min(start + 1000, cram.length)));
+      }
+    }
+    Assert.assertEquals(offsets, guessedOffsets);
+  }
+
+  @Test
+  public void testResyncAfterInvalidHeader() throws IOException, URISyntaxException {
+    byte[] cram = writeCram3();
+    List<Long> offsets = getContainerOffsets(cram);
+
+    // corrupt the header of the second container, so its checksum doesn't match
+    int corrupted = offsets.get(1).intValue();
+    cram[corrupted + 4]++;
+    List<Long> expected = new ArrayList<>(offsets);
+    expected.remove(1);
+    try (CramContainerGuesser guesser =
+        new CramContainerGuesser(new ByteArraySeekableStream(cram), cram.length)) {
+      Assert.assertEquals(expected, guesser.getContainerOffsets(offsets.get(0), cram.length));
+    }
+  }
+
+  /** @return a CRAM 3 file with a small number of records in each container */
+  private static byte[] writeCram3() throws IOException, URISyntaxException {
+    File cramFile = getFile("valid.cram");
+    File refFile = getFile("valid.fasta");
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (SamReader reader =
+        SamReaderFactory.makeDefault().referenceSequence(refFile).open(cramFile)) {
+      ConfigurableCRAMContainerStreamWriter writer =
+          new ConfigurableCRAMContainerStreamWriter(
+              out,
+              new ReferenceSource(refFile),
+              reader.getFileHeader(),
+              "test",
+              2,
+              1,
+              CramEncodingStrategy.DEFAULT,
+              1);
+      writer.writeHeader(reader.getFileHeader());
+      for (SAMRecord record : reader) {
+        writer.writeAlignment(record);
+      }
+      writer.finish(true);
+    }
+    return out.toByteArray();
+  }
+
+  private static List<Long> getContainerOffsets(byte[] cram) throws IOException {
+    CramContainerHeaderIterator it =
+        new CramContainerHeaderIterator(new ByteArraySeekableStream(cram));
+    Assert.assertEquals(3, it.getCramHeader().getVersion().major);
+    List<Long> offsets = new ArrayList<>();
+    while (it.hasNext()) {
+      offsets.add(it.next().offset);
+    }
+    return offsets;
+  }
+
+  private static File getFile(String localResource) throws URISyntaxException {
+    return new File(ClassLoader.getSystemClassLoader().getResource(localResource).toURI());
+  }
+}
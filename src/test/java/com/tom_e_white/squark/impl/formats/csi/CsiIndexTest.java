@@ -0,0 +1,93 @@
+package com.tom_e_white.squark.impl.formats.csi;
+
+import htsjdk.samtools.Chunk;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CsiIndexTest {
+
+  private static final int LONG_CONTIG_LENGTH = 2_000_000_000; // too long for BAI or tabix
+
+  @Test
+  public void testLongContig() throws IOException {
+    // one record every 10 Mbp, each in its own 64K block
+    CsiIndexBuilder csiIndexBuilder = new CsiIndexBuilder(new int[] {LONG_CONTIG_LENGTH});
+    csiIndexBuilder.setAux(CsiIndexBuilder.tabixVcfAux(Arrays.asList("chr1")));
+    for (int i = 0; i < 200; i++) {
+      csiIndexBuilder.addRecord(0, i * 10_000_000, i * 10_000_000 + 100, block(i), block(i + 1));
+    }
+    csiIndexBuilder.addNoCoordinateRecord();
+    CsiIndex csiIndex = roundTrip(csiIndexBuilder);
+
+    Assert.assertEquals(Arrays.asList("chr1"), csiIndex.getSequenceNames());
+    Assert.assertEquals(0, csiIndex.getSequenceIndex("chr1"));
+    Assert.assertEquals(1, csiIndex.getNoCoordinateCount());
+    Assert.assertEquals(block(200), csiIndex.getEndOfPlacedRecords());
+
+    // a region beyond 2^29 contains just the 150th record
+    List<Chunk> chunks = csiIndex.getChunks(0, 1_500_000_000, 1_500_000_050);
+    Assert.assertEquals(1, chunks.size());
+    Assert.assertEquals(block(150), chunks.get(0).getChunkStart());
+    Assert.assertEquals(block(151), chunks.get(0).getChunkEnd());
+
+    // a region spanning several records gives a single merged chunk
+    chunks = csiIndex.getChunks(0, 1_000_000_050, 1_030_000_050);
+    Assert.assertEquals(1, chunks.size());
+    Assert.assertEquals(block(100), chunks.get(0).getChunkStart());
+    Assert.assertEquals(block(104), chunks.get(0).getChunkEnd());
+
+    // a region with no records in its bins
+    Assert.assertTrue(csiIndex.getChunks(0, 1_905_000_000, 1_905_000_100).isEmpty());
+  }
+
+  @Test
+  public void testAppend() throws IOException {
+    int[] refLengths = {1_000_000, 1_000_000};
+    CsiIndexBuilder first = new CsiIndexBuilder(refLengths);
+    first.addRecord(0, 1000, 1100, block(0), block(1));
+    CsiIndexBuilder second = new CsiIndexBuilder(refLengths);
+    second.addRecord(1, 2000, 2100, block(0), block(1));
+    second.addNoCoordinateRecord();
+
+    CsiIndexBuilder merged = new CsiIndexBuilder(refLengths);
+    merged.append(first, 0);
+    merged.append(second, 5 * 65536); // the second part starts after 5 blocks
+    CsiIndex csiIndex = roundTrip(merged);
+
+    Assert.assertNull(csiIndex.getSequenceNames());
+    Assert.assertEquals(1, csiIndex.getNoCoordinateCount());
+    Assert.assertEquals(Arrays.asList(new Chunk(block(0), block(1))), csiIndex.getChunks(0, 0, 0));
+    Assert.assertEquals(
+        Arrays.asList(new Chunk(block(5), block(6))), csiIndex.getChunks(1, 2050, 2060));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testStartOutOfOrder() {
+    CsiIndexBuilder csiIndexBuilder = new CsiIndexBuilder(new int[] {1_000_000});
+    csiIndexBuilder.addRecord(0, 2000, 2100, block(0), block(1));
+    csiIndexBuilder.addRecord(0, 1000, 1100, block(1), block(2));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testReferenceOutOfOrder() {
+    CsiIndexBuilder csiIndexBuilder = new CsiIndexBuilder(new int[] {1_000_000, 1_000_000});
+    csiIndexBuilder.addRecord(1, 1000, 1100, block(0), block(1));
+    csiIndexBuilder.addRecord(0, 2000, 2100, block(1), block(2));
+  }
+
+  /** @return the virtual file offset of the start of the given 64K block */
+  private static long block(int i) {
+    return ((long) i * 65536) << 16;
+  }
+
+  private static CsiIndex roundTrip(CsiIndexBuilder csiIndexBuilder) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    csiIndexBuilder.write(out);
+    return new CsiIndex(new ByteArrayInputStream(out.toByteArray()));
+  }
+}
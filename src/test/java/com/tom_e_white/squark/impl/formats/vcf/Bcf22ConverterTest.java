@@ -0,0 +1,103 @@
+package com.tom_e_white.squark.impl.formats.vcf;
+
+import htsjdk.tribble.readers.PositionalBufferedStream;
+import htsjdk.variant.bcf2.BCF2Codec;
+import htsjdk.variant.variantcontext.Allele;
+import htsjdk.variant.variantcontext.GenotypeBuilder;
+import htsjdk.variant.variantcontext.VariantContext;
+import htsjdk.variant.variantcontext.VariantContextBuilder;
+import htsjdk.variant.variantcontext.writer.VariantContextWriter;
+import htsjdk.variant.variantcontext.writer.VariantContextWriterBuilder;
+import htsjdk.variant.vcf.VCFContigHeaderLine;
+import htsjdk.variant.vcf.VCFFormatHeaderLine;
+import htsjdk.variant.vcf.VCFHeader;
+import htsjdk.variant.vcf.VCFHeaderLine;
+import htsjdk.variant.vcf.VCFHeaderLineCount;
+import htsjdk.variant.vcf.VCFHeaderLineType;
+import htsjdk.variant.vcf.VCFHeaderVersion;
+import htsjdk.variant.vcf.VCFInfoHeaderLine;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class Bcf22ConverterTest {
+
+  private static final Allele REF = Allele.create("A", true);
+  private static final Allele ALT = Allele.create("C");
+
+  @Test
+  public void testWriteAndRead() throws Exception {
+    Set<VCFHeaderLine> headerLines = new HashSet<>();
+    headerLines.add(new VCFHeaderLine(VCFHeaderVersion.VCF4_2.getFormatString(), "VCFv4.2"));
+    headerLines.add(new VCFContigHeaderLine(Collections.singletonMap("ID", "chr1"), 0));
+    headerLines.add(new VCFInfoHeaderLine("DP", 1, VCFHeaderLineType.Integer, "Combined depth"));
+    headerLines.add(new VCFFormatHeaderLine("GT", 1, VCFHeaderLineType.String, "Genotype"));
+    headerLines.add(
+        new VCFFormatHeaderLine("AD", VCFHeaderLineCount.R, VCFHeaderLineType.Integer, "Depths"));
+    VCFHeader header = new VCFHeader(headerLines, Arrays.asList("diploid", "haploid"));
+
+    // a haploid genotype and a missing AD are padded to the length of the longest vector, and
+    // -125 is in the range of values that BCF 2.2 reserves for int8
+    VariantContext variantContext =
+        new VariantContextBuilder("test", "chr1", 100, 100, Arrays.asList(REF, ALT))
+            .attribute("DP", -125)
+            .genotypes(
+                new GenotypeBuilder("diploid", Arrays.asList(REF, ALT)).AD(new int[] {3, 4}).make(),
+                new GenotypeBuilder("haploid", Collections.singletonList(ALT)).make())
+            .make();
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    VariantContextWriter writer =
+        new VariantContextWriterBuilder()
+            .clearOptions()
+            .setOutputBCFStream(new Bcf22OutputStream(bytes))
+            .build();
+    writer.writeHeader(header);
+    writer.add(variantContext);
+    writer.close();
+
+    ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray()).order(ByteOrder.LITTLE_ENDIAN);
+    byte[] magic = new byte[5];
+    buffer.get(magic);
+    Assert.assertArrayEquals(new byte[] {'B', 'C', 'F', 2, 2}, magic);
+    int headerLength = buffer.getInt();
+    buffer.position(buffer.position() + headerLength);
+    byte[] record = new byte[buffer.remaining()];
+    buffer.get(record);
+
+    // the padding values are end of vector values
+    int sharedLength = ByteBuffer.wrap(record).order(ByteOrder.LITTLE_ENDIAN).getInt();
+    byte[] indiv = Arrays.copyOfRange(record, 8 + sharedLength, record.length);
+    Assert.assertTrue(containsSubsequence(indiv, new byte[] {0x21, 2, 4, 4, (byte) 0x81}));
+    Assert.assertTrue(containsSubsequence(indiv, new byte[] {3, 4, (byte) 0x80, (byte) 0x81}));
+
+    // the record can be read by htsjdk once it is converted back to BCF 2.1
+    BCF2Codec codec = new BCF2Codec();
+    codec.readHeader(
+        new PositionalBufferedStream(
+            new ByteArrayInputStream(bytes.toByteArray(), 0, 9 + headerLength)));
+    byte[] bcf21Record = Bcf22Converter.toBcf21(record);
+    VariantContext actual =
+        codec.decode(
+            new PositionalBufferedStream(
+                new ByteArrayInputStream(bcf21Record), bcf21Record.length));
+    Assert.assertEquals(-125, actual.getAttributeAsInt("DP", 0));
+    Assert.assertEquals(Arrays.asList(REF, ALT), actual.getGenotype("diploid").getAlleles());
+    Assert.assertArrayEquals(new int[] {3, 4}, actual.getGenotype("diploid").getAD());
+    Assert.assertEquals(Collections.singletonList(ALT), actual.getGenotype("haploid").getAlleles());
+    Assert.assertFalse(actual.getGenotype("haploid").hasAD());
+  }
+
+  private static boolean containsSubsequence(byte[] bytes, byte[] subsequence) {
+    return new String(bytes, StandardCharsets.ISO_8859_1)
+        .contains(new String(subsequence, StandardCharsets.ISO_8859_1));
+  }
+}
@@ -0,0 +1,29 @@
+package com.tom_e_white.squark.impl.formats.vcf;
+
+import com.tom_e_white.squark.HtsjdkVariantsRddStorage.GenotypeDecoding;
+import htsjdk.variant.vcf.VCFHeader;
+import java.util.Arrays;
+import java.util.Collections;
+import org.apache.hadoop.fs.Path;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class VcfFileHeadersTest {
+
+  @Test
+  public void testCreateDecoderIgnoresScheme() {
+    VcfFileHeaders fileHeaders = new VcfFileHeaders(null);
+    fileHeaders.add(
+        "file:///data/part-0.vcf", new VCFHeader(Collections.emptySet(), Arrays.asList("s1")));
+    Assert.assertNotNull(
+        fileHeaders.createDecoder(new Path("/data/part-0.vcf"), GenotypeDecoding.DEFAULT));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testCreateDecoderForUnknownFile() {
+    VcfFileHeaders fileHeaders = new VcfFileHeaders(null);
+    fileHeaders.add(
+        "file:///data/part-0.vcf", new VCFHeader(Collections.emptySet(), Arrays.asList("s1")));
+    fileHeaders.createDecoder(new Path("file:///data/part-1.vcf"), GenotypeDecoding.DEFAULT);
+  }
+}
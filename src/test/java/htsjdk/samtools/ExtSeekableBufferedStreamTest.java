@@ -0,0 +1,72 @@
+package htsjdk.samtools;
+
+import static com.tom_e_white.squark.SeekableStreamTestUtil.assertRandomReads;
+import static com.tom_e_white.squark.SeekableStreamTestUtil.randomBytes;
+
+import htsjdk.samtools.seekablestream.ByteArraySeekableStream;
+import java.io.IOException;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ExtSeekableBufferedStreamTest {
+
+  /** Counts the bytes read from the underlying stream. */
+  private static class CountingStream extends ByteArraySeekableStream {
+    private long bytesRead;
+
+    CountingStream(byte[] bytes) {
+      super(bytes);
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+      int n = super.read(buffer, offset, length);
+      if (n > 0) {
+        bytesRead += n;
+      }
+      return n;
+    }
+  }
+
+  @Test
+  public void testRandomAccess() throws IOException {
+    byte[] data = randomBytes(1_000_000);
+    Random random = new Random(42);
+    try (ExtSeekableBufferedStream in =
+        new ExtSeekableBufferedStream(new CountingStream(data), 1000, 100_000)) {
+      // sometimes read more than the read-ahead
+      assertRandomReads(data, in, random, 1000, 200_000);
+    }
+  }
+
+  @Test
+  public void testReadAheadAdapts() throws IOException {
+    byte[] data = randomBytes(20_000_000);
+    CountingStream counting = new CountingStream(data);
+    try (ExtSeekableBufferedStream in = new ExtSeekableBufferedStream(counting)) {
+      // reading sequentially grows the read-ahead to the maximum, and doesn't over-read much
+      byte[] buffer = new byte[1000];
+      for (int i = 0; i < 10_000; i++) {
+        Assert.assertEquals(buffer.length, in.read(buffer, 0, buffer.length));
+      }
+      Assert.assertEquals(ExtSeekableBufferedStream.DEFAULT_MAX_READ_AHEAD, in.getReadAhead());
+      Assert.assertTrue(counting.bytesRead < 10_000_000 + in.getReadAhead());
+
+      // probing at scattered positions shrinks it to the minimum
+      for (int i = 0; i < 100; i++) {
+        in.seek(i * 100_000L);
+        in.read(buffer, 0, 4);
+      }
+      Assert.assertEquals(ExtSeekableBufferedStream.DEFAULT_MIN_READ_AHEAD, in.getReadAhead());
+
+      long before = counting.bytesRead;
+      for (int i = 0; i < 100; i++) {
+        in.seek(i * 100_000L + 50_000);
+        in.read(buffer, 0, 4);
+      }
+      Assert.assertEquals(
+          100L * ExtSeekableBufferedStream.DEFAULT_MIN_READ_AHEAD, counting.bytesRead - before);
+    }
+  }
+}